@@ -26,10 +26,14 @@ package org.bioinfo.ngs.qc.qualimap.beans;
 
 public class BamDetailedGenomeWindow extends BamGenomeWindow {
 
+	private static final long serialVersionUID = 4335550242597216882L;
+
 	// reference sequence
 	private byte[] reference;
 
 	// coverageData
+	// until computeDescriptors() is called, the coverage and quality arrays hold
+	// per-position differences, which are turned into actual values by a prefix sum
 	private int[] coverageAcrossReference;
 
 	// quality
@@ -65,7 +69,7 @@ public class BamDetailedGenomeWindow extends BamGenomeWindow {
 	@Override
 	protected void acumBase(long relative){
 		super.acumBase(relative);
-		coverageAcrossReference[(int)relative] = coverageAcrossReference[(int)relative]+1;
+		addCoverageRange((int)relative, 1, 0);
 	}
 	
 	@Override
@@ -90,8 +94,17 @@ public class BamDetailedGenomeWindow extends BamGenomeWindow {
 
         sumCoverage = 0;
 
+        int coverageDelta = 0;
+        long mappingQualityDelta = 0;
+
 		for(int i=0; i<coverageAcrossReference.length; i++){
 
+            // accumulate differences into actual values
+            coverageDelta += coverageAcrossReference[i];
+            mappingQualityDelta += mappingQualityAcrossReference[i];
+            coverageAcrossReference[i] = coverageDelta;
+            mappingQualityAcrossReference[i] = mappingQualityDelta;
+
 			long coverageAtPosition =  coverageAcrossReference[i];
 
             if(coverageAtPosition > 0){
@@ -123,17 +136,42 @@ public class BamDetailedGenomeWindow extends BamGenomeWindow {
     @Override
     public void addReadAlignmentData(SingleReadData readData) {
         super.addReadAlignmentData(readData);
-        for (int pos : readData.coverageData) {
-            coverageAcrossReference[pos]++;
+
+        int numRuns = readData.getNumberOfCoverageRuns();
+        for (int i = 0; i < numRuns; ++i) {
+            int length = readData.getCoverageRunLength(i);
+            int mappingQuality = readData.getCoverageRunMappingQuality(i);
+            addCoverageRange(readData.getCoverageRunStart(i), length, mappingQuality);
+            super.acumMappingQuality += (long) mappingQuality * length;
         }
 
-        for (SingleReadData.Cell cell : readData.mappingQualityData) {
-            int pos = cell.getPosition();
-            int val = cell.getValue();
-            mappingQualityAcrossReference[pos] += val;
-            super.acumMappingQuality += val;
+    }
+
+    /**
+     * Add the data of the same window collected from a different subset of reads,
+     * the coverage and the mapping quality are added per position.
+     * @param other detailed window with the same coordinates, not finalized yet
+     */
+    @Override
+    public void merge(BamGenomeWindow other) {
+        super.merge(other);
+
+        BamDetailedGenomeWindow detailed = (BamDetailedGenomeWindow) other;
+        // both arrays hold per position differences, their sum is the difference of the sum
+        for (int i = 0; i < coverageAcrossReference.length; ++i) {
+            coverageAcrossReference[i] += detailed.coverageAcrossReference[i];
+            mappingQualityAcrossReference[i] += detailed.mappingQualityAcrossReference[i];
         }
+    }
 
+    private void addCoverageRange(int start, int length, int mappingQuality) {
+        int end = start + length;
+        coverageAcrossReference[start]++;
+        mappingQualityAcrossReference[start] += mappingQuality;
+        if (end < coverageAcrossReference.length) {
+            coverageAcrossReference[end]--;
+            mappingQualityAcrossReference[end] -= mappingQuality;
+        }
     }
 
     /**
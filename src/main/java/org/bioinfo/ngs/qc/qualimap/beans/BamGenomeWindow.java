@@ -20,9 +20,14 @@
  */
 package org.bioinfo.ngs.qc.qualimap.beans;
 
+import org.bioinfo.ngs.qc.qualimap.common.IndexedFastaReference;
+
+import java.io.Serializable;
 import java.util.BitSet;
 
-public class BamGenomeWindow {
+public class BamGenomeWindow implements Serializable {
+	private static final long serialVersionUID = -8531323838845006232L;
+
 	protected String name;
 
 	// window params
@@ -143,25 +148,59 @@ public class BamGenomeWindow {
 	}
 	
 	public void processReference(byte[] reference){
-		char nucleotide;
-		for(long i=0; i<reference.length; i++){
-			nucleotide = (char)reference[(int)i];
-			if(nucleotide=='A'){
-				numberOfAsInReference++;
-			}
-			else if(nucleotide=='C'){
-				numberOfCsInReference++;
-			}
-			else if(nucleotide=='T'){
-				numberOfTsInReference++;
-			}
-			else if(nucleotide=='G'){
-				numberOfGsInReference++;
-			}
-			else if(nucleotide=='N'){
-				numberOfNsInReference++;
-			}
+		for(int i=0; i<reference.length; i++){
+			countReferenceNucleotide((char)reference[i]);
+		}
+		computeReferenceContent();
+	}
+
+	public void processReference(IndexedFastaReference.Slice reference){
+		int length = reference.length();
+		for(int i=0; i<length; i++){
+			countReferenceNucleotide((char)reference.get(i));
+		}
+		computeReferenceContent();
+	}
+
+	/**
+	 * @return numbers of A, C, G, T and N nucleotides in the reference of the window
+	 */
+	public long[] getReferenceNucleotideCounts(){
+		return new long[] {numberOfAsInReference, numberOfCsInReference, numberOfGsInReference,
+				numberOfTsInReference, numberOfNsInReference};
+	}
+
+	/**
+	 * Sets the reference content computed beforehand, the counts are ordered as A, C, G, T and N
+	 */
+	public void setReferenceNucleotideCounts(long[] counts){
+		numberOfAsInReference = counts[0];
+		numberOfCsInReference = counts[1];
+		numberOfGsInReference = counts[2];
+		numberOfTsInReference = counts[3];
+		numberOfNsInReference = counts[4];
+		computeReferenceContent();
+	}
+
+	private void countReferenceNucleotide(char nucleotide){
+		if(nucleotide=='A'){
+			numberOfAsInReference++;
+		}
+		else if(nucleotide=='C'){
+			numberOfCsInReference++;
+		}
+		else if(nucleotide=='T'){
+			numberOfTsInReference++;
 		}
+		else if(nucleotide=='G'){
+			numberOfGsInReference++;
+		}
+		else if(nucleotide=='N'){
+			numberOfNsInReference++;
+		}
+	}
+
+	private void computeReferenceContent(){
 		numberOfGcsInReference = numberOfGsInReference + numberOfCsInReference;
 		numberOfAtsInReference = numberOfAsInReference + numberOfTsInReference;
 		
@@ -493,6 +532,32 @@ public class BamGenomeWindow {
 
     }
 
+    /**
+     * Add the data of the same window collected from a different subset of reads, e.g. another
+     * lane of the sample. Both windows must not be finalized yet (see {@link #computeDescriptors()}),
+     * the counters are sums over the reads, so the result is exact.
+     * @param other window with the same coordinates
+     */
+    public void merge(BamGenomeWindow other) {
+        if (other.start != start || other.end != end) {
+            throw new IllegalArgumentException("Window " + other.name + " can not be merged into window " + name);
+        }
+
+        numberOfMappedBases += other.numberOfMappedBases;
+        numberOfSequencedBases += other.numberOfSequencedBases;
+        numberOfAlignedBases += other.numberOfAlignedBases;
+        acumMappingQuality += other.acumMappingQuality;
+
+        numberOfAs += other.numberOfAs;
+        numberOfCs += other.numberOfCs;
+        numberOfGs += other.numberOfGs;
+        numberOfTs += other.numberOfTs;
+        numberOfNs += other.numberOfNs;
+
+        correctInsertSizes += other.correctInsertSizes;
+        acumInsertSize += other.acumInsertSize;
+    }
+
     public long getEffectiveWindowLength() {
         return effectiveWindowLength;
     }
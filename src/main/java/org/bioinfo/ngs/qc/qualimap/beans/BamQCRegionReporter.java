@@ -29,9 +29,9 @@ import java.util.List;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.math.stat.StatUtils;
-import org.bioinfo.commons.utils.ListUtils;
 import org.bioinfo.commons.utils.StringUtils;
 import org.bioinfo.ngs.qc.qualimap.beans.BamStats.ChromosomeInfo;
+import org.bioinfo.ngs.qc.qualimap.common.ChunkSampling;
 import org.bioinfo.ngs.qc.qualimap.common.Constants;
 import org.bioinfo.ngs.qc.qualimap.common.SkipDuplicatesMode;
 import org.bioinfo.ngs.qc.qualimap.gui.utils.StatsKeeper;
@@ -138,6 +138,7 @@ public class BamQCRegionReporter extends StatsReporter implements Serializable {
     private long numPairedReads, numberOfMappedFirstOfPair, numberOfMappedSecondOfPair;
     private double percantagePairedReads, percentageOfMappedFirstOfPair, percentageOfMappedSecondOfPair;
     private long numSingletons, numSuppAlignments;
+    private long numRecordsInIndex, numMappedRecordsInIndex;
     private double percentageSingletons;
     private long numCorrectStrandReads;
     private long numDuplicatedReadsMarked, numDuplicatedReadsEstimated, numDuplicatesSkipped;
@@ -164,6 +165,8 @@ public class BamQCRegionReporter extends StatsReporter implements Serializable {
     private Map<String,String> warnings;
     String genomeGCContentName;
     int numSelectedRegions;
+    // sampled chunks, if the statistics are approximated
+    transient ChunkSampling chunkSampling;
 
     static NumberFormat decimailFormatter = DecimalFormat.getInstance(Locale.US);
     static NumberFormat percentageFormatter = DecimalFormat.getInstance(Locale.US);
@@ -226,6 +229,12 @@ public class BamQCRegionReporter extends StatsReporter implements Serializable {
         }
         report.println("     number of secondary alignments = "
                 + formatLong(bamStats.getNumberOfSecondaryAlignments()) );
+        if (bamStats.getNumberOfRecordsInIndex() > 0) {
+            report.println("     number of records (from BAM index) = "
+                    + formatLong(bamStats.getNumberOfRecordsInIndex()) );
+            report.println("     number of mapped records (from BAM index) = "
+                    + formatLong(bamStats.getNumberOfMappedRecordsInIndex()) );
+        }
         report.println("");
 
 		if (bamStats.getNumberOfPairedReads() > 0) {
@@ -272,7 +281,8 @@ public class BamQCRegionReporter extends StatsReporter implements Serializable {
             report.println("");
 
 
-            report.println( "     regions size = " + formatLong(bamStats.getInRegionReferenceSize()) + " (" +
+            report.println( (bamStats.getChunkSampling() != null ? "     sampled size = " : "     regions size = ") +
+                    formatLong(bamStats.getInRegionReferenceSize()) + " (" +
                     formatPercentage(  (bamStats.getInRegionReferenceSize() / (double) bamStats.getReferenceSize() ) * 100.0 )  +  ")" );
 
             report.println( "     number of mapped reads = " +  formatLong(bamStats.getNumberOfMappedReadsInRegions() ) +
@@ -293,6 +303,26 @@ public class BamQCRegionReporter extends StatsReporter implements Serializable {
 
         }
 
+        ChunkSampling sampling = bamStats.getChunkSampling();
+        if (sampling != null) {
+            report.println(">>>>>>> Approximation (95% confidence intervals)");
+            report.println("");
+            report.println("     number of sampled chunks = " + sampling.getNumberOfChunks());
+            report.println("     estimated number of mapped reads = " +
+                    formatEstimate(sampling.estimateNumberOfMappedReads()));
+            if (bamStats.getNumberOfPairedReads() > 0) {
+                report.println("     estimated number of mapped paired reads = " +
+                        formatEstimate(sampling.estimateNumberOfReads(ChunkSampling.PAIRED_READS)));
+            }
+            report.println("     mean coverageData = " + formatEstimate(sampling.estimateMeanCoverage()));
+            report.println("     std coverageData = " + formatEstimate(sampling.estimateStdCoverage()));
+            report.println("     duplication rate = " + formatEstimate(sampling.estimateDuplicationRate()));
+            report.println("     mean insert size = " + formatEstimate(sampling.estimateMeanInsertSize()));
+            report.println("     std insert size = " + formatEstimate(sampling.estimateStdInsertSize()));
+            report.println("");
+            report.println("");
+        }
+
         // insert size
         report.println(">>>>>>> Insert size");
         report.println("");
@@ -387,7 +417,7 @@ public class BamQCRegionReporter extends StatsReporter implements Serializable {
 		report.close();
 	}
 
-    private XYToolTipGenerator createTooltipGenerator(List<Double> windowReferences, GenomeLocator locator ) {
+    private XYToolTipGenerator createTooltipGenerator(double[] windowReferences, GenomeLocator locator ) {
 
         if (locator == null) {
             return null;
@@ -416,6 +446,10 @@ public class BamQCRegionReporter extends StatsReporter implements Serializable {
 	public void loadReportData(BamStats bamStats) {
 
         this.referenceSize = bamStats.getReferenceSize();
+        this.chunkSampling = bamStats.getChunkSampling();
+        if (chunkSampling != null) {
+            namePostfix = " (approximated)";
+        }
 
 		/*if(bamStats.isReferenceAvailable()) {
 			this.referenceFileName = bamStats.getReferenceFile();
@@ -446,6 +480,8 @@ public class BamQCRegionReporter extends StatsReporter implements Serializable {
         this.skipDuplicatesMode = bamStats.getSkipDuplicatesMode();
         this.numSecondaryAlignments = bamStats.getNumberOfSecondaryAlignments();
         this.numSuppAlignments = bamStats.getNumberOfSuppAlignments();
+        this.numRecordsInIndex = bamStats.getNumberOfRecordsInIndex();
+        this.numMappedRecordsInIndex = bamStats.getNumberOfMappedRecordsInIndex();
 
         // paired reads
         this.numPairedReads = bamStats.getNumberOfPairedReads();
@@ -561,34 +597,36 @@ public class BamQCRegionReporter extends StatsReporter implements Serializable {
 		String subTitle = new File(bamStats.getSourceFile()).getName() + namePostfix;
 
 		// compute window centers
-		List<Double> windowReferences = new ArrayList<Double>(bamStats.getNumberOfWindows());
+		double[] windowReferences = new double[bamStats.getNumberOfWindows()];
 
         for(int i=0; i<bamStats.getNumberOfWindows(); i++){
-			windowReferences.add((double)(bamStats.getWindowStart(i)+bamStats.getWindowEnd(i))/2.0);
+			windowReferences[i] = (double)(bamStats.getWindowStart(i)+bamStats.getWindowEnd(i))/2.0;
         }
-		double lastReference = windowReferences.get(windowReferences.size()-1);
+		double lastReference = windowReferences[windowReferences.length-1];
 
 		// max coverageData+std
+        double[] coverageData = bamStats.getCoverageAcrossReference();
+        double[] stdCoverageData = bamStats.getStdCoverageAcrossReference();
 		double maxCoverage = 0;
-		for(int i=0; i<bamStats.getCoverageAcrossReference().size(); i++){
-			if (bamStats.getCoverageAcrossReference().get(i)+bamStats.getStdCoverageAcrossReference().get(i)>maxCoverage) {
-                maxCoverage = bamStats.getCoverageAcrossReference().get(i)+bamStats.getStdCoverageAcrossReference().get(i);
+		for(int i=0; i<coverageData.length; i++){
+			if (coverageData[i]+stdCoverageData[i]>maxCoverage) {
+                maxCoverage = coverageData[i]+stdCoverageData[i];
             }
 		}
 
         //Preparing "smart" zoom for coverage across region
-        Double[] coverageData = ListUtils.toArray(bamStats.getCoverageAcrossReference());
-        double upperCoverageBound = 2*StatUtils.percentile(ArrayUtils.toPrimitive(coverageData), 90);
+        double upperCoverageBound = 2*StatUtils.percentile(coverageData, 90);
         if (upperCoverageBound == 0) {
             // possible in rare cases when the coverage is very low coverage
             upperCoverageBound = maxCoverage*0.9;
         }
 
 
+        double[] insertSizeData = bamStats.getInsertSizeAcrossReference();
         double maxInsertSize = 0;
         if (isPairedData && maxCoverage > 0) {
-            for (int i = 0; i < bamStats.getInsertSizeAcrossReference().size(); i++) {
-                double iSize = bamStats.getInsertSizeAcrossReference().get(i);
+            for (int i = 0; i < insertSizeData.length; i++) {
+                double iSize = insertSizeData[i];
                 if (iSize > maxInsertSize) {
                     maxInsertSize = iSize;
                 }
@@ -661,7 +699,7 @@ public class BamQCRegionReporter extends StatsReporter implements Serializable {
         coverageChart.setToolTipGenerator(toolTipGenerator);
         coverageChart.setSeriesToExportIndex(0);
         coverageChart.addIntervalRenderedSeries("Coverage",new XYVector(windowReferences,
-                bamStats.getCoverageAcrossReference(), bamStats.getStdCoverageAcrossReference()),
+                coverageData, stdCoverageData),
                 new Color(250,50,50,150), new Color(50,50,250), 0.2f);
 
 
@@ -861,7 +899,7 @@ public class BamQCRegionReporter extends StatsReporter implements Serializable {
 			// insert size across reference
 			BamQCChart insertSize = new BamQCChart(Constants.PLOT_TITLE_INSERT_SIZE_ACROSS_REFERENCE,
                     subTitle, "Position (bp)", "Insert size (bp)");
-			insertSize.addSeries("insert size",new XYVector(windowReferences, bamStats.getInsertSizeAcrossReference()), new Color(15,170,90,150));
+			insertSize.addSeries("insert size",new XYVector(windowReferences, insertSizeData), new Color(15,170,90,150));
             if(paintChromosomeLimits && locator!=null) {
                 insertSize.addSeries("chromosomes",chromosomeInsertSizeLimits,chromosomeColor,stroke,
                         false,chromosomeAnnotations);
@@ -903,6 +941,17 @@ public class BamQCRegionReporter extends StatsReporter implements Serializable {
 		return percentageFormatter.format(percentage) + "%";
     }
 
+    private String formatEstimate(ChunkSampling.Estimate estimate) {
+        if (estimate == null) {
+            return "NA";
+        }
+        if (Double.isNaN(estimate.getUpper())) {
+            return formatDecimal(estimate.getValue());
+        }
+        return formatDecimal(estimate.getValue()) + " [" + formatDecimal(estimate.getLower()) + ", " +
+                formatDecimal(estimate.getUpper()) + "]";
+    }
+
 
 
 
@@ -1024,6 +1073,11 @@ public class BamQCRegionReporter extends StatsReporter implements Serializable {
         }
 
 
+        if (numRecordsInIndex > 0) {
+            globals.addRow("Number of records (from BAM index)", sdf.formatLong(numRecordsInIndex));
+            globals.addRow("Mapped records (from BAM index)", sdf.formatLong(numMappedRecordsInIndex));
+        }
+
         globals.addRow("Read min/max/mean length",
                 sdf.formatLong(readMinSize) + " / "
                         + sdf.formatLong(readMaxSize) + " / "
@@ -1079,7 +1133,8 @@ public class BamQCRegionReporter extends StatsReporter implements Serializable {
         if (numSelectedRegions > 0) {
 
             StatsKeeper.Section globalsInRegions = new StatsKeeper.Section("Globals" + postfix);
-            globalsInRegions.addRow("Regions size/percentage of reference",
+            globalsInRegions.addRow(chunkSampling != null ? "Sampled size/percentage of reference" :
+                    "Regions size/percentage of reference",
                     sdf.formatLong((numBasesInsideRegions))
                             + " / " + sdf.formatPercentage(getSelectedRegionsPercentage()));
 
@@ -1133,6 +1188,26 @@ public class BamQCRegionReporter extends StatsReporter implements Serializable {
 
         }
 
+        if (chunkSampling != null) {
+            StatsKeeper.Section approximation = new StatsKeeper.Section("Approximation (95% confidence intervals)");
+            approximation.addRow("Sampled chunks", sdf.formatInteger(chunkSampling.getNumberOfChunks()));
+            approximation.addRow("Mapped reads (unmapped reads are not sampled)",
+                    formatEstimate(chunkSampling.estimateNumberOfMappedReads()));
+            if (numPairedReads > 0) {
+                approximation.addRow("Mapped paired reads",
+                        formatEstimate(chunkSampling.estimateNumberOfReads(ChunkSampling.PAIRED_READS)));
+            }
+            approximation.addRow("Mean coverage", formatEstimate(chunkSampling.estimateMeanCoverage()));
+            approximation.addRow("Coverage standard deviation", formatEstimate(chunkSampling.estimateStdCoverage()));
+            approximation.addRow("Duplication rate", formatEstimate(chunkSampling.estimateDuplicationRate()));
+            if (meanInsertSize != 0) {
+                approximation.addRow("Mean insert size", formatEstimate(chunkSampling.estimateMeanInsertSize()));
+                approximation.addRow("Insert size standard deviation",
+                        formatEstimate(chunkSampling.estimateStdInsertSize()));
+            }
+            summaryStatsKeeper.addSection(approximation);
+        }
+
         StatsKeeper.Section acgtContent = new StatsKeeper.Section("ACGT Content" + postfix);
 
         acgtContent.addRow("Number/percentage of A's", sdf.formatLong(getaNumber()) +
@@ -24,14 +24,18 @@ import java.io.*;
 import java.util.*;
 
 import org.bioinfo.commons.utils.ArrayUtils;
-import org.bioinfo.commons.utils.ListUtils;
 import org.bioinfo.commons.utils.StringUtils;
-import org.bioinfo.math.util.MathUtils;
+import org.bioinfo.ngs.qc.qualimap.common.ChunkSampling;
+import org.bioinfo.ngs.qc.qualimap.common.CoverageWriter;
 import org.bioinfo.ngs.qc.qualimap.common.SkipDuplicatesMode;
 import org.bioinfo.ngs.qc.qualimap.process.ReadStatsCollector;
+import org.bioinfo.ngs.qc.qualimap.common.InsertSizeHistogram;
+import org.bioinfo.ngs.qc.qualimap.common.PrimitiveHistogram;
 import org.bioinfo.ngs.qc.qualimap.common.ReadStartsHistogram;
 
 public class BamStats implements Serializable {
+	private static final long serialVersionUID = -6528666067890043164L;
+
 	private String name;
 	private String sourceFile;
 	//private String referenceFile;
@@ -49,6 +53,10 @@ public class BamStats implements Serializable {
     private long numberOfMappedFirstOfPair;
     private long numberOfMappedSecondOfPair;
 
+    // records counted by the BAM index, set only when the regions are read by index
+    private long numberOfRecordsInIndex;
+    private long numberOfMappedRecordsInIndex;
+
     // regions related
     private long numberOfMappedReadsInRegions;
     private long numberOfPairedReadsInRegions;
@@ -57,9 +65,8 @@ public class BamStats implements Serializable {
     private long numberOfMappedSecondOfPairInRegions;
     private long numCorrectStrandReads;
 
-    private ArrayList<Long>  numMappedBasesPerWindow;
-    private ArrayList<Long> coveragePerWindow, coverageSquaredPerWindow;
-    private ArrayList<Long> windowLengthes;
+    // per window values
+    private WindowStatsStore windowStats;
 
 
 	/*
@@ -134,10 +141,7 @@ public class BamStats implements Serializable {
 	// coverageData
 	private double meanCoverage;
 	private double stdCoverage;
-	private List<Double> coverageAcrossReference;
-	private List<Double> stdCoverageAcrossReference;
-	private HashMap<Long,Long> coverageHistogramMap;
-	private long[] coverageHistogramCache;
+	private PrimitiveHistogram coverageHistogramCounts;
     private XYVector coverageHistogram;
 	private XYVector acumCoverageHistogram;
     private ReadStartsHistogram readStartsHistogram;
@@ -150,9 +154,7 @@ public class BamStats implements Serializable {
 	
 	// quality
 	private double meanMappingQualityPerWindow;
-	private List<Double> mappingQualityAcrossReference;
-	private HashMap<Long,Long> mappingQualityHistogramMap;
-    private long[] mappingQualityHistogramCache;
+    private PrimitiveHistogram mappingQualityHistogramCounts;
 	private XYVector mappingQualityHistogram;
 	
 	// A content
@@ -160,58 +162,43 @@ public class BamStats implements Serializable {
 	private double meanAContentPerWindow;
 	private double meanARelativeContentPerWindow;
 	private double meanARelativeContent;
-	private List<Double> aContentAcrossReference;
-	private List<Double> aRelativeContentAcrossReference;
 	
 	// C content
 	private long numberOfCs;
 	private double meanCContentPerWindow;
 	private double meanCRelativeContentPerWindow;
 	private double meanCRelativeContent;
-	private List<Double> cContentAcrossReference;
-	private List<Double> cRelativeContentAcrossReference;	
 	
 	// T content
 	private long numberOfTs;
 	private double meanTContentPerWindow;
 	private double meanTRelativeContentPerWindow;
 	private double meanTRelativeContent;
-	private List<Double> tContentAcrossReference;
-	private List<Double> tRelativeContentAcrossReference;
 	
 	// G content
 	private long numberOfGs;
 	private double meanGContentPerWindow;
 	private double meanGRelativeContentPerWindow;
 	private double meanGRelativeContent;
-	private List<Double> gContentAcrossReference;
-	private List<Double> gRelativeContentAcrossReference;
 	
 	// N content
 	private long numberOfNs;
 	private double meanNContentPerWindow;
 	private double meanNRelativeContentPerWindow;
 	private double meanNRelativeContent;
-	private List<Double> nContentAcrossReference;
-	private List<Double> nRelativeContentAcrossReference;
 	
 	// GC content
 	private double meanGcContent;
 	private double meanGcContentPerWindow;
 	private double meanGcRelativeContentPerWindow;
 	private double meanGcRelativeContent;
-	private List<Double> gcContentAcrossReference;
-	private List<Double> gcRelativeContentAcrossReference;
 
 	// insert size
 	private double meanInsertSize;
 	private int p25InsertSize, medianInsertSize, p75InsertSize;
     private double stdInsertSize;
-    private List<Double> insertSizeAcrossReference;
     private XYVector insertSizeHistogram;
-    private ArrayList<Integer> insertSizeArray;
-	private HashMap<Long,Long> insertSizeHistogramMap;
-    private long[] insertSizeHistogramCache;
+    private InsertSizeHistogram insertSizes;
 
     // reads stats
     double readMeanSize;
@@ -230,7 +217,6 @@ public class BamStats implements Serializable {
     XYVector readsNsHistogram;
     XYVector readsClippingProfileHistogram;
     int[] homopolymerIndelsData;
-    private boolean reportNonZeroCoverageOnly;
 
     private long numDetectedDuplcateReads, numEstimatedDuplicateReads, numDuplicatesSkipped;
     private SkipDuplicatesMode skipDuplicatesMode;
@@ -351,18 +337,24 @@ public class BamStats implements Serializable {
 	private int numberOfWindows;
 	private int numberOfProcessedWindows;
 	private int numberOfInitializedWindows;	
+    private int firstWindowIndex;
+    private int numberOfAddedWindows;
+    // finalized windows waiting for the preceding windows to be added
+    transient private Map<Integer,BamGenomeWindow> windowsToAdd;
 	private long[] windowSizes;
 	private long[] windowStarts;
 	private long[] windowEnds;
-	private String[] windowNames;
+	// window names are made from the prefix and the window number
+	private String windowNamePrefix;
 	
 	// reporting
 	private boolean activeWindowReporting;
 	transient private PrintWriter windowReport;
 	private boolean activeCoverageReporting;
-	transient private PrintWriter coverageReport;
+	transient private CoverageWriter coverageReport;
     private long sumCoverageSquared, sumCoverage;
-    private final int CACHE_SIZE = 2000;
+    // sampled chunks of the approximate analysis
+    transient private ChunkSampling chunkSampling;
     private Map<String,String> warnings;
     GenomeLocator locator;
 
@@ -408,38 +400,18 @@ public class BamStats implements Serializable {
 		atRelativeContentInReference = new ArrayList<Double>(numberOfWindows);*/
 
 		// coverageData across reference arrays
-		coverageAcrossReference = new ArrayList<Double>(numberOfWindows);
-		stdCoverageAcrossReference = new ArrayList<Double>(numberOfWindows);
-		coverageHistogramMap = new HashMap<Long,Long>(numberOfWindows);
-        coverageHistogramCache = new long[CACHE_SIZE];
+        coverageHistogramCounts = new PrimitiveHistogram();
 
 
 		
 		// quality
-		mappingQualityAcrossReference = new ArrayList<Double>(numberOfWindows);
-		mappingQualityHistogramMap = new HashMap<Long,Long>(numberOfWindows);
-        mappingQualityHistogramCache = new long[CACHE_SIZE];
+        mappingQualityHistogramCounts = new PrimitiveHistogram();
 		
 		// ACTG across reference arrays		
-		aContentAcrossReference = new ArrayList<Double>(numberOfWindows);
-		aRelativeContentAcrossReference = new ArrayList<Double>(numberOfWindows);
-		cContentAcrossReference = new ArrayList<Double>(numberOfWindows);
-		cRelativeContentAcrossReference = new ArrayList<Double>(numberOfWindows);
-		tContentAcrossReference = new ArrayList<Double>(numberOfWindows);
-		tRelativeContentAcrossReference = new ArrayList<Double>(numberOfWindows);
-		gContentAcrossReference = new ArrayList<Double>(numberOfWindows);
-		gRelativeContentAcrossReference = new ArrayList<Double>(numberOfWindows);
-		nContentAcrossReference = new ArrayList<Double>(numberOfWindows);
-		nRelativeContentAcrossReference = new ArrayList<Double>(numberOfWindows);
-		gcContentAcrossReference = new ArrayList<Double>(numberOfWindows);
-		gcRelativeContentAcrossReference = new ArrayList<Double>(numberOfWindows);
 //		atContentAcrossReference = new ArrayList<Double>(numberOfWindows);
 //		atRelativeContentAcrossReference = new ArrayList<Double>(numberOfWindows);
 
-        numMappedBasesPerWindow = new ArrayList<Long>(numberOfWindows);
-        coveragePerWindow = new ArrayList<Long>(numberOfWindows);
-        coverageSquaredPerWindow = new ArrayList<Long>(numberOfWindows);
-        windowLengthes = new ArrayList<Long>(numberOfWindows);
+        windowStats = new WindowStatsStore(numberOfWindows);
 
 
 
@@ -449,10 +421,7 @@ public class BamStats implements Serializable {
         avaialableGenomeGcContentData = false;
 
 		// insert size
-		insertSizeAcrossReference = new ArrayList<Double>(numberOfWindows);
-		insertSizeHistogramMap = new HashMap<Long,Long>(numberOfWindows);
-        insertSizeHistogramCache = new long[CACHE_SIZE];
-        insertSizeArray = new ArrayList<Integer>();
+        insertSizes = new InsertSizeHistogram();
 
         // reads
         readsAsData = new ArrayList<Long>();
@@ -467,6 +436,9 @@ public class BamStats implements Serializable {
 		maxCoverageQuota = 50;
 		numberOfProcessedWindows = 0;
         numberOfInitializedWindows = 0;
+        firstWindowIndex = 0;
+        numberOfAddedWindows = 0;
+        windowsToAdd = new HashMap<Integer,BamGenomeWindow>();
 
         readStartsHistogram =  new ReadStartsHistogram();
 
@@ -490,13 +462,12 @@ public class BamStats implements Serializable {
 	}*/
 
     public void setWindowReferences(String prefix, List<Long> windowPositions) {
-        windowNames = new String[numberOfWindows];
+        windowNamePrefix = prefix;
         windowSizes = new long[numberOfWindows];
         windowStarts = new long[numberOfWindows];
         windowEnds = new long[numberOfWindows];
 
         for (int i = 0; i < numberOfWindows; ++i) {
-            windowNames[i] = prefix + "_" + (i+1);
             windowStarts[i] = windowPositions.get(i);
             if (i + 1 == numberOfWindows ) {
                 windowEnds[i] = referenceSize;
@@ -519,9 +490,62 @@ public class BamStats implements Serializable {
 		reportWindowHeader();
 	}
 	
+    /**
+     * Continues the window report of an interrupted analysis, the data after the given length is discarded.
+     */
+    public void resumeWindowReporting(String windowReportFile, long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(windowReportFile, "rw");
+        try {
+            if (file.length() < length) {
+                throw new IOException("Window report " + windowReportFile + " is shorter than expected");
+            }
+            file.setLength(length);
+        } finally {
+            file.close();
+        }
+        this.windowReport = new PrintWriter(new FileWriter(windowReportFile, true));
+        this.activeWindowReporting = true;
+    }
+
 	public void closeWindowReporting(){
 		this.windowReport.close();
 	}
+
+    public void appendWindowReport(File windowReportFile) throws IOException {
+        appendReport(windowReport, windowReportFile);
+    }
+
+    /**
+     * Appends the report of another analysis, the file is deleted afterwards.
+     */
+    public void appendCoverageReport(File coverageReportFile) {
+        coverageReport.appendAndDelete(coverageReportFile);
+    }
+
+    public void setChunkSampling(ChunkSampling chunkSampling) {
+        this.chunkSampling = chunkSampling;
+    }
+
+    /**
+     * @return the sampled chunks if the statistics are approximated, null otherwise
+     */
+    public ChunkSampling getChunkSampling() {
+        return chunkSampling;
+    }
+
+    private static void appendReport(PrintWriter report, File reportFile) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(reportFile));
+        try {
+            // skip header
+            String line = reader.readLine();
+            while ( (line = reader.readLine()) != null) {
+                report.println(line);
+            }
+        } finally {
+            reader.close();
+        }
+        report.flush();
+    }
 	
 	public void reportWindowHeader(){
 		windowReport.println("#name\tabsolute_pos\tmapped_bases\tmean_coverage\tstd_coverage");
@@ -538,34 +562,46 @@ public class BamStats implements Serializable {
 	}
 	
 	
-	public void activateCoverageReporting(String coverageReportFile, boolean nonZeroCoverageOnly) throws FileNotFoundException{
-		this.coverageReport = new PrintWriter(new File(coverageReportFile));
-		this.activeCoverageReporting = true;
-        this.reportNonZeroCoverageOnly = nonZeroCoverageOnly;
-		reportCoverageHeader();
+	public void activateCoverageReporting(String coverageReportFile, boolean nonZeroCoverageOnly) throws IOException {
+        activateCoverageReporting(coverageReportFile, CoverageWriter.Format.PER_BASE, nonZeroCoverageOnly);
 	}
+
+    public void activateCoverageReporting(String coverageReportFile, CoverageWriter.Format format,
+                                          boolean nonZeroCoverageOnly) throws IOException {
+        this.coverageReport = new CoverageWriter(coverageReportFile, format, nonZeroCoverageOnly);
+        this.activeCoverageReporting = true;
+    }
+
+    /**
+     * Continues the coverage report of an interrupted analysis from the given position.
+     */
+    public void resumeCoverageReporting(String coverageReportFile, CoverageWriter.Format format,
+                                        boolean nonZeroCoverageOnly, CoverageWriter.Position position)
+            throws IOException {
+        this.coverageReport = new CoverageWriter(coverageReportFile, format, nonZeroCoverageOnly, position);
+        this.activeCoverageReporting = true;
+    }
+
+    /**
+     * Writes the coverage of the added windows to the report.
+     * @return position to continue the report from
+     */
+    public CoverageWriter.Position syncCoverageReporting() throws IOException {
+        return coverageReport.sync();
+    }
 	
 	public void closeCoverageReporting(){
-		this.coverageReport.close();
-	}
-	
-	public void reportCoverageHeader(){
-		coverageReport.println("#chr\tpos\tcoverage");
+        try {
+		    this.coverageReport.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write coverage report", e);
+        }
 	}
 	
 	public void reportCoverage(BamDetailedGenomeWindow window){
-        ContigRecord rec = locator.getContigCoordinates(window.getStart());
-		for(int i=0; i<window.getCoverageAcrossReference().length; i++){
-            int coverage = window.getCoverageAcrossReference()[i];
-            if (coverage == 0 && reportNonZeroCoverageOnly) {
-                continue;
-            }
-            coverageReport.print(rec.getName() + "\t");
-            coverageReport.print((rec.getRelative() + i) + "\t");
-			coverageReport.print(window.getCoverageAcrossReference()[i]);
-			coverageReport.println();
-		}
-        coverageReport.flush();
+        ContigPosition windowPosition = locator.getContigPosition(window.getStart());
+        coverageReport.write(windowPosition.getName(), windowPosition.getRelative(),
+                window.getCoverageAcrossReference());
 	}
 	
 	/*
@@ -579,7 +615,187 @@ public class BamStats implements Serializable {
         numberOfProcessedWindows++;
     }
 
+    /**
+     * Start the analysis from the given window instead of the first one.
+     * Used when only a part of the genome (e.g. a single chromosome) is processed by this object.
+     * @param windowIndex index of the first window to process
+     */
+    public void startFromWindow(int windowIndex) {
+        firstWindowIndex = windowIndex;
+        numberOfAddedWindows = windowIndex;
+        numberOfProcessedWindows = windowIndex;
+        numberOfInitializedWindows = windowIndex;
+    }
+
+    /**
+     * Leave the first window to the statistics this object is merged into (see {@link #merge(BamStats)}),
+     * which finalize it themselves. Only the windows preceding all the processed ones can be skipped.
+     */
+    public synchronized void skipFirstWindow() {
+        if (numberOfProcessedWindows != firstWindowIndex) {
+            throw new IllegalStateException("Window " + firstWindowIndex + " is processed already");
+        }
+        firstWindowIndex++;
+        numberOfAddedWindows++;
+        numberOfProcessedWindows++;
+    }
+
+    public int getFirstWindowIndex() {
+        return firstWindowIndex;
+    }
+
+    /**
+     * Append the statistics collected for the windows following the windows of this object.
+     * <p>
+     * Both objects must use the same window references and the other object must start from the window
+     * which is next to the last processed one (see {@link #startFromWindow(int)}). Counters and histograms
+     * are integer sums and per window values are appended, so the result is exactly the same as if all
+     * the windows were processed by this object sequentially, and the merge is associative.
+     * The only exception is the mean read size, which is averaged using the number of reads.
+     * <p>
+     * Only consecutive ranges of windows can be merged, e.g. the chromosomes analyzed in parallel.
+     * Statistics of different subsets of reads covering the same windows can not be merged here,
+     * since the per base coverage is not kept after a window is finalized. Such subsets are merged
+     * before the windows are finalized with {@link BamGenomeWindow#merge},
+     * {@link ReadStatsCollector#merge} and {@link org.bioinfo.ngs.qc.qualimap.common.BamStatsCollector#merge}.
+     * <p>
+     * Descriptors and histograms must be computed only after merging.
+     * @param other statistics collected starting from the window which is next to the last processed one
+     */
+    public synchronized void merge(BamStats other) {
+
+        if (other.numberOfWindows != numberOfWindows) {
+            throw new IllegalArgumentException("Statistics with different number of windows can not be merged");
+        }
+
+        if (other.firstWindowIndex != numberOfProcessedWindows) {
+            throw new IllegalArgumentException("Statistics from window " + other.firstWindowIndex +
+                    " can not be merged after window " + numberOfProcessedWindows);
+        }
+
+        // reads
+        if (numberOfReads + other.numberOfReads > 0) {
+            readMeanSize = (readMeanSize * numberOfReads + other.readMeanSize * other.numberOfReads) /
+                    (numberOfReads + other.numberOfReads);
+        }
+        readMaxSize = Math.max(readMaxSize, other.readMaxSize);
+        if (other.numberOfReads > 0) {
+            readMinSize = numberOfReads > 0 ? Math.min(readMinSize, other.readMinSize) : other.readMinSize;
+        }
+        numberOfReads += other.numberOfReads;
+        numberOfMappedReads += other.numberOfMappedReads;
+        numberOfSecondaryAlignments += other.numberOfSecondaryAlignments;
+        numberOfPairedReads += other.numberOfPairedReads;
+        numberOfSingletons += other.numberOfSingletons;
+        numberOfSuppAlignments += other.numberOfSuppAlignments;
+        numberOfMappedFirstOfPair += other.numberOfMappedFirstOfPair;
+        numberOfMappedSecondOfPair += other.numberOfMappedSecondOfPair;
+        numberOfMappedReadsInRegions += other.numberOfMappedReadsInRegions;
+        numberOfPairedReadsInRegions += other.numberOfPairedReadsInRegions;
+        numberOfSingletonsInRegions += other.numberOfSingletonsInRegions;
+        numberOfMappedFirstOfPairInRegions += other.numberOfMappedFirstOfPairInRegions;
+        numberOfMappedSecondOfPairInRegions += other.numberOfMappedSecondOfPairInRegions;
+        numCorrectStrandReads += other.numCorrectStrandReads;
+        numDetectedDuplcateReads += other.numDetectedDuplcateReads;
+        numDuplicatesSkipped += other.numDuplicatesSkipped;
+        reportOverlappingReadPairs |= other.reportOverlappingReadPairs;
+        numOverlappingReadPairs += other.numOverlappingReadPairs;
+        numOfIntersectingMappedBases += other.numOfIntersectingMappedBases;
+        inRegionReferenceSize += other.inRegionReferenceSize;
+
+        // globals
+        numberOfMappedBases += other.numberOfMappedBases;
+        numberOfSequencedBases += other.numberOfSequencedBases;
+        numberOfAlignedBases += other.numberOfAlignedBases;
+        sumCoverage += other.sumCoverage;
+        sumCoverageSquared += other.sumCoverageSquared;
+
+        // per window data
+        windowStats.append(other.windowStats);
+
+        // nucleotides
+        numberOfAs += other.numberOfAs;
+        numberOfCs += other.numberOfCs;
+        numberOfTs += other.numberOfTs;
+        numberOfGs += other.numberOfGs;
+        numberOfNs += other.numberOfNs;
+
+        // histograms
+        coverageHistogramCounts.merge(other.coverageHistogramCounts);
+        mappingQualityHistogramCounts.merge(other.mappingQualityHistogramCounts);
+        insertSizes.merge(other.insertSizes);
+        readStartsHistogram.merge(other.readStartsHistogram);
+        numEstimatedDuplicateReads += other.numEstimatedDuplicateReads;
+
+        // reads stats
+        mergeReadsData(readsAsData, other.readsAsData);
+        mergeReadsData(readsCsData, other.readsCsData);
+        mergeReadsData(readsGsData, other.readsGsData);
+        mergeReadsData(readsTsData, other.readsTsData);
+        mergeReadsData(readsNsData, other.readsNsData);
+        mergeReadsData(readsClippingData, other.readsClippingData);
+        for (int i = 0; i <= NUM_BINS; ++i) {
+            gcContentHistogram[i] += other.gcContentHistogram[i];
+        }
+        sampleCount += other.sampleCount;
+        numClippedReads += other.numClippedReads;
+        numReadsWithInsertion += other.numReadsWithInsertion;
+        numReadsWithDeletion += other.numReadsWithDeletion;
+        for (int i = 0; i < homopolymerIndelsData.length; ++i) {
+            homopolymerIndelsData[i] += other.homopolymerIndelsData[i];
+        }
+        numInsertions += other.numInsertions;
+        numDeletions += other.numDeletions;
+        numMismatches += other.numMismatches;
+        acumEditDistance += other.acumEditDistance;
+
+        warnings.putAll(other.warnings);
+
+        // windows
+        numberOfInitializedWindows += other.numberOfInitializedWindows - other.firstWindowIndex;
+        numberOfProcessedWindows = other.numberOfProcessedWindows;
+        numberOfAddedWindows = other.numberOfAddedWindows;
+
+    }
+
+    private static void mergeReadsData(List<Long> data, List<Long> otherData) {
+        ensureListSize(data, otherData.size());
+        for (int i = 0; i < otherData.size(); ++i) {
+            data.set(i, data.get(i) + otherData.get(i));
+        }
+    }
+
+    /**
+     * Add information of the window with the given index. Windows finalized in parallel can be added
+     * in any order: the histograms are updated immediately, while the per window values are added
+     * in the window order, so the results do not depend on the order of finalization.
+     * @param windowIndex index of the window
+     * @param window finalized window
+     */
+    public void addWindowInformation(int windowIndex, BamGenomeWindow window) {
+        if (window instanceof BamDetailedGenomeWindow) {
+            updateHistograms((BamDetailedGenomeWindow) window);
+        }
+
+        synchronized (this) {
+            windowsToAdd.put(windowIndex, window);
+            BamGenomeWindow nextWindow;
+            while ( (nextWindow = windowsToAdd.remove(numberOfAddedWindows)) != null) {
+                addWindowValues(nextWindow);
+                numberOfAddedWindows++;
+            }
+        }
+    }
+
 	public synchronized  void addWindowInformation(BamGenomeWindow window){
+        if (window instanceof BamDetailedGenomeWindow) {
+            updateHistograms((BamDetailedGenomeWindow) window);
+        }
+        addWindowValues(window);
+        numberOfAddedWindows++;
+    }
+
+    private void addWindowValues(BamGenomeWindow window) {
 
         //TODO: bad design
         boolean isInstanceOfBamGenomeWindow =  window instanceof BamDetailedGenomeWindow;
@@ -622,64 +838,64 @@ public class BamStats implements Serializable {
 		atRelativeContentInReference.add(window.getAtRelativeContentInReference());
         */
 
-        windowLengthes.add( window.getEffectiveWindowLength() );
-        numMappedBasesPerWindow.add(window.getNumberOfMappedBases());
+        int row = windowStats.addRow();
+        windowStats.setLong(WindowStatsStore.EFFECTIVE_LENGTH, row, window.getEffectiveWindowLength());
+        windowStats.setLong(WindowStatsStore.MAPPED_BASES, row, window.getNumberOfMappedBases());
 
 		/*
 		 * Sample
 		 */
 		
 		// coverageData across reference
-		coverageAcrossReference.add(window.getMeanCoverage());
-		stdCoverageAcrossReference.add(window.getStdCoverage());
+		windowStats.set(WindowStatsStore.COVERAGE, row, window.getMeanCoverage());
+		windowStats.set(WindowStatsStore.STD_COVERAGE, row, window.getStdCoverage());
         if (isInstanceOfBamGenomeWindow) {
             BamDetailedGenomeWindow dWindow = (BamDetailedGenomeWindow)window;
-            coverageSquaredPerWindow.add( dWindow.getSumCoverageSquared()  );
-            coveragePerWindow.add( dWindow.getSumCoverage() );
+            windowStats.setLong(WindowStatsStore.SUM_COVERAGE_SQUARED, row, dWindow.getSumCoverageSquared());
+            windowStats.setLong(WindowStatsStore.SUM_COVERAGE, row, dWindow.getSumCoverage());
             sumCoverageSquared += dWindow.getSumCoverageSquared();
             sumCoverage += dWindow.getSumCoverage();
-            updateHistograms(dWindow);
         }
 		
 		// quality
-		mappingQualityAcrossReference.add(window.getMeanMappingQuality());
+		windowStats.set(WindowStatsStore.MAPPING_QUALITY, row, window.getMeanMappingQuality());
         /*if(isInstanceOfBamGenomeWindow) {
             updateHistogramFromLongVector(mappingQualityHistogramMap,((BamDetailedGenomeWindow)window).getMappingQualityAcrossReference());
         }*/
 
 		// A
 		numberOfAs+=window.getNumberOfAs();
-		aContentAcrossReference.add(window.getMeanAContent());
-		aRelativeContentAcrossReference.add(window.getMeanARelativeContent());
+		windowStats.set(WindowStatsStore.A_CONTENT, row, window.getMeanAContent());
+		windowStats.set(WindowStatsStore.A_RELATIVE_CONTENT, row, window.getMeanARelativeContent());
 		
 		// C
 		numberOfCs+=window.getNumberOfCs();
-		cContentAcrossReference.add(window.getMeanCContent());
-		cRelativeContentAcrossReference.add(window.getMeanCRelativeContent());
+		windowStats.set(WindowStatsStore.C_CONTENT, row, window.getMeanCContent());
+		windowStats.set(WindowStatsStore.C_RELATIVE_CONTENT, row, window.getMeanCRelativeContent());
 		
 		  // T
 		numberOfTs+=window.getNumberOfTs();
-		tContentAcrossReference.add(window.getMeanTContent());
-		tRelativeContentAcrossReference.add(window.getMeanTRelativeContent());
+		windowStats.set(WindowStatsStore.T_CONTENT, row, window.getMeanTContent());
+		windowStats.set(WindowStatsStore.T_RELATIVE_CONTENT, row, window.getMeanTRelativeContent());
 		
 		  // G
 		numberOfGs+=window.getNumberOfGs();
-		gContentAcrossReference.add(window.getMeanGContent());
-		gRelativeContentAcrossReference.add(window.getMeanGRelativeContent());
+		windowStats.set(WindowStatsStore.G_CONTENT, row, window.getMeanGContent());
+		windowStats.set(WindowStatsStore.G_RELATIVE_CONTENT, row, window.getMeanGRelativeContent());
 		
 		  // N
 		numberOfNs+=window.getNumberOfNs();
-		nContentAcrossReference.add(window.getMeanNContent());		
-		nRelativeContentAcrossReference.add(window.getMeanNRelativeContent());
+		windowStats.set(WindowStatsStore.N_CONTENT, row, window.getMeanNContent());		
+		windowStats.set(WindowStatsStore.N_RELATIVE_CONTENT, row, window.getMeanNRelativeContent());
 		
 		  // GC
-		gcContentAcrossReference.add(window.getMeanGcContent());
-		gcRelativeContentAcrossReference.add(window.getMeanGcRelativeContent());
+		windowStats.set(WindowStatsStore.GC_CONTENT, row, window.getMeanGcContent());
+		windowStats.set(WindowStatsStore.GC_RELATIVE_CONTENT, row, window.getMeanGcRelativeContent());
 
         //gcContentHistogram[ (int) window.getMeanGcRelativeContent() ]++;
 		
     	// insert size
-		insertSizeAcrossReference.add(window.getMeanInsertSize());
+		windowStats.set(WindowStatsStore.INSERT_SIZE, row, window.getMeanInsertSize());
 		/*if(isInstanceOfBamGenomeWindow){
 			updateHistogramFromLongVector(insertSizeHistogramMap,((BamDetailedGenomeWindow)window).getInsertSizeAcrossReference());
 		}*/
@@ -753,37 +969,37 @@ public class BamStats implements Serializable {
             stdCoverage = Math.sqrt( stdCoverageSquared / effectiveRefSize);
 
             // quality
-            meanMappingQualityPerWindow = MathUtils.mean(ListUtils.toDoubleArray(mappingQualityAcrossReference));
+            meanMappingQualityPerWindow = windowStats.mean(WindowStatsStore.MAPPING_QUALITY);
 
             // A
-            meanAContentPerWindow = MathUtils.mean(ListUtils.toDoubleArray(aContentAcrossReference));
-            meanARelativeContentPerWindow = MathUtils.mean(ListUtils.toDoubleArray(aRelativeContentAcrossReference));
+            meanAContentPerWindow = windowStats.mean(WindowStatsStore.A_CONTENT);
+            meanARelativeContentPerWindow = windowStats.mean(WindowStatsStore.A_RELATIVE_CONTENT);
             meanARelativeContent = ((double)numberOfAs/(double)numberOfSequencedBases)*100.0;
 
             // C
-            meanCContentPerWindow = MathUtils.mean(ListUtils.toDoubleArray(cContentAcrossReference));
-            meanCRelativeContentPerWindow = MathUtils.mean(ListUtils.toDoubleArray(cRelativeContentAcrossReference));
+            meanCContentPerWindow = windowStats.mean(WindowStatsStore.C_CONTENT);
+            meanCRelativeContentPerWindow = windowStats.mean(WindowStatsStore.C_RELATIVE_CONTENT);
             meanCRelativeContent = ((double)numberOfCs/(double)numberOfSequencedBases)*100.0;
 
             // T
-            meanTContentPerWindow = MathUtils.mean(ListUtils.toDoubleArray(tContentAcrossReference));
-            meanTRelativeContentPerWindow = MathUtils.mean(ListUtils.toDoubleArray(tRelativeContentAcrossReference));
+            meanTContentPerWindow = windowStats.mean(WindowStatsStore.T_CONTENT);
+            meanTRelativeContentPerWindow = windowStats.mean(WindowStatsStore.T_RELATIVE_CONTENT);
             meanTRelativeContent = ((double)numberOfTs/(double)numberOfSequencedBases)*100.0;
 
             // G
-            meanGContentPerWindow = MathUtils.mean(ListUtils.toDoubleArray(gContentAcrossReference));
-            meanGRelativeContentPerWindow = MathUtils.mean(ListUtils.toDoubleArray(gRelativeContentAcrossReference));
+            meanGContentPerWindow = windowStats.mean(WindowStatsStore.G_CONTENT);
+            meanGRelativeContentPerWindow = windowStats.mean(WindowStatsStore.G_RELATIVE_CONTENT);
             meanGRelativeContent = ((double)numberOfGs/(double)numberOfSequencedBases)*100.0;
 
             // N
-            meanNContentPerWindow = MathUtils.mean(ListUtils.toDoubleArray(nContentAcrossReference));
-            meanNRelativeContentPerWindow = MathUtils.mean(ListUtils.toDoubleArray(nRelativeContentAcrossReference));
+            meanNContentPerWindow = windowStats.mean(WindowStatsStore.N_CONTENT);
+            meanNRelativeContentPerWindow = windowStats.mean(WindowStatsStore.N_RELATIVE_CONTENT);
             meanNRelativeContent = ((double)numberOfNs/(double)numberOfSequencedBases)*100.0;
 
             // GC
             meanGcContent = (double)(numberOfGs+numberOfCs)/(double)referenceSize;
-            meanGcContentPerWindow = MathUtils.mean(ListUtils.toDoubleArray(gcContentAcrossReference));
-            meanGcRelativeContentPerWindow = MathUtils.mean(ListUtils.toDoubleArray(gcRelativeContentAcrossReference));
+            meanGcContentPerWindow = windowStats.mean(WindowStatsStore.GC_CONTENT);
+            meanGcRelativeContentPerWindow = windowStats.mean(WindowStatsStore.GC_RELATIVE_CONTENT);
             meanGcRelativeContent = ((double)(numberOfGs+numberOfCs)/(double)numberOfSequencedBases)*100.0;
 
         }
@@ -806,18 +1022,24 @@ public class BamStats implements Serializable {
 
 
 	public void updateHistograms(BamDetailedGenomeWindow window){
-		for(int i=0; i<window.getCoverageAcrossReference().length; i++){
+        // the window is counted separately, so several windows can be processed in parallel
+        PrimitiveHistogram windowCoverageCounts = new PrimitiveHistogram();
+        PrimitiveHistogram windowQualityCounts = new PrimitiveHistogram();
+        int[] coverageAcrossReference = window.getCoverageAcrossReference();
+        long[] mappingQualityAcrossReference = window.getMappingQualityAcrossReference();
+
+		for(int i=0; i<coverageAcrossReference.length; i++){
 			if ( window.selectedRegionsAvailable ) {
                 if (!window.getSelectedRegions().get(i)) {
                     continue;
                 }
             }
 			// coverageData
-			updateHistogramValue(coverageHistogramCache, coverageHistogramMap, window.getCoverageAcrossReference()[i]);
+			windowCoverageCounts.increment(coverageAcrossReference[i]);
 			
-			long quality = window.getMappingQualityAcrossReference()[i];
+			long quality = mappingQualityAcrossReference[i];
             if (quality != -1) {
-			    updateHistogramValue(mappingQualityHistogramCache, mappingQualityHistogramMap, quality);
+			    windowQualityCounts.increment(quality);
             }
             // insert size
             /*long insertSize = window.getInsertSizeAcrossReference()[i];
@@ -826,6 +1048,15 @@ public class BamStats implements Serializable {
                 updateHistogramValue(insertSizeHistogramCache, insertSizeHistogramMap, insertSize);
             }*/
         }
+
+        if (chunkSampling != null) {
+            chunkSampling.addCoverage(window.getStart(), coverageAcrossReference);
+        }
+
+        synchronized (this) {
+            coverageHistogramCounts.merge(windowCoverageCounts);
+            mappingQualityHistogramCounts.merge(windowQualityCounts);
+        }
 	}
 
 	/*@SuppressWarnings("unchecked")
@@ -856,28 +1087,13 @@ public class BamStats implements Serializable {
 
     }*/
 
-    public void updateHistogramValue(long[] cache, HashMap<Long,Long> map, long key){
-		if (key < CACHE_SIZE) {
-            cache[(int)key]++;
-        } else if(!map.containsKey(key)){
-			map.put(key, 1L);
-		} else {
-            map.put(key, map.get(key) + 1);
-    	}
-	}
-
-
     public void computeHistograms() {
 
-        addCacheDataToMap(mappingQualityHistogramCache,mappingQualityHistogramMap);
-        mappingQualityHistogram = computeVectorHistogram(mappingQualityHistogramMap);
+        mappingQualityHistogram = computeVectorHistogram(mappingQualityHistogramCounts.toMap());
         if (numSelectedRegions > 0) {
             meanMappingQualityPerWindow = computeMeanValFromHistogram(mappingQualityHistogram);
         }
 
-        addCacheDataToMap(coverageHistogramCache, coverageHistogramMap);
-
-
         computeInsertSizeHistogram();
         computeCoverageHistogram();
         computeUniqueReadStartsHistogram();
@@ -1047,33 +1263,24 @@ public class BamStats implements Serializable {
 
     private void computeInsertSizeHistogram() {
 
-        if (insertSizeArray.isEmpty()) {
+        long size = insertSizes.getNumberOfValues();
+        if (size == 0) {
             return;
         }
 
-        Collections.sort(insertSizeArray);
+        long medianIndex =  size / 2;
+        long percentile25Index = size / 4;
+        long percentile75Index = percentile25Index*3;
 
-        int size = insertSizeArray.size();
-        int medianIndex =  size / 2;
-        int percentile25Index = size / 4;
-        int percentile75Index = percentile25Index*3;
+        p25InsertSize = (int) insertSizes.getValueAt(percentile25Index);
+        medianInsertSize = (int) insertSizes.getValueAt(medianIndex);
+        p75InsertSize = (int) insertSizes.getValueAt(percentile75Index);
+        meanInsertSize = insertSizes.getMean();
+        stdInsertSize = insertSizes.getStd();
 
-        p25InsertSize = insertSizeArray.get(percentile25Index);
-        medianInsertSize = insertSizeArray.get(medianIndex);
-        p75InsertSize = insertSizeArray.get(percentile75Index);
-        double[] insertData =   ListUtils.toDoubleArray(insertSizeArray);
-        meanInsertSize = MathUtils.mean( insertData );
-        stdInsertSize = MathUtils.standardDeviation( insertData );
-
-        double border = insertSizeArray.get(percentile75Index)*2.;
-
-        for (int val : insertSizeArray) {
-            if (val <= border) {
-                updateHistogramValue(insertSizeHistogramCache, insertSizeHistogramMap, (long) val);
-            }
-        }
-
-        addCacheDataToMap(insertSizeHistogramCache,insertSizeHistogramMap);
+        long border = 2L * p75InsertSize;
+        HashMap<Long,Long> insertSizeHistogramMap = new HashMap<Long,Long>();
+        insertSizes.fillHistogram(border, insertSizeHistogramMap);
         insertSizeHistogram = computeVectorHistogram(insertSizeHistogramMap);
 
 
@@ -1082,6 +1289,7 @@ public class BamStats implements Serializable {
 
 	private void computeCoverageHistogram(){
 
+        HashMap<Long,Long> coverageHistogramMap = coverageHistogramCounts.toMap();
         double[] coverages = new double[coverageHistogramMap.size()];
 		double[] freqs = new double[coverageHistogramMap.size()];
 
@@ -1181,15 +1389,6 @@ public class BamStats implements Serializable {
 	}
 
 
-    private void addCacheDataToMap(long[] cache, HashMap<Long,Long> map) {
-        for (int i = 0; i < CACHE_SIZE; ++i) {
-            long val = cache[i];
-            if (val > 0) {
-                map.put((long)i,val);
-            }
-        }
-    }
-
     private XYVector computeVectorHistogram(HashMap<Long,Long> map){
 
 		double[] coverages = new double[map.size()];
@@ -1218,7 +1417,7 @@ public class BamStats implements Serializable {
 	}
 
 	public String getWindowName(int index){
-		return windowNames[index];
+		return windowNamePrefix + "_" + (index+1);
 	}
 
 	public long getWindowStart(int index){
@@ -1230,7 +1429,7 @@ public class BamStats implements Serializable {
 	}
 	
 	public String getCurrentWindowName(){
-		return windowNames[numberOfProcessedWindows];
+		return getWindowName(numberOfProcessedWindows);
 	}
 	
 	public long getCurrentWindowStart(){
@@ -1350,12 +1549,12 @@ public class BamStats implements Serializable {
 	/**
 	 * @return the coverageAcrossReference
 	 */
-	public List<Double> getCoverageAcrossReference() {
-		return coverageAcrossReference;
+	public double[] getCoverageAcrossReference() {
+		return windowStats.toArray(WindowStatsStore.COVERAGE);
 	}
 
-	public List<Double> getStdCoverageAcrossReference() {
-		return stdCoverageAcrossReference;
+	public double[] getStdCoverageAcrossReference() {
+		return windowStats.toArray(WindowStatsStore.STD_COVERAGE);
 	}
 
 
@@ -1383,8 +1582,8 @@ public class BamStats implements Serializable {
 	/**
 	 * @return the mappingQualityAcrossReference
 	 */
-	public List<Double> getMappingQualityAcrossReference() {
-		return mappingQualityAcrossReference;
+	public double[] getMappingQualityAcrossReference() {
+		return windowStats.toArray(WindowStatsStore.MAPPING_QUALITY);
 	}
 
 	/**
@@ -1485,8 +1684,8 @@ public class BamStats implements Serializable {
 	/**
 	 * @return the gcRelativeContentAcrossReference
 	 */
-	public List<Double> getGcRelativeContentAcrossReference() {
-		return gcRelativeContentAcrossReference;
+	public double[] getGcRelativeContentAcrossReference() {
+		return windowStats.toArray(WindowStatsStore.GC_RELATIVE_CONTENT);
 	}
 
 	/**
@@ -1530,8 +1729,8 @@ public class BamStats implements Serializable {
 	/**
 	 * @return the insertSizeAcrossReference
 	 */
-	public List<Double> getInsertSizeAcrossReference() {
-		return insertSizeAcrossReference;
+	public double[] getInsertSizeAcrossReference() {
+		return windowStats.toArray(WindowStatsStore.INSERT_SIZE);
 	}
 
 	/**
@@ -1600,12 +1799,11 @@ public class BamStats implements Serializable {
         addReadsNsData(readStatsCollector.getReadsNContent());
         addReadsClippingInfo(readStatsCollector.getReadsClippingInfo());
 
-        ArrayList<Float> readsGcContent = readStatsCollector.getReadsGcContent();
-        for (float val : readsGcContent) {
-            //System.out.println(val);
-            gcContentHistogram[ (int) (val * NUM_BINS) ]++;
+        int[] readsGcHistogram = readStatsCollector.getReadsGcHistogram();
+        for (int i = 0; i <= NUM_BINS; ++i) {
+            gcContentHistogram[i] += readsGcHistogram[i];
         }
-        sampleCount += readsGcContent.size();
+        sampleCount += readStatsCollector.getNumGcSamples();
 
         numClippedReads += readStatsCollector.getNumClippedReads();
         numReadsWithInsertion += readStatsCollector.getNumReadsWithInsertion();
@@ -1671,6 +1869,23 @@ public class BamStats implements Serializable {
     }
 
 
+    /**
+     * @return number of records in the BAM index, including secondary and supplementary alignments,
+     * or 0 if the reads were not selected by the index
+     */
+    public long getNumberOfRecordsInIndex() {
+        return numberOfRecordsInIndex;
+    }
+
+    public long getNumberOfMappedRecordsInIndex() {
+        return numberOfMappedRecordsInIndex;
+    }
+
+    public void setNumberOfRecordsInIndex(long numberOfRecords, long numberOfMappedRecords) {
+        this.numberOfRecordsInIndex = numberOfRecords;
+        this.numberOfMappedRecordsInIndex = numberOfMappedRecords;
+    }
+
     public double getPercentageOfSingletons() {
         return (numberOfSingletons / (double) numberOfReads) * 100.0;
     }
@@ -1813,10 +2028,10 @@ public class BamStats implements Serializable {
             long sumCov = 0;
             long sumCovSquared = 0;
             for (int i = firstWindowIndex; i <= lastWindowIndex; ++i) {
-                numBases += numMappedBasesPerWindow.get(i);
-                sumCov += coveragePerWindow.get(i);
-                sumCovSquared += coverageSquaredPerWindow.get(i);
-                length += windowLengthes.get(i);
+                numBases += windowStats.getLong(WindowStatsStore.MAPPED_BASES, i);
+                sumCov += windowStats.getLong(WindowStatsStore.SUM_COVERAGE, i);
+                sumCovSquared += windowStats.getLong(WindowStatsStore.SUM_COVERAGE_SQUARED, i);
+                length += windowStats.getLong(WindowStatsStore.EFFECTIVE_LENGTH, i);
             }
 
 
@@ -1945,7 +2160,7 @@ public class BamStats implements Serializable {
 
     public void updateInsertSizeHistogram(int insertSize) {
         if (insertSize > 0 ) {
-            insertSizeArray.add(insertSize);
+            insertSizes.add(insertSize);
         }
     }
 
@@ -2007,4 +2222,9 @@ public class BamStats implements Serializable {
         return (1.0 - homopolymerIndelsData[5] / (double) (numInsertions + numDeletions));
     }
 
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        windowsToAdd = new HashMap<Integer,BamGenomeWindow>();
+    }
+
 }
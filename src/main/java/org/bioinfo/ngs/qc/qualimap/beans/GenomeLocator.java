@@ -22,25 +22,49 @@ package org.bioinfo.ngs.qc.qualimap.beans;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
+/**
+ * Translates positions in contigs to absolute positions in the genome and back.
+ * The locator is not modified after the contigs are added, so it can be shared by several threads.
+ */
 public class GenomeLocator implements Externalizable {
 	private List<ContigRecord> contigs;
 	private HashMap<String,Long> positions;
 	private long totalSize;
+	// absolute start positions of the contigs, indexed as the contigs were added
+	private long[] contigStarts;
 	
 	public GenomeLocator(){
 		contigs = new ArrayList<ContigRecord>();
 		positions = new HashMap<String, Long>();	
 		totalSize = 0;
+		contigStarts = new long[16];
 	}
 	
 	public void addContig(String name, int size){
+		if (contigs.size() == contigStarts.length) {
+			contigStarts = Arrays.copyOf(contigStarts, contigStarts.length * 2);
+		}
+		contigStarts[contigs.size()] = totalSize + 1;
 		contigs.add(new ContigRecord(name,totalSize+1,size));
 		positions.put(name, totalSize+1);
 		totalSize+=size;
 	}
+
+	/**
+	 * Translates the position in the contig with the given index, which is the index of the sequence
+	 * in the SAM header when the contigs are added in the order of the header.
+	 * @return the absolute position or -1 if the index is negative, as for unmapped reads
+	 */
+	public long getAbsoluteCoordinates(int contigIndex, int relative){
+		if (contigIndex < 0) {
+			return -1;
+		}
+		return contigStarts[contigIndex] + (relative-1);
+	}
 	
 	public Long getAbsoluteCoordinates(String name, int relative){
 
@@ -57,29 +81,34 @@ public class GenomeLocator implements Externalizable {
 		}		
 	}
 		
+	/**
+	 * @return the contig containing the absolute position, the first contig if the position is before it
+	 */
 	public ContigRecord getContigCoordinates(long absolute){
 		// empty contig list
 		if(contigs.size()==0){
 			return null;
 		}
-		// mega contig
-		else if(contigs.size()==1){
-			ContigRecord contig = contigs.get(0);
-			contig.setRelative(absolute);
-			return contig;
-		} 
-		// search contig
-		else {
-			ContigRecord last = contigs.get(0);
-			for(int i=1; i<contigs.size(); i++){
-				if(contigs.get(i).getPosition()>absolute){
-					break;
-				}
-				last = contigs.get(i);
-			}
-			last.setRelative(absolute-last.getPosition()+1);
-			return last;
+		return contigs.get(findContigIndex(absolute));
+	}
+
+	/**
+	 * @return the contig and the relative position in it for the absolute position
+	 */
+	public ContigPosition getContigPosition(long absolute){
+		if(contigs.size()==0){
+			return null;
 		}
+		ContigRecord contig = contigs.get(findContigIndex(absolute));
+		return new ContigPosition(contig, absolute - contig.getPosition() + 1);
+	}
+
+	private int findContigIndex(long absolute){
+		int index = Arrays.binarySearch(contigStarts, 0, contigs.size(), absolute);
+		if (index < 0) {
+			index = -index - 2;
+		}
+		return Math.max(index, 0);
 	}
 
 	/**
@@ -110,6 +139,11 @@ public class GenomeLocator implements Externalizable {
         positions = (HashMap<String,Long>) objectInput.readObject();
         totalSize = objectInput.readLong();
 
+        contigStarts = new long[Math.max(contigs.size(), 1)];
+        for (int i = 0; i < contigs.size(); ++i) {
+            contigStarts[i] = contigs.get(i).getPosition();
+        }
+
     }
 
     public boolean containsContig(String seqName) {
@@ -20,9 +20,6 @@
  */
 package org.bioinfo.ngs.qc.qualimap.beans;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
  * Created by kokonech
  * Date: 11/11/11
@@ -40,38 +37,30 @@ public class SingleReadData {
     // These number denotes how many bases are aligned from sequenced bases
     //public long numberOfAlignedBases;
 
-    public static class Cell {
-        int position;
-        int value;
-        public Cell(int position, int value) {
-            this.position = position;
-            this.value = value;
-        }
-        public int getPosition() {
-            return position;
-        }
-
-        public int getValue() {
-            return value;
-        }
-    }
+    private static final int INITIAL_NUM_RUNS = 64;
 
-    public List<Integer> coverageData;
-    public List<Cell> mappingQualityData;
+    // Coverage is kept as runs of aligned positions: every position in
+    // [runStart, runStart + runLength) is covered once with the given mapping quality
+    private int[] runStarts;
+    private int[] runLengths;
+    private int[] runMappingQualities;
+    private int numRuns;
 
     long windowStart;
 
     public SingleReadData(long windowStart) {
         this.windowStart = windowStart;
-        coverageData = new ArrayList<Integer>();
-        mappingQualityData = new ArrayList<Cell>();
+        runStarts = new int[INITIAL_NUM_RUNS];
+        runLengths = new int[INITIAL_NUM_RUNS];
+        runMappingQualities = new int[INITIAL_NUM_RUNS];
+        numRuns = 0;
     }
 
     public long getWindowStart() {
         return windowStart;
     }
 
-    public void acumBase(long relative, char base){
+    public void acumBase(long relative, char base, int mappingQuality){
 		numberOfSequencedBases++;
 
         // ATCG content
@@ -89,7 +78,7 @@ public class SingleReadData {
             acumProperlyPairedBase(relative);
         }*/
 
-        coverageData.add((int)relative);
+        acumCoverageRun((int) relative, 1, mappingQuality);
     }
 
 
@@ -117,11 +106,56 @@ public class SingleReadData {
 
     }
 
-	public void acumMappingQuality(long relative, int mappingQuality){
-		//acumMappingQuality+=mappingQuality;
-        if (mappingQuality != 0) {
-            mappingQualityData.add( new Cell((int)relative, mappingQuality) );
+    /**
+     * Adds a block of aligned positions. The block is merged into the last run
+     * if it directly continues it with the same mapping quality.
+     * @param relativeStart Position of the block start relative to the window start
+     * @param length Number of aligned positions in the block
+     * @param mappingQuality Mapping quality of the read
+     */
+    public void acumCoverageRun(int relativeStart, int length, int mappingQuality) {
+        if (numRuns > 0) {
+            int last = numRuns - 1;
+            if (runMappingQualities[last] == mappingQuality &&
+                    runStarts[last] + runLengths[last] == relativeStart) {
+                runLengths[last] += length;
+                return;
+            }
+        }
+
+        if (numRuns == runStarts.length) {
+            int newSize = numRuns * 2;
+            runStarts = copyOf(runStarts, newSize);
+            runLengths = copyOf(runLengths, newSize);
+            runMappingQualities = copyOf(runMappingQualities, newSize);
         }
+
+        runStarts[numRuns] = relativeStart;
+        runLengths[numRuns] = length;
+        runMappingQualities[numRuns] = mappingQuality;
+        numRuns++;
+    }
+
+    private static int[] copyOf(int[] array, int newSize) {
+        int[] newArray = new int[newSize];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+
+    public int getNumberOfCoverageRuns() {
+        return numRuns;
+    }
+
+    public int getCoverageRunStart(int index) {
+        return runStarts[index];
+    }
+
+    public int getCoverageRunLength(int index) {
+        return runLengths[index];
+    }
+
+    public int getCoverageRunMappingQuality(int index) {
+        return runMappingQualities[index];
     }
 
 
@@ -0,0 +1,185 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.beans;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Per window statistics stored by columns of primitive values, a row per window.
+ *
+ * Columns are accessed by index and passed to the reports as primitive arrays,
+ * so millions of windows take 8 bytes per value.
+ */
+public class WindowStatsStore implements Externalizable {
+
+    private static final long serialVersionUID = -2735216965728625228L;
+
+    // double columns
+    public static final int COVERAGE = 0;
+    public static final int STD_COVERAGE = 1;
+    public static final int MAPPING_QUALITY = 2;
+    public static final int A_CONTENT = 3;
+    public static final int A_RELATIVE_CONTENT = 4;
+    public static final int C_CONTENT = 5;
+    public static final int C_RELATIVE_CONTENT = 6;
+    public static final int T_CONTENT = 7;
+    public static final int T_RELATIVE_CONTENT = 8;
+    public static final int G_CONTENT = 9;
+    public static final int G_RELATIVE_CONTENT = 10;
+    public static final int N_CONTENT = 11;
+    public static final int N_RELATIVE_CONTENT = 12;
+    public static final int GC_CONTENT = 13;
+    public static final int GC_RELATIVE_CONTENT = 14;
+    public static final int INSERT_SIZE = 15;
+    static final int NUM_DOUBLE_COLUMNS = 16;
+
+    // long columns
+    public static final int EFFECTIVE_LENGTH = 0;
+    public static final int MAPPED_BASES = 1;
+    public static final int SUM_COVERAGE = 2;
+    public static final int SUM_COVERAGE_SQUARED = 3;
+    static final int NUM_LONG_COLUMNS = 4;
+
+    private double[][] doubleColumns;
+    private long[][] longColumns;
+    private int size;
+
+    public WindowStatsStore() {
+        this(16);
+    }
+
+    public WindowStatsStore(int capacity) {
+        capacity = Math.max(capacity, 1);
+        doubleColumns = new double[NUM_DOUBLE_COLUMNS][capacity];
+        longColumns = new long[NUM_LONG_COLUMNS][capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void ensureCapacity(int capacity) {
+        int currentCapacity = doubleColumns[0].length;
+        if (capacity <= currentCapacity) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, currentCapacity * 2);
+        for (int i = 0; i < NUM_DOUBLE_COLUMNS; ++i) {
+            doubleColumns[i] = Arrays.copyOf(doubleColumns[i], newCapacity);
+        }
+        for (int i = 0; i < NUM_LONG_COLUMNS; ++i) {
+            longColumns[i] = Arrays.copyOf(longColumns[i], newCapacity);
+        }
+    }
+
+    /**
+     * Adds a row filled with zeros
+     * @return index of the row
+     */
+    public int addRow() {
+        ensureCapacity(size + 1);
+        return size++;
+    }
+
+    public void set(int column, int row, double value) {
+        doubleColumns[column][row] = value;
+    }
+
+    public void setLong(int column, int row, long value) {
+        longColumns[column][row] = value;
+    }
+
+    public double get(int column, int row) {
+        return doubleColumns[column][row];
+    }
+
+    public long getLong(int column, int row) {
+        return longColumns[column][row];
+    }
+
+    /**
+     * Adds the rows of another store after the rows of this one
+     */
+    public void append(WindowStatsStore other) {
+        ensureCapacity(size + other.size);
+        for (int i = 0; i < NUM_DOUBLE_COLUMNS; ++i) {
+            System.arraycopy(other.doubleColumns[i], 0, doubleColumns[i], size, other.size);
+        }
+        for (int i = 0; i < NUM_LONG_COLUMNS; ++i) {
+            System.arraycopy(other.longColumns[i], 0, longColumns[i], size, other.size);
+        }
+        size += other.size;
+    }
+
+    public double mean(int column) {
+        double[] values = doubleColumns[column];
+        double sum = 0;
+        for (int i = 0; i < size; ++i) {
+            sum += values[i];
+        }
+        return sum / size;
+    }
+
+    /**
+     * @return copy of the values of the column
+     */
+    public double[] toArray(int column) {
+        return Arrays.copyOf(doubleColumns[column], size);
+    }
+
+    /**
+     * Writes the rows as a block of columns
+     */
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < NUM_DOUBLE_COLUMNS; ++i) {
+            for (int j = 0; j < size; ++j) {
+                out.writeDouble(doubleColumns[i][j]);
+            }
+        }
+        for (int i = 0; i < NUM_LONG_COLUMNS; ++i) {
+            for (int j = 0; j < size; ++j) {
+                out.writeLong(longColumns[i][j]);
+            }
+        }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        int numRows = in.readInt();
+        size = 0;
+        ensureCapacity(numRows);
+        for (int i = 0; i < NUM_DOUBLE_COLUMNS; ++i) {
+            for (int j = 0; j < numRows; ++j) {
+                doubleColumns[i][j] = in.readDouble();
+            }
+        }
+        for (int i = 0; i < NUM_LONG_COLUMNS; ++i) {
+            for (int j = 0; j < numRows; ++j) {
+                longColumns[i][j] = in.readLong();
+            }
+        }
+        size = numRows;
+    }
+
+}
@@ -42,6 +42,14 @@ public class XYVector implements Serializable {
 		}
 	}
 	
+	public XYVector(double[] x, double[] y, double[] deviation){
+		items = new ArrayList<XYItem>();
+		for(int i=0; i<x.length; i++){
+			items.add(new XYIntervalItem(x[i],x[i],x[i],y[i],y[i]-deviation[i],y[i]+deviation[i]));
+			if(y[i]>maxValue) maxValue = y[i];
+		}
+	}
+
 	public XYVector(List<Double> x, List<Double> y){		
 		items = new ArrayList<XYItem>();
 		for(int i=0; i<x.size(); i++){
@@ -0,0 +1,108 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.common;
+
+import net.sf.samtools.AbstractBAMFileIndex;
+import net.sf.samtools.BAMIndex;
+import net.sf.samtools.BAMIndexMetaData;
+import net.sf.samtools.SAMFileReader;
+
+/**
+ * Numbers of records per reference sequence stored in the BAM index.
+ *
+ * The counts include secondary and supplementary alignments. Indexes written by old versions
+ * of the tools have no counts, in this case all of them are zero.
+ */
+public class BamIndexStats {
+
+    private final long[] alignedRecords;
+    private final long[] unalignedRecords;
+    private final long noCoordinateRecords;
+
+    /**
+     * @param reader BAM file reader, it must have an index
+     */
+    public BamIndexStats(SAMFileReader reader) {
+        if (!reader.hasIndex()) {
+            throw new RuntimeException("The BAM index is not found.");
+        }
+        BAMIndex index = reader.getIndex();
+        int numReferences = reader.getFileHeader().getSequenceDictionary().size();
+
+        alignedRecords = new long[numReferences];
+        unalignedRecords = new long[numReferences];
+        for (int i = 0; i < numReferences; ++i) {
+            BAMIndexMetaData metaData = index.getMetaData(i);
+            if (metaData != null) {
+                alignedRecords[i] = metaData.getAlignedRecordCount();
+                unalignedRecords[i] = metaData.getUnalignedRecordCount();
+            }
+        }
+
+        Long noCoordinateCount = null;
+        if (index instanceof AbstractBAMFileIndex) {
+            noCoordinateCount = ((AbstractBAMFileIndex) index).getNoCoordinateCount();
+        }
+        noCoordinateRecords = noCoordinateCount != null ? noCoordinateCount : 0;
+    }
+
+    public int getNumberOfReferences() {
+        return alignedRecords.length;
+    }
+
+    public long getNumberOfAlignedRecords(int referenceIndex) {
+        return alignedRecords[referenceIndex];
+    }
+
+    /**
+     * @return number of unmapped records placed at the reference sequence, e.g. next to the mate
+     */
+    public long getNumberOfUnalignedRecords(int referenceIndex) {
+        return unalignedRecords[referenceIndex];
+    }
+
+    /**
+     * @return number of unmapped records without a position
+     */
+    public long getNumberOfNoCoordinateRecords() {
+        return noCoordinateRecords;
+    }
+
+    public long getNumberOfMappedRecords() {
+        long res = 0;
+        for (long count : alignedRecords) {
+            res += count;
+        }
+        return res;
+    }
+
+    public long getNumberOfUnmappedRecords() {
+        long res = noCoordinateRecords;
+        for (long count : unalignedRecords) {
+            res += count;
+        }
+        return res;
+    }
+
+    public long getNumberOfRecords() {
+        return getNumberOfMappedRecords() + getNumberOfUnmappedRecords();
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.common;
+
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.util.CloseableIterator;
+
+/**
+ * Iterator over the records of a BAM file, which knows the position of the returned record in the file.
+ */
+public interface BamRecordPositionIterator extends CloseableIterator<SAMRecord> {
+
+    /**
+     * @return BGZF virtual file offset of the last returned record, the iteration
+     * started from it returns this record first
+     */
+    long getFilePointer();
+
+}
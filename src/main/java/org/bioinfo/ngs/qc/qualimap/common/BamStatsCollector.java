@@ -23,32 +23,23 @@ package org.bioinfo.ngs.qc.qualimap.common;
 import com.hp.hpl.jena.graph.query.SimpleQueryEngine;
 import net.sf.samtools.SAMRecord;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.Serializable;
 
 /**
  * Created by kokonech
  * Date: 5/11/12
  * Time: 2:17 PM
  */
-public class BamStatsCollector {
+public class BamStatsCollector implements Serializable {
 
-
-    class ReadAlignmentInfo{
-        int firstReadEndPos;
-        int secondReadStartPos;
-        ReadAlignmentInfo() {
-            firstReadEndPos = 0;
-            secondReadStartPos = 0;
-        }
-    }
+    private static final long serialVersionUID = -7002892714917326971L;
 
     long numMappedReads, numPairedReads, numSupplementaryAlignments;
     long numMappedFirstInPair, numMappedSecondInPair, numSingletons;
     long numMarkedDuplicates;
     boolean collectIntersectingReadPairs;
     long numOverlappingReadPairs, numOverlappingBases;
-    Map<String,ReadAlignmentInfo> pairsCollector;
+    PendingReadPairs pendingPairs;
     String curChromosome;
     // TODO: read length might influence?
     // int readLength;
@@ -97,7 +88,7 @@ public class BamStatsCollector {
 
     public void enableIntersectingReadsCollection() {
         collectIntersectingReadPairs = true;
-        pairsCollector = new HashMap<String,ReadAlignmentInfo>();
+        pendingPairs = new PendingReadPairs();
         curChromosome = "";
 
     }
@@ -133,22 +124,33 @@ public class BamStatsCollector {
     }
 
     public void finalizeAlignmentInfo() {
+        // pairs are counted when the second read arrives, the reads left have no mate here
         if (!curChromosome.isEmpty()) {
-            //System.out.println("Collected " + pairsCollector.size() + "  read pairs from chromosome " + curChromosome);
-            for (Map.Entry<String, ReadAlignmentInfo> entry : pairsCollector.entrySet()) {
-                ReadAlignmentInfo info = entry.getValue();
-                if (info.secondReadStartPos > 0) {
-                    int intersectionSize = info.firstReadEndPos - info.secondReadStartPos + 1;
-                    if (intersectionSize > 0 ) {
-                        numOverlappingBases += intersectionSize;
-                        numOverlappingReadPairs++;
-                    }
-                }
-            }
-            //System.out.println("Number of intersecting pairs " + numOverlappingReadPairs);
+            pendingPairs.clear();
         }
     }
 
+    /**
+     * Add the counters of another collector to this one.
+     * All counters are sums over the reads, so the result is exact for any disjoint subsets of reads
+     * and does not depend on the order of merging.
+     * Paired reads information of both collectors must be finalized before merging
+     * (see {@link #finalizeAlignmentInfo()}); overlapping pairs are only detected if both reads
+     * of a pair were processed by the same collector.
+     * @param other collector of a different subset of reads
+     */
+    public void merge(BamStatsCollector other) {
+        numMappedReads += other.numMappedReads;
+        numPairedReads += other.numPairedReads;
+        numSupplementaryAlignments += other.numSupplementaryAlignments;
+        numMappedFirstInPair += other.numMappedFirstInPair;
+        numMappedSecondInPair += other.numMappedSecondInPair;
+        numSingletons += other.numSingletons;
+        numMarkedDuplicates += other.numMarkedDuplicates;
+        numOverlappingReadPairs += other.numOverlappingReadPairs;
+        numOverlappingBases += other.numOverlappingBases;
+    }
+
     public void collectPairedReadInfo(SAMRecord read) {
 
         if (!read.getReadPairedFlag() || read.getMateUnmappedFlag()) {
@@ -159,19 +161,25 @@ public class BamStatsCollector {
         if (!curChromosome.equals(chr)) {
             finalizeAlignmentInfo();
             curChromosome = chr;
-            pairsCollector.clear();
         }
 
         //TODO: what if there are several alignments of the same read?
 
-        String readName = read.getReadName();
-        if (pairsCollector.containsKey(readName)){
-            ReadAlignmentInfo info = pairsCollector.get(readName);
-            info.secondReadStartPos = read.getAlignmentStart();
-        }  else {
-            ReadAlignmentInfo info = new ReadAlignmentInfo();
-            info.firstReadEndPos = read.getAlignmentEnd();
-            pairsCollector.put(readName, info);
+        // the input is sorted, so the reads whose mates start before this read will not be paired
+        int readStart = read.getAlignmentStart();
+        pendingPairs.evictBefore(readStart);
+
+        long nameHash = PendingReadPairs.hashName(read.getReadName());
+        int firstReadEnd = pendingPairs.remove(nameHash);
+        if (firstReadEnd >= 0) {
+            int intersectionSize = firstReadEnd - readStart + 1;
+            if (intersectionSize > 0 ) {
+                numOverlappingBases += intersectionSize;
+                numOverlappingReadPairs++;
+            }
+        } else if (read.getMateReferenceIndex().equals(read.getReferenceIndex())
+                && read.getMateAlignmentStart() >= readStart) {
+            pendingPairs.add(nameHash, read.getAlignmentEnd(), read.getMateAlignmentStart());
         }
 
     }
@@ -0,0 +1,473 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.common;
+
+import net.sf.samtools.SAMRecord;
+import org.bioinfo.ngs.qc.qualimap.beans.ContigRecord;
+import org.bioinfo.ngs.qc.qualimap.beans.GenomeLocator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Random sample of genomic chunks used by the approximate BAM QC.
+ *
+ * The windows of the analysis are the strata of the sample: each window is split into chunks
+ * and every chunk is selected with the same probability, the number of chunks taken from
+ * a window is rounded randomly. Totals collected per chunk give the confidence intervals
+ * of the statistics computed from the sample (delete-a-chunk jackknife).
+ */
+public class ChunkSampling {
+
+    public static final double DEFAULT_SAMPLING_FRACTION = 0.05;
+    public static final int DEFAULT_CHUNK_SIZE = 100000;
+    public static final long DEFAULT_SEED = 20131;
+
+    // two-sided 95% quantile of the normal distribution
+    static final double Z_95 = 1.959964;
+
+    // read counters, the same as collected for the globals
+    public static final int MAPPED_READS = 0;
+    public static final int PAIRED_READS = 1;
+    public static final int MAPPED_FIRST_OF_PAIR = 2;
+    public static final int MAPPED_SECOND_OF_PAIR = 3;
+    public static final int SINGLETONS = 4;
+    public static final int SUPPLEMENTARY_ALIGNMENTS = 5;
+    static final int NUM_READ_COUNTERS = 6;
+
+    /**
+     * Value of a statistic with its confidence interval
+     */
+    public static class Estimate {
+        private final double value, lower, upper;
+
+        Estimate(double value, double halfWidth) {
+            this.value = value;
+            this.lower = value - halfWidth;
+            this.upper = value + halfWidth;
+        }
+
+        public double getValue() {
+            return value;
+        }
+
+        public double getLower() {
+            return lower;
+        }
+
+        public double getUpper() {
+            return upper;
+        }
+    }
+
+    // statistic computed from the totals of the sample
+    private interface Statistic {
+        double compute(double[] totals);
+    }
+
+    private final int chunkSize;
+    private final long referenceSize;
+    private final long sampledSize;
+
+    // absolute coordinates of the chunks, sorted and not overlapping
+    private final long[] chunkStarts;
+    private final long[] chunkEnds;
+
+    // per chunk totals, a chunk is updated by a single thread
+    private final long[][] readCounts;
+    private final long[] coverageSums;
+    private final double[] squaredCoverageSums;
+    private final long[] readStartPositions;
+    private final long[] singleReadStartPositions;
+    private final long[] insertSizeCounts;
+    private final double[] insertSizeSums;
+    private final double[] squaredInsertSizeSums;
+
+    /**
+     * @param windowStarts absolute starts of the windows, a window does not span several contigs
+     */
+    public ChunkSampling(GenomeLocator locator, List<Long> windowStarts, double samplingFraction,
+                         int chunkSize, long seed) {
+        this.chunkSize = chunkSize;
+        this.referenceSize = locator.getTotalSize();
+
+        Random random = new Random(seed);
+        List<long[]> chunks = new ArrayList<long[]>();
+        List<long[]> windowChunks = new ArrayList<long[]>();
+        int numWindows = windowStarts.size();
+        for (int i = 0; i < numWindows; ++i) {
+            long windowEnd = i + 1 < numWindows ? windowStarts.get(i + 1) - 1 : referenceSize;
+
+            windowChunks.clear();
+            long start = windowStarts.get(i);
+            while (start <= windowEnd) {
+                ContigRecord contig = locator.getContigCoordinates(start);
+                long end = Math.min(start + chunkSize - 1, Math.min(windowEnd, contig.getEnd()));
+                windowChunks.add(new long[] {start, end});
+                start = end + 1;
+            }
+
+            int numChunks = windowChunks.size();
+            double expected = samplingFraction * numChunks;
+            int numSelected = (int) expected;
+            if (random.nextDouble() < expected - numSelected) {
+                ++numSelected;
+            }
+            // partial shuffle, the first numSelected chunks are the sample of the window
+            for (int k = 0; k < numSelected; ++k) {
+                int j = k + random.nextInt(numChunks - k);
+                long[] tmp = windowChunks.get(k);
+                windowChunks.set(k, windowChunks.get(j));
+                windowChunks.set(j, tmp);
+            }
+            List<long[]> selected = new ArrayList<long[]>(windowChunks.subList(0, numSelected));
+            Collections.sort(selected, new Comparator<long[]>() {
+                @Override
+                public int compare(long[] c1, long[] c2) {
+                    return c1[0] < c2[0] ? -1 : (c1[0] == c2[0] ? 0 : 1);
+                }
+            });
+            chunks.addAll(selected);
+        }
+
+        if (chunks.isEmpty() && referenceSize > 0) {
+            // the sample is never empty
+            long start = 1 + (long) (random.nextDouble() * referenceSize);
+            ContigRecord contig = locator.getContigCoordinates(start);
+            start = Math.max(contig.getStart(), Math.min(start, contig.getEnd() - chunkSize + 1));
+            chunks.add(new long[] {start, Math.min(start + chunkSize - 1, contig.getEnd())});
+        }
+
+        int numChunks = chunks.size();
+        chunkStarts = new long[numChunks];
+        chunkEnds = new long[numChunks];
+        long size = 0;
+        for (int i = 0; i < numChunks; ++i) {
+            chunkStarts[i] = chunks.get(i)[0];
+            chunkEnds[i] = chunks.get(i)[1];
+            size += chunkEnds[i] - chunkStarts[i] + 1;
+        }
+        sampledSize = size;
+
+        readCounts = new long[NUM_READ_COUNTERS][numChunks];
+        coverageSums = new long[numChunks];
+        squaredCoverageSums = new double[numChunks];
+        readStartPositions = new long[numChunks];
+        singleReadStartPositions = new long[numChunks];
+        insertSizeCounts = new long[numChunks];
+        insertSizeSums = new double[numChunks];
+        squaredInsertSizeSums = new double[numChunks];
+    }
+
+    public int getNumberOfChunks() {
+        return chunkStarts.length;
+    }
+
+    public long getChunkStart(int i) {
+        return chunkStarts[i];
+    }
+
+    public long getChunkEnd(int i) {
+        return chunkEnds[i];
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public long getSampledSize() {
+        return sampledSize;
+    }
+
+    /**
+     * @return fraction of the reference covered by the sampled chunks
+     */
+    public double getSampledFraction() {
+        return referenceSize > 0 ? (double) sampledSize / referenceSize : 0;
+    }
+
+    /**
+     * @return index of the first chunk ending at the position or after it,
+     * the number of chunks if there is no such chunk
+     */
+    public int findChunk(long position) {
+        int i = Arrays.binarySearch(chunkEnds, position);
+        return i < 0 ? -i - 1 : i;
+    }
+
+    /**
+     * Adds the coverage of the window to the chunks intersecting it.
+     * Windows are processed in parallel, each chunk belongs to a single window.
+     */
+    public void addCoverage(long windowStart, int[] coverage) {
+        long windowEnd = windowStart + coverage.length - 1;
+        for (int c = findChunk(windowStart); c < chunkStarts.length && chunkStarts[c] <= windowEnd; ++c) {
+            int from = (int) (Math.max(chunkStarts[c], windowStart) - windowStart);
+            int to = (int) (Math.min(chunkEnds[c], windowEnd) - windowStart);
+            long sum = 0;
+            double squaredSum = 0;
+            for (int i = from; i <= to; ++i) {
+                long cov = coverage[i];
+                sum += cov;
+                squaredSum += cov * cov;
+            }
+            coverageSums[c] += sum;
+            squaredCoverageSums[c] += squaredSum;
+        }
+    }
+
+    /**
+     * Collects the read counts of a coordinate sorted stream of reads. A read belongs to the chunk
+     * containing its start: the reads overlapping a chunk from the outside are not counted,
+     * otherwise the read starts near the chunk borders would be undersampled.
+     */
+    public class ReadCounter {
+        private int chunk;
+        private long lastStart = -1;
+        private int lastStartChunk;
+        private int lastStartCount;
+
+        // -1 if the position is outside of the chunks
+        private int chunkOf(long position) {
+            if (position > chunkEnds[chunk]) {
+                chunk = Math.min(findChunk(position), chunkEnds.length - 1);
+            }
+            return position >= chunkStarts[chunk] && position <= chunkEnds[chunk] ? chunk : -1;
+        }
+
+        /**
+         * Counts the mapped read in the same way as BamStatsCollector
+         */
+        public void addMappedRead(long position, SAMRecord read) {
+            int c = chunkOf(position);
+            if (c == -1) {
+                return;
+            }
+            if ((read.getFlags() & Constants.SAM_FLAG_SUPP_ALIGNMENT) != 0) {
+                readCounts[SUPPLEMENTARY_ALIGNMENTS][c]++;
+                return;
+            }
+            readCounts[MAPPED_READS][c]++;
+            if (read.getReadPairedFlag()) {
+                readCounts[PAIRED_READS][c]++;
+                if (read.getFirstOfPairFlag()) {
+                    readCounts[MAPPED_FIRST_OF_PAIR][c]++;
+                } else if (read.getSecondOfPairFlag()) {
+                    readCounts[MAPPED_SECOND_OF_PAIR][c]++;
+                }
+                if (read.getMateUnmappedFlag()) {
+                    readCounts[SINGLETONS][c]++;
+                }
+            }
+        }
+
+        public void addReadStart(long position) {
+            if (position == lastStart) {
+                ++lastStartCount;
+                return;
+            }
+            closeReadStart();
+            lastStart = position;
+            lastStartChunk = chunkOf(position);
+            lastStartCount = 1;
+        }
+
+        public void addInsertSize(long position, int insertSize) {
+            int c = chunkOf(position);
+            if (insertSize > 0 && c != -1) {
+                insertSizeCounts[c]++;
+                insertSizeSums[c] += insertSize;
+                squaredInsertSizeSums[c] += (double) insertSize * insertSize;
+            }
+        }
+
+        /**
+         * Must be called after the last read of the stream
+         */
+        public void finish() {
+            closeReadStart();
+            lastStart = -1;
+        }
+
+        private void closeReadStart() {
+            if (lastStart != -1 && lastStartChunk != -1) {
+                readStartPositions[lastStartChunk]++;
+                if (lastStartCount == 1) {
+                    singleReadStartPositions[lastStartChunk]++;
+                }
+            }
+        }
+    }
+
+    public ReadCounter createReadCounter() {
+        return new ReadCounter();
+    }
+
+    private double[] chunkSizes() {
+        double[] sizes = new double[chunkStarts.length];
+        for (int i = 0; i < sizes.length; ++i) {
+            sizes[i] = chunkEnds[i] - chunkStarts[i] + 1;
+        }
+        return sizes;
+    }
+
+    private static double[] toDouble(long[] values) {
+        double[] res = new double[values.length];
+        for (int i = 0; i < values.length; ++i) {
+            res[i] = values[i];
+        }
+        return res;
+    }
+
+    /**
+     * Delete-a-chunk jackknife, the variance is corrected for the sampled fraction of the population.
+     * @param chunkValues the totals of each chunk
+     * @return null if the statistic can not be computed
+     */
+    private Estimate estimate(Statistic statistic, double[]... chunkValues) {
+        int numTotals = chunkValues.length;
+        int numChunks = chunkStarts.length;
+        double[] totals = new double[numTotals];
+        for (int j = 0; j < numTotals; ++j) {
+            for (int c = 0; c < numChunks; ++c) {
+                totals[j] += chunkValues[j][c];
+            }
+        }
+
+        double value = statistic.compute(totals);
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return null;
+        }
+        if (numChunks < 2) {
+            return new Estimate(value, Double.NaN);
+        }
+
+        double[] partialTotals = new double[numTotals];
+        double[] replicates = new double[numChunks];
+        int numReplicates = 0;
+        double replicatesSum = 0;
+        for (int c = 0; c < numChunks; ++c) {
+            for (int j = 0; j < numTotals; ++j) {
+                partialTotals[j] = totals[j] - chunkValues[j][c];
+            }
+            double replicate = statistic.compute(partialTotals);
+            if (!Double.isNaN(replicate) && !Double.isInfinite(replicate)) {
+                replicates[numReplicates++] = replicate;
+                replicatesSum += replicate;
+            }
+        }
+        if (numReplicates < 2) {
+            return new Estimate(value, Double.NaN);
+        }
+
+        double replicatesMean = replicatesSum / numReplicates;
+        double sumOfSquaredDiffs = 0;
+        for (int i = 0; i < numReplicates; ++i) {
+            double diff = replicates[i] - replicatesMean;
+            sumOfSquaredDiffs += diff * diff;
+        }
+        double variance = sumOfSquaredDiffs * (numReplicates - 1) / numReplicates;
+        variance *= Math.max(0, 1 - getSampledFraction());
+
+        return new Estimate(value, Z_95 * Math.sqrt(variance));
+    }
+
+    /**
+     * @param counter one of the read counters, e.g. MAPPED_READS
+     * @return number of the reads in the whole reference, the unmapped reads are not sampled
+     */
+    public Estimate estimateNumberOfReads(int counter) {
+        final double refSize = referenceSize;
+        return estimate(new Statistic() {
+            @Override
+            public double compute(double[] t) {
+                return t[0] / t[1] * refSize;
+            }
+        }, toDouble(readCounts[counter]), chunkSizes());
+    }
+
+    /**
+     * @return number of the reads in the whole reference rounded to an integer, 0 if it can not be estimated
+     */
+    public long scaleNumberOfReads(int counter) {
+        Estimate estimate = estimateNumberOfReads(counter);
+        return estimate != null ? Math.round(estimate.getValue()) : 0;
+    }
+
+    public Estimate estimateNumberOfMappedReads() {
+        return estimateNumberOfReads(MAPPED_READS);
+    }
+
+    public Estimate estimateMeanCoverage() {
+        return estimate(new Statistic() {
+            @Override
+            public double compute(double[] t) {
+                return t[0] / t[1];
+            }
+        }, toDouble(coverageSums), chunkSizes());
+    }
+
+    public Estimate estimateStdCoverage() {
+        return estimate(new Statistic() {
+            @Override
+            public double compute(double[] t) {
+                double mean = t[0] / t[2];
+                return Math.sqrt(Math.max(0, t[1] / t[2] - mean * mean));
+            }
+        }, toDouble(coverageSums), squaredCoverageSums, chunkSizes());
+    }
+
+    /**
+     * @return percentage of the read start positions having several reads
+     */
+    public Estimate estimateDuplicationRate() {
+        return estimate(new Statistic() {
+            @Override
+            public double compute(double[] t) {
+                return (1.0 - t[1] / t[0]) * 100.0;
+            }
+        }, toDouble(readStartPositions), toDouble(singleReadStartPositions));
+    }
+
+    public Estimate estimateMeanInsertSize() {
+        return estimate(new Statistic() {
+            @Override
+            public double compute(double[] t) {
+                return t[0] / t[1];
+            }
+        }, insertSizeSums, toDouble(insertSizeCounts));
+    }
+
+    public Estimate estimateStdInsertSize() {
+        return estimate(new Statistic() {
+            @Override
+            public double compute(double[] t) {
+                double n = t[2];
+                return Math.sqrt(Math.max(0, (t[1] - t[0] * t[0] / n) / (n - 1)));
+            }
+        }, insertSizeSums, squaredInsertSizeSums, toDouble(insertSizeCounts));
+    }
+
+}
@@ -27,6 +27,9 @@ public final class Constants {
 	public static final int DEFAULT_NUMBER_OF_WINDOWS = 400;
 	public static final int DEFAULT_CHUNK_SIZE = 1000;
     public static final int DEFAULT_HOMOPOLYMER_SIZE = 3;
+    public static final int DEFAULT_NUMBER_OF_DECODING_THREADS = 2;
+    // minutes between the checkpoints of BAM QC
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 10;
     public static final int DEFAULT_STABLIZED_WINDOW_PROPORTION = 500;
 
 	public static final int GRAPHIC_TO_SAVE_WIDTH = 1024;
@@ -48,6 +51,9 @@ public final class Constants {
 	public static final String FILE_EXTENSION_BAM = "BAM";
     public static final String FILE_EXTENSION_SAM = "SAM";
 
+    // Input file name meaning the standard input
+    public static final String STANDARD_INPUT_FILE_NAME = "-";
+
 
 	// Extension for the Region Input File
 	public static final Map<String, String> FILE_EXTENSION_REGION = new HashMap<String, String>();
@@ -107,10 +113,6 @@ public final class Constants {
     public static final String VIZ_TYPE_HEATMAP = "heatmap";
     public static final String VIZ_TYPE_LINE = "line";
 
-    // This is a SAM record custom field, has to be 2 characters
-    public static final String READ_IN_REGION = "XX";
-    public static final String READ_WEIGHT_ATTR = "XW";
-
     // Reporting
     public static final String REPORT_TYPE_HTML = "HTML";
     public static final String REPORT_TYPE_PDF = "PDF";
@@ -140,12 +142,25 @@ public final class Constants {
     public static final String BAMQC_OPTION_NUM_WINDOWS = "nw";
     public static final String BAMQC_OPTION_CHUNK_SIZE = "nr";
     public static final String BAMQC_OPTION_NUM_THREADS = "nt";
+    public static final String BAMQC_OPTION_NUM_DECODING_THREADS = "ndt";
     public static final String BAMQC_OPTION_OUTSIDE_STATS = "os";
+    public static final String BAMQC_OPTION_REGIONS_BY_INDEX = "ri";
     public static final String BAMQC_OPTION_MIN_HOMOPOLYMER_SIZE = "hm";
     public static final String BAMQC_OPTION_COVERAGE_REPORT_FILE = "oc";
+    public static final String BAMQC_OPTION_COVERAGE_REPORT_FORMAT = "ocf";
     public static final String BAMQC_OPTION_SKIP_DUPLICATED = "sd";
     public static final String BAMQC_OPTION_COLLECT_OVERLAP_PAIRS = "ip";
+    public static final String BAMQC_OPTION_PARALLEL_CHROMOSOMES = "pc";
     public static final String BAMQC_OPTION_SKIP_DUPLICATES_MODE = "sdmode";
+    public static final String BAMQC_OPTION_VALIDATION_MODE = "vm";
+    public static final String BAMQC_OPTION_VALIDATION_SAMPLING_RATE = "vsr";
+    public static final String BAMQC_OPTION_SAMPLING_FRACTION = "sf";
+    public static final String BAMQC_OPTION_SAMPLING_CHUNK_SIZE = "scs";
+    public static final String BAMQC_OPTION_INDEX_SUMMARY = "ix";
+    public static final String BAMQC_OPTION_CHECKPOINT_FILE = "ckp";
+    public static final String BAMQC_OPTION_CHECKPOINT_INTERVAL = "cki";
+    public static final String BAMQC_OPTION_RESUME = "resume";
+    public static final String BAMQC_OPTION_ALIGNMENT_VECTORS = "av";
 
 
 
@@ -0,0 +1,367 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.common;
+
+import java.io.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Writes the per base coverage of the genome windows to a file.
+ *
+ * The windows are passed to a dedicated writer thread through a queue, so the
+ * analysis does not wait for the disk. The queue is bounded by the total number of queued bases,
+ * as the windows can be large. The coverage is written either one line per base
+ * or as bedGraph records, where adjacent bases with the same coverage are joined into
+ * one run, also across consecutive windows of the same contig.
+ */
+public class CoverageWriter {
+
+    public enum Format {
+        PER_BASE("text"),
+        BEDGRAPH("bedgraph");
+
+        private final String name;
+
+        Format(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public static Format getFormatByName(String name) {
+            for (Format format : values()) {
+                if (format.name.equalsIgnoreCase(name)) {
+                    return format;
+                }
+            }
+            return null;
+        }
+    }
+
+    // 64 MB of coverage values
+    private static final int MAX_QUEUED_BASES = 1 << 24;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private static class Chunk {
+        String contigName;
+        long start;
+        int[] coverage;
+        // permits of the queue limit held by the chunk
+        int queuedBases;
+        File reportToAppend;
+        // released when the preceding chunks are written to the file
+        CountDownLatch written;
+    }
+
+    /**
+     * State of the report after the written data, the report can be continued from it later.
+     */
+    public static class Position implements Serializable {
+        private static final long serialVersionUID = -1815880123168649878L;
+
+        long fileLength;
+        String runContig;
+        long runStart, runEnd;
+        int runCoverage;
+    }
+
+    // marks the end of the data in the queue
+    private static final Chunk END_OF_DATA = new Chunk();
+
+    private final String path;
+    private final Format format;
+    private final boolean nonZeroCoverageOnly;
+    private final Writer out;
+    private final BlockingQueue<Chunk> chunkQueue;
+    private final Semaphore queueLimit;
+    private final Thread writerThread;
+    private volatile IOException writingError;
+    private boolean closed;
+
+    // current bedGraph run
+    private String runContig;
+    private long runStart, runEnd;
+    private int runCoverage;
+
+    /**
+     * @param path Output file
+     * @param format Format of the records
+     * @param nonZeroCoverageOnly Skip the positions with zero coverage
+     */
+    public CoverageWriter(String path, Format format, boolean nonZeroCoverageOnly) throws IOException {
+        this(path, format, nonZeroCoverageOnly, null);
+    }
+
+    /**
+     * Continues a report written before. The data after the given position is discarded.
+     *
+     * @param path Output file
+     * @param format Format of the records
+     * @param nonZeroCoverageOnly Skip the positions with zero coverage
+     * @param position Position returned by sync(), null to start a new report
+     */
+    public CoverageWriter(String path, Format format, boolean nonZeroCoverageOnly, Position position)
+            throws IOException {
+        this.path = path;
+        this.format = format;
+        this.nonZeroCoverageOnly = nonZeroCoverageOnly;
+        if (position == null) {
+            this.out = new BufferedWriter(new FileWriter(path), BUFFER_SIZE);
+            out.write(format == Format.BEDGRAPH ? "#chr\tstart\tend\tcoverage\n" : "#chr\tpos\tcoverage\n");
+        } else {
+            RandomAccessFile file = new RandomAccessFile(path, "rw");
+            try {
+                if (file.length() < position.fileLength) {
+                    throw new IOException("Coverage report " + path + " is shorter than expected");
+                }
+                file.setLength(position.fileLength);
+            } finally {
+                file.close();
+            }
+            this.out = new BufferedWriter(new FileWriter(path, true), BUFFER_SIZE);
+            runContig = position.runContig;
+            runStart = position.runStart;
+            runEnd = position.runEnd;
+            runCoverage = position.runCoverage;
+        }
+
+        chunkQueue = new LinkedBlockingQueue<Chunk>();
+        queueLimit = new Semaphore(MAX_QUEUED_BASES);
+        writerThread = new Thread(new Runnable() {
+            public void run() {
+                processChunks();
+            }
+        }, "coverage-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Queues the coverage of a window. The array is written later and must not be
+     * modified by the caller afterwards. Blocks while too many bases are queued.
+     *
+     * @param contigName Name of the contig
+     * @param start Position of the first base in the contig (1-based)
+     * @param coverage Coverage of the bases
+     */
+    public void write(String contigName, long start, int[] coverage) {
+        Chunk chunk = new Chunk();
+        chunk.contigName = contigName;
+        chunk.start = start;
+        chunk.coverage = coverage;
+        // a window larger than the limit is queued alone
+        chunk.queuedBases = Math.min(coverage.length, MAX_QUEUED_BASES);
+        put(chunk);
+    }
+
+    /**
+     * Queues the content of another report in the same format, the header line is skipped.
+     * The report is deleted after it has been copied.
+     */
+    public void appendAndDelete(File report) {
+        Chunk chunk = new Chunk();
+        chunk.reportToAppend = report;
+        put(chunk);
+    }
+
+    /**
+     * Waits till the queued data is written to the file. The current bedGraph run is kept open,
+     * it is a part of the returned position.
+     */
+    public Position sync() throws IOException {
+        Chunk chunk = new Chunk();
+        chunk.written = new CountDownLatch(1);
+        put(chunk);
+        try {
+            chunk.written.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing coverage report");
+        }
+        if (writingError != null) {
+            throw writingError;
+        }
+        // the writer thread waits for the next chunk, its state is visible after the latch
+        Position position = new Position();
+        position.fileLength = new File(path).length();
+        position.runContig = runContig;
+        position.runStart = runStart;
+        position.runEnd = runEnd;
+        position.runCoverage = runCoverage;
+        return position;
+    }
+
+    /**
+     * Writes the remaining data and closes the file, can be called several times.
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        put(END_OF_DATA);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing coverage report");
+        }
+        if (writingError != null) {
+            throw writingError;
+        }
+    }
+
+    private void put(Chunk chunk) {
+        try {
+            queueLimit.acquire(chunk.queuedBases);
+            chunkQueue.put(chunk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while queueing coverage data", e);
+        }
+    }
+
+    private void processChunks() {
+        Chunk chunk;
+        try {
+            while ( (chunk = chunkQueue.take()) != END_OF_DATA ) {
+                try {
+                    processChunk(chunk);
+                } finally {
+                    queueLimit.release(chunk.queuedBases);
+                }
+            }
+        } catch (InterruptedException e) {
+            writingError = new InterruptedIOException("Coverage writer was interrupted");
+        }
+
+        try {
+            flushRun();
+            out.close();
+        } catch (IOException e) {
+            if (writingError == null) {
+                writingError = e;
+            }
+        }
+    }
+
+    private void processChunk(Chunk chunk) {
+        if (chunk.written != null) {
+            try {
+                if (writingError == null) {
+                    out.flush();
+                }
+            } catch (IOException e) {
+                writingError = e;
+            }
+            chunk.written.countDown();
+            return;
+        }
+        if (writingError != null) {
+            // keep the queue moving, the error is reported on close
+            return;
+        }
+        try {
+            if (chunk.reportToAppend != null) {
+                flushRun();
+                appendReport(chunk.reportToAppend);
+            } else if (format == Format.BEDGRAPH) {
+                writeRuns(chunk);
+            } else {
+                writeBases(chunk);
+            }
+        } catch (IOException e) {
+            writingError = e;
+        }
+    }
+
+    private void writeBases(Chunk chunk) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        int[] coverage = chunk.coverage;
+        for (int i = 0; i < coverage.length; ++i) {
+            if (coverage[i] == 0 && nonZeroCoverageOnly) {
+                continue;
+            }
+            line.setLength(0);
+            line.append(chunk.contigName).append('\t').append(chunk.start + i).append('\t')
+                    .append(coverage[i]).append('\n');
+            out.append(line);
+        }
+    }
+
+    private void writeRuns(Chunk chunk) throws IOException {
+        // bedGraph coordinates are 0-based and half-open
+        long pos = chunk.start - 1;
+        if (runContig != null && (!runContig.equals(chunk.contigName) || runEnd != pos)) {
+            flushRun();
+        }
+        int[] coverage = chunk.coverage;
+        for (int i = 0; i < coverage.length; ++i, ++pos) {
+            if (runContig != null && coverage[i] == runCoverage) {
+                runEnd = pos + 1;
+                continue;
+            }
+            flushRun();
+            runContig = chunk.contigName;
+            runStart = pos;
+            runEnd = pos + 1;
+            runCoverage = coverage[i];
+        }
+    }
+
+    private void flushRun() throws IOException {
+        if (runContig == null) {
+            return;
+        }
+        if (runCoverage != 0 || !nonZeroCoverageOnly) {
+            StringBuilder line = new StringBuilder(64);
+            line.append(runContig).append('\t').append(runStart).append('\t').append(runEnd)
+                    .append('\t').append(runCoverage).append('\n');
+            out.append(line);
+        }
+        runContig = null;
+    }
+
+    private void appendReport(File report) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(report));
+        try {
+            // skip header
+            String line = reader.readLine();
+            while ( (line = reader.readLine()) != null) {
+                out.write(line);
+                out.write('\n');
+            }
+        } finally {
+            reader.close();
+        }
+        report.delete();
+    }
+
+}
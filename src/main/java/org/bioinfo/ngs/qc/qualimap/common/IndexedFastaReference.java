@@ -0,0 +1,300 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.common;
+
+import org.bioinfo.ngs.qc.qualimap.beans.ContigRecord;
+import org.bioinfo.ngs.qc.qualimap.beans.GenomeLocator;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Reference sequence accessed through a FASTA index (.fai) and a memory-mapped FASTA file.
+ *
+ * The sequence is never loaded into the heap: slices of the reference are views over the
+ * mapped file, so the memory required does not depend on the size of the genome.
+ * If the index file is missing, it is computed by a single pass over the FASTA file.
+ */
+public class IndexedFastaReference {
+
+    // the file is mapped in chunks, since a single mapping is limited to 2Gb
+    static final int CHUNK_SHIFT = 30;
+    static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+    static class IndexEntry {
+        String name;
+        long length;
+        long offset;
+        int lineBases;
+        int lineWidth;
+
+        long getFileOffset(long pos) {
+            return offset + (pos / lineBases) * lineWidth + pos % lineBases;
+        }
+    }
+
+    /**
+     * View of a part of a reference sequence, nucleotides are returned in upper case
+     */
+    public static class Slice {
+        private final ByteBuffer[] buffers;
+        private final IndexEntry contig;
+        private final long from;
+        private final int length;
+
+        Slice(ByteBuffer[] buffers, IndexEntry contig, long from, int length) {
+            this.buffers = buffers;
+            this.contig = contig;
+            this.from = from;
+            this.length = length;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public byte get(int i) {
+            long offset = contig.getFileOffset(from + i);
+            byte b = buffers[(int) (offset >>> CHUNK_SHIFT)].get((int) (offset & CHUNK_MASK));
+            return b >= 'a' && b <= 'z' ? (byte) (b - ('a' - 'A')) : b;
+        }
+    }
+
+    private List<IndexEntry> index;
+    private long fileSize;
+    private long lastModified;
+    private ByteBuffer[] buffers;
+    // contigs in the order of the genome locator and their absolute start positions
+    private IndexEntry[] contigs;
+    private long[] contigStarts;
+
+    public IndexedFastaReference(String fastaFileName, GenomeLocator locator) throws IOException {
+        File fastaFile = new File(fastaFileName);
+        File indexFile = new File(fastaFileName + ".fai");
+
+        index = indexFile.exists() ? readIndex(indexFile) : buildIndex(fastaFile);
+        mapFile(fastaFile);
+        lastModified = fastaFile.lastModified();
+
+        Map<String,IndexEntry> entries = new HashMap<String, IndexEntry>();
+        for (IndexEntry e : index) {
+            entries.put(e.name, e);
+        }
+
+        List<ContigRecord> records = locator.getContigs();
+        contigs = new IndexEntry[records.size()];
+        contigStarts = new long[records.size()];
+        for (int i = 0; i < records.size(); ++i) {
+            ContigRecord record = records.get(i);
+            IndexEntry e = entries.get(record.getName());
+            if (e == null) {
+                throw new IOException("Invalid reference file, sequence " + record.getName() + " is not found");
+            }
+            if (e.length != record.getSize()) {
+                throw new IOException("Invalid reference file, number of nucleotides in sequence "
+                        + record.getName() + " differs");
+            }
+            contigs[i] = e;
+            contigStarts[i] = record.getStart();
+        }
+    }
+
+    public int getNumberOfSequences() {
+        return index.size();
+    }
+
+    /**
+     * Returns a checksum identifying the reference file. It is computed from the index, the size
+     * and the modification time of the file, so the sequence itself does not have to be read.
+     */
+    public long getChecksum() {
+        CRC32 crc = new CRC32();
+        StringBuilder builder = new StringBuilder();
+        for (IndexEntry e : index) {
+            builder.append(e.name).append('\t').append(e.length).append('\t').append(e.offset).append('\t')
+                    .append(e.lineBases).append('\t').append(e.lineWidth).append('\n');
+        }
+        builder.append(fileSize).append('\t').append(lastModified);
+        crc.update(builder.toString().getBytes());
+        return crc.getValue();
+    }
+
+    /**
+     * Returns the view of the reference between the absolute positions start and end (inclusive),
+     * which must belong to the same contig.
+     */
+    public Slice getSlice(long start, long end) {
+        int k = Arrays.binarySearch(contigStarts, start);
+        if (k < 0) {
+            k = -k - 2;
+        }
+        if (k < 0) {
+            throw new IllegalArgumentException("Position " + start + " is outside of the reference");
+        }
+        IndexEntry contig = contigs[k];
+        long from = start - contigStarts[k];
+        if (end - contigStarts[k] >= contig.length) {
+            throw new IllegalArgumentException("Region " + start + "-" + end + " is not inside of sequence " + contig.name);
+        }
+
+        return new Slice(buffers, contig, from, (int) (end - start + 1));
+    }
+
+    private void mapFile(File fastaFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(fastaFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            fileSize = size;
+            int numChunks = (int) ((size + CHUNK_MASK) >>> CHUNK_SHIFT);
+            buffers = new ByteBuffer[numChunks];
+            for (int i = 0; i < numChunks; ++i) {
+                long chunkStart = (long) i << CHUNK_SHIFT;
+                buffers[i] = channel.map(FileChannel.MapMode.READ_ONLY, chunkStart,
+                        Math.min(size - chunkStart, CHUNK_MASK + 1));
+            }
+        } finally {
+            // the mappings stay valid after the file is closed
+            file.close();
+        }
+    }
+
+    static List<IndexEntry> readIndex(File indexFile) throws IOException {
+        List<IndexEntry> entries = new ArrayList<IndexEntry>();
+        BufferedReader reader = new BufferedReader(new FileReader(indexFile));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] items = line.split("\t");
+                if (items.length < 5) {
+                    throw new IOException("Failed to parse FASTA index " + indexFile.getPath() + ": " + line);
+                }
+                IndexEntry e = new IndexEntry();
+                e.name = items[0];
+                e.length = Long.parseLong(items[1]);
+                e.offset = Long.parseLong(items[2]);
+                e.lineBases = Integer.parseInt(items[3]);
+                e.lineWidth = Integer.parseInt(items[4]);
+                entries.add(e);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Failed to parse FASTA index " + indexFile.getPath() + ": " + e.getMessage());
+        } finally {
+            reader.close();
+        }
+
+        return entries;
+    }
+
+    /**
+     * Computes the same index as "samtools faidx", without writing it to disk
+     */
+    static List<IndexEntry> buildIndex(File fastaFile) throws IOException {
+        List<IndexEntry> entries = new ArrayList<IndexEntry>();
+        InputStream in = new FileInputStream(fastaFile);
+
+        try {
+            IndexEntry current = null;
+            StringBuilder header = null;
+            boolean lineStart = true, lastLineShort = false;
+            int lineBases = 0, lineBytes = 0;
+            long pos = 0;
+            byte[] buf = new byte[1 << 16];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                for (int i = 0; i < n; ++i) {
+                    int c = buf[i];
+                    pos++;
+                    if (header != null) {
+                        if (c == '\n') {
+                            current = new IndexEntry();
+                            current.name = header.toString().trim().split("\\s+")[0];
+                            current.offset = pos;
+                            entries.add(current);
+                            header = null;
+                            lastLineShort = false;
+                        } else {
+                            header.append((char) c);
+                        }
+                        continue;
+                    }
+
+                    if (lineStart && c == '>') {
+                        header = new StringBuilder();
+                        continue;
+                    }
+
+                    lineStart = false;
+                    lineBytes++;
+                    if (c != '\n' && c != '\r') {
+                        lineBases++;
+                    }
+                    if (c == '\n') {
+                        if (lineBases > 0) {
+                            if (current == null) {
+                                throw new IOException("Invalid FASTA file " + fastaFile.getPath() + ": sequence without header");
+                            }
+                            if (current.lineBases == 0) {
+                                current.lineBases = lineBases;
+                                current.lineWidth = lineBytes;
+                            } else if (lastLineShort || lineBases > current.lineBases) {
+                                throw new IOException("Invalid FASTA file " + fastaFile.getPath() +
+                                        ": lines of sequence " + current.name + " have different length");
+                            }
+                            lastLineShort = lineBases < current.lineBases;
+                            current.length += lineBases;
+                        }
+                        lineStart = true;
+                        lineBases = 0;
+                        lineBytes = 0;
+                    }
+                }
+            }
+
+            if (lineBases > 0) {
+                // last line without a line break
+                if (current == null || lastLineShort || (current.lineBases > 0 && lineBases > current.lineBases)) {
+                    throw new IOException("Invalid FASTA file " + fastaFile.getPath());
+                }
+                if (current.lineBases == 0) {
+                    current.lineBases = lineBases;
+                    current.lineWidth = lineBytes + 1;
+                }
+                current.length += lineBases;
+            }
+        } finally {
+            in.close();
+        }
+
+        return entries;
+    }
+
+}
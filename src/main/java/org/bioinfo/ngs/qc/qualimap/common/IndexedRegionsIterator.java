@@ -0,0 +1,152 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.common;
+
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.util.CloseableIterator;
+import org.bioinfo.ngs.qc.qualimap.beans.ContigPosition;
+import org.bioinfo.ngs.qc.qualimap.beans.GenomeLocator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the reads overlapping the given regions using the BAM index.
+ *
+ * Overlapping and adjacent regions are queried together. A read overlapping two queried
+ * intervals is returned only once, so the reads are coordinate sorted as in the file.
+ */
+public class IndexedRegionsIterator implements CloseableIterator<SAMRecord> {
+
+    private final SAMFileReader reader;
+    private final List<ContigPosition> intervalStarts;
+    private final List<Long> intervalLengths;
+    private int nextInterval;
+
+    private CloseableIterator<SAMRecord> currentQuery;
+    private String currentContig;
+    // the reads starting before the end of the previous interval were already returned
+    private long previousIntervalEnd;
+    private SAMRecord nextRecord;
+
+    /**
+     * @param reader BAM file reader, it must have an index
+     * @param regionStarts absolute starts of the regions, sorted
+     * @param regionEnds absolute ends of the regions, a region does not span several contigs
+     * @param fromPosition absolute start of the iterated part of the reference
+     * @param toPosition absolute end of the iterated part of the reference
+     */
+    public IndexedRegionsIterator(SAMFileReader reader, GenomeLocator locator, long[] regionStarts,
+                                  long[] regionEnds, long fromPosition, long toPosition) {
+        if (!reader.hasIndex()) {
+            throw new RuntimeException("The BAM index is required to query the regions.");
+        }
+        this.reader = reader;
+        intervalStarts = new ArrayList<ContigPosition>();
+        intervalLengths = new ArrayList<Long>();
+
+        int numRegions = regionStarts.length;
+        int i = 0;
+        while (i < numRegions && regionStarts[i] < fromPosition) {
+            ++i;
+        }
+        while (i < numRegions && regionStarts[i] <= toPosition) {
+            long start = regionStarts[i];
+            long end = regionEnds[i];
+            ContigPosition contigStart = locator.getContigPosition(start);
+            long contigEnd = contigStart.getContig().getEnd();
+            for (++i; i < numRegions && regionStarts[i] <= end + 1 && regionStarts[i] <= contigEnd; ++i) {
+                end = Math.max(end, regionEnds[i]);
+            }
+            intervalStarts.add(contigStart);
+            intervalLengths.add(end - start + 1);
+        }
+
+        nextRecord = advance();
+    }
+
+    public int getNumberOfIntervals() {
+        return intervalStarts.size();
+    }
+
+    private SAMRecord advance() {
+        while (true) {
+            if (currentQuery != null) {
+                while (currentQuery.hasNext()) {
+                    SAMRecord record = currentQuery.next();
+                    if (record.getAlignmentStart() > previousIntervalEnd) {
+                        return record;
+                    }
+                }
+                currentQuery.close();
+                currentQuery = null;
+            }
+
+            if (nextInterval == intervalStarts.size()) {
+                return null;
+            }
+
+            ContigPosition start = intervalStarts.get(nextInterval);
+            long end = start.getRelative() + intervalLengths.get(nextInterval) - 1;
+            if (currentContig != null && currentContig.equals(start.getName())) {
+                ContigPosition previous = intervalStarts.get(nextInterval - 1);
+                previousIntervalEnd = previous.getRelative() + intervalLengths.get(nextInterval - 1) - 1;
+            } else {
+                previousIntervalEnd = 0;
+            }
+            currentContig = start.getName();
+            currentQuery = reader.queryOverlapping(currentContig, (int) start.getRelative(), (int) end);
+            ++nextInterval;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextRecord != null;
+    }
+
+    @Override
+    public SAMRecord next() {
+        if (nextRecord == null) {
+            throw new NoSuchElementException();
+        }
+        SAMRecord record = nextRecord;
+        nextRecord = advance();
+        return record;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Not supported");
+    }
+
+    @Override
+    public void close() {
+        if (currentQuery != null) {
+            currentQuery.close();
+            currentQuery = null;
+        }
+        nextInterval = intervalStarts.size();
+        nextRecord = null;
+    }
+}
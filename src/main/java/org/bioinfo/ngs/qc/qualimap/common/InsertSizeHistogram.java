@@ -0,0 +1,177 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.common;
+
+import java.io.Serializable;
+import java.util.HashMap;
+
+/**
+ * Distribution of insert sizes in constant memory.
+ *
+ * Insert sizes below EXACT_LIMIT are counted exactly. Larger ones are counted in logarithmic buckets,
+ * which keep the 10 most significant bits of the value, so they are known with a relative error below 0.1%.
+ * The mean and the standard deviation are computed from the exact sum of the values.
+ * Histograms can be merged, the result does not depend on the order of the merges.
+ */
+public class InsertSizeHistogram implements Serializable {
+
+    private static final long serialVersionUID = 5970572684496058168L;
+
+    public static final int EXACT_LIMIT = 1 << 16;
+    static final int EXACT_LIMIT_BITS = 16;
+    static final int SUB_BUCKET_BITS = 10;
+    static final int NUM_SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    long[] counts;
+    // allocated on the first large insert size
+    long[] tailCounts;
+    long numValues;
+    long sum;
+    long tailSum;
+    double tailSumOfSquares;
+
+    public InsertSizeHistogram() {
+        counts = new long[EXACT_LIMIT];
+    }
+
+    static int getTailBucket(int value) {
+        int exponent = 31 - Integer.numberOfLeadingZeros(value);
+        int subBucket = (value >>> (exponent - SUB_BUCKET_BITS)) & (NUM_SUB_BUCKETS - 1);
+        return (exponent - EXACT_LIMIT_BITS) * NUM_SUB_BUCKETS + subBucket;
+    }
+
+    static long getTailBucketValue(int bucket) {
+        int exponent = bucket / NUM_SUB_BUCKETS + EXACT_LIMIT_BITS;
+        long subBucket = bucket % NUM_SUB_BUCKETS;
+        return (1L << exponent) | (subBucket << (exponent - SUB_BUCKET_BITS));
+    }
+
+    public void add(int insertSize) {
+        if (insertSize < EXACT_LIMIT) {
+            counts[insertSize]++;
+        } else {
+            if (tailCounts == null) {
+                tailCounts = new long[(32 - EXACT_LIMIT_BITS) * NUM_SUB_BUCKETS];
+            }
+            tailCounts[getTailBucket(insertSize)]++;
+            tailSum += insertSize;
+            tailSumOfSquares += (double) insertSize * insertSize;
+        }
+        sum += insertSize;
+        numValues++;
+    }
+
+    public void merge(InsertSizeHistogram other) {
+        for (int i = 0; i < EXACT_LIMIT; ++i) {
+            counts[i] += other.counts[i];
+        }
+        if (other.tailCounts != null) {
+            if (tailCounts == null) {
+                tailCounts = new long[other.tailCounts.length];
+            }
+            for (int i = 0; i < tailCounts.length; ++i) {
+                tailCounts[i] += other.tailCounts[i];
+            }
+        }
+        numValues += other.numValues;
+        sum += other.sum;
+        tailSum += other.tailSum;
+        tailSumOfSquares += other.tailSumOfSquares;
+    }
+
+    public long getNumberOfValues() {
+        return numValues;
+    }
+
+    public double getMean() {
+        return (double) sum / numValues;
+    }
+
+    /**
+     * @return the sample standard deviation
+     */
+    public double getStd() {
+        double mean = getMean();
+        double sumOfSquaredDiffs = 0;
+        for (int i = 0; i < EXACT_LIMIT; ++i) {
+            if (counts[i] > 0) {
+                sumOfSquaredDiffs += counts[i] * (i - mean) * (i - mean);
+            }
+        }
+        if (tailCounts != null) {
+            long numTailValues = numValues;
+            for (long c : counts) {
+                numTailValues -= c;
+            }
+            sumOfSquaredDiffs += tailSumOfSquares - 2 * mean * tailSum + numTailValues * mean * mean;
+        }
+        return Math.sqrt(sumOfSquaredDiffs / (numValues - 1));
+    }
+
+    /**
+     * @return the value at the given index in the sorted sequence of the values,
+     * a large value is rounded down to its bucket
+     */
+    public long getValueAt(long index) {
+        long count = 0;
+        for (int i = 0; i < EXACT_LIMIT; ++i) {
+            count += counts[i];
+            if (count > index) {
+                return i;
+            }
+        }
+        if (tailCounts != null) {
+            for (int i = 0; i < tailCounts.length; ++i) {
+                count += tailCounts[i];
+                if (count > index) {
+                    return getTailBucketValue(i);
+                }
+            }
+        }
+        throw new IndexOutOfBoundsException("Index: " + index + ", number of values: " + numValues);
+    }
+
+    /**
+     * Adds the counts of the values up to the maximum value to the histogram map
+     */
+    public void fillHistogram(long maxValue, HashMap<Long,Long> map) {
+        for (int i = 0; i < EXACT_LIMIT && i <= maxValue; ++i) {
+            addCount(map, i, counts[i]);
+        }
+        if (tailCounts != null) {
+            for (int i = 0; i < tailCounts.length; ++i) {
+                long value = getTailBucketValue(i);
+                if (value > maxValue) {
+                    break;
+                }
+                addCount(map, value, tailCounts[i]);
+            }
+        }
+    }
+
+    private static void addCount(HashMap<Long,Long> map, long value, long count) {
+        if (count > 0) {
+            Long c = map.get(value);
+            map.put(value, c == null ? count : c + count);
+        }
+    }
+
+}
@@ -0,0 +1,360 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.common;
+
+import net.sf.samtools.*;
+import net.sf.samtools.util.BinaryCodec;
+import net.sf.samtools.util.StringLineReader;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+
+/**
+ * Iterates over the records of a BAM file using a separate decoding stage.
+ *
+ * BGZF blocks are inflated on a pool of threads. A reader thread splits the uncompressed data
+ * into records, and their fields are decoded in batches on the same pool. The consumer takes
+ * the batches in the order they were read, so the order of the records is the same as in the file. The iteration can be started from a BGZF virtual file offset
+ * returned by getFilePointer(), e.g. to continue an interrupted analysis.
+ */
+public class ParallelBamRecordIterator implements BamRecordPositionIterator {
+
+    private static final int MAX_BATCHES_IN_QUEUE = 4;
+    private static final int BLOCKS_IN_FLIGHT_PER_THREAD = 4;
+
+    private static class Batch {
+        final List<SAMRecord> records;
+        // virtual file offsets of the records
+        final long[] filePointers;
+
+        Batch(int size) {
+            records = new ArrayList<SAMRecord>(size);
+            filePointers = new long[size];
+        }
+
+        void add(SAMRecord record, long filePointer) {
+            filePointers[records.size()] = filePointer;
+            records.add(record);
+        }
+
+        int size() {
+            return records.size();
+        }
+    }
+
+    private final BlockingQueue<Future<Batch>> batchQueue;
+    private final ExecutorService workerPool;
+    private final Thread readerThread;
+    private final ParallelBlockCompressedInputStream inputStream;
+    private final SAMFileHeader header;
+
+    private Batch currentBatch;
+    private int currentIndex;
+    private long filePointer;
+    private volatile Throwable decodingError;
+    private volatile boolean closed;
+
+    // marks the end of the stream in the queue
+    private static final Batch END_OF_STREAM = new Batch(0);
+    private static final FutureTask<Batch> END_OF_STREAM_RESULT = new FutureTask<Batch>(new Callable<Batch>() {
+        public Batch call() {
+            return END_OF_STREAM;
+        }
+    });
+
+    static {
+        END_OF_STREAM_RESULT.run();
+    }
+
+    /**
+     * @param bamFile Input BAM file
+     * @param header Header of the BAM file, must be the same as read by SAMFileReader
+     * @param numThreads Number of threads inflating BGZF blocks and decoding records
+     * @param batchSize Number of records passed to the consumer at once
+     */
+    public ParallelBamRecordIterator(File bamFile, SAMFileHeader header, int numThreads, int batchSize)
+            throws IOException {
+        this(new FileInputStream(bamFile), header, numThreads, batchSize, 0);
+    }
+
+    /**
+     * Starts the iteration from a record in the middle of the file.
+     *
+     * @param bamFile Input BAM file
+     * @param header Header of the BAM file
+     * @param numThreads Number of threads inflating BGZF blocks and decoding records
+     * @param batchSize Number of records passed to the consumer at once
+     * @param filePointer BGZF virtual file offset of the first record
+     */
+    public ParallelBamRecordIterator(File bamFile, SAMFileHeader header, int numThreads, int batchSize,
+                                     long filePointer) throws IOException {
+        this(openAt(bamFile, filePointer), header, numThreads, batchSize, filePointer);
+    }
+
+    private static InputStream openAt(File bamFile, long filePointer) throws IOException {
+        FileInputStream in = new FileInputStream(bamFile);
+        try {
+            in.getChannel().position(filePointer >>> 16);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return in;
+    }
+
+    /**
+     * The header is read from the stream, so the input does not have to be read twice,
+     * e.g. it can be the standard input.
+     *
+     * @param bamStream BAM data starting with the header
+     * @param numThreads Number of threads inflating BGZF blocks and decoding records
+     * @param batchSize Number of records passed to the consumer at once
+     */
+    public ParallelBamRecordIterator(InputStream bamStream, int numThreads, int batchSize) throws IOException {
+        this(bamStream, null, numThreads, batchSize, 0);
+    }
+
+    /**
+     * @param bamStream BAM data starting at the block of the file pointer
+     * @param filePointer Virtual file offset of the first record, zero if the stream starts with the header
+     */
+    private ParallelBamRecordIterator(InputStream bamStream, SAMFileHeader header, int numThreads, int batchSize,
+                                      long filePointer) throws IOException {
+
+        // all the threads can decode while the consumer has batches ready
+        batchQueue = new ArrayBlockingQueue<Future<Batch>>(numThreads + MAX_BATCHES_IN_QUEUE);
+        workerPool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "bam-decoder");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        inputStream = new ParallelBlockCompressedInputStream(
+                new BufferedInputStream(bamStream), filePointer >>> 16, workerPool,
+                numThreads * BLOCKS_IN_FLIGHT_PER_THREAD);
+
+        SAMFileHeader streamHeader = null;
+        boolean started = false;
+        try {
+            if (filePointer == 0) {
+                streamHeader = readHeader(inputStream);
+            } else {
+                skipFully(filePointer & 0xffff);
+            }
+            started = true;
+        } finally {
+            if (!started) {
+                workerPool.shutdownNow();
+                inputStream.close();
+            }
+        }
+        this.header = header != null ? header : streamHeader;
+        this.filePointer = inputStream.getFilePointer();
+
+        readerThread = new Thread(new Reader(this.header, batchSize), "bam-reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+
+        currentBatch = new Batch(0);
+        currentIndex = 0;
+    }
+
+    private void skipFully(long numBytes) throws IOException {
+        while (numBytes > 0) {
+            long skipped = inputStream.skip(numBytes);
+            if (skipped <= 0) {
+                throw new FileTruncatedException("File pointer is beyond the end of BAM data");
+            }
+            numBytes -= skipped;
+        }
+    }
+
+    /**
+     * Reads the header from the beginning of uncompressed BAM data, the data is left at the first record.
+     */
+    static SAMFileHeader readHeader(InputStream inputStream) throws IOException {
+        BinaryCodec binaryCodec = new BinaryCodec(inputStream);
+        byte[] magic = new byte[4];
+        binaryCodec.readBytes(magic);
+        if (magic[0] != 'B' || magic[1] != 'A' || magic[2] != 'M' || magic[3] != 1) {
+            throw new SAMFormatException("Invalid BAM file header");
+        }
+        int headerTextLength = binaryCodec.readInt();
+        String textHeader = binaryCodec.readString(headerTextLength);
+        SAMTextHeaderCodec headerCodec = new SAMTextHeaderCodec();
+        headerCodec.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        SAMFileHeader streamHeader = headerCodec.decode(new StringLineReader(textHeader), null);
+
+        int numSequences = binaryCodec.readInt();
+        List<SAMSequenceRecord> sequences = new ArrayList<SAMSequenceRecord>(numSequences);
+        for (int i = 0; i < numSequences; ++i) {
+            String name = binaryCodec.readLengthAndString(true);
+            sequences.add(new SAMSequenceRecord(name, binaryCodec.readInt()));
+        }
+        // the records refer to the binary list of sequences, the text header may omit it
+        if (streamHeader.getSequenceDictionary().isEmpty()) {
+            streamHeader.setSequenceDictionary(new SAMSequenceDictionary(sequences));
+        }
+        return streamHeader;
+    }
+
+    /**
+     * @return header read from the BAM data or given to the constructor
+     */
+    public SAMFileHeader getFileHeader() {
+        return header;
+    }
+
+    public long getFilePointer() {
+        return filePointer;
+    }
+
+    private class Reader implements Runnable {
+        SAMFileHeader header;
+        int batchSize;
+
+        Reader(SAMFileHeader header, int batchSize) {
+            this.header = header;
+            this.batchSize = batchSize;
+        }
+
+        public void run() {
+            try {
+                BAMRecordCodec codec = new BAMRecordCodec(header);
+                codec.setInputStream(inputStream);
+
+                Batch batch = new Batch(batchSize);
+                SAMRecord record;
+                long recordFilePointer = inputStream.getFilePointer();
+                while ( !closed && (record = codec.decode()) != null) {
+                    record.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+                    batch.add(record, recordFilePointer);
+                    if (batch.size() >= batchSize) {
+                        batchQueue.put(decode(batch));
+                        batch = new Batch(batchSize);
+                    }
+                    recordFilePointer = inputStream.getFilePointer();
+                }
+                if (batch.size() > 0) {
+                    batchQueue.put(decode(batch));
+                }
+            } catch (InterruptedException e) {
+                // the iterator is closed
+            } catch (Throwable e) {
+                // errors are passed too, otherwise the consumer would wait forever
+                decodingError = e;
+            } finally {
+                try {
+                    if (!closed) {
+                        batchQueue.put(END_OF_STREAM_RESULT);
+                    }
+                } catch (InterruptedException e) {
+                    // consumer is gone
+                }
+            }
+        }
+    }
+
+    /**
+     * The records of BAMRecordCodec hold the raw data of their fields, the fields of the batch
+     * are decoded on the worker pool.
+     */
+    private Future<Batch> decode(final Batch batch) {
+        return workerPool.submit(new Callable<Batch>() {
+            public Batch call() {
+                for (SAMRecord record : batch.records) {
+                    decodeFields(record);
+                }
+                return batch;
+            }
+        });
+    }
+
+    private static void decodeFields(SAMRecord record) {
+        // BAM records are decoded lazily, so make the decoding happen here
+        record.getReadName();
+        record.getCigar();
+        record.getReadBases();
+        record.getBaseQualities();
+        // any tag decodes all the attributes without building the list of them, MD is used later
+        record.getAttribute("MD");
+    }
+
+    public boolean hasNext() {
+        if (currentIndex < currentBatch.size()) {
+            return true;
+        }
+        if (currentBatch == END_OF_STREAM) {
+            return decodingError != null;
+        }
+        try {
+            currentBatch = batchQueue.take().get();
+        } catch (InterruptedException e) {
+            throw new SAMException("Interrupted while waiting for decoded records");
+        } catch (ExecutionException e) {
+            // the iteration is finished with the error
+            decodingError = e.getCause();
+            currentBatch = END_OF_STREAM;
+        }
+        currentIndex = 0;
+        return hasNext();
+    }
+
+    public SAMRecord next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (currentBatch == END_OF_STREAM) {
+            // report the problem once, the iteration is finished after that
+            Throwable e = decodingError;
+            decodingError = null;
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+            throw new SAMException("Failed to decode BAM records", e);
+        }
+        filePointer = currentBatch.filePointers[currentIndex];
+        return currentBatch.records.get(currentIndex++);
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("Not supported: remove");
+    }
+
+    public void close() {
+        closed = true;
+        readerThread.interrupt();
+        workerPool.shutdownNow();
+        try {
+            inputStream.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+}
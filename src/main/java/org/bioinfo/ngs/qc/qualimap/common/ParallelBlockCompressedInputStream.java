@@ -0,0 +1,273 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.common;
+
+import net.sf.samtools.FileTruncatedException;
+import net.sf.samtools.SAMFormatException;
+import net.sf.samtools.util.BlockCompressedStreamConstants;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a BGZF compressed stream, inflating the blocks in parallel.
+ *
+ * Compressed blocks are read ahead from the source and inflated by the given thread pool,
+ * while the uncompressed data is returned strictly in the order of the blocks in the file.
+ * The position in the data is available as a BGZF virtual file offset.
+ */
+public class ParallelBlockCompressedInputStream extends InputStream {
+
+    private final InputStream source;
+    private final ExecutorService inflaterPool;
+    private final int maxBlocksInFlight;
+    private final LinkedList<Future<byte[]>> blocksInFlight;
+    // addresses of the blocks in flight in the compressed data
+    private final LinkedList<Long> blockAddresses;
+    private final byte[] blockHeader;
+
+    private byte[] currentBlock;
+    private long currentBlockAddress;
+    private int currentOffset;
+    private long sourceAddress;
+    private boolean sourceFinished;
+
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private static class InflateBlockTask implements Callable<byte[]> {
+        byte[] compressedBlock;
+
+        InflateBlockTask(byte[] compressedBlock) {
+            this.compressedBlock = compressedBlock;
+        }
+
+        public byte[] call() throws DataFormatException {
+            int blockSize = compressedBlock.length;
+            int footerStart = blockSize - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+            int expectedCrc = readInt(compressedBlock, footerStart);
+            int uncompressedSize = readInt(compressedBlock, footerStart + 4);
+
+            byte[] uncompressedBlock = new byte[uncompressedSize];
+            Inflater inflater = inflaters.get();
+            inflater.reset();
+            inflater.setInput(compressedBlock, BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH,
+                    footerStart - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH);
+            int inflatedSize = inflater.inflate(uncompressedBlock, 0, uncompressedSize);
+            if (inflatedSize != uncompressedSize) {
+                throw new SAMFormatException("Did not inflate expected amount of BGZF block data");
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(uncompressedBlock, 0, uncompressedSize);
+            if ((int) crc.getValue() != expectedCrc) {
+                throw new SAMFormatException("CRC mismatch in BGZF block");
+            }
+
+            return uncompressedBlock;
+        }
+    }
+
+    /**
+     * @param source Stream of BGZF compressed data
+     * @param inflaterPool Threads used to inflate the blocks
+     * @param maxBlocksInFlight Maximum number of blocks read ahead of the current one
+     */
+    public ParallelBlockCompressedInputStream(InputStream source, ExecutorService inflaterPool,
+                                              int maxBlocksInFlight) {
+        this(source, 0, inflaterPool, maxBlocksInFlight);
+    }
+
+    /**
+     * @param source Stream of BGZF compressed data
+     * @param sourceAddress Address of the first block of the source in the compressed file
+     * @param inflaterPool Threads used to inflate the blocks
+     * @param maxBlocksInFlight Maximum number of blocks read ahead of the current one
+     */
+    public ParallelBlockCompressedInputStream(InputStream source, long sourceAddress,
+                                              ExecutorService inflaterPool, int maxBlocksInFlight) {
+        this.source = source;
+        this.inflaterPool = inflaterPool;
+        this.maxBlocksInFlight = maxBlocksInFlight;
+        this.blocksInFlight = new LinkedList<Future<byte[]>>();
+        this.blockAddresses = new LinkedList<Long>();
+        this.blockHeader = new byte[BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH];
+        this.currentBlock = new byte[0];
+        this.currentBlockAddress = sourceAddress;
+        this.currentOffset = 0;
+        this.sourceAddress = sourceAddress;
+        this.sourceFinished = false;
+    }
+
+    private static int readInt(byte[] buf, int offset) {
+        return (buf[offset] & 0xff) | ((buf[offset + 1] & 0xff) << 8) |
+                ((buf[offset + 2] & 0xff) << 16) | ((buf[offset + 3] & 0xff) << 24);
+    }
+
+    private static int readFully(InputStream in, byte[] buf, int offset, int length) throws IOException {
+        int totalRead = 0;
+        while (totalRead < length) {
+            int count = in.read(buf, offset + totalRead, length - totalRead);
+            if (count < 0) {
+                break;
+            }
+            totalRead += count;
+        }
+        return totalRead;
+    }
+
+    /**
+     * @return next compressed block including header and footer or null if the source is finished
+     */
+    private byte[] readCompressedBlock() throws IOException {
+        int headerLength = readFully(source, blockHeader, 0, blockHeader.length);
+        if (headerLength == 0) {
+            return null;
+        }
+        if (headerLength != blockHeader.length) {
+            throw new FileTruncatedException("Premature end of BGZF file");
+        }
+        if (blockHeader[0] != BlockCompressedStreamConstants.GZIP_ID1 ||
+                (blockHeader[1] & 0xff) != BlockCompressedStreamConstants.GZIP_ID2 ||
+                blockHeader[12] != BlockCompressedStreamConstants.BGZF_ID1 ||
+                blockHeader[13] != BlockCompressedStreamConstants.BGZF_ID2) {
+            throw new SAMFormatException("Invalid BGZF block header");
+        }
+
+        int blockLength = ((blockHeader[BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET] & 0xff) |
+                ((blockHeader[BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET + 1] & 0xff) << 8)) + 1;
+
+        byte[] block = new byte[blockLength];
+        System.arraycopy(blockHeader, 0, block, 0, blockHeader.length);
+        int remaining = blockLength - blockHeader.length;
+        if (readFully(source, block, blockHeader.length, remaining) != remaining) {
+            throw new FileTruncatedException("Premature end of BGZF file");
+        }
+
+        return block;
+    }
+
+    private void fillBlocksInFlight() throws IOException {
+        while (!sourceFinished && blocksInFlight.size() < maxBlocksInFlight) {
+            byte[] compressedBlock = readCompressedBlock();
+            if (compressedBlock == null) {
+                sourceFinished = true;
+            } else {
+                blocksInFlight.add(inflaterPool.submit(new InflateBlockTask(compressedBlock)));
+                blockAddresses.add(sourceAddress);
+                sourceAddress += compressedBlock.length;
+            }
+        }
+    }
+
+    /**
+     * @return true if there is uncompressed data available, false at the end of stream
+     */
+    private boolean nextBlock() throws IOException {
+        while (currentOffset >= currentBlock.length) {
+            fillBlocksInFlight();
+            if (blocksInFlight.isEmpty()) {
+                return false;
+            }
+            try {
+                currentBlockAddress = blockAddresses.removeFirst();
+                currentBlock = blocksInFlight.removeFirst().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while inflating BGZF block");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new SAMFormatException("Failed to inflate BGZF block: " + cause.getMessage());
+            }
+            currentOffset = 0;
+        }
+        return true;
+    }
+
+    /**
+     * @return BGZF virtual file offset of the next byte to be read
+     */
+    public long getFilePointer() {
+        if (currentOffset < currentBlock.length) {
+            return (currentBlockAddress << 16) | currentOffset;
+        }
+        // the current block is finished, the next byte is at the start of the next block
+        long nextBlockAddress = blockAddresses.isEmpty() ? sourceAddress : blockAddresses.getFirst();
+        return nextBlockAddress << 16;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextBlock()) {
+            return -1;
+        }
+        return currentBlock[currentOffset++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buf, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!nextBlock()) {
+            return -1;
+        }
+        int count = Math.min(length, currentBlock.length - currentOffset);
+        System.arraycopy(currentBlock, currentOffset, buf, offset, count);
+        currentOffset += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return currentBlock.length - currentOffset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Future<byte[]> block : blocksInFlight) {
+            block.cancel(false);
+        }
+        blocksInFlight.clear();
+        blockAddresses.clear();
+        source.close();
+    }
+
+}
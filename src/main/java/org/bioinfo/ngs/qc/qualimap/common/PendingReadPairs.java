@@ -0,0 +1,258 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.common;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Reads waiting for their mates in a coordinate sorted stream.
+ *
+ * Reads are identified by a 64-bit hash of their name. Each entry keeps the end of the
+ * read and the start of its mate; once the stream has passed the start of the mate
+ * the entry is evicted, so the memory depends on the fragment length and the local depth.
+ */
+public class PendingReadPairs implements Serializable {
+
+    private static final long serialVersionUID = -5622369156537671393L;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final long EMPTY_KEY = 0;
+
+    // open addressing table: name hash -> entry slot
+    private long[] tableKeys;
+    private int[] tableSlots;
+    private int tableMask;
+
+    // entries
+    private long[] entryKeys;
+    private int[] readEnds;
+    private int[] mateStarts;
+    private int[] freeSlots;
+    private int numFreeSlots;
+    private int nextSlot;
+    private int numEntries;
+
+    // min-heap of (mate start << 32 | slot)
+    private long[] heap;
+    private int heapSize;
+
+    public PendingReadPairs() {
+        tableKeys = new long[INITIAL_CAPACITY * 2];
+        tableSlots = new int[INITIAL_CAPACITY * 2];
+        tableMask = tableKeys.length - 1;
+        entryKeys = new long[INITIAL_CAPACITY];
+        readEnds = new int[INITIAL_CAPACITY];
+        mateStarts = new int[INITIAL_CAPACITY];
+        freeSlots = new int[INITIAL_CAPACITY];
+        heap = new long[INITIAL_CAPACITY];
+    }
+
+    /**
+     * @return non-zero 64-bit hash of the read name
+     */
+    public static long hashName(String name) {
+        // FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); ++i) {
+            hash ^= name.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == EMPTY_KEY ? 1 : hash;
+    }
+
+    public int size() {
+        return numEntries;
+    }
+
+    /**
+     * Removes the read with the given name hash.
+     * @return end of the removed read or -1 if the read is not waiting
+     */
+    public int remove(long key) {
+        int pos = findPosition(key);
+        if (tableKeys[pos] == EMPTY_KEY) {
+            return -1;
+        }
+        int slot = tableSlots[pos];
+        int readEnd = readEnds[slot];
+        deleteAt(pos);
+        releaseSlot(slot);
+        return readEnd;
+    }
+
+    /**
+     * Adds a read waiting for its mate. If a read with the same name hash is already waiting,
+     * the first one is kept.
+     */
+    public void add(long key, int readEnd, int mateStart) {
+        int pos = findPosition(key);
+        if (tableKeys[pos] != EMPTY_KEY) {
+            // same name seen again before its mate, keep the first read
+            return;
+        }
+        int slot = allocateSlot();
+        entryKeys[slot] = key;
+        readEnds[slot] = readEnd;
+        mateStarts[slot] = mateStart;
+        tableKeys[pos] = key;
+        tableSlots[pos] = slot;
+        numEntries++;
+        pushHeap(((long) mateStart << 32) | slot);
+        if (numEntries * 2 > tableKeys.length) {
+            growTable();
+        }
+    }
+
+    /**
+     * Evicts the reads whose mates start before the given position.
+     */
+    public void evictBefore(int position) {
+        while (heapSize > 0 && (int) (heap[0] >>> 32) < position) {
+            long top = popHeap();
+            int slot = (int) top;
+            int mateStart = (int) (top >>> 32);
+            // the heap entry may be stale if the slot was released or reused meanwhile
+            if (entryKeys[slot] != EMPTY_KEY && mateStarts[slot] == mateStart) {
+                int pos = findPosition(entryKeys[slot]);
+                deleteAt(pos);
+                releaseSlot(slot);
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(tableKeys, EMPTY_KEY);
+        Arrays.fill(entryKeys, EMPTY_KEY);
+        numEntries = 0;
+        numFreeSlots = 0;
+        nextSlot = 0;
+        heapSize = 0;
+    }
+
+    private int allocateSlot() {
+        if (numFreeSlots > 0) {
+            return freeSlots[--numFreeSlots];
+        }
+        if (nextSlot == entryKeys.length) {
+            int capacity = entryKeys.length * 2;
+            entryKeys = Arrays.copyOf(entryKeys, capacity);
+            readEnds = Arrays.copyOf(readEnds, capacity);
+            mateStarts = Arrays.copyOf(mateStarts, capacity);
+            freeSlots = Arrays.copyOf(freeSlots, capacity);
+        }
+        return nextSlot++;
+    }
+
+    private void releaseSlot(int slot) {
+        entryKeys[slot] = EMPTY_KEY;
+        freeSlots[numFreeSlots++] = slot;
+        numEntries--;
+    }
+
+    private static int mix(long key) {
+        long h = key ^ (key >>> 29);
+        h *= 0xbf58476d1ce4e5b9L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int findPosition(long key) {
+        int pos = mix(key) & tableMask;
+        while (tableKeys[pos] != EMPTY_KEY && tableKeys[pos] != key) {
+            pos = (pos + 1) & tableMask;
+        }
+        return pos;
+    }
+
+    // backward shift deletion keeps the probe sequences intact without tombstones
+    private void deleteAt(int pos) {
+        int next = pos;
+        while (true) {
+            next = (next + 1) & tableMask;
+            long key = tableKeys[next];
+            if (key == EMPTY_KEY) {
+                break;
+            }
+            int ideal = mix(key) & tableMask;
+            boolean canMove = pos <= next ? (ideal <= pos || ideal > next) : (ideal <= pos && ideal > next);
+            if (canMove) {
+                tableKeys[pos] = key;
+                tableSlots[pos] = tableSlots[next];
+                pos = next;
+            }
+        }
+        tableKeys[pos] = EMPTY_KEY;
+    }
+
+    private void growTable() {
+        long[] oldKeys = tableKeys;
+        int[] oldSlots = tableSlots;
+        tableKeys = new long[oldKeys.length * 2];
+        tableSlots = new int[oldKeys.length * 2];
+        tableMask = tableKeys.length - 1;
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldKeys[i] != EMPTY_KEY) {
+                int pos = findPosition(oldKeys[i]);
+                tableKeys[pos] = oldKeys[i];
+                tableSlots[pos] = oldSlots[i];
+            }
+        }
+    }
+
+    private void pushHeap(long value) {
+        if (heapSize == heap.length) {
+            heap = Arrays.copyOf(heap, heap.length * 2);
+        }
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= value) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = value;
+    }
+
+    private long popHeap() {
+        long top = heap[0];
+        long last = heap[--heapSize];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (heap[child] >= last) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = last;
+        return top;
+    }
+
+}
@@ -0,0 +1,152 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.common;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Histogram of non-negative values stored in primitive arrays.
+ *
+ * Values below DENSE_LIMIT are counted in an array, which grows up to the maximum value seen,
+ * larger values are counted in an open addressing hash table. No objects are created per value.
+ */
+public class PrimitiveHistogram implements Serializable {
+
+    private static final long serialVersionUID = 4139664753623852890L;
+
+    public static final int DENSE_LIMIT = 1 << 18;
+    static final int INITIAL_SIZE = 256;
+    static final long EMPTY_KEY = -1;
+
+    long[] counts;
+    // sparse part for the large values
+    long[] tailKeys;
+    long[] tailCounts;
+    int tailSize;
+
+    public PrimitiveHistogram() {
+        counts = new long[INITIAL_SIZE];
+    }
+
+    public void increment(long value) {
+        add(value, 1);
+    }
+
+    public void add(long value, long count) {
+        if (value < counts.length) {
+            counts[(int) value] += count;
+        } else if (value < DENSE_LIMIT) {
+            int size = counts.length;
+            while (size <= value) {
+                size *= 2;
+            }
+            long[] newCounts = new long[Math.min(size, DENSE_LIMIT)];
+            System.arraycopy(counts, 0, newCounts, 0, counts.length);
+            counts = newCounts;
+            counts[(int) value] += count;
+        } else if (value >= 0) {
+            addToTail(value, count);
+        } else {
+            throw new IllegalArgumentException("Negative value " + value);
+        }
+    }
+
+    private static int hash(long value, int mask) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void addToTail(long value, long count) {
+        if (tailKeys == null) {
+            tailKeys = new long[64];
+            tailCounts = new long[64];
+            Arrays.fill(tailKeys, EMPTY_KEY);
+        } else if (2 * (tailSize + 1) > tailKeys.length) {
+            resizeTail();
+        }
+
+        int mask = tailKeys.length - 1;
+        int i = hash(value, mask);
+        while (tailKeys[i] != EMPTY_KEY && tailKeys[i] != value) {
+            i = (i + 1) & mask;
+        }
+        if (tailKeys[i] == EMPTY_KEY) {
+            tailKeys[i] = value;
+            tailSize++;
+        }
+        tailCounts[i] += count;
+    }
+
+    private void resizeTail() {
+        long[] oldKeys = tailKeys;
+        long[] oldCounts = tailCounts;
+        tailKeys = new long[oldKeys.length * 2];
+        tailCounts = new long[oldKeys.length * 2];
+        Arrays.fill(tailKeys, EMPTY_KEY);
+        tailSize = 0;
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldKeys[i] != EMPTY_KEY) {
+                addToTail(oldKeys[i], oldCounts[i]);
+            }
+        }
+    }
+
+    public void merge(PrimitiveHistogram other) {
+        if (other.counts.length > counts.length) {
+            long[] newCounts = new long[other.counts.length];
+            System.arraycopy(counts, 0, newCounts, 0, counts.length);
+            counts = newCounts;
+        }
+        for (int i = 0; i < other.counts.length; ++i) {
+            counts[i] += other.counts[i];
+        }
+        if (other.tailKeys != null) {
+            for (int i = 0; i < other.tailKeys.length; ++i) {
+                if (other.tailKeys[i] != EMPTY_KEY) {
+                    addToTail(other.tailKeys[i], other.tailCounts[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return map from the values to their counts, only the values with non-zero counts are included
+     */
+    public HashMap<Long,Long> toMap() {
+        HashMap<Long,Long> map = new HashMap<Long, Long>();
+        for (int i = 0; i < counts.length; ++i) {
+            if (counts[i] > 0) {
+                map.put((long) i, counts[i]);
+            }
+        }
+        if (tailKeys != null) {
+            for (int i = 0; i < tailKeys.length; ++i) {
+                if (tailKeys[i] != EMPTY_KEY && tailCounts[i] > 0) {
+                    map.put(tailKeys[i], tailCounts[i]);
+                }
+            }
+        }
+        return map;
+    }
+
+}
@@ -20,13 +20,17 @@
  */
 package org.bioinfo.ngs.qc.qualimap.common;
 
+import java.io.Serializable;
+
 /**
  * Created by kokonech
  * Date: 2/9/12
  * Time: 11:14 AM
  */
 
-public class ReadStartsHistogram {
+public class ReadStartsHistogram implements Serializable {
+
+    private static final long serialVersionUID = 348565267320337417L;
 
     public static final int MAX_READ_STARTS_PER_POSITION = 50;
     long currentReadStartPosition;
@@ -53,6 +57,35 @@ public class ReadStartsHistogram {
         return readStartCounter > 1;
     }
 
+    /**
+     * Add the read starts collected by another histogram.
+     * The read starts of the other histogram must be located after the read starts of this one,
+     * i.e. the histograms are collected over consecutive parts of the genome. In this case the result
+     * is exactly the same as if all the read starts were added to this histogram, and the merge is associative.
+     * @param other histogram of the next part of the genome
+     */
+    public void merge(ReadStartsHistogram other) {
+        if (other.currentReadStartPosition == -1) {
+            return;
+        }
+
+        for (int i = 0; i < readStartsHistogram.length; ++i) {
+            readStartsHistogram[i] += other.readStartsHistogram[i];
+        }
+
+        if (currentReadStartPosition != -1) {
+            // the first update of the other histogram did not close any position,
+            // instead the last position of this histogram is closed now
+            readStartsHistogram[1]--;
+            int histPos = readStartCounter < MAX_READ_STARTS_PER_POSITION ?  readStartCounter :
+                    MAX_READ_STARTS_PER_POSITION;
+            readStartsHistogram[histPos]++;
+        }
+
+        readStartCounter = other.readStartCounter;
+        currentReadStartPosition = other.currentReadStartPosition;
+    }
+
     public long[] getHistorgram() {
         return readStartsHistogram;
     }
@@ -0,0 +1,57 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.common;
+
+import java.util.Arrays;
+
+/**
+ * How the alignment records are validated before the analysis
+ */
+public enum ReadValidationMode {
+
+    FULL, LIGHTWEIGHT, SAMPLED;
+
+    public static final String MODE_FULL = "full";
+    public static final String MODE_LIGHTWEIGHT = "light";
+    public static final String MODE_SAMPLED = "sampled";
+
+    public String toString() {
+        if (this == LIGHTWEIGHT) {
+            return MODE_LIGHTWEIGHT;
+        } else if (this == SAMPLED) {
+            return MODE_SAMPLED;
+        } else {
+            return MODE_FULL;
+        }
+    }
+
+    public static ReadValidationMode getModeByName(String modeName) {
+        for (ReadValidationMode mode : values()) {
+            if (mode.toString().equals(modeName)) {
+                return mode;
+            }
+        }
+
+        throw new RuntimeException("Unknown validation mode: " + modeName + "\n" +
+                "Supported modes: " + Arrays.toString(values()) );
+    }
+
+}
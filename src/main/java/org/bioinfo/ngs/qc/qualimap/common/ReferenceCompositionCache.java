@@ -0,0 +1,187 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.common;
+
+import org.bioinfo.ngs.qc.qualimap.beans.BamGenomeWindow;
+
+import java.io.*;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Nucleotide content of the reference in each window of the genome.
+ *
+ * The content is stored in a binary file next to the reference, identified by the checksum
+ * of the reference and the layout of the windows, so further analyses of the same genome
+ * load it instead of counting the nucleotides again. The checksum of the layout is a part
+ * of the file name, so analyses with different numbers of windows or regions keep separate files.
+ */
+public class ReferenceCompositionCache {
+
+    public static final String FILE_SUFFIX = ".qmcomp";
+
+    static final int MAGIC = 0x514d5243;
+    static final int VERSION = 1;
+    // A, C, G, T, N
+    static final int NUM_COUNTS = 5;
+
+    private File cacheFile;
+    private long referenceChecksum;
+    private long layoutChecksum;
+    private List<Long> windowPositions;
+    private long referenceSize;
+    private int[] counts;
+
+    /**
+     * @param referenceFileName Reference, the cache file is placed next to it
+     * @param referenceChecksum Checksum of the reference
+     * @param windowPositions Starts of the windows
+     * @param referenceSize Size of the reference
+     */
+    public ReferenceCompositionCache(String referenceFileName, long referenceChecksum,
+                                     List<Long> windowPositions, long referenceSize) {
+        this.referenceChecksum = referenceChecksum;
+        this.windowPositions = windowPositions;
+        this.referenceSize = referenceSize;
+        this.layoutChecksum = computeLayoutChecksum(windowPositions, referenceSize);
+        this.cacheFile = new File(referenceFileName + "." + Long.toHexString(layoutChecksum) + FILE_SUFFIX);
+    }
+
+    static long computeLayoutChecksum(List<Long> windowPositions, long referenceSize) {
+        CRC32 crc = new CRC32();
+        byte[] buf = new byte[8];
+        for (long pos : windowPositions) {
+            updateChecksum(crc, buf, pos);
+        }
+        updateChecksum(crc, buf, referenceSize);
+        return crc.getValue();
+    }
+
+    private static void updateChecksum(CRC32 crc, byte[] buf, long value) {
+        for (int i = 0; i < 8; ++i) {
+            buf[i] = (byte) (value >>> (8 * i));
+        }
+        crc.update(buf);
+    }
+
+    public File getCacheFile() {
+        return cacheFile;
+    }
+
+    public int getNumberOfWindows() {
+        return windowPositions.size();
+    }
+
+    long getWindowEnd(int index) {
+        return index + 1 < windowPositions.size() ? windowPositions.get(index + 1) - 1 : referenceSize;
+    }
+
+    /**
+     * Loads the content from the cache file.
+     * @return false if the file does not exist, or was computed for another reference or window layout
+     */
+    public boolean load() {
+        if (!cacheFile.exists()) {
+            return false;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION ||
+                        in.readLong() != referenceChecksum || in.readLong() != layoutChecksum ||
+                        in.readInt() != getNumberOfWindows()) {
+                    return false;
+                }
+                int[] data = new int[getNumberOfWindows() * NUM_COUNTS];
+                for (int i = 0; i < data.length; ++i) {
+                    data[i] = in.readInt();
+                }
+                counts = data;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // a broken cache is computed again
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Counts the nucleotides of each window in the reference
+     */
+    public void compute(IndexedFastaReference reference) {
+        int numWindows = getNumberOfWindows();
+        counts = new int[numWindows * NUM_COUNTS];
+        for (int i = 0; i < numWindows; ++i) {
+            long start = windowPositions.get(i), end = getWindowEnd(i);
+            BamGenomeWindow window = new BamGenomeWindow("", start, end, null);
+            window.processReference(reference.getSlice(start, end));
+            long[] windowCounts = window.getReferenceNucleotideCounts();
+            for (int j = 0; j < NUM_COUNTS; ++j) {
+                counts[i * NUM_COUNTS + j] = (int) windowCounts[j];
+            }
+        }
+    }
+
+    /**
+     * Saves the content to the cache file. The file is written under a temporary name first,
+     * so a concurrent analysis never reads an incomplete cache.
+     */
+    public void save() throws IOException {
+        File tmpFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getAbsoluteFile().getParentFile());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(referenceChecksum);
+            out.writeLong(layoutChecksum);
+            out.writeInt(getNumberOfWindows());
+            for (int count : counts) {
+                out.writeInt(count);
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!tmpFile.renameTo(cacheFile)) {
+            cacheFile.delete();
+            if (!tmpFile.renameTo(cacheFile)) {
+                tmpFile.delete();
+                throw new IOException("Failed to write " + cacheFile.getPath());
+            }
+        }
+    }
+
+    /**
+     * @return numbers of A, C, G, T and N nucleotides in the reference of the window
+     */
+    public long[] getNucleotideCounts(int windowIndex) {
+        long[] windowCounts = new long[NUM_COUNTS];
+        for (int j = 0; j < NUM_COUNTS; ++j) {
+            windowCounts[j] = counts[windowIndex * NUM_COUNTS + j];
+        }
+        return windowCounts;
+    }
+
+}
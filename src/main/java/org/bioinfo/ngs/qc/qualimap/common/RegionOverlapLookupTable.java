@@ -22,9 +22,6 @@ package org.bioinfo.ngs.qc.qualimap.common;
 
 import java.util.*;
 
-import net.sf.picard.util.Interval;
-import net.sf.picard.util.OverlapDetector;
-
 /**
  * Created by kokonech
  * Date: 2/6/12
@@ -52,57 +49,222 @@ public class RegionOverlapLookupTable {
 
     }
 
-    static class Feature  {
-        String name;
-        boolean isPositiveStrand;
-        Feature(String name, boolean isPositiveStrand) {
-            this.name = name;
-            this.isPositiveStrand = isPositiveStrand;
+    /**
+     * Regions of a sequence stored in primitive arrays. Once sorted, the regions are ordered by start and
+     * maxEnds[i] holds the maximum end of the regions 0..i, so the regions overlapping an interval are
+     * the ones starting inside of it plus the preceding ones, which are scanned back while maxEnds reach the interval.
+     */
+    static class SequenceRegions {
+        int size;
+        int[] starts = new int[16];
+        int[] ends = new int[16];
+        boolean[] positiveStrands = new boolean[16];
+        int[] maxEnds;
+
+        void add(int start, int end, boolean positiveStrand) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+                positiveStrands = Arrays.copyOf(positiveStrands, size * 2);
+            }
+            starts[size] = start;
+            ends[size] = end;
+            positiveStrands[size] = positiveStrand;
+            size++;
+            maxEnds = null;
+        }
+
+        boolean isSorted() {
+            return maxEnds != null;
+        }
+
+        void sort() {
+            // sort by start, the order of the regions with the same start is kept
+            long[] keys = new long[size];
+            for (int i = 0; i < size; ++i) {
+                keys[i] = ((long) starts[i] << 32) | i;
+            }
+            Arrays.sort(keys);
+
+            int[] sortedStarts = new int[size];
+            int[] sortedEnds = new int[size];
+            boolean[] sortedStrands = new boolean[size];
+            int[] sortedMaxEnds = new int[size];
+            int maxEnd = Integer.MIN_VALUE;
+            for (int i = 0; i < size; ++i) {
+                int index = (int) keys[i];
+                sortedStarts[i] = starts[index];
+                sortedEnds[i] = ends[index];
+                sortedStrands[i] = positiveStrands[index];
+                maxEnd = Math.max(maxEnd, sortedEnds[i]);
+                sortedMaxEnds[i] = maxEnd;
+            }
+
+            starts = sortedStarts;
+            ends = sortedEnds;
+            positiveStrands = sortedStrands;
+            maxEnds = sortedMaxEnds;
+        }
+
+        // index of the first region starting after the position
+        int upperBound(int pos) {
+            int low = 0, high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (starts[mid] <= pos) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        boolean overlaps(int next, int readStart, int readEnd) {
+            if (next < size && starts[next] <= readEnd) {
+                return true;
+            }
+            for (int i = next - 1; i >= 0 && maxEnds[i] >= readStart; --i) {
+                if (ends[i] >= readStart) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void overlaps(int next, int readStart, int readEnd, boolean forwardStrandExpected, OverlapResult result) {
+            int numMatches = 0;
+            int numStrandMatches = 0;
+
+            for (int i = next; i < size && starts[i] <= readEnd; ++i) {
+                numMatches++;
+                if (positiveStrands[i] == forwardStrandExpected) {
+                    ++numStrandMatches;
+                }
+            }
+            for (int i = next - 1; i >= 0 && maxEnds[i] >= readStart; --i) {
+                if (ends[i] >= readStart) {
+                    numMatches++;
+                    if (positiveStrands[i] == forwardStrandExpected) {
+                        ++numStrandMatches;
+                    }
+                }
+            }
+
+            result.overlaps = numMatches > 0;
+            result.strandCorrect = numStrandMatches == numMatches && numStrandMatches > 0;
         }
     }
 
+    /**
+     * Looks up the overlaps of a stream of reads sorted by coordinate.
+     * The position in the regions moves forward with the reads and is found by a binary search
+     * only when the sequence changes or the reads go back, so the lookup does not allocate memory.
+     * A cursor must be used by a single thread.
+     */
+    public class Cursor {
+        String seqName;
+        SequenceRegions regions;
+        int lastReadStart;
+        int next;
+        OverlapResult result = new OverlapResult(false, false);
+
+        private SequenceRegions moveTo(String seqName, int readStart) {
+            if (!seqName.equals(this.seqName)) {
+                this.seqName = seqName;
+                regions = sequenceRegions.get(seqName);
+                if (regions == null) {
+                    return null;
+                }
+                next = regions.upperBound(readStart);
+            } else if (regions == null) {
+                return null;
+            } else if (readStart < lastReadStart) {
+                next = regions.upperBound(readStart);
+            } else {
+                while (next < regions.size && regions.starts[next] <= readStart) {
+                    next++;
+                }
+            }
+            lastReadStart = readStart;
+            return regions;
+        }
+
+        public boolean overlaps(int readStart, int readEnd, String seqName) {
+            SequenceRegions r = moveTo(seqName, readStart);
+            return r != null && r.overlaps(next, readStart, readEnd);
+        }
+
+        /**
+         * The returned result is reused by the next lookup
+         */
+        public OverlapResult overlaps(int readStart, int readEnd, String seqName, boolean forwardStrandExpected) {
+            SequenceRegions r = moveTo(seqName, readStart);
+            if (r == null) {
+                result.overlaps = false;
+                result.strandCorrect = false;
+            } else {
+                r.overlaps(next, readStart, readEnd, forwardStrandExpected, result);
+            }
+            return result;
+        }
+    }
 
-    OverlapDetector<Feature> overlapDetector;
+    Map<String,SequenceRegions> sequenceRegions;
     Set<String> sequenceNames;
     int regionCount;
 
 
     public RegionOverlapLookupTable() {
-        overlapDetector = new OverlapDetector<Feature>(0,0);
+        sequenceRegions = new HashMap<String, SequenceRegions>();
         sequenceNames = new HashSet<String>();
         regionCount = 0;
     }
 
     public void putRegion(int startPos, int endPos, String seqName, boolean positiveStranded) {
-        // unique feature name
-        String featureName = "region" + ++regionCount;
-        overlapDetector.addLhs( new Feature(featureName, positiveStranded), new Interval(seqName, startPos, endPos));
+        SequenceRegions regions = sequenceRegions.get(seqName);
+        if (regions == null) {
+            regions = new SequenceRegions();
+            sequenceRegions.put(seqName, regions);
+        }
+        regions.add(startPos, endPos, positiveStranded);
         sequenceNames.add(seqName);
+        ++regionCount;
     }
 
-    public boolean overlaps(int readStart, int readEnd, String seqName) {
-        Collection<Feature> overlaps = overlapDetector.getOverlaps(new Interval(seqName, readStart, readEnd));
+    private synchronized SequenceRegions getSortedRegions(String seqName) {
+        SequenceRegions regions = sequenceRegions.get(seqName);
+        if (regions != null && !regions.isSorted()) {
+            regions.sort();
+        }
+        return regions;
+    }
 
-        return overlaps.size() > 0;
+    /**
+     * Creates a cursor for the lookup of sorted reads. The regions must not be added after that.
+     */
+    public Cursor createCursor() {
+        for (String seqName : sequenceRegions.keySet()) {
+            getSortedRegions(seqName);
+        }
+        return new Cursor();
     }
 
-    public OverlapResult overlaps(int readStart, int readEnd, String seqName, boolean forwardStrandExpected) {
-        Collection<Feature> overlaps = overlapDetector.getOverlaps(new Interval(seqName, readStart, readEnd));
+    public boolean overlaps(int readStart, int readEnd, String seqName) {
+        SequenceRegions regions = getSortedRegions(seqName);
 
-        Iterator<Feature> it = overlaps.iterator();
+        return regions != null && regions.overlaps(regions.upperBound(readStart), readStart, readEnd);
+    }
 
-        int numStrandMatches = 0;
-        int numMatches = 0;
+    public OverlapResult overlaps(int readStart, int readEnd, String seqName, boolean forwardStrandExpected) {
+        SequenceRegions regions = getSortedRegions(seqName);
 
-        while (it.hasNext()) {
-            numMatches++;
-            boolean itemHasForwardStrand = it.next().isPositiveStrand;
-            if (itemHasForwardStrand == forwardStrandExpected) {
-                ++numStrandMatches;
-            }
+        OverlapResult result = new OverlapResult(false, false);
+        if (regions != null) {
+            regions.overlaps(regions.upperBound(readStart), readStart, readEnd, forwardStrandExpected, result);
         }
 
-        return new OverlapResult(numMatches > 0, numStrandMatches == numMatches && numStrandMatches > 0 );
+        return result;
 
     }
 
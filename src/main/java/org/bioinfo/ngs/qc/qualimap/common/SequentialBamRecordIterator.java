@@ -0,0 +1,113 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.common;
+
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.util.BlockCompressedInputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the records of a BAM file, the records are decoded in the calling thread.
+ *
+ * Unlike the iterator of SAMFileReader, it can be started from a BGZF virtual file offset
+ * returned by getFilePointer() without a BAM index.
+ */
+public class SequentialBamRecordIterator implements BamRecordPositionIterator {
+
+    private final BlockCompressedInputStream inputStream;
+    private final BAMRecordCodec codec;
+
+    private SAMRecord nextRecord;
+    private long nextFilePointer;
+    private long filePointer;
+    private boolean finished;
+
+    /**
+     * @param bamFile Input BAM file
+     * @param header Header of the BAM file, must be the same as read by SAMFileReader
+     * @param filePointer BGZF virtual file offset of the first record, zero to start from the beginning
+     */
+    public SequentialBamRecordIterator(File bamFile, SAMFileHeader header, long filePointer) throws IOException {
+        inputStream = new BlockCompressedInputStream(bamFile);
+        boolean started = false;
+        try {
+            if (filePointer == 0) {
+                ParallelBamRecordIterator.readHeader(inputStream);
+            } else {
+                inputStream.seek(filePointer);
+            }
+            started = true;
+        } finally {
+            if (!started) {
+                inputStream.close();
+            }
+        }
+        codec = new BAMRecordCodec(header);
+        codec.setInputStream(inputStream);
+        this.filePointer = inputStream.getFilePointer();
+    }
+
+    public long getFilePointer() {
+        return filePointer;
+    }
+
+    public boolean hasNext() {
+        if (nextRecord == null && !finished) {
+            nextFilePointer = inputStream.getFilePointer();
+            nextRecord = codec.decode();
+            if (nextRecord == null) {
+                finished = true;
+            } else {
+                nextRecord.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+            }
+        }
+        return nextRecord != null;
+    }
+
+    public SAMRecord next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        SAMRecord record = nextRecord;
+        nextRecord = null;
+        filePointer = nextFilePointer;
+        return record;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("Not supported: remove");
+    }
+
+    public void close() {
+        try {
+            inputStream.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+}
@@ -26,10 +26,15 @@ import org.apache.commons.io.FilenameUtils;
 import org.bioinfo.ngs.qc.qualimap.beans.AnalysisResultManager;
 import org.bioinfo.ngs.qc.qualimap.beans.BamQCRegionReporter;
 import org.bioinfo.ngs.qc.qualimap.common.AnalysisType;
+import org.bioinfo.ngs.qc.qualimap.common.ChunkSampling;
+import org.bioinfo.ngs.qc.qualimap.common.CoverageWriter;
 import org.bioinfo.ngs.qc.qualimap.common.Constants;
 import org.bioinfo.ngs.qc.qualimap.common.LibraryProtocol;
+import org.bioinfo.ngs.qc.qualimap.common.ReadValidationMode;
 import org.bioinfo.ngs.qc.qualimap.common.SkipDuplicatesMode;
+import org.bioinfo.ngs.qc.qualimap.process.BamIndexSummary;
 import org.bioinfo.ngs.qc.qualimap.process.BamStatsAnalysis;
+import org.bioinfo.ngs.qc.qualimap.process.ReadValidator;
 
 
 import java.io.File;
@@ -41,29 +46,50 @@ public class BamQcTool extends NgsSmartTool{
 	private boolean selectedRegionsAvailable;
 	private int numberOfWindows;
 	private int numThreads;
+    private int numDecodingThreads;
     private int bunchSize;
     private int minHomopolymerSize;
     private boolean paintChromosomeLimits, skipDuplicated;
     private boolean collectOverlappingPairedEndReads;
+    private boolean analyzeChromosomesInParallel;
 	private boolean computeOutsideStats;
+    private boolean queryRegionsByIndex;
+    private boolean indexSummary;
     private String genomeToCompare;
     private String coverageReportFile;
+    private CoverageWriter.Format coverageReportFormat;
     private LibraryProtocol protocol;
     private SkipDuplicatesMode skipDuplicatesMode;
+    private ReadValidationMode validationMode;
+    private int validationSamplingRate;
+    private double samplingFraction;
+    private int samplingChunkSize;
+    private String checkpointFile;
+    private int checkpointInterval;
+    private boolean resumeFromCheckpoint;
+    private boolean useAlignmentVectors;
 
     public BamQcTool(){
         super(Constants.TOOL_NAME_BAMQC,false);
         numThreads = Runtime.getRuntime().availableProcessors();
         protocol = LibraryProtocol.NON_STRAND_SPECIFIC;
         skipDuplicatesMode = SkipDuplicatesMode.BOTH;
+        validationMode = ReadValidationMode.FULL;
+        validationSamplingRate = ReadValidator.DEFAULT_SAMPLING_RATE;
+        samplingFraction = 0;
+        samplingChunkSize = ChunkSampling.DEFAULT_CHUNK_SIZE;
+        checkpointFile = "";
+        checkpointInterval = Constants.DEFAULT_CHECKPOINT_INTERVAL;
         genomeToCompare = "";
         coverageReportFile = "";
+        coverageReportFormat = CoverageWriter.Format.PER_BASE;
     }
 
 	@Override
 	protected void initOptions() {
 
-        Option opt = new Option(Constants.BAMQC_OPTION_BAM_FILE, true, "Input mapping file in BAM format");
+        Option opt = new Option(Constants.BAMQC_OPTION_BAM_FILE, true, "Input mapping file in BAM format, " +
+                "\"" + Constants.STANDARD_INPUT_FILE_NAME + "\" to read it from the standard input");
         opt.setRequired(true);
         options.addOption( opt );
 
@@ -73,6 +99,9 @@ public class BamQcTool extends NgsSmartTool{
                 "Number of windows (default is "+ Constants.DEFAULT_NUMBER_OF_WINDOWS + ")");
         options.addOption(Constants.BAMQC_OPTION_NUM_THREADS, true,
                     "Number of threads (default is " +  Runtime.getRuntime().availableProcessors() + ")");
+        options.addOption(Constants.BAMQC_OPTION_NUM_DECODING_THREADS, "decoding-threads", true,
+                    "Number of threads used to decompress the BAM file, 0 to decompress in the " +
+                            "main thread (default is " + Constants.DEFAULT_NUMBER_OF_DECODING_THREADS + ")");
         options.addOption(Constants.BAMQC_OPTION_CHUNK_SIZE, true,
                 "Number of reads analyzed in a chunk (default is " + Constants.DEFAULT_CHUNK_SIZE + ")" );
         options.addOption(Constants.BAMQC_OPTION_MIN_HOMOPOLYMER_SIZE, true,
@@ -81,6 +110,9 @@ public class BamQcTool extends NgsSmartTool{
         options.addOption(Constants.BAMQC_OPTION_COVERAGE_REPORT_FILE, "output-genome-coverage",  true,
                 "File to save per base non-zero coverage. Warning: large files " +
                 "are expected for large genomes");
+        options.addOption(Constants.BAMQC_OPTION_COVERAGE_REPORT_FORMAT, "genome-coverage-format", true,
+                "Format of the genome coverage file: text - one line per base (default), " +
+                "bedgraph - runs of equal coverage in bedGraph format");
         options.addOption(Constants.BAMQC_OPTION_PAINT_CHROMOSOMES, "paint-chromosome-limits", false,
                 "Paint chromosome limits inside charts");
         options.addOption(Constants.BAMQC_OPTION_SKIP_DUPLICATED, "skip-duplicated",  false,
@@ -95,11 +127,48 @@ public class BamQcTool extends NgsSmartTool{
 
                                         );
 
+        options.addOption(Constants.BAMQC_OPTION_VALIDATION_MODE, "validation-mode", true,
+                "Validation of alignment records.\n" +
+                ReadValidationMode.MODE_FULL + " : complete SAM validation of each record (default)\n" +
+                ReadValidationMode.MODE_LIGHTWEIGHT + " : only CIGAR, sequence length and coordinate checks\n" +
+                ReadValidationMode.MODE_SAMPLED + " : complete validation of 1 in N records, light checks of the rest");
+        options.addOption(Constants.BAMQC_OPTION_VALIDATION_SAMPLING_RATE, "validation-sampling-rate", true,
+                "N for the sampled validation mode (default is " + ReadValidator.DEFAULT_SAMPLING_RATE + ")");
+        options.addOption(Constants.BAMQC_OPTION_SAMPLING_FRACTION, "sampling-fraction", true,
+                "Approximate analysis: only the reads of a random sample of genomic chunks covering this " +
+                        "fraction of the reference are analyzed, e.g. " + ChunkSampling.DEFAULT_SAMPLING_FRACTION +
+                        ". The results are reported with confidence intervals (requires BAM index)");
+        options.addOption(Constants.BAMQC_OPTION_SAMPLING_CHUNK_SIZE, "sampling-chunk-size", true,
+                "Size of a sampled chunk in the approximate analysis (default is " +
+                        ChunkSampling.DEFAULT_CHUNK_SIZE + ")");
+
+        options.addOption(Constants.BAMQC_OPTION_INDEX_SUMMARY, "index-summary", false,
+                "Only report the numbers of reads per contig and a coarse coverage estimate taken from " +
+                        "the BAM index, the reads are not analyzed (requires BAM index)");
+        options.addOption(Constants.BAMQC_OPTION_CHECKPOINT_FILE, "checkpoint", true,
+                "Save the state of the analysis to this file at regular intervals, so an interrupted analysis " +
+                        "can be continued with --resume. The file is deleted when the analysis is finished " +
+                        "(the chromosomes are analyzed sequentially)");
+        options.addOption(Constants.BAMQC_OPTION_CHECKPOINT_INTERVAL, "checkpoint-interval", true,
+                "Minutes between the checkpoints (default is " + Constants.DEFAULT_CHECKPOINT_INTERVAL + ")");
+        options.addOption(Constants.BAMQC_OPTION_RESUME, "resume", false,
+                "Continue the analysis from the checkpoint file if it exists. The other options " +
+                        "must be the same as in the interrupted analysis");
+        options.addOption(Constants.BAMQC_OPTION_ALIGNMENT_VECTORS, "alignment-vectors", false,
+                "Analyze the reads through per-read alignment vectors instead of walking the CIGAR. " +
+                        "This is the slower reference implementation, the results are the same");
         options.addOption(Constants.BAMQC_OPTION_COLLECT_OVERLAP_PAIRS, "collect-overlap-pairs",  false,
                                 "Activate this option to collect statistics of overlapping paired-end reads " );
+        options.addOption(Constants.BAMQC_OPTION_PARALLEL_CHROMOSOMES, "parallel-chromosomes",  false,
+                                "Activate this option to analyze chromosomes in parallel " +
+                                        "(requires BAM file sorted by coordinate and indexed)" );
         options.addOption(Constants.BAMQC_OPTION_OUTSIDE_STATS, "outside-stats", false,
                 "Report information for the regions outside those defined by feature-file " +
                         " (ignored when -gff option is not set)");
+        options.addOption(Constants.BAMQC_OPTION_REGIONS_BY_INDEX, "regions-by-index", false,
+                "Read only the alignments overlapping the regions defined by feature-file using the BAM index, " +
+                        "the total numbers of reads are taken from the index. Recommended for small target sets " +
+                        "(ignored when -gff option is not set or -os option is set)");
         options.addOption(Constants.BAMQC_OPTION_COMPARE_WITH_GENOME_DISTRIBUTION, "genome-gc-distr",
                 true, "Species to compare with genome GC distribution. " +
                 "Possible values: HUMAN - hg19; MOUSE - mm9(default), mm10");
@@ -112,7 +181,8 @@ public class BamQcTool extends NgsSmartTool{
 		// input
 
         bamFile = commandLine.getOptionValue(Constants.BAMQC_OPTION_BAM_FILE);
-		if(!exists(bamFile)) throw new ParseException("input mapping file not found");
+        boolean standardInput = bamFile.equals(Constants.STANDARD_INPUT_FILE_NAME);
+		if(!standardInput && !exists(bamFile)) throw new ParseException("input mapping file not found");
 
 		// gff
 		if(commandLine.hasOption(Constants.BAMQC_OPTION_GFF_FILE)) {
@@ -124,6 +194,7 @@ public class BamQcTool extends NgsSmartTool{
 			if(commandLine.hasOption(Constants.BAMQC_OPTION_OUTSIDE_STATS)) {
 				computeOutsideStats = true;					
 			}
+            queryRegionsByIndex = commandLine.hasOption(Constants.BAMQC_OPTION_REGIONS_BY_INDEX);
 
              if (commandLine.hasOption(Constants.CMDLINE_OPTION_LIBRARY_PROTOCOL)) {
                 protocol = LibraryProtocol.getProtocolByName(
@@ -140,6 +211,10 @@ public class BamQcTool extends NgsSmartTool{
         numThreads = commandLine.hasOption(Constants.BAMQC_OPTION_NUM_THREADS) ?
                 Integer.parseInt(commandLine.getOptionValue(Constants.BAMQC_OPTION_NUM_THREADS)) : Runtime.getRuntime().availableProcessors();
 
+        numDecodingThreads = commandLine.hasOption(Constants.BAMQC_OPTION_NUM_DECODING_THREADS) ?
+                Integer.parseInt(commandLine.getOptionValue(Constants.BAMQC_OPTION_NUM_DECODING_THREADS)) :
+                Constants.DEFAULT_NUMBER_OF_DECODING_THREADS;
+
         bunchSize = commandLine.hasOption(Constants.BAMQC_OPTION_CHUNK_SIZE) ?
                 Integer.parseInt(commandLine.getOptionValue(Constants.BAMQC_OPTION_CHUNK_SIZE)) : Constants.DEFAULT_CHUNK_SIZE;
 
@@ -166,6 +241,14 @@ public class BamQcTool extends NgsSmartTool{
             coverageReportFile = commandLine.getOptionValue(Constants.BAMQC_OPTION_COVERAGE_REPORT_FILE);
         }
 
+        if (commandLine.hasOption(Constants.BAMQC_OPTION_COVERAGE_REPORT_FORMAT)) {
+            String formatName = commandLine.getOptionValue(Constants.BAMQC_OPTION_COVERAGE_REPORT_FORMAT);
+            coverageReportFormat = CoverageWriter.Format.getFormatByName(formatName);
+            if (coverageReportFormat == null) {
+                throw new ParseException("Unknown genome coverage format \"" + formatName + "\"");
+            }
+        }
+
 
 		paintChromosomeLimits =  commandLine.hasOption(Constants.BAMQC_OPTION_PAINT_CHROMOSOMES);
         skipDuplicated = commandLine.hasOption(Constants.BAMQC_OPTION_SKIP_DUPLICATED);
@@ -185,13 +268,77 @@ public class BamQcTool extends NgsSmartTool{
 
         }
 
+        if (commandLine.hasOption(Constants.BAMQC_OPTION_VALIDATION_MODE)) {
+            try {
+                validationMode = ReadValidationMode.getModeByName(
+                        commandLine.getOptionValue(Constants.BAMQC_OPTION_VALIDATION_MODE).toLowerCase());
+            } catch (RuntimeException e) {
+                throw new ParseException(e.getMessage());
+            }
+        }
+        if (commandLine.hasOption(Constants.BAMQC_OPTION_VALIDATION_SAMPLING_RATE)) {
+            validationSamplingRate = Integer.parseInt(
+                    commandLine.getOptionValue(Constants.BAMQC_OPTION_VALIDATION_SAMPLING_RATE));
+            if (validationSamplingRate < 1) {
+                throw new ParseException("Validation sampling rate must be positive");
+            }
+        }
+
+        if (commandLine.hasOption(Constants.BAMQC_OPTION_SAMPLING_FRACTION)) {
+            samplingFraction = Double.parseDouble(
+                    commandLine.getOptionValue(Constants.BAMQC_OPTION_SAMPLING_FRACTION));
+            if (samplingFraction <= 0 || samplingFraction > 1) {
+                throw new ParseException("Sampling fraction must be in the range (0,1]");
+            }
+            if (selectedRegionsAvailable) {
+                throw new ParseException("Approximate analysis can not be combined with the feature file");
+            }
+            if (standardInput) {
+                throw new ParseException("Approximate analysis requires BAM index, it can not read the standard input");
+            }
+        }
+        if (commandLine.hasOption(Constants.BAMQC_OPTION_SAMPLING_CHUNK_SIZE)) {
+            samplingChunkSize = Integer.parseInt(
+                    commandLine.getOptionValue(Constants.BAMQC_OPTION_SAMPLING_CHUNK_SIZE));
+            if (samplingChunkSize < 1) {
+                throw new ParseException("Sampling chunk size must be positive");
+            }
+        }
+
+        indexSummary = commandLine.hasOption(Constants.BAMQC_OPTION_INDEX_SUMMARY);
+        if (indexSummary && standardInput) {
+            throw new ParseException("Index summary requires BAM index, it can not read the standard input");
+        }
+        if (commandLine.hasOption(Constants.BAMQC_OPTION_CHECKPOINT_FILE)) {
+            checkpointFile = commandLine.getOptionValue(Constants.BAMQC_OPTION_CHECKPOINT_FILE);
+            if (standardInput) {
+                throw new ParseException("Checkpoints require a BAM file, they can not be saved for the standard input");
+            }
+            if (samplingFraction > 0) {
+                throw new ParseException("Checkpoints can not be combined with the approximate analysis");
+            }
+        }
+        if (commandLine.hasOption(Constants.BAMQC_OPTION_CHECKPOINT_INTERVAL)) {
+            checkpointInterval = Integer.parseInt(
+                    commandLine.getOptionValue(Constants.BAMQC_OPTION_CHECKPOINT_INTERVAL));
+            if (checkpointInterval < 0) {
+                throw new ParseException("Checkpoint interval must not be negative");
+            }
+        }
+        resumeFromCheckpoint = commandLine.hasOption(Constants.BAMQC_OPTION_RESUME);
+        if (resumeFromCheckpoint && checkpointFile.isEmpty()) {
+            throw new ParseException("The checkpoint file is required to resume the analysis");
+        }
+
         collectOverlappingPairedEndReads = commandLine.hasOption(Constants.BAMQC_OPTION_COLLECT_OVERLAP_PAIRS);
+        analyzeChromosomesInParallel = commandLine.hasOption(Constants.BAMQC_OPTION_PARALLEL_CHROMOSOMES);
+        useAlignmentVectors = commandLine.hasOption(Constants.BAMQC_OPTION_ALIGNMENT_VECTORS);
 
 	}
 
     @Override
     protected void initOutputDir() {
-        if (outdir.equals(".")) {
+        if (outdir.equals(".") && !bamFile.equals(Constants.STANDARD_INPUT_FILE_NAME)) {
             outdir = FilenameUtils.removeExtension(new File(bamFile).getAbsolutePath()) + "_stats";
         }
         super.initOutputDir();
@@ -208,18 +355,30 @@ public class BamQcTool extends NgsSmartTool{
 		// check outdir
 		initOutputDir();
 
+        if (indexSummary) {
+            logger.println("Computing summary from BAM index...");
+            BamIndexSummary summary = new BamIndexSummary(bamFile);
+            summary.setNumberOfWindows(numberOfWindows);
+            summary.run();
+            summary.writeReport(outdir);
+            logger.println("Finished");
+            return;
+        }
+
 		// init bamqc
 		BamStatsAnalysis bamQC = new BamStatsAnalysis(bamFile);
 
         if(selectedRegionsAvailable){
 			bamQC.setSelectedRegions(gffFile);
 			bamQC.setComputeOutsideStats(computeOutsideStats);
+            bamQC.setQueryRegionsByIndex(queryRegionsByIndex);
 		}
 
 		// reporting
 		bamQC.activeReporting(outdir);
         if (coverageReportFile.length() > 0) {
             bamQC.setPathToCoverageReport(coverageReportFile);
+            bamQC.setCoverageReportFormat(coverageReportFormat);
         }
 
 		logger.println("Starting bam qc....");
@@ -227,13 +386,25 @@ public class BamQcTool extends NgsSmartTool{
 		// number of windows
 		bamQC.setNumberOfWindows(numberOfWindows);
         bamQC.setNumberOfThreads(numThreads);
+        bamQC.setNumberOfDecodingThreads(numDecodingThreads);
+        bamQC.setAnalyzeContigsInParallel(analyzeChromosomesInParallel);
         bamQC.setNumberOfReadsInBunch(bunchSize);
         bamQC.setProtocol(protocol);
         bamQC.setMinHomopolymerSize(minHomopolymerSize);
+        bamQC.setUseAlignmentVectors(useAlignmentVectors);
         if (skipDuplicated) {
             bamQC.setSkipDuplicatedReads(true, skipDuplicatesMode);
         }
 
+        bamQC.setReadValidationMode(validationMode, validationSamplingRate);
+        if (samplingFraction > 0) {
+            bamQC.setApproximation(samplingFraction, samplingChunkSize);
+        }
+        if (!checkpointFile.isEmpty()) {
+            bamQC.setCheckpointFile(checkpointFile, checkpointInterval);
+            bamQC.setResumeFromCheckpoint(resumeFromCheckpoint);
+        }
+
         if (collectOverlappingPairedEndReads){
             bamQC.activateIntersectingPairedEndReadsStats();
         }
@@ -0,0 +1,423 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.process;
+
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.util.BlockCompressedInputStream;
+import org.bioinfo.ngs.qc.qualimap.beans.ContigPosition;
+import org.bioinfo.ngs.qc.qualimap.beans.ContigRecord;
+import org.bioinfo.ngs.qc.qualimap.beans.GenomeLocator;
+import org.bioinfo.ngs.qc.qualimap.common.BamIndexStats;
+import org.bioinfo.ngs.qc.qualimap.common.Constants;
+
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Summary of a BAM file computed from its index only.
+ *
+ * The numbers of reads per contig are taken from the index metadata. The coverage across the
+ * reference is estimated from the compressed size of the BAM data between the offsets of the
+ * linear index (16 Kb bins): the mapped reads of a contig are distributed over its bins
+ * proportionally to the size of their data. The reads are not decompressed, except a few
+ * at positions spread over the reference to get the mean length of an alignment.
+ *
+ * Long alignments, e.g. spliced reads, move the offsets of the linear index to earlier bins,
+ * so the estimate is coarser for such data.
+ */
+public class BamIndexSummary {
+
+    public static final String REPORT_FILE_NAME = "index_summary.txt";
+
+    // BAI format constants
+    private static final int LINEAR_BIN_SIZE = 1 << 14;
+    private static final int METADATA_BIN_ID = 37450;
+    // sampling of the alignment lengths
+    private static final int NUM_SAMPLING_POINTS = 100;
+    private static final int NUM_SAMPLED_READS = 2000;
+    private static final int MAX_RECORDS_PER_SAMPLED_READ = 4;
+
+    private String bamFile;
+    private int numberOfWindows;
+
+    private GenomeLocator locator;
+    private BamIndexStats indexStats;
+    // virtual file offsets of the linear index of each contig
+    private long[][] linearOffsets;
+    // compressed size of the data in each linear bin of each contig
+    private long[][] binSizes;
+    private double meanAlignmentLength;
+
+    private List<Long> windowStarts;
+    private double[] windowCoverage;
+    private long windowSize;
+
+    public BamIndexSummary(String bamFile) {
+        this.bamFile = bamFile;
+        this.numberOfWindows = Constants.DEFAULT_NUMBER_OF_WINDOWS;
+    }
+
+    public void setNumberOfWindows(int numberOfWindows) {
+        this.numberOfWindows = numberOfWindows;
+    }
+
+    public void run() throws IOException {
+        SAMFileReader reader = new SAMFileReader(new File(bamFile));
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        SAMFileHeader header;
+        try {
+            header = reader.getFileHeader();
+            if (!reader.hasIndex()) {
+                throw new RuntimeException("The BAM index is required for the index summary.");
+            }
+            locator = new GenomeLocator();
+            for (int i = 0; i < header.getSequenceDictionary().size(); ++i) {
+                locator.addContig(header.getSequence(i).getSequenceName(), header.getSequence(i).getSequenceLength());
+            }
+            indexStats = new BamIndexStats(reader);
+        } finally {
+            reader.close();
+        }
+
+        readLinearIndex(findIndexFile());
+        meanAlignmentLength = computeMeanAlignmentLength(header);
+        computeCoverageAcrossReference();
+    }
+
+    /**
+     * Reads a few consecutive alignments from the offsets of the linear index of bins spread evenly
+     * over the reference. The alignments starting before a bin are skipped, otherwise the long ones
+     * would be sampled more often. The number of decoded records is bounded.
+     */
+    private double computeMeanAlignmentLength(SAMFileHeader header) throws IOException {
+        List<Long> sampledOffsets = new ArrayList<Long>();
+        List<Integer> sampledContigs = new ArrayList<Integer>();
+        List<Long> sampledBinStarts = new ArrayList<Long>();
+        long step = Math.max(locator.getTotalSize() / NUM_SAMPLING_POINTS, 1);
+        for (long pos = 1; pos <= locator.getTotalSize(); pos += step) {
+            ContigPosition point = locator.getContigPosition(pos);
+            int contigIndex = header.getSequenceIndex(point.getName());
+            if (contigIndex >= linearOffsets.length) {
+                continue;
+            }
+            long[] offsets = linearOffsets[contigIndex];
+            int bin = (int) ((point.getRelative() - 1) / LINEAR_BIN_SIZE);
+            if (bin >= offsets.length || offsets[bin] == 0 || sampledOffsets.contains(offsets[bin])) {
+                continue;
+            }
+            sampledOffsets.add(offsets[bin]);
+            sampledContigs.add(contigIndex);
+            sampledBinStarts.add((long) bin * LINEAR_BIN_SIZE + 1);
+        }
+        if (sampledOffsets.isEmpty()) {
+            return 0;
+        }
+        int numReadsPerBin = (NUM_SAMPLED_READS + sampledOffsets.size() - 1) / sampledOffsets.size();
+
+        BlockCompressedInputStream in = new BlockCompressedInputStream(new File(bamFile));
+        BAMRecordCodec codec = new BAMRecordCodec(header);
+        codec.setInputStream(in);
+        long sumLength = 0;
+        int numReads = 0;
+        try {
+            for (int i = 0; i < sampledOffsets.size(); ++i) {
+                in.seek(sampledOffsets.get(i));
+                int numBinReads = 0;
+                for (int j = 0; j < MAX_RECORDS_PER_SAMPLED_READ * numReadsPerBin && numBinReads < numReadsPerBin; ++j) {
+                    SAMRecord read = codec.decode();
+                    if (read == null || read.getReferenceIndex() != sampledContigs.get(i).intValue()) {
+                        break;
+                    }
+                    if (read.getReadUnmappedFlag() || read.getNotPrimaryAlignmentFlag()
+                            || read.getAlignmentStart() < sampledBinStarts.get(i)) {
+                        continue;
+                    }
+                    // the same bases as counted in the mapped bases of the windows
+                    sumLength += read.getAlignmentEnd() - read.getAlignmentStart() + 1;
+                    ++numBinReads;
+                }
+                numReads += numBinReads;
+            }
+        } finally {
+            in.close();
+        }
+        return numReads > 0 ? sumLength / (double) numReads : 0;
+    }
+
+    private File findIndexFile() {
+        File indexFile = new File(bamFile + ".bai");
+        if (!indexFile.exists() && bamFile.endsWith(".bam")) {
+            indexFile = new File(bamFile.substring(0, bamFile.length() - 4) + ".bai");
+        }
+        if (!indexFile.exists()) {
+            throw new RuntimeException("The BAM index is not found.");
+        }
+        return indexFile;
+    }
+
+    /**
+     * Reads the linear index of each contig and converts the virtual offsets to the compressed
+     * sizes of the bins.
+     */
+    private void readLinearIndex(File indexFile) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            byte[] magic = new byte[4];
+            in.readFully(magic);
+            if (magic[0] != 'B' || magic[1] != 'A' || magic[2] != 'I' || magic[3] != 1) {
+                throw new IOException("Invalid BAM index file: " + indexFile);
+            }
+            int numReferences = readInt(in);
+            linearOffsets = new long[numReferences][];
+            binSizes = new long[numReferences][];
+            for (int i = 0; i < numReferences; ++i) {
+                // the end of the contig data is the maximum end of the chunks
+                long dataEnd = 0;
+                int numBins = readInt(in);
+                for (int j = 0; j < numBins; ++j) {
+                    int binId = readInt(in);
+                    int numChunks = readInt(in);
+                    for (int k = 0; k < numChunks; ++k) {
+                        readLong(in);
+                        long chunkEnd = readLong(in);
+                        if (binId != METADATA_BIN_ID) {
+                            dataEnd = Math.max(dataEnd, chunkEnd >>> 16);
+                        }
+                    }
+                }
+                int numIntervals = readInt(in);
+                long[] offsets = new long[numIntervals];
+                for (int j = 0; j < numIntervals; ++j) {
+                    offsets[j] = readLong(in);
+                }
+                linearOffsets[i] = offsets;
+                binSizes[i] = computeBinSizes(offsets, dataEnd);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long[] computeBinSizes(long[] offsets, long dataEnd) {
+        long[] sizes = new long[offsets.length];
+        // empty bins have the offset of the next read or zero before the first read
+        long next = dataEnd;
+        for (int j = offsets.length - 1; j >= 0; --j) {
+            long offset = offsets[j] == 0 ? next : offsets[j] >>> 16;
+            sizes[j] = Math.max(next - offset, 0);
+            next = Math.min(offset, next);
+        }
+        return sizes;
+    }
+
+    private static int readInt(InputStream in) throws IOException {
+        int b0 = in.read(), b1 = in.read(), b2 = in.read(), b3 = in.read();
+        if ((b0 | b1 | b2 | b3) < 0) {
+            throw new IOException("Unexpected end of the BAM index file");
+        }
+        return b0 | (b1 << 8) | (b2 << 16) | (b3 << 24);
+    }
+
+    private static long readLong(InputStream in) throws IOException {
+        long low = readInt(in) & 0xFFFFFFFFL;
+        long high = readInt(in) & 0xFFFFFFFFL;
+        return low | (high << 32);
+    }
+
+    /**
+     * The windows have the same size and start at the beginning of each contig as in BAM QC.
+     */
+    private void computeCoverageAcrossReference() {
+        windowSize = Math.max((locator.getTotalSize() + numberOfWindows - 1) / numberOfWindows, 1);
+        List<ContigRecord> contigs = locator.getContigs();
+        int[] firstWindowIndexes = new int[contigs.size()];
+        windowStarts = new ArrayList<Long>();
+        for (int i = 0; i < contigs.size(); ++i) {
+            ContigRecord contig = contigs.get(i);
+            firstWindowIndexes[i] = windowStarts.size();
+            for (long start = contig.getStart(); start <= contig.getEnd(); start += windowSize) {
+                windowStarts.add(start);
+            }
+        }
+        windowCoverage = new double[windowStarts.size()];
+
+        for (int i = 0; i < contigs.size() && i < binSizes.length; ++i) {
+            long[] sizes = binSizes[i];
+            long contigDataSize = 0;
+            for (long size : sizes) {
+                contigDataSize += size;
+            }
+            ContigRecord contig = contigs.get(i);
+            if (contigDataSize == 0 && indexStats.getNumberOfAlignedRecords(i) > 0) {
+                // the data of the contig is inside one compressed block, the bases are spread uniformly
+                sizes = computeUniformBinSizes(contig.getSize());
+                contigDataSize = contig.getSize();
+            }
+            if (contigDataSize == 0) {
+                continue;
+            }
+            double basesPerByte = indexStats.getNumberOfAlignedRecords(i) * meanAlignmentLength / contigDataSize;
+
+            for (int j = 0; j < sizes.length; ++j) {
+                long binStart = (long) j * LINEAR_BIN_SIZE;
+                long binEnd = Math.min(binStart + LINEAR_BIN_SIZE, contig.getSize()) - 1;
+                if (sizes[j] == 0 || binStart > binEnd) {
+                    continue;
+                }
+                // the bases of the bin are spread uniformly over the windows overlapped by it
+                double basesPerPosition = sizes[j] * basesPerByte / (binEnd - binStart + 1);
+                for (long pos = binStart; pos <= binEnd; ) {
+                    long windowIndex = pos / windowSize;
+                    long end = Math.min(binEnd, (windowIndex + 1) * windowSize - 1);
+                    windowCoverage[firstWindowIndexes[i] + (int) windowIndex] += basesPerPosition * (end - pos + 1);
+                    pos = end + 1;
+                }
+            }
+        }
+
+        for (int i = 0; i < windowCoverage.length; ++i) {
+            long contigEnd = locator.getContigCoordinates(windowStarts.get(i)).getEnd();
+            windowCoverage[i] /= Math.min(windowSize, contigEnd - windowStarts.get(i) + 1);
+        }
+    }
+
+    private static long[] computeUniformBinSizes(long contigSize) {
+        long[] sizes = new long[(int) ((contigSize + LINEAR_BIN_SIZE - 1) / LINEAR_BIN_SIZE)];
+        for (int j = 0; j < sizes.length; ++j) {
+            sizes[j] = Math.min(LINEAR_BIN_SIZE, contigSize - (long) j * LINEAR_BIN_SIZE);
+        }
+        return sizes;
+    }
+
+    public GenomeLocator getLocator() {
+        return locator;
+    }
+
+    public BamIndexStats getIndexStats() {
+        return indexStats;
+    }
+
+    public double getMeanAlignmentLength() {
+        return meanAlignmentLength;
+    }
+
+    /**
+     * @return estimated mean coverage of the contig with the given index
+     */
+    public double getContigCoverage(int contigIndex) {
+        ContigRecord contig = locator.getContigs().get(contigIndex);
+        return indexStats.getNumberOfAlignedRecords(contigIndex) * meanAlignmentLength / contig.getSize();
+    }
+
+    public double getMeanCoverage() {
+        return indexStats.getNumberOfMappedRecords() * meanAlignmentLength / locator.getTotalSize();
+    }
+
+    /**
+     * @return absolute start positions of the windows
+     */
+    public List<Long> getWindowStarts() {
+        return windowStarts;
+    }
+
+    /**
+     * @return estimated coverage of the windows
+     */
+    public double[] getCoverageAcrossReference() {
+        return windowCoverage;
+    }
+
+    public void writeReport(String outdir) throws IOException {
+        NumberFormat formatter = DecimalFormat.getInstance(Locale.US);
+        String reportFile = outdir + File.separator + REPORT_FILE_NAME;
+        PrintWriter report = new PrintWriter(new File(reportFile));
+        try {
+            report.println("BamQC index summary");
+            report.println("-----------------------------------");
+            report.println("");
+            report.println(">>>>>>> Input");
+            report.println("");
+            report.println("     bam file = " + bamFile);
+            report.println("     outfile = " + reportFile);
+            report.println("");
+            report.println("");
+
+            report.println(">>>>>>> Reference");
+            report.println("");
+            report.println("     number of bases = " + formatter.format(locator.getTotalSize()) + " bp");
+            report.println("     number of contigs = " + locator.getContigs().size());
+            report.println("");
+            report.println("");
+
+            report.println(">>>>>>> Globals (from BAM index)");
+            report.println("");
+            report.println("     number of records = " + formatter.format(indexStats.getNumberOfRecords()));
+            report.println("     number of mapped records = " + formatter.format(indexStats.getNumberOfMappedRecords()));
+            report.println("     number of unmapped records = " + formatter.format(indexStats.getNumberOfUnmappedRecords()));
+            report.println("     number of unmapped records without position = "
+                    + formatter.format(indexStats.getNumberOfNoCoordinateRecords()));
+            report.println("");
+            report.println("     mean alignment length (estimated) = " + formatter.format(meanAlignmentLength) + " bp");
+            report.println("     mean coverageData (estimated) = " + formatter.format(getMeanCoverage()) + "X");
+            report.println("");
+            report.println("");
+
+            report.println(">>>>>>> Reads per contig");
+            report.println("");
+            report.println("\t#name\tlength\tmapped\tunmapped\tmean_coverage_estimated");
+            List<ContigRecord> contigs = locator.getContigs();
+            for (int i = 0; i < contigs.size(); ++i) {
+                ContigRecord contig = contigs.get(i);
+                report.println("\t" + contig.getName() + "\t" + contig.getSize() + "\t" +
+                        indexStats.getNumberOfAlignedRecords(i) + "\t" +
+                        indexStats.getNumberOfUnalignedRecords(i) + "\t" + getContigCoverage(i));
+            }
+            report.println("");
+            report.println("");
+
+            report.println(">>>>>>> Coverage across reference (estimated)");
+            report.println("");
+            report.println("\t#position\tcontig\tcoverage_estimated");
+            for (int i = 0; i < windowCoverage.length; ++i) {
+                long position = windowStarts.get(i);
+                report.println("\t" + position + "\t" + locator.getContigCoordinates(position).getName()
+                        + "\t" + windowCoverage[i]);
+            }
+            report.println("");
+        } finally {
+            report.close();
+        }
+    }
+}
@@ -21,10 +21,10 @@
 package org.bioinfo.ngs.qc.qualimap.process;
 
 import net.sf.samtools.*;
+import net.sf.samtools.util.BlockCompressedInputStream;
+import net.sf.samtools.util.CloseableIterator;
 import net.sf.samtools.util.RuntimeIOException;
 import org.bioinfo.commons.log.Logger;
-import org.bioinfo.formats.core.sequence.Fasta;
-import org.bioinfo.formats.core.sequence.io.FastaReader;
 import org.bioinfo.formats.exception.FileFormatException;
 import org.bioinfo.ngs.qc.qualimap.beans.*;
 import org.bioinfo.ngs.qc.qualimap.beans.BamDetailedGenomeWindow;
@@ -38,7 +38,9 @@ import org.bioinfo.ngs.qc.qualimap.common.*;
 import org.bioinfo.ngs.qc.qualimap.common.CommandLineBuilder;
 import org.bioinfo.ngs.qc.qualimap.gui.utils.StatsKeeper;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.*;
@@ -56,7 +58,8 @@ public class BamStatsAnalysis {
 	// reference
     private String  referenceFile;
     private boolean referenceAvailable;
-	private byte[] reference;
+	private IndexedFastaReference reference;
+    private ReferenceCompositionCache referenceComposition;
 	private long referenceSize;
 	private int numberOfReferenceContigs;
 
@@ -64,6 +67,16 @@ public class BamStatsAnalysis {
 	private int numberOfWindows;
 	private int effectiveNumberOfWindows;
 	private int windowSize;
+    private List<Long> windowPositions;
+    private int windowIndexLimit;
+
+    // the first windows of a chromosome can get the bases of the reads overhanging the previous chromosomes,
+    // so they are finalized by the parent analysis after the overhanging bases are added
+    private int headWindowIndexLimit;
+    private List<BamGenomeWindow> headWindows, outsideHeadWindows;
+    // bases of the reads overhanging the windows of the chromosome, they are handed to the next chromosomes
+    private List<SingleReadData> overhangData, outsideOverhangData;
+    private Map<Long,BamGenomeWindow> overhangWindows;
 
 	// coordinates transformer
 	private GenomeLocator locator;
@@ -75,6 +88,7 @@ public class BamStatsAnalysis {
 	private long numberOfDuplicatesSkipped;
     private long numberOfCorrectStrandReads;
     private long numberOfProblematicReads;
+    private ReadValidator readValidator;
     private long numberOfReadsWithStartGreatThenEnd;
 
 	// statistics
@@ -85,11 +99,16 @@ public class BamStatsAnalysis {
 
 	// working variables
 	private BamGenomeWindow currentWindow;
+    private int currentWindowIndex;
 	private ConcurrentMap<Long,BamGenomeWindow> openWindows;
     private int threadNumber;
+    private int numDecodingThreads;
     private int numReadsInBunch;
     private int progress;
     private int minHomopolymerSize;
+    private boolean useAlignmentVectors;
+    private boolean analyzeContigsInParallel;
+    private boolean isContigAnalysis;
 
 	// nucleotide reporting
 	private String outdir;
@@ -104,10 +123,28 @@ public class BamStatsAnalysis {
     private boolean skipMarkedDuplicates, skipDetectedDuplicates;
     private boolean collectIntersectingPairedEndReads;
 
+    // only the reads overlapping the regions are read using the BAM index
+    private boolean queryRegionsByIndex;
+    private boolean readRegionsByIndex;
+    private BamIndexStats indexStats;
+
+    // approximate analysis, the sampled chunks are the selected regions
+    private double samplingFraction;
+    private int samplingChunkSize;
+    private ChunkSampling chunkSampling;
+    private ChunkSampling.ReadCounter chunkReadCounter;
+
+    // state of the sequential analysis is saved at window boundaries
+    private String checkpointFile;
+    private long checkpointInterval;
+    private boolean resumeFromCheckpoint;
+    private long lastCheckpointTime;
+    private boolean resumedReadPending, resumedReadInsideRegions;
+
 	// outside
 	private boolean computeOutsideStats;
 	private BamGenomeWindow currentOutsideWindow;
-	private HashMap<Long,BamGenomeWindow> openOutsideWindows;
+	private ConcurrentMap<Long,BamGenomeWindow> openOutsideWindows;
     private BamStats outsideBamStats;
 
     // read size
@@ -115,10 +152,12 @@ public class BamStatsAnalysis {
     int maxReadSize;
     int minReadSize;
 
-    //regions
+    //regions, sorted by start; overlapping regions are merged, so the ends are sorted too
 	private long[] selectedRegionStarts;
 	private long[] selectedRegionEnds;
     RegionOverlapLookupTable regionOverlapLookupTable;
+    // used only by the thread reading the BAM file
+    RegionOverlapLookupTable.Cursor regionOverlapCursor;
     LibraryProtocol protocol;
 
     BamStatsCollector bamStatsCollector;
@@ -134,19 +173,24 @@ public class BamStatsAnalysis {
 	private boolean activeReporting;
 	private boolean saveCoverage, nonZeroCoverageOnly;
     private String pathToCoverageReport;
+    private CoverageWriter.Format coverageReportFormat;
     private int windowBlockSizeToReport;
+    private File coverageReportFile, outsideCoverageReportFile, outsideWindowReportFile;
 
 
     // analysis
 	private boolean isPairedData;
-    List<Future<ProcessBunchOfReadsTask.Result>> results;
-    Future<Integer> finalizeWindowResult;
+    LinkedList<BunchOfReadsInFlight> bunchesInFlight;
+    LinkedList<Future<Integer>> windowsInFinalization;
+    private int maxNumberOfWindowsInFinalization;
     long timeToCalcOverlappers;
     private String pgProgram, pgCommandString;
 
     public static final String WARNING_ID_CHROMOSOME_NOT_FOUND = "Some regions are not loaded";
     public static final String WARNING_ID_NO_MAPPED_READS = "NO MAPPED READS";
+    public static final String WARNING_ID_READ_COUNTS_FROM_INDEX = "Reads outside of regions are not analyzed";
     public static final String WARNING_NO_MARKED_DUPLICATES = "No flagged duplicates are detected";
+    public static final String WARNING_ID_APPROXIMATE_READ_COUNTS = "Numbers of reads are estimated";
 
     public static final String HUMAN_GENOME_ID = "HUMAN (hg19)";
     public static final String MOUSE_GENOME_ID =  "MOUSE (mm9)";
@@ -176,16 +220,34 @@ public class BamStatsAnalysis {
         this.numReadsInBunch = Constants.DEFAULT_CHUNK_SIZE;
         this.minHomopolymerSize = Constants.DEFAULT_HOMOPOLYMER_SIZE;
         this.maxSizeOfTaskQueue = 10;
+        this.windowsInFinalization = new LinkedList<Future<Integer>>();
+        this.headWindows = new ArrayList<BamGenomeWindow>();
+        this.outsideHeadWindows = new ArrayList<BamGenomeWindow>();
+        this.overhangData = new ArrayList<SingleReadData>();
+        this.outsideOverhangData = new ArrayList<SingleReadData>();
+        this.overhangWindows = new HashMap<Long,BamGenomeWindow>();
         this.minReadSize = Integer.MAX_VALUE;
         this.threadNumber = 4;
+        this.numDecodingThreads = Constants.DEFAULT_NUMBER_OF_DECODING_THREADS;
+        this.useAlignmentVectors = false;
+        this.analyzeContigsInParallel = false;
+        this.isContigAnalysis = false;
         this.selectedRegionsAvailable =false;
         this.computeOutsideStats = false;
         this.skipMarkedDuplicates = false;
         this.skipDetectedDuplicates = false;
         this.collectIntersectingPairedEndReads = false;
+        this.readValidator = new ReadValidator(ReadValidationMode.FULL, ReadValidator.DEFAULT_SAMPLING_RATE);
+        this.queryRegionsByIndex = false;
+        this.readRegionsByIndex = false;
+        this.samplingFraction = 0;
+        this.samplingChunkSize = ChunkSampling.DEFAULT_CHUNK_SIZE;
+        this.checkpointInterval = Constants.DEFAULT_CHECKPOINT_INTERVAL * 60000L;
+        this.resumeFromCheckpoint = false;
         this.outdir = ".";
         this.saveCoverage = false;
         this.nonZeroCoverageOnly = true;
+        this.coverageReportFormat = CoverageWriter.Format.PER_BASE;
         this.windowBlockSizeToReport = 50;
         protocol = LibraryProtocol.NON_STRAND_SPECIFIC;
         pgProgram = "";
@@ -194,19 +256,130 @@ public class BamStatsAnalysis {
         chromosomeWindowIndexes = new ArrayList<Integer>();
     }
 
+    // Analysis of the windows [firstWindowIndex, windowIndexLimit) of a single chromosome,
+    // the windows before headWindowIndexLimit are finalized by the parent
+    private BamStatsAnalysis(BamStatsAnalysis parent, int firstWindowIndex, int windowIndexLimit,
+                             int headWindowIndexLimit) throws IOException {
+        this(parent.bamFile);
+        this.isContigAnalysis = true;
+
+        // settings
+        this.numberOfWindows = parent.numberOfWindows;
+        this.effectiveNumberOfWindows = parent.effectiveNumberOfWindows;
+        this.windowSize = parent.windowSize;
+        this.windowPositions = parent.windowPositions;
+        this.windowIndexLimit = windowIndexLimit;
+        this.headWindowIndexLimit = headWindowIndexLimit;
+        this.windowBlockSizeToReport = parent.windowBlockSizeToReport;
+        this.numReadsInBunch = parent.numReadsInBunch;
+        this.maxSizeOfTaskQueue = parent.maxSizeOfTaskQueue;
+        this.maxNumberOfWindowsInFinalization = parent.maxNumberOfWindowsInFinalization;
+        this.minHomopolymerSize = parent.minHomopolymerSize;
+        this.useAlignmentVectors = parent.useAlignmentVectors;
+        this.selectedRegionsAvailable = parent.selectedRegionsAvailable;
+        this.computeOutsideStats = parent.computeOutsideStats;
+        this.skipMarkedDuplicates = parent.skipMarkedDuplicates;
+        this.skipDetectedDuplicates = parent.skipDetectedDuplicates;
+        this.collectIntersectingPairedEndReads = parent.collectIntersectingPairedEndReads;
+        this.activeReporting = parent.activeReporting;
+        this.saveCoverage = parent.saveCoverage;
+        this.nonZeroCoverageOnly = parent.nonZeroCoverageOnly;
+        this.coverageReportFormat = parent.coverageReportFormat;
+        this.protocol = parent.protocol;
+        this.readValidator = new ReadValidator(parent.readValidator.getMode(),
+                parent.readValidator.getSamplingRate());
+        this.readRegionsByIndex = parent.readRegionsByIndex;
+        this.samplingFraction = parent.samplingFraction;
+        this.samplingChunkSize = parent.samplingChunkSize;
+
+        // shared data, it is not modified during the analysis
+        this.locator = parent.locator;
+        this.referenceComposition = parent.referenceComposition;
+        this.referenceSize = parent.referenceSize;
+        this.selectedRegionStarts = parent.selectedRegionStarts;
+        this.selectedRegionEnds = parent.selectedRegionEnds;
+        this.regionOverlapLookupTable = parent.regionOverlapLookupTable;
+        this.chunkSampling = parent.chunkSampling;
+        this.logger = parent.logger;
+        this.workerThreadPool = parent.workerThreadPool;
+
+        bamStats = new BamStats("genome", locator, referenceSize, effectiveNumberOfWindows);
+        bamStats.setWindowReferences("w", windowPositions);
+        bamStats.startFromWindow(firstWindowIndex);
+        bamStats.setChunkSampling(chunkSampling);
+        bamStatsCollector = new BamStatsCollector();
+        if (collectIntersectingPairedEndReads) {
+            bamStatsCollector.enableIntersectingReadsCollection();
+        }
+        openWindows = new ConcurrentHashMap<Long,BamGenomeWindow>();
+
+        // reports are collected in temporary files and appended by the parent
+        if (saveCoverage) {
+            coverageReportFile = File.createTempFile("coverage", ".txt");
+            bamStats.activateCoverageReporting(coverageReportFile.getPath(), coverageReportFormat,
+                    nonZeroCoverageOnly);
+        }
+
+        if (selectedRegionsAvailable) {
+            outsideBamStatsCollector = new BamStatsCollector();
+            if (computeOutsideStats) {
+                outsideBamStats = new BamStats("outside", locator, referenceSize, effectiveNumberOfWindows);
+                outsideBamStats.setWindowReferences("out_w", windowPositions);
+                outsideBamStats.startFromWindow(firstWindowIndex);
+                openOutsideWindows = new ConcurrentHashMap<Long,BamGenomeWindow>();
+                if (activeReporting) {
+                    outsideWindowReportFile = File.createTempFile("outside_window", ".txt");
+                    outsideBamStats.activateWindowReporting(outsideWindowReportFile.getPath());
+                }
+                if (saveCoverage) {
+                    outsideCoverageReportFile = File.createTempFile("outside_coverage", ".txt");
+                    outsideBamStats.activateCoverageReporting(outsideCoverageReportFile.getPath(),
+                            coverageReportFormat, nonZeroCoverageOnly);
+                }
+            }
+        }
+    }
+
     public void run() throws Exception{
 
         long startTime = System.currentTimeMillis();
 
         workerThreadPool = Executors.newFixedThreadPool(threadNumber);
-
-        SAMFileReader reader = new SAMFileReader(new File(bamFile));
-        reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        maxNumberOfWindowsInFinalization = threadNumber;
+
+        // a stream is read once, so BAM data decoded in parallel has no reader
+        SAMFileReader reader = null;
+        ParallelBamRecordIterator streamIterator = null;
+        if (isStreamInput()) {
+            if (samplingFraction > 0) {
+                throw new RuntimeException("The approximate analysis requires an indexed BAM file, " +
+                        "it can not be applied to a stream.");
+            }
+            if (checkpointFile != null) {
+                throw new RuntimeException("Checkpoints require a BAM file, they can not be saved for a stream.");
+            }
+            BufferedInputStream in = new BufferedInputStream(
+                    bamFile.equals(Constants.STANDARD_INPUT_FILE_NAME) ? System.in : new FileInputStream(bamFile));
+            if (numDecodingThreads > 0 && BlockCompressedInputStream.isValidFile(in)) {
+                streamIterator = new ParallelBamRecordIterator(in, numDecodingThreads, numReadsInBunch);
+            } else {
+                reader = new SAMFileReader(in);
+            }
+        } else {
+            reader = new SAMFileReader(new File(bamFile));
+        }
+        if (reader != null) {
+            reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        }
+        if (checkpointFile != null && (samplingFraction > 0 || !reader.isBinary())) {
+            throw new RuntimeException("Checkpoints are supported only for the full analysis of a BAM file.");
+        }
+        boolean indexAvailable = reader != null && reader.isBinary() && reader.hasIndex();
 
         // org.bioinfo.ntools.process header
 		String lastActionDone = "Loading sam header...";
 		logger.println(lastActionDone);
-		SAMFileHeader header = reader.getFileHeader();
+		SAMFileHeader header = reader != null ? reader.getFileHeader() : streamIterator.getFileHeader();
 
 
         String textHeader = header.getTextHeader();
@@ -239,9 +412,14 @@ public class BamStatsAnalysis {
         // init window set
         windowSize = computeWindowSize(referenceSize,numberOfWindows);
         //effectiveNumberOfWindows = computeEffectiveNumberOfWindows(referenceSize,windowSize);
-        List<Long> windowPositions = computeWindowPositions(windowSize);
+        windowPositions = computeWindowPositions(windowSize);
         effectiveNumberOfWindows = windowPositions.size();
 
+        if (referenceAvailable) {
+            loadReferenceComposition();
+        }
+        windowIndexLimit = effectiveNumberOfWindows;
+
         if (effectiveNumberOfWindows > Constants.DEFAULT_STABLIZED_WINDOW_PROPORTION) {
             windowBlockSizeToReport = effectiveNumberOfWindows / 10;
         }
@@ -261,11 +439,17 @@ public class BamStatsAnalysis {
 
 
 
+        BamStatsCheckpoint checkpoint = null;
+        if (resumeFromCheckpoint && checkpointFile != null) {
+            checkpoint = loadCheckpoint();
+        }
+
         bamStats = new BamStats("genome", locator, referenceSize,effectiveNumberOfWindows);
         logger.println("Number of windows: " + numberOfWindows +
                 ", effective number of windows: " + effectiveNumberOfWindows);
         logger.println("Chunk of reads size: " + numReadsInBunch);
         logger.println("Number of threads: " + threadNumber);
+        logger.println("Number of decoding threads: " + numDecodingThreads);
         bamStats.setSourceFile(bamFile);
         //bamStats.setWindowReferences("w",windowSize);
         bamStats.setWindowReferences("w", windowPositions);
@@ -276,15 +460,25 @@ public class BamStatsAnalysis {
 
         openWindows = new ConcurrentHashMap<Long,BamGenomeWindow>();
 
-        if (saveCoverage) {
-            bamStats.activateCoverageReporting(pathToCoverageReport, nonZeroCoverageOnly);
+        // the reports of a continued analysis are opened with its saved state
+        if (saveCoverage && checkpoint == null) {
+            bamStats.activateCoverageReporting(pathToCoverageReport, coverageReportFormat, nonZeroCoverageOnly);
+        }
+
+        if (samplingFraction > 0) {
+            if (selectedRegionsAvailable) {
+                throw new RuntimeException("The approximate analysis can not be combined with the selected regions.");
+            }
+            loadSampledRegions();
         }
 
         //regions
         if(selectedRegionsAvailable){
 
 			// load selected regions
-            loadSelectedRegions();
+            if (chunkSampling == null) {
+                loadSelectedRegions();
+            }
             outsideBamStatsCollector = new BamStatsCollector();
 
             // outside of regions stats
@@ -292,15 +486,15 @@ public class BamStatsAnalysis {
                 outsideBamStats = new BamStats("outside", locator, referenceSize, effectiveNumberOfWindows);
                 outsideBamStats.setSourceFile(bamFile);
                 outsideBamStats.setWindowReferences("out_w", windowPositions);
-                openOutsideWindows = new HashMap<Long,BamGenomeWindow>();
-                currentOutsideWindow = nextWindow(outsideBamStats,openOutsideWindows,reference,true);
+                openOutsideWindows = new ConcurrentHashMap<Long,BamGenomeWindow>();
 
-                if(activeReporting) {
+                if(activeReporting && checkpoint == null) {
                     outsideBamStats.activateWindowReporting(outdir + "/outside_window.txt");
                 }
 
-                if(saveCoverage){
-                    outsideBamStats.activateCoverageReporting(outdir + "/outside_coverage.txt", nonZeroCoverageOnly);
+                if(saveCoverage && checkpoint == null){
+                    outsideBamStats.activateCoverageReporting(outdir + "/outside_coverage.txt",
+                            coverageReportFormat, nonZeroCoverageOnly);
                 }
 
                 // we have twice more data from the bunch, so the queue is limited now
@@ -309,15 +503,296 @@ public class BamStatsAnalysis {
 
 		}
 
-        currentWindow = nextWindow(bamStats, openWindows, reference, true);
+        readRegionsByIndex = chunkSampling != null;
+        if (chunkSampling != null && indexAvailable) {
+            // the unmapped reads are not sampled, they are counted by the index
+            indexStats = new BamIndexStats(reader);
+        }
+        if (queryRegionsByIndex && selectedRegionsAvailable && chunkSampling == null) {
+            if (computeOutsideStats) {
+                logger.warn("Statistics outside of regions require all reads, the regions are not queried by index.");
+            } else if (checkpointFile != null) {
+                logger.warn("Checkpoints require all reads, the regions are not queried by index.");
+            } else if (!indexAvailable) {
+                logger.warn("BAM index is not found, all reads will be analyzed.");
+            } else {
+                logger.println("Only the reads overlapping the regions will be analyzed.");
+                readRegionsByIndex = true;
+                indexStats = new BamIndexStats(reader);
+            }
+        }
+
+        if (analyzeContigsInParallel && contigsCanBeAnalyzedInParallel(indexAvailable, header)) {
+            reader.close();
+            analyzeContigsInParallel(header);
+        } else {
+            if (checkpoint != null) {
+                restoreCheckpoint(checkpoint);
+                logger.println("Continuing the analysis from window " + (bamStats.getNumberOfProcessedWindows() + 1)
+                        + " saved in " + checkpointFile);
+            }
+            moveToWindow(bamStats.getNumberOfProcessedWindows());
+
+            // run reads
+            CloseableIterator<SAMRecord> iter;
+            // the position of the reads in the file is saved in the checkpoints
+            BamRecordPositionIterator positionIter = null;
+            if (readRegionsByIndex) {
+                iter = new IndexedRegionsIterator(reader, locator, selectedRegionStarts, selectedRegionEnds,
+                        1, referenceSize);
+            } else if (streamIterator != null) {
+                iter = streamIterator;
+            } else if ((numDecodingThreads > 0 || checkpointFile != null) && reader.isBinary() && !isStreamInput()) {
+                long filePointer = checkpoint != null ? checkpoint.filePointer : 0;
+                if (numDecodingThreads > 0) {
+                    // BGZF blocks are inflated and records are decoded in a separate stage
+                    positionIter = new ParallelBamRecordIterator(new File(bamFile), header, numDecodingThreads,
+                            numReadsInBunch, filePointer);
+                } else {
+                    positionIter = new SequentialBamRecordIterator(new File(bamFile), header, filePointer);
+                }
+                iter = positionIter;
+            } else {
+                iter = reader.iterator();
+            }
+
+            analyzeReads(iter, checkpointFile != null ? positionIter : null);
+
+            // close stream
+            iter.close();
+            if (reader != null) {
+                reader.close();
+            }
+
+            // the checkpoint is not needed anymore
+            if (checkpointFile != null) {
+                new File(checkpointFile).delete();
+            }
+        }
+
+        workerThreadPool.shutdown();
+        workerThreadPool.awaitTermination(2, TimeUnit.MINUTES);
+
+        long endTime = System.currentTimeMillis();
+
+        logger.println("Total processed windows:" + bamStats.getNumberOfProcessedWindows());
+        logger.println("Number of reads: " + numberOfReads);
+        logger.println("Number of valid reads: " + numberOfValidReads);
+        logger.print(readValidator.report());
+        logger.println("Number of correct strand reads:" + numberOfCorrectStrandReads);
+
+        if (numberOfReadsWithStartGreatThenEnd > 0) {
+            logger.warn( numberOfReadsWithStartGreatThenEnd +
+                    "  read alignments have start greater than end" );
+        }
+
+        if (numberOfProblematicReads > 0) {
+            logger.warn("SAMRecordParser marked " + numberOfProblematicReads + " problematic reads.");
+        }
+
+        if (collectIntersectingPairedEndReads) {
+            bamStatsCollector.finalizeAlignmentInfo();
+        }
+
+        logger.println("\nInside of regions...");
+        logger.print(bamStatsCollector.report());
+
+        if (computeOutsideStats) {
+            logger.println("\nOuside of regions...");
+            logger.print(outsideBamStatsCollector.report());
+        }
+
+        logger.println("Time taken to analyze reads: " + (endTime - startTime) / 1000);
+        logger.println();
+
+        if (numberOfReads == 0 && (indexStats == null || indexStats.getNumberOfRecords() == 0)) {
+            throw new RuntimeException("The BAM file is empty or corrupt");
+        }
+
+        bamStats.setNumberOfReads(numberOfReads);
+        bamStats.setNumDuplicatesSkipped(numberOfDuplicatesSkipped);
+        bamStats.setSkipDuplicatesMode(skipMarkedDuplicates, skipDetectedDuplicates);
+        bamStats.setNumberOfSecondaryAlignments(numberOfSecondaryAlignments);
+        if (skipMarkedDuplicates && numberOfDuplicatesSkipped == 0) {
+            bamStats.addWarning(WARNING_NO_MARKED_DUPLICATES,
+                "Make sure duplicate alignments are flagged in the BAM file or apply a different skip duplicates mode.");
+        }
+
+        long totalNumberOfMappedReads = bamStatsCollector.getNumMappedReads();
+        long totalNumberOfPairedReads = bamStatsCollector.getNumPairedReads();
+        long totalNumberOfMappedFirstOfPair = bamStatsCollector.getNumMappedFirstInPair();
+        long totalNumberOfMappedSecondOfPair = bamStatsCollector.getNumMappedSecondInPair();
+        long totalNumberOfSingletons = bamStatsCollector.getNumSingletons();
+        long totalNumberOfSuppAlignments = bamStatsCollector.getNumSupplementaryAlignments();
+
+        boolean mappedReadsInRegion = totalNumberOfMappedReads > 0;
+
+        if (selectedRegionsAvailable) {
+
+            bamStats.setNumSelectedRegions(numberOfSelectedRegions);
+            if (computeOutsideStats)  {
+                // Size was calculated two times during the analysis
+                insideReferenceSize /= 2;
+            }
+            bamStats.setInRegionReferenceSize(insideReferenceSize);
+
+            // update totals
+            totalNumberOfMappedReads  += outsideBamStatsCollector.getNumMappedReads();
+            totalNumberOfPairedReads += outsideBamStatsCollector.getNumPairedReads();
+            totalNumberOfMappedFirstOfPair += outsideBamStatsCollector.getNumMappedFirstInPair();
+            totalNumberOfMappedSecondOfPair += outsideBamStatsCollector.getNumMappedSecondInPair();
+            totalNumberOfSingletons += outsideBamStatsCollector.getNumSingletons();
+
+            // inside of regions
+            bamStats.setNumberOfMappedReadsInRegions(bamStatsCollector.getNumMappedReads());
+            bamStats.setNumberOfPairedReadsInRegions(bamStatsCollector.getNumPairedReads());
+            bamStats.setNumberOfMappedFirstOfPairInRegions(bamStatsCollector.getNumMappedFirstInPair());
+            bamStats.setNumberOfMappedSecondOfPairInRegions(bamStatsCollector.getNumMappedSecondInPair());
+            bamStats.setNumberOfSingletonsInRegions(bamStatsCollector.getNumSingletons());
+            bamStats.setNumberOfCorrectStrandReads(numberOfCorrectStrandReads);
+        }
+
+        if (chunkSampling != null) {
+            // only the reads of the sampled chunks are analyzed, the counters are scaled to the whole reference
+            totalNumberOfMappedReads = chunkSampling.scaleNumberOfReads(ChunkSampling.MAPPED_READS);
+            totalNumberOfPairedReads = chunkSampling.scaleNumberOfReads(ChunkSampling.PAIRED_READS);
+            totalNumberOfMappedFirstOfPair = chunkSampling.scaleNumberOfReads(ChunkSampling.MAPPED_FIRST_OF_PAIR);
+            totalNumberOfMappedSecondOfPair = chunkSampling.scaleNumberOfReads(ChunkSampling.MAPPED_SECOND_OF_PAIR);
+            totalNumberOfSingletons = chunkSampling.scaleNumberOfReads(ChunkSampling.SINGLETONS);
+            totalNumberOfSuppAlignments = chunkSampling.scaleNumberOfReads(ChunkSampling.SUPPLEMENTARY_ALIGNMENTS);
+            long numberOfUnmappedReads = indexStats != null ? indexStats.getNumberOfUnmappedRecords() : 0;
+            bamStats.setNumberOfReads(totalNumberOfMappedReads + numberOfUnmappedReads);
+            bamStats.addWarning(WARNING_ID_APPROXIMATE_READ_COUNTS,
+                    "Numbers of mapped and paired reads are estimated from the sampled chunks, " +
+                    "the number of unmapped reads is taken from the BAM index. " +
+                    "The other counters refer to the sampled reads.");
+        } else if (indexStats != null) {
+            // the globals refer to the analyzed reads, the index counts are reported on their own
+            if (indexStats.getNumberOfRecords() > 0) {
+                bamStats.setNumberOfRecordsInIndex(indexStats.getNumberOfRecords(),
+                        indexStats.getNumberOfMappedRecords());
+                bamStats.addWarning(WARNING_ID_READ_COUNTS_FROM_INDEX,
+                        "Only the reads overlapping the regions are counted. " +
+                        "The numbers of records from the BAM index include secondary and supplementary alignments.");
+            } else {
+                bamStats.addWarning(WARNING_ID_READ_COUNTS_FROM_INDEX,
+                        "The BAM index has no read counts, only the reads overlapping the regions are counted.");
+            }
+        }
+
+        bamStats.setNumberOfMappedReads(totalNumberOfMappedReads);
+        bamStats.setNumberOfPairedReads(totalNumberOfPairedReads);
+        bamStats.setNumberOfMappedFirstOfPair(totalNumberOfMappedFirstOfPair);
+        bamStats.setNumberOfMappedSecondOfPair(totalNumberOfMappedSecondOfPair);
+        bamStats.setNumberOfSingletons( totalNumberOfSingletons );
+        bamStats.setNumberOfSuppAlignments( totalNumberOfSuppAlignments);
+        if (collectIntersectingPairedEndReads) {
+            bamStats.setNumberOfIntersectingReadPairs(bamStatsCollector.getNumOverlappingReadPairs(),
+                    bamStatsCollector.getNumOverlappingBases());
+        }
+
+        bamStats.setReferenceSize(referenceSize);
+        bamStats.setNumberOfReferenceContigs(locator.getContigs().size());
+        bamStats.setReadMaxSize(maxReadSize);
+        bamStats.setReadMinSize(minReadSize);
+        bamStats.setReadMeanSize( acumReadSize / (double) numberOfReads );
+
+        bamStats.setNumMarkedDuplcateReads( bamStatsCollector.getNumMarkedDuplicates() );
+
+        isPairedData = bamStats.getNumberOfPairedReads() > 0 &&
+                (bamStats.getNumberOfPairedReads() - bamStats.getNumberOfSingletons()) > 0;
+
+        if (mappedReadsInRegion) {
+            logger.println("Computing descriptors...");
+		    bamStats.computeDescriptors();
+            logger.println("Computing per chromosome statistics...");
+		    bamStats.computeChromosomeStats(locator, chromosomeWindowIndexes);
+            logger.println("Computing histograms...");
+		    bamStats.computeHistograms();
+        } else {
+            logger.println("\nWARNING: number of mapped reads equals zero");
+            bamStats.addWarning(WARNING_ID_NO_MAPPED_READS, "Total number of mapped reads or mapped reads in region equals zero.\n" +
+                            "For more details, check the number of Unmapped reads.");
+        }
+
+        if(selectedRegionsAvailable && computeOutsideStats){
+
+            outsideBamStats.setReferenceSize(referenceSize);
+            outsideBamStats.setNumberOfReferenceContigs(locator.getContigs().size());
+            outsideBamStats.setNumSelectedRegions(numberOfSelectedRegions);
+            outsideBamStats.setInRegionReferenceSize(referenceSize - insideReferenceSize);
+            outsideBamStats.setNumberOfReads(numberOfReads);
+            outsideBamStats.setNumberOfSecondaryAlignments(numberOfSecondaryAlignments);
 
-        // run reads
-        SAMRecordIterator iter = reader.iterator();
+            outsideBamStats.setNumberOfMappedReads(totalNumberOfMappedReads);
+            outsideBamStats.setNumberOfPairedReads(totalNumberOfPairedReads);
+            outsideBamStats.setNumberOfMappedFirstOfPair(totalNumberOfMappedFirstOfPair);
+            outsideBamStats.setNumberOfMappedSecondOfPair(totalNumberOfMappedSecondOfPair);
+            outsideBamStats.setNumberOfSingletons(totalNumberOfSingletons);
 
-        ArrayList<SAMRecord> readsBunch = new ArrayList<SAMRecord>();
-        results = new ArrayList<Future<ProcessBunchOfReadsTask.Result>>();
+            outsideBamStats.setNumberOfMappedReadsInRegions(outsideBamStatsCollector.getNumMappedReads());
+            outsideBamStats.setNumberOfPairedReadsInRegions(outsideBamStatsCollector.getNumPairedReads());
+            outsideBamStats.setNumberOfMappedFirstOfPairInRegions(outsideBamStatsCollector.getNumMappedFirstInPair());
+            outsideBamStats.setNumberOfMappedSecondOfPairInRegions(outsideBamStatsCollector.getNumMappedSecondInPair());
+            outsideBamStats.setNumberOfSingletonsInRegions(outsideBamStatsCollector.getNumSingletons());
+
+            outsideBamStats.setReadMaxSize(maxReadSize);
+            outsideBamStats.setReadMinSize(minReadSize);
+            outsideBamStats.setReadMeanSize( acumReadSize / (double) numberOfReads );
+
+            outsideBamStats.setNumMarkedDuplcateReads( outsideBamStatsCollector.getNumMarkedDuplicates() );
+
+            if (outsideBamStatsCollector.getNumMappedReads() > 0)  {
+                logger.println("Computing descriptors for outside regions...");
+                outsideBamStats.computeDescriptors();
+                logger.println("Computing per chromosome statistics for outside regions...");
+                outsideBamStats.computeChromosomeStats(locator, chromosomeWindowIndexes);
+                logger.println("Computing histograms for outside regions...");
+                outsideBamStats.computeHistograms();
+            } else  {
+                logger.println("\nWARNING: number of mapped reads outside of regions equals zero");
+                bamStats.addWarning(WARNING_ID_NO_MAPPED_READS, "Number of mapped reads outside of regions equals zero.\n" +
+                    "For more details, check the number of Unmapped reads.");
+            }
+
+        }
+
+        long overallTime = System.currentTimeMillis();
+        logger.println("Overall analysis time: " + (overallTime - startTime) / 1000);
+
+    }
+
+    private void analyzeReads(CloseableIterator<SAMRecord> iter) throws Exception {
+        analyzeReads(iter, null);
+    }
+
+    /**
+     * @param checkpointIter The same iterator, if checkpoints are saved, otherwise null
+     */
+    private void analyzeReads(CloseableIterator<SAMRecord> iter, BamRecordPositionIterator checkpointIter)
+            throws Exception {
+
+        BunchOfReads readsBunch = new BunchOfReads(numReadsInBunch);
+        bunchesInFlight = new LinkedList<BunchOfReadsInFlight>();
+        if (chunkSampling != null) {
+            chunkReadCounter = chunkSampling.createReadCounter();
+        }
 
         timeToCalcOverlappers = 0;
+        lastCheckpointTime = System.currentTimeMillis();
+
+        if (resumedReadPending) {
+            // the first read of the checkpoint is counted already, only its alignment is analyzed
+            SAMRecord read = iter.next();
+            long position = locator.getAbsoluteCoordinates(read.getReferenceIndex(), read.getAlignmentStart());
+            readsBunch.add(read, position, resumedReadInsideRegions);
+            if (readsBunch.size() >= numReadsInBunch) {
+                analyzeReadsBunch(readsBunch);
+                readsBunch = new BunchOfReads(numReadsInBunch);
+            }
+            numberOfValidReads++;
+            resumedReadPending = false;
+        }
 
         while(iter.hasNext()){
 
@@ -334,7 +809,7 @@ public class BamStatsAnalysis {
             }
 
             // compute absolute position
-            long position = locator.getAbsoluteCoordinates(read.getReferenceName(),read.getAlignmentStart());
+            long position = locator.getAbsoluteCoordinates(read.getReferenceIndex(),read.getAlignmentStart());
 
             //compute read size
             int readSize = read.getReadLength();
@@ -346,20 +821,14 @@ public class BamStatsAnalysis {
                 minReadSize = readSize;
             }
 
-            // filter invalid reads
-            List<SAMValidationError> valErrorList = read.isValid();
-            boolean readIsValid = valErrorList == null;
-            if (!readIsValid) {
-                if (valErrorList.size() == 1) {
-                    readIsValid = valErrorList.get(0).getType() == SAMValidationError.Type.READ_GROUP_NOT_FOUND;
-                }
-            }
-
             if (read.getNotPrimaryAlignmentFlag()) {
                 ++numberOfSecondaryAlignments;
                 continue;
             }
 
+            // filter invalid reads
+            boolean readIsValid = readValidator.isValid(read);
+
             boolean novelRead = (read.getFlags() & Constants.SAM_FLAG_SUPP_ALIGNMENT) == 0;
             if (novelRead) {
                 ++numberOfReads;
@@ -372,6 +841,12 @@ public class BamStatsAnalysis {
                     continue;
                 }
 
+                if (currentWindow == null) {
+                    // no more windows to analyze
+                    break;
+                }
+
+                boolean readInsideRegions;
                 int insertSize = 0;
                 if (read.getReadPairedFlag()) {
                     insertSize = read.getInferredInsertSize();
@@ -389,12 +864,18 @@ public class BamStatsAnalysis {
                     boolean readOverlapsRegions = readOverlapsRegions(read);
 
                     if (readOverlapsRegions) {
+                        if (chunkReadCounter != null) {
+                            chunkReadCounter.addMappedRead(position, read);
+                        }
                         if (bamStatsCollector.updateStats(read) && skipMarkedDuplicates) {
                             numberOfDuplicatesSkipped++;
                             continue;
                         }
 
-                        read.setAttribute(Constants.READ_IN_REGION, 1);
+                        readInsideRegions = true;
+                        if (chunkReadCounter != null) {
+                            chunkReadCounter.addReadStart(position);
+                        }
                         if (bamStats.updateReadStartsHistogram(position) && skipDetectedDuplicates ) {
                             numberOfDuplicatesSkipped++;
                             continue;
@@ -403,8 +884,11 @@ public class BamStatsAnalysis {
                             bamStatsCollector.collectPairedReadInfo(read);
                         }
                         bamStats.updateInsertSizeHistogram(insertSize);
+                        if (chunkReadCounter != null) {
+                            chunkReadCounter.addInsertSize(position, insertSize);
+                        }
                     } else {
-                        read.setAttribute(Constants.READ_IN_REGION, 0);
+                        readInsideRegions = false;
                         if (outsideBamStatsCollector.updateStats(read) && skipMarkedDuplicates) {
                             numberOfDuplicatesSkipped++;
                             continue;
@@ -418,7 +902,7 @@ public class BamStatsAnalysis {
                         }
                     }
                 } else {
-                    read.setAttribute(Constants.READ_IN_REGION, 1);
+                    readInsideRegions = true;
                     if (bamStatsCollector.updateStats(read) && skipMarkedDuplicates) {
                         numberOfDuplicatesSkipped++;
                         continue;
@@ -436,20 +920,28 @@ public class BamStatsAnalysis {
 
                 timeToCalcOverlappers += System.currentTimeMillis() - findOverlappersStart;
 
-                // finalize current and get next window
+                // go to the window of the read, passed windows are finalized when their reads are analyzed
 			    if(position > currentWindow.getEnd() ){
-                    //analyzeReads(readsBunch);
-                    collectAnalysisResults(readsBunch);
-                    //finalize
-				    currentWindow = finalizeAndGetNextWindow(position, currentWindow, openWindows,
-                            bamStats, reference, true);
-
+                    if (!readsBunch.isEmpty()) {
+                        analyzeReadsBunch(readsBunch);
+                        readsBunch = new BunchOfReads(numReadsInBunch);
+                    }
                     if (selectedRegionsAvailable && computeOutsideStats) {
                         currentOutsideWindow.inverseRegions();
-                        currentOutsideWindow = finalizeAndGetNextWindow(position, currentOutsideWindow,
-                                openOutsideWindows, outsideBamStats, reference, true);
                     }
-
+                    int windowIndex = currentWindowIndex;
+                    while (windowIndex < windowIndexLimit && position > bamStats.getWindowEnd(windowIndex)) {
+                        windowIndex++;
+                    }
+                    moveToWindow(windowIndex);
+                    collectAnalysisResults(false);
+                    finalizeAnalyzedWindows();
+
+                    // the reads of the passed windows are in flight, the read is analyzed in the new window
+                    if (checkpointIter != null && currentWindow != null &&
+                            System.currentTimeMillis() - lastCheckpointTime >= checkpointInterval) {
+                        saveCheckpoint(checkpointIter.getFilePointer(), readInsideRegions);
+                    }
                 }
 
                 if (currentWindow == null) {
@@ -457,14 +949,15 @@ public class BamStatsAnalysis {
                     break;
                 }
 
-                readsBunch.add(read);
+                readsBunch.add(read, position, readInsideRegions);
                 if (readsBunch.size() >= numReadsInBunch) {
-                    if (results.size() >= maxSizeOfTaskQueue )  {
+                    if (bunchesInFlight.size() >= maxSizeOfTaskQueue )  {
                         //System.out.println("Max size of task queue is exceeded!");
-                        collectAnalysisResults(readsBunch);
-                    } else {
-                        analyzeReadsBunch(readsBunch);
+                        collectAnalysisResults(true);
+                        finalizeAnalyzedWindows();
                     }
+                    analyzeReadsBunch(readsBunch);
+                    readsBunch = new BunchOfReads(numReadsInBunch);
                 }
 
                 numberOfValidReads++;
@@ -475,183 +968,246 @@ public class BamStatsAnalysis {
 
         }
 
-        // close stream
-        reader.close();
 
-        if (!readsBunch.isEmpty() || bamStats.getNumberOfProcessedWindows() < bamStats.getNumberOfWindows() ) {
-            int numWindows = bamStats.getNumberOfWindows();
-            long lastPosition = bamStats.getWindowEnd(numWindows - 1) + 1;
-            collectAnalysisResults(readsBunch);
-            //finalize
-            finalizeAndGetNextWindow(lastPosition, currentWindow, openWindows, bamStats, reference, true);
-            if (selectedRegionsAvailable && computeOutsideStats) {
-                currentOutsideWindow.inverseRegions();
-                finalizeAndGetNextWindow(lastPosition,currentOutsideWindow, openOutsideWindows,
-                                outsideBamStats, reference, true);
-            }
+        if (!readsBunch.isEmpty()) {
+            analyzeReadsBunch(readsBunch);
         }
-
-        workerThreadPool.shutdown();
-        workerThreadPool.awaitTermination(2, TimeUnit.MINUTES);
-
-        long endTime = System.currentTimeMillis();
-
-        logger.println("Total processed windows:" + bamStats.getNumberOfProcessedWindows());
-        logger.println("Number of reads: " + numberOfReads);
-        logger.println("Number of valid reads: " + numberOfValidReads);
-        logger.println("Number of correct strand reads:" + numberOfCorrectStrandReads);
-
-        if (numberOfReadsWithStartGreatThenEnd > 0) {
-            logger.warn( numberOfReadsWithStartGreatThenEnd +
-                    "  read alignments have start greater than end" );
+        if (chunkReadCounter != null) {
+            chunkReadCounter.finish();
         }
-
-        if (numberOfProblematicReads > 0) {
-            logger.warn("SAMRecordParser marked " + numberOfProblematicReads + " problematic reads.");
+        if (currentWindow != null && selectedRegionsAvailable && computeOutsideStats) {
+            currentOutsideWindow.inverseRegions();
         }
 
-        if (collectIntersectingPairedEndReads) {
-            bamStatsCollector.finalizeAlignmentInfo();
+        // finalize all the remaining windows
+        currentWindowIndex = windowIndexLimit;
+        while (!bunchesInFlight.isEmpty()) {
+            collectAnalysisResults(true);
         }
-
-        logger.println("\nInside of regions...");
-        logger.print(bamStatsCollector.report());
-
-        if (computeOutsideStats) {
-            logger.println("\nOuside of regions...");
-            logger.print(outsideBamStatsCollector.report());
+        finalizeAnalyzedWindows();
+        while (!windowsInFinalization.isEmpty()) {
+            windowsInFinalization.removeFirst().get();
         }
 
-        logger.println("Time taken to analyze reads: " + (endTime - startTime) / 1000);
-        logger.println();
+    }
 
-        if (numberOfReads == 0) {
-            throw new RuntimeException("The BAM file is empty or corrupt");
+    private boolean contigsCanBeAnalyzedInParallel(boolean indexAvailable, SAMFileHeader header) {
+
+        if (checkpointFile != null) {
+            logger.warn("Checkpoints are saved only by the sequential analysis, chromosomes will be analyzed sequentially.");
+            return false;
         }
 
-        bamStats.setNumberOfReads(numberOfReads);
-        bamStats.setNumDuplicatesSkipped(numberOfDuplicatesSkipped);
-        bamStats.setSkipDuplicatesMode(skipMarkedDuplicates, skipDetectedDuplicates);
-        bamStats.setNumberOfSecondaryAlignments(numberOfSecondaryAlignments);
-        if (skipMarkedDuplicates && numberOfDuplicatesSkipped == 0) {
-            bamStats.addWarning(WARNING_NO_MARKED_DUPLICATES,
-                "Make sure duplicate alignments are flagged in the BAM file or apply a different skip duplicates mode.");
+        if (!indexAvailable) {
+            logger.warn("BAM index is not found, chromosomes will be analyzed sequentially.");
+            return false;
         }
 
-        long totalNumberOfMappedReads = bamStatsCollector.getNumMappedReads();
-        long totalNumberOfPairedReads = bamStatsCollector.getNumPairedReads();
-        long totalNumberOfMappedFirstOfPair = bamStatsCollector.getNumMappedFirstInPair();
-        long totalNumberOfMappedSecondOfPair = bamStatsCollector.getNumMappedSecondInPair();
-        long totalNumberOfSingletons = bamStatsCollector.getNumSingletons();
-        long totalNumberOfSuppAlignments = bamStatsCollector.getNumSupplementaryAlignments();
+        SAMFileHeader.SortOrder sortOrder;
+        try {
+            sortOrder = header.getSortOrder();
+        } catch (IllegalArgumentException ex) {
+            sortOrder = SAMFileHeader.SortOrder.unsorted;
+        }
+        if (sortOrder != SAMFileHeader.SortOrder.coordinate) {
+            logger.warn("BAM file is not sorted by coordinate, chromosomes will be analyzed sequentially.");
+            return false;
+        }
 
-        boolean mappedReadsInRegion = totalNumberOfMappedReads > 0;
+        if (chromosomeWindowIndexes.size() != header.getSequenceDictionary().size()) {
+            logger.warn("Some chromosomes have no separate windows, chromosomes will be analyzed sequentially.");
+            return false;
+        }
 
-        if (selectedRegionsAvailable) {
+        return true;
+    }
 
-            bamStats.setNumSelectedRegions(numberOfSelectedRegions);
-            if (computeOutsideStats)  {
-                // Size was calculated two times during the analysis
-                insideReferenceSize /= 2;
+    private void analyzeContigsInParallel(SAMFileHeader header) throws Exception {
+
+        List<SAMSequenceRecord> sequences = header.getSequenceDictionary().getSequences();
+        int numContigs = sequences.size();
+        logger.println("Analyzing " + numContigs + " chromosomes in parallel...");
+
+        // The tasks are processed in the order of the windows, unmapped reads are the last one,
+        // they are skipped if only the regions are read
+        int numTasks = readRegionsByIndex ? numContigs : numContigs + 1;
+        long[] overhangEnds = findOverhangEnds(sequences);
+        long overhangEnd = 0;
+        ExecutorService contigThreadPool = Executors.newFixedThreadPool(threadNumber);
+        List<Future<BamStatsAnalysis>> contigResults = new ArrayList<Future<BamStatsAnalysis>>();
+        for (int k = 0; k < numTasks; ++k) {
+            int firstWindowIndex = k < numContigs ? chromosomeWindowIndexes.get(k) : effectiveNumberOfWindows;
+            int lastWindowIndex = k + 1 < numContigs ? chromosomeWindowIndexes.get(k + 1) : effectiveNumberOfWindows;
+            int headWindowIndexLimit = firstWindowIndex;
+            while (headWindowIndexLimit < lastWindowIndex &&
+                    bamStats.getWindowStart(headWindowIndexLimit) <= overhangEnd) {
+                headWindowIndexLimit++;
             }
-            bamStats.setInRegionReferenceSize(insideReferenceSize);
-
-            // update totals
-            totalNumberOfMappedReads  += outsideBamStatsCollector.getNumMappedReads();
-            totalNumberOfPairedReads += outsideBamStatsCollector.getNumPairedReads();
-            totalNumberOfMappedFirstOfPair += outsideBamStatsCollector.getNumMappedFirstInPair();
-            totalNumberOfMappedSecondOfPair += outsideBamStatsCollector.getNumMappedSecondInPair();
-            totalNumberOfSingletons += outsideBamStatsCollector.getNumSingletons();
+            if (k < numContigs) {
+                overhangEnd = Math.max(overhangEnd, overhangEnds[k]);
+            }
+            final String contigName = k < numContigs ? sequences.get(k).getSequenceName() : null;
+            final BamStatsAnalysis contigAnalysis = new BamStatsAnalysis(this, firstWindowIndex, lastWindowIndex,
+                    headWindowIndexLimit);
+            contigResults.add( contigThreadPool.submit(new Callable<BamStatsAnalysis>() {
+                public BamStatsAnalysis call() throws Exception {
+                    contigAnalysis.analyzeContig(contigName);
+                    return contigAnalysis;
+                }
+            }));
+        }
+        contigThreadPool.shutdown();
 
-            // inside of regions
-            bamStats.setNumberOfMappedReadsInRegions(bamStatsCollector.getNumMappedReads());
-            bamStats.setNumberOfPairedReadsInRegions(bamStatsCollector.getNumPairedReads());
-            bamStats.setNumberOfMappedFirstOfPairInRegions(bamStatsCollector.getNumMappedFirstInPair());
-            bamStats.setNumberOfMappedSecondOfPairInRegions(bamStatsCollector.getNumMappedSecondInPair());
-            bamStats.setNumberOfSingletonsInRegions(bamStatsCollector.getNumSingletons());
-            bamStats.setNumberOfCorrectStrandReads(numberOfCorrectStrandReads);
+        try {
+            for (Future<BamStatsAnalysis> result : contigResults) {
+                mergeContigAnalysis(result.get());
+            }
+        } finally {
+            contigThreadPool.shutdownNow();
         }
 
-        bamStats.setNumberOfMappedReads(totalNumberOfMappedReads);
-        bamStats.setNumberOfPairedReads(totalNumberOfPairedReads);
-        bamStats.setNumberOfMappedFirstOfPair(totalNumberOfMappedFirstOfPair);
-        bamStats.setNumberOfMappedSecondOfPair(totalNumberOfMappedSecondOfPair);
-        bamStats.setNumberOfSingletons( totalNumberOfSingletons );
-        bamStats.setNumberOfSuppAlignments( totalNumberOfSuppAlignments);
-        if (collectIntersectingPairedEndReads) {
-            bamStats.setNumberOfIntersectingReadPairs(bamStatsCollector.getNumOverlappingReadPairs(),
-                    bamStatsCollector.getNumOverlappingBases());
+    }
+
+    /**
+     * Finds the reads overhanging the end of each chromosome using the BAM index. Their bases are added
+     * to the windows of the next chromosomes, which are finalized only after it.
+     * @return the largest absolute end of the reads overhanging the end of each chromosome, 0 if there are none
+     */
+    private long[] findOverhangEnds(List<SAMSequenceRecord> sequences) {
+        long[] overhangEnds = new long[sequences.size()];
+        SAMFileReader reader = new SAMFileReader(new File(bamFile));
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+        try {
+            for (int k = 0; k < sequences.size(); ++k) {
+                int contigLength = sequences.get(k).getSequenceLength();
+                SAMRecordIterator iter = reader.queryOverlapping(sequences.get(k).getSequenceName(),
+                        contigLength, contigLength);
+                while (iter.hasNext()) {
+                    SAMRecord read = iter.next();
+                    if (read.getAlignmentEnd() > contigLength) {
+                        long readEnd = locator.getAbsoluteCoordinates(k, read.getAlignmentStart()) +
+                                read.getAlignmentEnd() - read.getAlignmentStart();
+                        overhangEnds[k] = Math.max(overhangEnds[k], readEnd);
+                    }
+                }
+                iter.close();
+            }
+        } finally {
+            reader.close();
         }
+        return overhangEnds;
+    }
 
-        bamStats.setReferenceSize(referenceSize);
-        bamStats.setNumberOfReferenceContigs(locator.getContigs().size());
-        bamStats.setReadMaxSize(maxReadSize);
-        bamStats.setReadMinSize(minReadSize);
-        bamStats.setReadMeanSize( acumReadSize / (double) numberOfReads );
+    // contigName is null for the unmapped reads
+    private void analyzeContig(String contigName) throws Exception {
 
-        bamStats.setNumMarkedDuplcateReads( bamStatsCollector.getNumMarkedDuplicates() );
+        SAMFileReader reader = new SAMFileReader(new File(bamFile));
+        reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
 
-        isPairedData = bamStats.getNumberOfPairedReads() > 0 &&
-                (bamStats.getNumberOfPairedReads() - bamStats.getNumberOfSingletons()) > 0;
+        moveToWindow(bamStats.getNumberOfProcessedWindows());
 
-        if (mappedReadsInRegion) {
-            logger.println("Computing descriptors...");
-		    bamStats.computeDescriptors();
-            logger.println("Computing per chromosome statistics...");
-		    bamStats.computeChromosomeStats(locator, chromosomeWindowIndexes);
-            logger.println("Computing histograms...");
-		    bamStats.computeHistograms();
+        CloseableIterator<SAMRecord> iter;
+        if (readRegionsByIndex) {
+            ContigRecord contig = locator.getContigCoordinates(locator.getAbsoluteCoordinates(contigName, 1));
+            iter = new IndexedRegionsIterator(reader, locator, selectedRegionStarts, selectedRegionEnds,
+                    contig.getStart(), contig.getEnd());
         } else {
-            logger.println("\nWARNING: number of mapped reads equals zero");
-            bamStats.addWarning(WARNING_ID_NO_MAPPED_READS, "Total number of mapped reads or mapped reads in region equals zero.\n" +
-                            "For more details, check the number of Unmapped reads.");
+            iter = contigName != null ? reader.query(contigName, 0, 0, false) : reader.queryUnmapped();
+        }
+        try {
+            analyzeReads(iter);
+        } finally {
+            iter.close();
+            reader.close();
         }
 
-        if(selectedRegionsAvailable && computeOutsideStats){
+        if (collectIntersectingPairedEndReads) {
+            bamStatsCollector.finalizeAlignmentInfo();
+        }
 
-            outsideBamStats.setReferenceSize(referenceSize);
-            outsideBamStats.setNumberOfReferenceContigs(locator.getContigs().size());
-            outsideBamStats.setNumSelectedRegions(numberOfSelectedRegions);
-            outsideBamStats.setInRegionReferenceSize(referenceSize - insideReferenceSize);
-            outsideBamStats.setNumberOfReads(numberOfReads);
-            outsideBamStats.setNumberOfSecondaryAlignments(numberOfSecondaryAlignments);
+        if (saveCoverage) {
+            bamStats.closeCoverageReporting();
+        }
+        if (outsideBamStats != null) {
+            if (activeReporting) {
+                outsideBamStats.closeWindowReporting();
+            }
+            if (saveCoverage) {
+                outsideBamStats.closeCoverageReporting();
+            }
+        }
 
-            outsideBamStats.setNumberOfMappedReads(totalNumberOfMappedReads);
-            outsideBamStats.setNumberOfPairedReads(totalNumberOfPairedReads);
-            outsideBamStats.setNumberOfMappedFirstOfPair(totalNumberOfMappedFirstOfPair);
-            outsideBamStats.setNumberOfMappedSecondOfPair(totalNumberOfMappedSecondOfPair);
-            outsideBamStats.setNumberOfSingletons(totalNumberOfSingletons);
+    }
 
-            outsideBamStats.setNumberOfMappedReadsInRegions(outsideBamStatsCollector.getNumMappedReads());
-            outsideBamStats.setNumberOfPairedReadsInRegions(outsideBamStatsCollector.getNumPairedReads());
-            outsideBamStats.setNumberOfMappedFirstOfPairInRegions(outsideBamStatsCollector.getNumMappedFirstInPair());
-            outsideBamStats.setNumberOfMappedSecondOfPairInRegions(outsideBamStatsCollector.getNumMappedSecondInPair());
-            outsideBamStats.setNumberOfSingletonsInRegions(outsideBamStatsCollector.getNumSingletons());
+    private void mergeContigAnalysis(BamStatsAnalysis contigAnalysis) throws Exception {
 
-            outsideBamStats.setReadMaxSize(maxReadSize);
-            outsideBamStats.setReadMinSize(minReadSize);
-            outsideBamStats.setReadMeanSize( acumReadSize / (double) numberOfReads );
+        // the bases overhanging the previous chromosomes are added to the first windows of this one
+        boolean outsideWindows = selectedRegionsAvailable && computeOutsideStats;
+        for (int i = 0; i < contigAnalysis.headWindows.size(); ++i) {
+            finalizeHeadWindow(contigAnalysis.headWindows.get(i), overhangData, bamStats, openWindows);
+            if (outsideWindows) {
+                finalizeHeadWindow(contigAnalysis.outsideHeadWindows.get(i), outsideOverhangData,
+                        outsideBamStats, openOutsideWindows);
+            }
+        }
+        while (!windowsInFinalization.isEmpty()) {
+            windowsInFinalization.removeFirst().get();
+        }
+        overhangData.addAll(contigAnalysis.overhangData);
+        outsideOverhangData.addAll(contigAnalysis.outsideOverhangData);
 
-            outsideBamStats.setNumMarkedDuplcateReads( outsideBamStatsCollector.getNumMarkedDuplicates() );
+        bamStats.merge(contigAnalysis.bamStats);
+        bamStatsCollector.merge(contigAnalysis.bamStatsCollector);
+        if (saveCoverage) {
+            bamStats.appendCoverageReport(contigAnalysis.coverageReportFile);
+        }
 
-            if (outsideBamStatsCollector.getNumMappedReads() > 0)  {
-                logger.println("Computing descriptors for outside regions...");
-                outsideBamStats.computeDescriptors();
-                logger.println("Computing per chromosome statistics for outside regions...");
-                outsideBamStats.computeChromosomeStats(locator, chromosomeWindowIndexes);
-                logger.println("Computing histograms for outside regions...");
-                outsideBamStats.computeHistograms();
-            } else  {
-                logger.println("\nWARNING: number of mapped reads outside of regions equals zero");
-                bamStats.addWarning(WARNING_ID_NO_MAPPED_READS, "Number of mapped reads outside of regions equals zero.\n" +
-                    "For more details, check the number of Unmapped reads.");
+        if (selectedRegionsAvailable) {
+            outsideBamStatsCollector.merge(contigAnalysis.outsideBamStatsCollector);
+            if (computeOutsideStats) {
+                outsideBamStats.merge(contigAnalysis.outsideBamStats);
+                if (activeReporting) {
+                    outsideBamStats.appendWindowReport(contigAnalysis.outsideWindowReportFile);
+                    contigAnalysis.outsideWindowReportFile.delete();
+                }
+                if (saveCoverage) {
+                    outsideBamStats.appendCoverageReport(contigAnalysis.outsideCoverageReportFile);
+                }
             }
-
         }
 
-        long overallTime = System.currentTimeMillis();
-        logger.println("Overall analysis time: " + (overallTime - startTime) / 1000);
+        numberOfReads += contigAnalysis.numberOfReads;
+        numberOfValidReads += contigAnalysis.numberOfValidReads;
+        numberOfSecondaryAlignments += contigAnalysis.numberOfSecondaryAlignments;
+        numberOfDuplicatesSkipped += contigAnalysis.numberOfDuplicatesSkipped;
+        numberOfCorrectStrandReads += contigAnalysis.numberOfCorrectStrandReads;
+        numberOfProblematicReads += contigAnalysis.numberOfProblematicReads;
+        readValidator.merge(contigAnalysis.readValidator);
+        numberOfReadsWithStartGreatThenEnd += contigAnalysis.numberOfReadsWithStartGreatThenEnd;
+        insideReferenceSize += contigAnalysis.insideReferenceSize;
+
+        acumReadSize += contigAnalysis.acumReadSize;
+        maxReadSize = Math.max(maxReadSize, contigAnalysis.maxReadSize);
+        minReadSize = Math.min(minReadSize, contigAnalysis.minReadSize);
+
+        int numProcessedWindows = bamStats.getNumberOfProcessedWindows();
+        logger.println("Processed " + numProcessedWindows + " out of " + effectiveNumberOfWindows + " windows...");
+        updateProgress();
+
+    }
 
+    private void finalizeHeadWindow(BamGenomeWindow window, List<SingleReadData> overhangData, BamStats bamStats,
+                                    Map<Long,BamGenomeWindow> openWindows) throws Exception {
+        Iterator<SingleReadData> it = overhangData.iterator();
+        while (it.hasNext()) {
+            SingleReadData rd = it.next();
+            if (rd.getWindowStart() == window.getStart()) {
+                window.addReadAlignmentData(rd);
+                it.remove();
+            }
+        }
+        bamStats.incInitializedWindows();
+        finalizeWindow(window, bamStats, openWindows);
     }
 
     private void loadProgramRecords(List<SAMProgramRecord> programRecords) {
@@ -669,37 +1225,163 @@ public class BamStatsAnalysis {
         }
     }
 
-    private static List<SAMRecord> getShallowCopy(List<SAMRecord> list) {
-        ArrayList<SAMRecord> result = new ArrayList<SAMRecord>(list.size());
+    // Bunch of reads starting in the given window, the reads can also cover the following windows
+    private static class BunchOfReadsInFlight {
+        final int windowIndex;
+        final Future<ProcessBunchOfReadsTask.Result> result;
+
+        BunchOfReadsInFlight(int windowIndex, Future<ProcessBunchOfReadsTask.Result> result) {
+            this.windowIndex = windowIndex;
+            this.result = result;
+        }
+    }
+
+    // settings changing the results, the analysis is continued from a checkpoint only with the same ones
+    private String getCheckpointSettings() {
+        return effectiveNumberOfWindows + ";" + featureFile + ";" + computeOutsideStats + ";" + referenceFile + ";" +
+                protocol + ";" + skipMarkedDuplicates + ";" + skipDetectedDuplicates + ";" +
+                collectIntersectingPairedEndReads + ";" + minHomopolymerSize + ";" + readValidator.getMode() + ";" +
+                readValidator.getSamplingRate() + ";" + pathToCoverageReport + ";" + coverageReportFormat + ";" +
+                nonZeroCoverageOnly + ";" + activeReporting;
+    }
+
+    /**
+     * Saves the state of the analysis when the reads iterator enters a window. The analyzed reads
+     * are merged into the statistics and the passed windows are finalized first.
+     * @param filePointer BGZF virtual file offset of the read entering the window, it is counted
+     * in the statistics, but its alignment is not analyzed yet
+     * @param readInsideRegions true if the read overlaps the selected regions
+     */
+    private void saveCheckpoint(long filePointer, boolean readInsideRegions) throws Exception {
+        while (!bunchesInFlight.isEmpty()) {
+            collectAnalysisResults(true);
+        }
+        finalizeAnalyzedWindows();
+        while (!windowsInFinalization.isEmpty()) {
+            windowsInFinalization.removeFirst().get();
+        }
 
-        for (SAMRecord r : list)  {
-            result.add(r);
+        BamStatsCheckpoint checkpoint = new BamStatsCheckpoint(new File(bamFile), getCheckpointSettings());
+        checkpoint.filePointer = filePointer;
+        checkpoint.readInsideRegions = readInsideRegions;
+        checkpoint.numberOfReads = numberOfReads;
+        checkpoint.numberOfValidReads = numberOfValidReads;
+        checkpoint.numberOfSecondaryAlignments = numberOfSecondaryAlignments;
+        checkpoint.numberOfDuplicatesSkipped = numberOfDuplicatesSkipped;
+        checkpoint.numberOfCorrectStrandReads = numberOfCorrectStrandReads;
+        checkpoint.numberOfProblematicReads = numberOfProblematicReads;
+        checkpoint.numberOfReadsWithStartGreatThenEnd = numberOfReadsWithStartGreatThenEnd;
+        checkpoint.readValidator = readValidator;
+        checkpoint.acumReadSize = acumReadSize;
+        checkpoint.maxReadSize = maxReadSize;
+        checkpoint.minReadSize = minReadSize;
+        checkpoint.insideReferenceSize = insideReferenceSize;
+        checkpoint.bamStats = bamStats;
+        checkpoint.outsideBamStats = outsideBamStats;
+        checkpoint.bamStatsCollector = bamStatsCollector;
+        checkpoint.outsideBamStatsCollector = outsideBamStatsCollector;
+        checkpoint.openWindows = openWindows;
+        checkpoint.openOutsideWindows = openOutsideWindows;
+        if (saveCoverage) {
+            checkpoint.coverageReportPosition = bamStats.syncCoverageReporting();
+            if (outsideBamStats != null) {
+                checkpoint.outsideCoverageReportPosition = outsideBamStats.syncCoverageReporting();
+            }
         }
+        if (activeReporting && outsideBamStats != null) {
+            // the window report is flushed after each window
+            checkpoint.outsideWindowReportLength = new File(outdir + "/outside_window.txt").length();
+        }
+        checkpoint.save(new File(checkpointFile));
+
+        lastCheckpointTime = System.currentTimeMillis();
+        logger.println("Checkpoint saved after " + bamStats.getNumberOfProcessedWindows() + " windows");
+    }
 
-        return result;
+    /**
+     * @return the saved state or null if there is no checkpoint
+     */
+    private BamStatsCheckpoint loadCheckpoint() throws IOException {
+        File file = new File(checkpointFile);
+        if (!file.exists()) {
+            logger.warn("Checkpoint " + checkpointFile + " is not found, the analysis is started from the beginning.");
+            return null;
+        }
+        BamStatsCheckpoint checkpoint = BamStatsCheckpoint.load(file);
+        if (!checkpoint.matches(new File(bamFile), getCheckpointSettings())) {
+            throw new RuntimeException("Checkpoint " + checkpointFile +
+                    " was saved for another BAM file or with other analysis settings.");
+        }
+        return checkpoint;
+    }
 
+    private void restoreCheckpoint(BamStatsCheckpoint checkpoint) throws IOException {
+        resumedReadPending = true;
+        resumedReadInsideRegions = checkpoint.readInsideRegions;
+        numberOfReads = checkpoint.numberOfReads;
+        numberOfValidReads = checkpoint.numberOfValidReads;
+        numberOfSecondaryAlignments = checkpoint.numberOfSecondaryAlignments;
+        numberOfDuplicatesSkipped = checkpoint.numberOfDuplicatesSkipped;
+        numberOfCorrectStrandReads = checkpoint.numberOfCorrectStrandReads;
+        numberOfProblematicReads = checkpoint.numberOfProblematicReads;
+        numberOfReadsWithStartGreatThenEnd = checkpoint.numberOfReadsWithStartGreatThenEnd;
+        readValidator = checkpoint.readValidator;
+        acumReadSize = checkpoint.acumReadSize;
+        maxReadSize = checkpoint.maxReadSize;
+        minReadSize = checkpoint.minReadSize;
+        insideReferenceSize = checkpoint.insideReferenceSize;
+        bamStats = checkpoint.bamStats;
+        outsideBamStats = checkpoint.outsideBamStats;
+        bamStatsCollector = checkpoint.bamStatsCollector;
+        outsideBamStatsCollector = checkpoint.outsideBamStatsCollector;
+        openWindows = checkpoint.openWindows;
+        openOutsideWindows = checkpoint.openOutsideWindows;
+        if (saveCoverage) {
+            bamStats.resumeCoverageReporting(pathToCoverageReport, coverageReportFormat, nonZeroCoverageOnly,
+                    checkpoint.coverageReportPosition);
+            if (outsideBamStats != null) {
+                outsideBamStats.resumeCoverageReporting(outdir + "/outside_coverage.txt", coverageReportFormat,
+                        nonZeroCoverageOnly, checkpoint.outsideCoverageReportPosition);
+            }
+        }
+        if (activeReporting && outsideBamStats != null) {
+            outsideBamStats.resumeWindowReporting(outdir + "/outside_window.txt",
+                    checkpoint.outsideWindowReportLength);
+        }
     }
 
-    private void analyzeReadsBunch( ArrayList<SAMRecord> readsBunch ) throws ExecutionException, InterruptedException {
-         List<SAMRecord> bunch = getShallowCopy(readsBunch);
-         Callable<ProcessBunchOfReadsTask.Result> task = new ProcessBunchOfReadsTask(bunch,currentWindow, this);
+    private void analyzeReadsBunch( BunchOfReads readsBunch ) throws ExecutionException, InterruptedException {
+         Callable<ProcessBunchOfReadsTask.Result> task = new ProcessBunchOfReadsTask(readsBunch, currentWindow,
+                 currentWindowIndex, this);
          Future<ProcessBunchOfReadsTask.Result> result = workerThreadPool.submit(task);
-         results.add( result );
-         readsBunch.clear();
+         bunchesInFlight.add( new BunchOfReadsInFlight(currentWindowIndex, result) );
     }
 
-    private void collectAnalysisResults(ArrayList<SAMRecord> readsBunch) throws InterruptedException, ExecutionException {
+    /**
+     * Merges the results of the finished tasks into the open windows.
+     * @param waitForOldest if true, wait till the oldest task is finished
+     */
+    private void collectAnalysisResults(boolean waitForOldest) throws InterruptedException, ExecutionException {
 
-        // start last bunch
-        analyzeReadsBunch(readsBunch);
+        if (waitForOldest && !bunchesInFlight.isEmpty()) {
+            bunchesInFlight.getFirst().result.get();
+        }
 
-        // wait till all tasks are finished
-        for (Future<ProcessBunchOfReadsTask.Result> result : results) {
+        Iterator<BunchOfReadsInFlight> it = bunchesInFlight.iterator();
+        while (it.hasNext()) {
+            Future<ProcessBunchOfReadsTask.Result> result = it.next().result;
+            if (!result.isDone()) {
+                continue;
+            }
             ProcessBunchOfReadsTask.Result taskResult = result.get();
             Collection<SingleReadData> dataset = taskResult.getReadAlignmentData();
             for (SingleReadData rd : dataset) {
                 BamGenomeWindow w = openWindows.get(rd.getWindowStart());
-                w.addReadAlignmentData(rd);
+                if (w != null) {
+                    w.addReadAlignmentData(rd);
+                } else {
+                    overhangData.add(rd);
+                }
             }
             bamStats.addReadStatsData( taskResult.getReadStatsCollector() );
 
@@ -707,18 +1389,99 @@ public class BamStatsAnalysis {
                 Collection<SingleReadData> outsideData = taskResult.getOutOfRegionReadsData();
                 for (SingleReadData rd : outsideData) {
                     BamGenomeWindow w = openOutsideWindows.get( rd.getWindowStart() );
-                    w.addReadAlignmentData(rd);
+                    if (w != null) {
+                        w.addReadAlignmentData(rd);
+                    } else {
+                        outsideOverhangData.add(rd);
+                    }
                 }
                 outsideBamStats.addReadStatsData( taskResult.getOutRegionReadStatsCollector() );
 
             }
+            it.remove();
+        }
+
+    }
+
+    /**
+     * Finalizes the windows passed by the reads iterator which can not be changed anymore.
+     * A window can be changed only by the bunches of reads starting in this window or before it,
+     * so it is finalized when no such bunch is in flight.
+     */
+    private void finalizeAnalyzedWindows() throws ExecutionException, InterruptedException {
+        int firstWindowInUse = bunchesInFlight.isEmpty() ? windowIndexLimit : bunchesInFlight.getFirst().windowIndex;
+        while (bamStats.getNumberOfProcessedWindows() < Math.min(currentWindowIndex, firstWindowInUse)) {
+            int windowIndex = bamStats.getNumberOfProcessedWindows();
+            BamGenomeWindow window = getOpenWindow(windowIndex);
+            long windowStart = bamStats.getWindowStart(windowIndex);
+            updateProgress();
+            if (windowIndex < headWindowIndexLimit) {
+                headWindows.add(openWindows.remove(windowStart));
+                bamStats.skipFirstWindow();
+                if (selectedRegionsAvailable && computeOutsideStats) {
+                    outsideHeadWindows.add(openOutsideWindows.remove(windowStart));
+                    outsideBamStats.skipFirstWindow();
+                }
+                continue;
+            }
+            finalizeWindow(window, bamStats, openWindows);
+            if (selectedRegionsAvailable && computeOutsideStats) {
+                finalizeWindow(openOutsideWindows.get(windowStart), outsideBamStats, openOutsideWindows);
+            }
         }
+    }
 
-        results.clear();
+    // Sets the current window of the reads iterator
+    private void moveToWindow(int windowIndex) {
+        currentWindowIndex = windowIndex;
+        if (windowIndex < windowIndexLimit) {
+            currentWindow = getOpenWindow(windowIndex);
+            if (selectedRegionsAvailable && computeOutsideStats) {
+                currentOutsideWindow = openOutsideWindows.get(currentWindow.getStart());
+            }
+        } else {
+            currentWindow = null;
+            currentOutsideWindow = null;
+        }
+    }
 
+    /**
+     * Returns the window with the given index. If the window is not open yet, it is initialized
+     * together with all the preceding windows, so the windows are always initialized in order.
+     * The outside of regions windows are initialized as well.
+     */
+    synchronized BamGenomeWindow getOpenWindow(int windowIndex) {
+        if (windowIndex >= windowIndexLimit) {
+            return getOverhangWindow(windowIndex);
+        }
+        BamGenomeWindow window = null;
+        int firstIndex = Math.min(windowIndex, bamStats.getNumberOfInitializedWindows());
+        for (int i = firstIndex; i <= windowIndex; ++i) {
+            long windowStart = bamStats.getWindowStart(i);
+            window = getOpenWindow(windowStart, bamStats, openWindows);
+            if (selectedRegionsAvailable && computeOutsideStats) {
+                getOpenWindow(windowStart, outsideBamStats, openOutsideWindows);
+            }
+        }
+        return window;
     }
 
 
+    /**
+     * Returns a window following the windows of the chromosome analysis. It only locates the overhanging
+     * bases of the reads, they are collected separately and handed to the analysis of the next chromosomes.
+     */
+    private BamGenomeWindow getOverhangWindow(int windowIndex) {
+        long windowStart = bamStats.getWindowStart(windowIndex);
+        BamGenomeWindow window = overhangWindows.get(windowStart);
+        if (window == null) {
+            window = initWindow(bamStats.getWindowName(windowIndex), windowStart,
+                    Math.min(bamStats.getWindowEnd(windowIndex), referenceSize), null, false);
+            overhangWindows.put(windowStart, window);
+        }
+        return window;
+    }
+
     public BamGenomeWindow getOpenWindow(long windowStart,BamStats bamStats,
                                          Map<Long,BamGenomeWindow> openWindows) {
         BamGenomeWindow window;
@@ -728,8 +1491,13 @@ public class BamStatsAnalysis {
             int numInitWindows = bamStats.getNumberOfInitializedWindows();
             String windowName = bamStats.getWindowName(numInitWindows);
             long windowEnd = bamStats.getWindowEnd(numInitWindows);
+            long[] referenceCounts = referenceComposition != null ?
+                    referenceComposition.getNucleotideCounts(numInitWindows) : null;
             window = initWindow(windowName, windowStart,
-                    Math.min(windowEnd, bamStats.getReferenceSize()), reference, true);
+                    Math.min(windowEnd, bamStats.getReferenceSize()), referenceCounts, true);
+            if (selectedRegionsAvailable) {
+                insideReferenceSize += window.getSelectedRegions().cardinality();
+            }
             bamStats.incInitializedWindows();
             openWindows.put(windowStart,window);
         }
@@ -737,27 +1505,6 @@ public class BamStatsAnalysis {
         return window;
     }
 
-    //TODO: try using this method for better performance
-    /*private void calculateRegionsLookUpTableForWindowNew(BamGenomeWindow w) {
-
-        int windowSize = (int) w.getWindowSize();
-
-        BitSet bitSet = new BitSet((int)w.getWindowSize());
-
-        ContigRecord windowContig = locator.getContigCoordinates(w.getStart());
-
-        int relativeWindowStart = (int) windowContig.getRelative();
-        int relativeWindowEnd = relativeWindowStart + windowSize - 1;
-        String contigName = windowContig.getName();
-
-        regionOverlapLookupTable.markIntersectingRegions(bitSet, relativeWindowStart,
-                relativeWindowEnd, contigName);
-
-        w.setSelectedRegions(bitSet);
-        w.setSelectedRegionsAvailable(true);
-    }*/
-
-
     private void calculateRegionsLookUpTableForWindow(BamGenomeWindow w) {
 
         long windowStart = w.getStart();
@@ -766,40 +1513,27 @@ public class BamStatsAnalysis {
 
         BitSet bitSet = new BitSet((int)w.getWindowSize());
 
+        // the first region ending inside or after the window, the following ones are visited
+        // while they start inside of it
         int numRegions = selectedRegionStarts.length;
-
-        for (int i = 0; i < numRegions; ++i) {
-            long regionStart = selectedRegionStarts[i];
-            long regionEnd = selectedRegionEnds[i];
-
-            if (regionStart == -1) {
-                continue;
-            }
-
-            if ( regionStart >= windowStart && regionStart <= windowEnd ) {
-                //System.out.println("Have match! Type1 " + w.getName());
-                long end = Math.min(windowEnd,regionEnd);
-                bitSet.set((int)(regionStart-windowStart), (int)(end-windowStart + 1),true);
-            } else if (regionEnd >= windowStart && regionEnd <= windowEnd) {
-                //System.out.println("Have match! Type2 " + w.getName());
-                bitSet.set(0, (int)(regionEnd - windowStart + 1), true);
-            } else if (regionStart <= windowStart && regionEnd >= windowEnd) {
-                //System.out.println("Have match! Type3 " + w.getName());
-                bitSet.set(0, (int)(windowEnd - windowStart + 1),true);
-            }
-
+        int i = Arrays.binarySearch(selectedRegionEnds, windowStart);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        for (; i < numRegions && selectedRegionStarts[i] <= windowEnd; ++i) {
+            long start = Math.max(selectedRegionStarts[i], windowStart);
+            long end = Math.min(windowEnd, selectedRegionEnds[i]);
+            bitSet.set((int)(start - windowStart), (int)(end - windowStart + 1), true);
         }
 
         w.setSelectedRegions(bitSet);
         w.setSelectedRegionsAvailable(true);
 
-        insideReferenceSize += bitSet.cardinality();
-
     }
 
 
 
-    public BamGenomeWindow initWindow(String name,long windowStart,long windowEnd, byte[]reference,
+    public BamGenomeWindow initWindow(String name,long windowStart,long windowEnd, long[] referenceCounts,
                                              boolean detailed){
 
 
@@ -808,13 +1542,12 @@ public class BamStatsAnalysis {
             System.err.print("Last window is here?");
         }*/
 
-        byte[]miniReference = null;
-		if(reference != null) {
-			miniReference = Arrays.copyOfRange(reference, (int) (windowStart - 1), (int) (windowEnd - 1));
-		}
+        BamGenomeWindow w = detailed ? new BamDetailedGenomeWindow(name,windowStart,windowEnd,null) :
+                    new BamGenomeWindow(name,windowStart,windowEnd,null);
 
-        BamGenomeWindow w = detailed ? new BamDetailedGenomeWindow(name,windowStart,windowEnd,miniReference) :
-                    new BamGenomeWindow(name,windowStart,windowEnd,miniReference);
+        if (referenceCounts != null) {
+            w.setReferenceNucleotideCounts(referenceCounts);
+        }
 
         if (selectedRegionsAvailable) {
             calculateRegionsLookUpTableForWindow(w);
@@ -824,50 +1557,6 @@ public class BamStatsAnalysis {
 	}
 
 
-    private BamGenomeWindow nextWindow(BamStats bamStats, Map<Long,BamGenomeWindow> openWindows,byte[]reference,boolean detailed){
-		// init new current
-		BamGenomeWindow currentWindow = null;
-
-		if(bamStats.getNumberOfProcessedWindows() < bamStats.getNumberOfWindows()){
-			int numProcessed = bamStats.getNumberOfProcessedWindows();
-            long windowStart = bamStats.getWindowStart(numProcessed);
-
-			if(windowStart <= bamStats.getReferenceSize()){
-				long windowEnd = bamStats.getCurrentWindowEnd();
-				if(openWindows.containsKey(windowStart)){
-					currentWindow = openWindows.get(windowStart);
-					//openWindows.remove(windowStart);
-				} else {
-					currentWindow = initWindow(bamStats.getCurrentWindowName(),windowStart,Math.min(windowEnd,bamStats.getReferenceSize()),reference,detailed);
-					bamStats.incInitializedWindows();
-                    openWindows.put(windowStart, currentWindow);
-				}
-			}
-		}
-
-		return currentWindow;
-	}
-
-    private BamGenomeWindow finalizeAndGetNextWindow(long position, BamGenomeWindow lastWindow,
-                                                     Map<Long,BamGenomeWindow> openWindows,BamStats bamStats,
-                                                     byte[]reference, boolean detailed)
-            throws CloneNotSupportedException, ExecutionException, InterruptedException {
-        // position is still far away
-        while(position > lastWindow.getEnd() ) {
-            updateProgress();
-            //finalizeWindowInSameThread(lastWindow, bamStats, openWindows);
-            finalizeWindow(lastWindow, bamStats, openWindows);
-            lastWindow = nextWindow(bamStats,openWindows,reference,detailed);
-            if (lastWindow == null) {
-                break;
-            }
-
-        }
-
-        return lastWindow;
-    }
-
-
     private void updateProgress() {
         if (!computeOutsideStats) {
             progress = (bamStats.getNumberOfProcessedWindows() * 100) / effectiveNumberOfWindows;
@@ -882,12 +1571,13 @@ public class BamStatsAnalysis {
     }
     private void finalizeWindow(BamGenomeWindow window, BamStats bamStats,
                                            Map<Long,BamGenomeWindow> openWindows) throws ExecutionException, InterruptedException {
-        if (finalizeWindowResult != null) {
-            // We only run finalization of one window in parallel to prevent to many open windows
-            finalizeWindowResult.get();
-
+        // Several windows are finalized in parallel, their number is limited to prevent too many open windows
+        while (!windowsInFinalization.isEmpty() && (windowsInFinalization.getFirst().isDone() ||
+                windowsInFinalization.size() >= maxNumberOfWindowsInFinalization)) {
+            windowsInFinalization.removeFirst().get();
         }
 
+        int windowIndex = bamStats.getNumberOfProcessedWindows();
 
         long windowStart = bamStats.getCurrentWindowStart();
         openWindows.remove(windowStart);
@@ -895,13 +1585,13 @@ public class BamStatsAnalysis {
 
         // report progress
         int numProcessedWindows = bamStats.getNumberOfProcessedWindows();
-        if (numProcessedWindows % windowBlockSizeToReport == 0 && bamStats == this.bamStats) {
+        if (numProcessedWindows % windowBlockSizeToReport == 0 && bamStats == this.bamStats && !isContigAnalysis) {
             logger.println("Processed " + numProcessedWindows + " out of " + effectiveNumberOfWindows + " windows...");
         }
 
         //System.out.println("Time taken to count overlappers: " + timeToCalcOverlappers);
         timeToCalcOverlappers = 0;
-        finalizeWindowResult = workerThreadPool.submit( new FinalizeWindowTask(bamStats,window));
+        windowsInFinalization.add( workerThreadPool.submit(new FinalizeWindowTask(bamStats, window, windowIndex)) );
 
     }
 
@@ -926,31 +1616,96 @@ public class BamStatsAnalysis {
 
 	private void loadReference() throws Exception{
 		if(referenceAvailable){
-			// prepare reader
-			FastaReader reader = new FastaReader(referenceFile);
-
-			// init buffer
-			StringBuilder referenceBuffer = new StringBuilder();
-
-			numberOfReferenceContigs = 0;
-			Fasta contig;
-			while((contig=reader.read())!=null){
-				referenceBuffer.append(contig.getSeq().toUpperCase());
-				numberOfReferenceContigs++;
-			}
-
-			reader.close();
-			reference = referenceBuffer.toString().getBytes();
-			referenceSize = reference.length;
-			if(reference.length!=locator.getTotalSize()){
-				throw new Exception("invalid reference file, number of nucleotides differs");
-			}
+			// the sequence is memory-mapped, windows access it through the FASTA index
+			reference = new IndexedFastaReference(referenceFile, locator);
+			referenceSize = locator.getTotalSize();
+			numberOfReferenceContigs = reference.getNumberOfSequences();
 		} else {
 			referenceSize = locator.getTotalSize();
 			numberOfReferenceContigs = locator.getContigs().size();
 		}
 	}
 
+    private void loadReferenceComposition() {
+        referenceComposition = new ReferenceCompositionCache(referenceFile, reference.getChecksum(),
+                windowPositions, referenceSize);
+        if (referenceComposition.load()) {
+            logger.println("Loaded reference composition of windows from cache");
+            return;
+        }
+
+        logger.println("Computing reference composition of windows...");
+        referenceComposition.compute(reference);
+        try {
+            referenceComposition.save();
+        } catch (IOException e) {
+            logger.warn("Failed to save reference composition cache: " + e.getMessage());
+        }
+    }
+
+    // Sorts the selected regions by start and merges the overlapping ones,
+    // so the regions intersecting a window are found by a binary search
+    private void sortSelectedRegions(int numRegions) {
+        // sort by start, the index of the region is packed into the low bits of the key
+        int indexBits = 32 - Integer.numberOfLeadingZeros(numRegions);
+        long indexMask = (1L << indexBits) - 1;
+        long[] keys = new long[numRegions];
+        for (int i = 0; i < numRegions; ++i) {
+            keys[i] = (selectedRegionStarts[i] << indexBits) | i;
+        }
+        Arrays.sort(keys);
+
+        long[] sortedStarts = new long[numRegions];
+        long[] sortedEnds = new long[numRegions];
+        int numMerged = 0;
+        for (int i = 0; i < numRegions; ++i) {
+            int index = (int) (keys[i] & indexMask);
+            long start = selectedRegionStarts[index];
+            long end = selectedRegionEnds[index];
+            if (end < start) {
+                continue;
+            }
+            if (numMerged > 0 && start <= sortedEnds[numMerged - 1]) {
+                sortedEnds[numMerged - 1] = Math.max(sortedEnds[numMerged - 1], end);
+            } else {
+                sortedStarts[numMerged] = start;
+                sortedEnds[numMerged] = end;
+                numMerged++;
+            }
+        }
+
+        selectedRegionStarts = Arrays.copyOf(sortedStarts, numMerged);
+        selectedRegionEnds = Arrays.copyOf(sortedEnds, numMerged);
+    }
+
+    // The sampled chunks are analyzed as the selected regions
+    private void loadSampledRegions() {
+
+        chunkSampling = new ChunkSampling(locator, windowPositions, samplingFraction, samplingChunkSize,
+                ChunkSampling.DEFAULT_SEED);
+        numberOfSelectedRegions = chunkSampling.getNumberOfChunks();
+        logger.println("Approximate analysis: sampled " + numberOfSelectedRegions + " chunks, " +
+                chunkSampling.getSampledSize() + " bp");
+
+        selectedRegionStarts = new long[numberOfSelectedRegions];
+        selectedRegionEnds = new long[numberOfSelectedRegions];
+        regionOverlapLookupTable = new RegionOverlapLookupTable();
+        for (int i = 0; i < numberOfSelectedRegions; ++i) {
+            long start = chunkSampling.getChunkStart(i);
+            long end = chunkSampling.getChunkEnd(i);
+            ContigPosition contigStart = locator.getContigPosition(start);
+            int relativeStart = (int) contigStart.getRelative();
+            selectedRegionStarts[i] = start;
+            selectedRegionEnds[i] = end;
+            regionOverlapLookupTable.putRegion(relativeStart, relativeStart + (int) (end - start),
+                    contigStart.getName(), true);
+        }
+        sortSelectedRegions(numberOfSelectedRegions);
+
+        selectedRegionsAvailable = true;
+        bamStats.setChunkSampling(chunkSampling);
+    }
+
     private void loadSelectedRegions() throws SecurityException, IOException, NoSuchMethodException, FileFormatException {
 
 
@@ -1012,6 +1767,8 @@ public class BamStatsAnalysis {
 			index++;
 		}
 
+        sortSelectedRegions(index);
+
         if (regionsWithMissingChromosomesCount > 0)  {
             if (regionsWithMissingChromosomesCount == numberOfSelectedRegions) {
                 throw new RuntimeException("The feature file with regions can not be associated with the BAM file.\n" +
@@ -1083,10 +1840,12 @@ public class BamStatsAnalysis {
 
     private boolean readOverlapsRegions(SAMRecord read) {
 
-
+        if (regionOverlapCursor == null) {
+            regionOverlapCursor = regionOverlapLookupTable.createCursor();
+        }
 
         if (protocol == LibraryProtocol.NON_STRAND_SPECIFIC) {
-            return regionOverlapLookupTable.overlaps(read.getAlignmentStart(),
+            return regionOverlapCursor.overlaps(read.getAlignmentStart(),
                             read.getAlignmentEnd(), read.getReferenceName());
         } else {
 
@@ -1101,7 +1860,7 @@ public class BamStatsAnalysis {
                  (read.getSecondOfPairFlag() && readHasForwardStrand) ;
             }
 
-            RegionOverlapLookupTable.OverlapResult r = regionOverlapLookupTable.overlaps( read.getAlignmentStart(),
+            RegionOverlapLookupTable.OverlapResult r = regionOverlapCursor.overlaps( read.getAlignmentStart(),
                     read.getAlignmentEnd(), read.getReferenceName(), forwardTranscriptStrandIsExpected);
 
             if (r.strandMatches()) {
@@ -1128,14 +1887,17 @@ public class BamStatsAnalysis {
         return outsideBamStats;
     }
 
-    HashMap<Long,BamGenomeWindow> getOpenOutsideWindows() {
-        return openOutsideWindows;
-    }
-
-
-
-    ConcurrentMap<Long,BamGenomeWindow> getOpenWindows() {
-        return openWindows;
+    /**
+     * @return true if the alignments are read from the standard input or a named pipe, only
+     * a sequential analysis of all reads is possible in this case
+     */
+    public boolean isStreamInput() {
+        if (bamFile.equals(Constants.STANDARD_INPUT_FILE_NAME)) {
+            return true;
+        }
+        // a missing file is not a stream, it is reported as not found when opened
+        File file = new File(bamFile);
+        return file.exists() && !file.isFile() && !file.isDirectory();
     }
 
     public boolean isPairedData() {
@@ -1155,6 +1917,15 @@ public class BamStatsAnalysis {
 		this.activeReporting = true;
 	}
 
+    /**
+     * Sets the reference FASTA file used to compute the nucleotide content of the windows.
+     * The file is accessed through its index (.fai), which is computed if it does not exist.
+     */
+    public void setReferenceFile(String referenceFile) {
+        this.referenceFile = referenceFile;
+        referenceAvailable = referenceFile != null;
+    }
+
     public void setSelectedRegions(String featureFile){
 		this.featureFile = featureFile;
 		selectedRegionsAvailable = true;
@@ -1172,6 +1943,14 @@ public class BamStatsAnalysis {
         this.threadNumber = threadNumber;
     }
 
+    /**
+     * Sets the number of threads used to inflate BGZF blocks of the input BAM file.
+     * If the number is 0, the records are read directly by the main analysis thread.
+     */
+    public void setNumberOfDecodingThreads(int numDecodingThreads) {
+        this.numDecodingThreads = numDecodingThreads;
+    }
+
     public void setNumberOfReadsInBunch(int bunchSize) {
         numReadsInBunch = bunchSize;
     }
@@ -1188,11 +1967,38 @@ public class BamStatsAnalysis {
         minHomopolymerSize = size;
     }
 
+    public boolean getUseAlignmentVectors() {
+        return useAlignmentVectors;
+    }
+
+    /**
+     * Process reads via per-read alignment vectors instead of walking the CIGAR directly.
+     * This is the slower reference implementation, kept for checking the results.
+     */
+    public void setUseAlignmentVectors(boolean useAlignmentVectors) {
+        this.useAlignmentVectors = useAlignmentVectors;
+    }
+
+    /**
+     * Analyze the chromosomes in parallel, each one is read from the BAM file using its index.
+     * If the BAM file is not indexed or not sorted by coordinate, the chromosomes are analyzed sequentially.
+     */
+    public void setAnalyzeContigsInParallel(boolean analyzeContigsInParallel) {
+        this.analyzeContigsInParallel = analyzeContigsInParallel;
+    }
+
     public void setPathToCoverageReport(String pathToCoverageReport) {
         this.saveCoverage = true;
         this.pathToCoverageReport = pathToCoverageReport;
     }
 
+    /**
+     * Format of the coverage report, by default one line is written per base.
+     */
+    public void setCoverageReportFormat(CoverageWriter.Format coverageReportFormat) {
+        this.coverageReportFormat = coverageReportFormat;
+    }
+
     private static String boolToStr(boolean yes) {
         return yes ? "yes\n" : "no\n";
     }
@@ -1208,6 +2014,9 @@ public class BamStatsAnalysis {
                 if (computeOutsideStats) {
                     cmdBuilder.append(Constants.BAMQC_OPTION_OUTSIDE_STATS);
                 }
+                if (queryRegionsByIndex) {
+                    cmdBuilder.append(Constants.BAMQC_OPTION_REGIONS_BY_INDEX);
+                }
             }
 
             if (drawChromosomeLimits) {
@@ -1231,6 +2040,19 @@ public class BamStatsAnalysis {
                 cmdBuilder.append(Constants.BAMQC_OPTION_SKIP_DUPLICATES_MODE, "2");
             }
 
+            if (samplingFraction > 0) {
+                cmdBuilder.append(Constants.BAMQC_OPTION_SAMPLING_FRACTION, Double.toString(samplingFraction));
+                cmdBuilder.append(Constants.BAMQC_OPTION_SAMPLING_CHUNK_SIZE, samplingChunkSize);
+            }
+
+            if (readValidator.getMode() != ReadValidationMode.FULL) {
+                cmdBuilder.append(Constants.BAMQC_OPTION_VALIDATION_MODE, readValidator.getMode().toString());
+                if (readValidator.getMode() == ReadValidationMode.SAMPLED) {
+                    cmdBuilder.append(Constants.BAMQC_OPTION_VALIDATION_SAMPLING_RATE,
+                            readValidator.getSamplingRate());
+                }
+            }
+
 
             return cmdBuilder.getCmdLine();
 
@@ -1279,14 +2101,23 @@ public class BamStatsAnalysis {
 
             reporter.addInputDataSection("Alignment", alignParams);
 
-            if ( selectedRegionsAvailable ) {
+            if ( featureFile != null ) {
                 HashMap<String,String> regionParams = new HashMap<String, String>();
                 regionParams.put("GFF file: ", featureFile);
                 regionParams.put("Outside statistics: ", boolToStr(computeOutsideStats));
+                regionParams.put("Regions read by index: ", boolToStr(readRegionsByIndex));
                 regionParams.put("Library protocol: ", protocol.toString() );
                 reporter.addInputDataSection("GFF region", regionParams);
             }
 
+            if (chunkSampling != null) {
+                HashMap<String,String> samplingParams = new HashMap<String, String>();
+                samplingParams.put("Sampling fraction: ", Double.toString(samplingFraction));
+                samplingParams.put("Chunk size: ", Integer.toString(samplingChunkSize));
+                samplingParams.put("Number of sampled chunks: ", Integer.toString(chunkSampling.getNumberOfChunks()));
+                reporter.addInputDataSection("Approximation", samplingParams);
+            }
+
 
         }
 
@@ -1326,6 +2157,56 @@ public class BamStatsAnalysis {
     }
 
 
+    /**
+     * Sets how the alignment records are validated, by default each record is fully validated.
+     * @param samplingRate In the sampled mode, one of samplingRate records is fully validated
+     */
+    public void setReadValidationMode(ReadValidationMode mode, int samplingRate) {
+        this.readValidator = new ReadValidator(mode, samplingRate);
+    }
+
+    /**
+     * Only the reads overlapping the selected regions are read using the BAM index,
+     * the total numbers of reads are taken from the index. Ignored if the outside of regions
+     * statistics are computed or there is no index.
+     */
+    public void setQueryRegionsByIndex(boolean queryRegionsByIndex) {
+        this.queryRegionsByIndex = queryRegionsByIndex;
+    }
+
+    /**
+     * Activates the approximate analysis: only the reads of a random sample of genomic chunks
+     * are analyzed, the BAM index is required.
+     * @param samplingFraction Expected fraction of the reference covered by the sample, 0 disables the sampling
+     * @param chunkSize Size of a sampled chunk
+     */
+    public void setApproximation(double samplingFraction, int chunkSize) {
+        this.samplingFraction = samplingFraction;
+        this.samplingChunkSize = chunkSize;
+    }
+
+    public boolean isApproximation() {
+        return samplingFraction > 0;
+    }
+
+    /**
+     * Saves the state of the analysis to a file at window boundaries, the file is deleted
+     * when the analysis is finished. Checkpoints are saved only by the sequential analysis of a BAM file.
+     * @param checkpointFile Path to the checkpoint
+     * @param intervalInMinutes Minimum time between the checkpoints, 0 saves the state at every window
+     */
+    public void setCheckpointFile(String checkpointFile, int intervalInMinutes) {
+        this.checkpointFile = checkpointFile;
+        this.checkpointInterval = intervalInMinutes * 60000L;
+    }
+
+    /**
+     * Continues the analysis from the checkpoint file if it exists.
+     */
+    public void setResumeFromCheckpoint(boolean resumeFromCheckpoint) {
+        this.resumeFromCheckpoint = resumeFromCheckpoint;
+    }
+
     public void activateIntersectingPairedEndReadsStats() {
         this.collectIntersectingPairedEndReads = true;
     }
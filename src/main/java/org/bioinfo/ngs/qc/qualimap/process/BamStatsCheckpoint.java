@@ -0,0 +1,132 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.process;
+
+import org.bioinfo.ngs.qc.qualimap.beans.BamGenomeWindow;
+import org.bioinfo.ngs.qc.qualimap.beans.BamStats;
+import org.bioinfo.ngs.qc.qualimap.common.BamStatsCollector;
+import org.bioinfo.ngs.qc.qualimap.common.CoverageWriter;
+
+import java.io.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * State of a BAM QC analysis saved at a window boundary.
+ *
+ * It holds the statistics of the finalized windows, the open windows, the collectors
+ * and the BGZF virtual file offset of the read entering the window, so an interrupted analysis can be
+ * continued from it with the same results. The checkpoint is identified by the size and
+ * the modification time of the BAM file and the settings of the analysis.
+ */
+class BamStatsCheckpoint implements Serializable {
+
+    private static final long serialVersionUID = 8014305214295613649L;
+
+    static final int MAGIC = 0x514d4350;
+    // the serialized classes have fixed serialVersionUIDs, increment it when their fields change
+    static final int VERSION = 2;
+
+    // identification
+    long bamFileLength, bamFileModified;
+    String settings;
+
+    // the read entering the window, it is counted in the globals but not analyzed yet
+    long filePointer;
+    boolean readInsideRegions;
+
+    // globals
+    long numberOfReads;
+    long numberOfValidReads;
+    long numberOfSecondaryAlignments;
+    long numberOfDuplicatesSkipped;
+    long numberOfCorrectStrandReads;
+    long numberOfProblematicReads;
+    long numberOfReadsWithStartGreatThenEnd;
+    ReadValidator readValidator;
+    long acumReadSize;
+    int maxReadSize, minReadSize;
+    long insideReferenceSize;
+
+    // statistics
+    BamStats bamStats, outsideBamStats;
+    BamStatsCollector bamStatsCollector, outsideBamStatsCollector;
+    ConcurrentMap<Long,BamGenomeWindow> openWindows, openOutsideWindows;
+    CoverageWriter.Position coverageReportPosition, outsideCoverageReportPosition;
+    long outsideWindowReportLength;
+
+    BamStatsCheckpoint(File bamFile, String settings) {
+        this.bamFileLength = bamFile.length();
+        this.bamFileModified = bamFile.lastModified();
+        this.settings = settings;
+    }
+
+    /**
+     * @return true if the checkpoint was saved by the analysis of this file with the same settings
+     */
+    boolean matches(File bamFile, String settings) {
+        return bamFileLength == bamFile.length() && bamFileModified == bamFile.lastModified() &&
+                this.settings.equals(settings);
+    }
+
+    /**
+     * Saves the checkpoint. The file is written under a temporary name first,
+     * so the previous checkpoint is kept if the analysis is interrupted while saving.
+     */
+    void save(File checkpointFile) throws IOException {
+        File tmpFile = File.createTempFile(checkpointFile.getName(), ".tmp",
+                checkpointFile.getAbsoluteFile().getParentFile());
+        ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile))));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeObject(this);
+        } finally {
+            out.close();
+        }
+
+        if (!tmpFile.renameTo(checkpointFile)) {
+            checkpointFile.delete();
+            if (!tmpFile.renameTo(checkpointFile)) {
+                tmpFile.delete();
+                throw new IOException("Failed to write " + checkpointFile.getPath());
+            }
+        }
+    }
+
+    static BamStatsCheckpoint load(File checkpointFile) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new GZIPInputStream(
+                new BufferedInputStream(new FileInputStream(checkpointFile))));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(checkpointFile.getPath() + " is not a BAM QC checkpoint");
+            }
+            return (BamStatsCheckpoint) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(checkpointFile.getPath() + " is not a BAM QC checkpoint");
+        } finally {
+            in.close();
+        }
+    }
+
+}
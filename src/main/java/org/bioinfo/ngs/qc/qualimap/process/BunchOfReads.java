@@ -0,0 +1,85 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.process;
+
+import net.sf.samtools.SAMRecord;
+
+/**
+ * Reads passed to a ProcessBunchOfReadsTask. The classification done by the reading thread
+ * is kept in primitive arrays next to the records, so the records are not modified.
+ */
+class BunchOfReads {
+
+    private SAMRecord[] reads;
+    private long[] positions;
+    private boolean[] insideRegions;
+    private int size;
+
+    BunchOfReads(int capacity) {
+        reads = new SAMRecord[capacity];
+        positions = new long[capacity];
+        insideRegions = new boolean[capacity];
+    }
+
+    /**
+     * @param position Absolute position of the alignment start
+     * @param insideRegions True if the read is inside the regions of interest or no regions are given
+     */
+    void add(SAMRecord read, long position, boolean insideRegions) {
+        if (size == reads.length) {
+            int capacity = Math.max(size * 2, 16);
+            SAMRecord[] newReads = new SAMRecord[capacity];
+            System.arraycopy(reads, 0, newReads, 0, size);
+            reads = newReads;
+            long[] newPositions = new long[capacity];
+            System.arraycopy(positions, 0, newPositions, 0, size);
+            positions = newPositions;
+            boolean[] newInsideRegions = new boolean[capacity];
+            System.arraycopy(this.insideRegions, 0, newInsideRegions, 0, size);
+            this.insideRegions = newInsideRegions;
+        }
+        reads[size] = read;
+        positions[size] = position;
+        this.insideRegions[size] = insideRegions;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    SAMRecord getRead(int index) {
+        return reads[index];
+    }
+
+    long getPosition(int index) {
+        return positions[index];
+    }
+
+    boolean isInsideRegions(int index) {
+        return insideRegions[index];
+    }
+
+}
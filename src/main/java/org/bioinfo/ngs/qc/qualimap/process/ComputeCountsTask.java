@@ -351,7 +351,7 @@ public class ComputeCountsTask  {
         return featureIntervalMap;
     }
 
-    private void processFragment(ArrayList<SAMRecord> fragmentReads) {
+    private void processFragment(ArrayList<SAMRecord> fragmentReads, float fragmentWeight) {
         int numReads = fragmentReads.size();
         if (numReads == 0) {
             return;
@@ -368,10 +368,8 @@ public class ComputeCountsTask  {
         fragmentCount++;
 
         ArrayList<Interval> intervals = new ArrayList<Interval>();
-        float fragmentWeight = 0;
         for (SAMRecord read : fragmentReads) {
             intervals.addAll(  getReadIntervals(read) );
-            fragmentWeight += read.getFloatAttribute(Constants.READ_WEIGHT_ATTR);
         }
         fragmentWeight /= numReads;
         processAlignmentIntervals(intervals, fragmentWeight, 2);
@@ -380,9 +378,8 @@ public class ComputeCountsTask  {
     }
 
 
-    void processRead(SAMRecord read) {
+    void processRead(SAMRecord read, float readWeight) {
         List<Interval> intervals = getReadIntervals(read);
-        float readWeight = read.getFloatAttribute(Constants.READ_WEIGHT_ATTR);
         singleReadCount++;
         processAlignmentIntervals(intervals, readWeight, 1);
     }
@@ -441,7 +438,10 @@ public class ComputeCountsTask  {
     }
 
 
-    boolean computeReadWeight(SAMRecord read) {
+    /**
+     * @return weight of the read or a negative value if the read is not counted
+     */
+    float computeReadWeight(SAMRecord read) {
         float readWeight = 1.0f;
         int nh = 1;
         try {
@@ -452,14 +452,13 @@ public class ComputeCountsTask  {
         if (nh > 1) {
             if (countingAlgorithm.equals(COUNTING_ALGORITHM_ONLY_UNIQUELY_MAPPED)) {
                 alignmentNotUnique++;
-                return false;
+                return -1;
             } else if (countingAlgorithm.equals(COUNTING_ALGORITHM_PROPORTIONAL)) {
                 readWeight = 1.0f / nh;
             }
         }
 
-        read.setAttribute(Constants.READ_WEIGHT_ATTR, readWeight);
-        return true;
+        return readWeight;
     }
 
 
@@ -484,6 +483,8 @@ public class ComputeCountsTask  {
         strandSpecificAnalysis = protocol != LibraryProtocol.NON_STRAND_SPECIFIC;
 
         ArrayList<SAMRecord> fragmentReads = new ArrayList<SAMRecord>();
+        // sum of the weights of the fragment reads
+        float fragmentWeight = 0;
         ArrayList<String> chr_names = new ArrayList<String>();
         HashSet<String> notFoundChrNames = new HashSet<String>();
 
@@ -511,7 +512,8 @@ public class ComputeCountsTask  {
                 continue;
             }
 
-            if(!computeReadWeight(read) ) {
+            float readWeight = computeReadWeight(read);
+            if (readWeight < 0) {
                 continue;
             }
 
@@ -522,20 +524,22 @@ public class ComputeCountsTask  {
                 String readName = read.getReadName();
                 if (curReadName == null || readName.equals( curReadName ) ) {
                     fragmentReads.add(read);
+                    fragmentWeight += readWeight;
                 } else {
-                    processFragment(fragmentReads);
+                    processFragment(fragmentReads, fragmentWeight);
                     fragmentReads.clear();
                     fragmentReads.add(read);
+                    fragmentWeight = readWeight;
                 }
                 curReadName = readName;
             } else {
-                processRead(read);
+                processRead(read, readWeight);
             }
 
         }
 
         if (pairedEndAnalysis && fragmentReads.size() > 0) {
-            processFragment(fragmentReads);
+            processFragment(fragmentReads, fragmentWeight);
         }
 
         if (notFoundChrNames.size() > 0) {
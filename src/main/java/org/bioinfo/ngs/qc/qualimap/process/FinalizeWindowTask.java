@@ -36,17 +36,19 @@ public class FinalizeWindowTask implements Callable<Integer> {
 
     BamStats bamStats;
     BamGenomeWindow window;
+    int windowIndex;
 
-    public FinalizeWindowTask(BamStats bamStats, BamGenomeWindow windowToFinalize) {
+    public FinalizeWindowTask(BamStats bamStats, BamGenomeWindow windowToFinalize, int windowIndex) {
         this.bamStats = bamStats;
         this.window = windowToFinalize;
+        this.windowIndex = windowIndex;
     }
 
     public Integer call() {
 
         try {
             window.computeDescriptors();
-            bamStats.addWindowInformation(window);
+            bamStats.addWindowInformation(windowIndex, window);
             //System.out.println("Finalzed window " + window.getName() + "\n");
         } catch (CloneNotSupportedException e) {
             e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
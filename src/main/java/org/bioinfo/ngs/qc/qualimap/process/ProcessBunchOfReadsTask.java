@@ -22,13 +22,10 @@ package org.bioinfo.ngs.qc.qualimap.process;
 
 import net.sf.samtools.*;
 import org.bioinfo.ngs.qc.qualimap.beans.BamGenomeWindow;
-import org.bioinfo.ngs.qc.qualimap.beans.BamStats;
 import org.bioinfo.ngs.qc.qualimap.beans.SingleReadData;
-import org.bioinfo.ngs.qc.qualimap.common.Constants;
 
 import java.util.*;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentMap;
 
 /**
  * Created by kokonech
@@ -36,24 +33,23 @@ import java.util.concurrent.ConcurrentMap;
  * Time: 5:04 PM
  */
 public class ProcessBunchOfReadsTask implements Callable<ProcessBunchOfReadsTask.Result> {
-    List<SAMRecord> reads;
+    BunchOfReads reads;
     BamStatsAnalysis ctx;
     BamGenomeWindow currentWindow;
+    int currentWindowIndex;
     boolean computeInsertSize;
     boolean isPairedData;
     boolean analyzeRegions, computeOutsideStats;
-    private static final Object lock = new Object();
+    boolean useAlignmentVectors;
     HashMap<Long, SingleReadData> analysisResults;
     HashMap<Long, SingleReadData> outOfRegionsResults;
-    ArrayList<Float> readsGcContent;
     ReadStatsCollector readStatsCollector;
-    ArrayList<Float> outOfRegionsReadsGCContent;
     ReadStatsCollector outOfRegionsReadStatsCollector;
 
     static final char CIGAR_M = CigarOperator.MATCH_OR_MISMATCH.name().charAt(0);
     static final char CIGAR_EQ = CigarOperator.EQ.name().charAt(0);
+    static final char CIGAR_X = CigarOperator.X.name().charAt(0);
     //TODO: use variables instead of magic constants in computeAlignment()
-    //static final char CIGAR_X = CigarOperator.X.name().charAt(0);
 
     public static class Result {
         Collection<SingleReadData> readsData;
@@ -95,20 +91,21 @@ public class ProcessBunchOfReadsTask implements Callable<ProcessBunchOfReadsTask
 
     }
 
-    public ProcessBunchOfReadsTask(List<SAMRecord> reads, BamGenomeWindow window, BamStatsAnalysis ctx)  {
+    ProcessBunchOfReadsTask(BunchOfReads reads, BamGenomeWindow window, int windowIndex,
+                            BamStatsAnalysis ctx)  {
         this.reads = reads;
         this.ctx = ctx;
         this.analyzeRegions = ctx.selectedRegionsAvailable();
         computeInsertSize = true;
         isPairedData = true;
         currentWindow = window;
+        currentWindowIndex = windowIndex;
         analysisResults = new HashMap<Long, SingleReadData>();
         computeOutsideStats = ctx.getComputeOutsideStats();
-        readsGcContent = new ArrayList<Float>();
+        useAlignmentVectors = ctx.getUseAlignmentVectors();
         readStatsCollector = new ReadStatsCollector(ctx.getMinHomopolymerSize());
         if ( analyzeRegions && computeOutsideStats ) {
             outOfRegionsResults = new HashMap<Long, SingleReadData>();
-            outOfRegionsReadsGCContent = new ArrayList<Float>();
             outOfRegionsReadStatsCollector = new ReadStatsCollector(ctx.getMinHomopolymerSize());
         }
 
@@ -126,8 +123,8 @@ public class ProcessBunchOfReadsTask implements Callable<ProcessBunchOfReadsTask
     }
 
 
-    ReadStatsCollector getReadStatsCollector(SAMRecord read) {
-        if (read.getAttribute(Constants.READ_IN_REGION).equals(1) ) {
+    ReadStatsCollector getReadStatsCollector(boolean readInsideRegions) {
+        if (readInsideRegions) {
            return  readStatsCollector;
         } else if (analyzeRegions && computeOutsideStats) {
             return outOfRegionsReadStatsCollector;
@@ -144,20 +141,36 @@ public class ProcessBunchOfReadsTask implements Callable<ProcessBunchOfReadsTask
 
         Result taskResult = new Result();
 
-        for (SAMRecord read : reads) {
+        for (int readIndex = 0; readIndex < reads.size(); ++readIndex) {
 
-            long position = ctx.getLocator().getAbsoluteCoordinates(read.getReferenceName(), read.getAlignmentStart());
+            SAMRecord read = reads.getRead(readIndex);
+            long position = reads.getPosition(readIndex);
 
             char[] alignment = null;
+            int alignmentLength = -1;
             // compute alignment
             try {
-                ReadStatsCollector statsCollector = getReadStatsCollector(read);
-                if (statsCollector != null) {
-                    // compute alignment and collect read stats
-                    alignment = computeReadAlignment(read, statsCollector);
+                ReadStatsCollector statsCollector = getReadStatsCollector(reads.isInsideRegions(readIndex));
+                if (useAlignmentVectors) {
+                    if (statsCollector != null) {
+                        // compute alignment and collect read stats
+                        alignment = computeReadAlignment(read, statsCollector);
+                    } else {
+                        // only compute alignment
+                        alignment = computeReadAlignment(read);
+                    }
+                    if (alignment != null) {
+                        alignmentLength = alignment.length;
+                    }
+                } else if (cigarMatchesReadLength(read)) {
+                    if (statsCollector != null) {
+                        // collect read stats walking the CIGAR
+                        alignmentLength = collectReadStats(read, statsCollector);
+                    } else {
+                        alignmentLength = computeAlignmentLength(read);
+                    }
                 } else {
-                    // only compute alignment
-                    alignment = computeReadAlignment(read);
+                    System.err.println("WARNING! Incorrect read alignment skipped: " + read.getReadName());
                 }
             } catch (SAMFormatException e) {
                 System.err.println("WARNING! Problematic read alignment skipped: " + read.getReadName());
@@ -168,7 +181,7 @@ public class ProcessBunchOfReadsTask implements Callable<ProcessBunchOfReadsTask
                 //e.printStackTrace();
             }
 
-            if (alignment == null ) {
+            if (alignmentLength < 0) {
                 continue;
             }
 
@@ -186,17 +199,17 @@ public class ProcessBunchOfReadsTask implements Callable<ProcessBunchOfReadsTask
             }
 
             int mappingQuality = read.getMappingQuality();
-            long readEnd = position + alignment.length - 1;
+            long readEnd = position + alignmentLength - 1;
 
             // acum read
 
             //regionOverlapLookupTable = createRegionLookupTable(position, readEnd, ctx.getRegionsTree());
-            boolean outOfBounds = processReadAlignment(currentWindow, alignment, position, readEnd,
+            boolean outOfBounds = processRead(currentWindow, read, alignment, position, readEnd,
                     mappingQuality);
 
             if(outOfBounds) {
                 //System.out.println("From ProcessReadTask: propogating read" + read.getHeader().toString());
-                propagateRead(alignment, position, readEnd, mappingQuality);
+                propagateRead(read, alignment, position, readEnd, mappingQuality);
             }
 
         }
@@ -238,6 +251,116 @@ public class ProcessBunchOfReadsTask implements Callable<ProcessBunchOfReadsTask
         return numMismatches;
     }
 
+    /**
+     * Checks that the read has at least as many bases as its CIGAR consumes
+     * @param read The record being analyzed
+     * @return true if the read bases can be walked along the CIGAR
+     */
+    static boolean cigarMatchesReadLength(SAMRecord read) {
+        int readLength = read.getReadLength();
+        return readLength == 0 || read.getCigar().getReadLength() <= readLength;
+    }
+
+    /**
+     * Computes the number of reference positions covered by the read alignment
+     * @param read The record being analyzed
+     * @return Alignment length or -1 if the alignment is invalid
+     */
+    public static int computeAlignmentLength(SAMRecord read) {
+        int alignmentLength = (read.getAlignmentEnd()-read.getAlignmentStart()+1);
+
+        if (alignmentLength < 0 || read.getReadLength() == 0) {
+            return -1;
+        }
+
+        return alignmentLength;
+    }
+
+    /**
+     * This method collects read's stats walking the CIGAR elements directly,
+     * the results are the same as from computeReadAlignment(read, statsCollector)
+     * @param read The record being analyzed
+     * @param statsCollector Read stats collector
+     * @return Alignment length or -1 if the alignment is invalid
+     */
+    public static int collectReadStats(SAMRecord read, ReadStatsCollector statsCollector) {
+
+        int alignmentLength = computeAlignmentLength(read);
+
+        if (alignmentLength < 0) {
+            return -1;
+        }
+
+        List<CigarElement> elementList = read.getCigar().getCigarElements();
+        int numCigarElements = elementList.size();
+        boolean readIsClipped = false;
+        boolean readHasDeletions = false;
+        boolean readHasInsertions = false;
+
+        int readPos = 0;
+        byte[] readBases = read.getReadBases();
+        statsCollector.resetCounters();
+
+        for (int i = 0; i < numCigarElements; ++i) {
+            CigarElement element = elementList.get(i);
+            CigarOperator op = element.getOperator();
+            int length = element.getLength();
+
+            if (op == CigarOperator.M || op == CigarOperator.EQ || op == CigarOperator.X) {
+                for (int k = 0; k < length; ++k) {
+                    statsCollector.collectBase(readPos, readBases[readPos], false);
+                    readPos++;
+                }
+            } else if (op == CigarOperator.I) {
+                statsCollector.incNumInsertions();
+                if (!readHasInsertions) {
+                    statsCollector.incNumReadsWithInsertion();
+                }
+                readHasInsertions = true;
+                for (int k = 0; k < length; ++k) {
+                    statsCollector.collectBase(readPos, readBases[readPos], true);
+                    readPos++;
+                }
+            } else if (op == CigarOperator.D) {
+                statsCollector.incNumDeletions();
+                if (!readHasDeletions) {
+                    statsCollector.incNumReadsWithDeletion();
+                }
+                readHasDeletions = true;
+                // only the end of a deletion is taken into account
+                if (i + 1 < numCigarElements && elementList.get(i + 1).getOperator() != CigarOperator.D) {
+                    byte nextBase = readPos + 1 < readBases.length ? readBases[readPos + 1] : -1;
+                    statsCollector.collectDeletedBase(nextBase);
+                }
+            } else if (op == CigarOperator.S) {
+                readIsClipped = true;
+                for (int k = 0; k < length; ++k) {
+                    statsCollector.incClippingContent(readPos);
+                    readPos++;
+                }
+            } else if (op == CigarOperator.H) {
+                readIsClipped = true;
+                for (int k = 0; k < length; ++k) {
+                    statsCollector.incClippingContent(readPos);
+                }
+            }
+        }
+
+        if (readIsClipped) {
+            statsCollector.incNumClippedReads();
+        }
+
+        int numMismatches = computeNumMismatches(read);
+        statsCollector.incNumMismatches(numMismatches);
+
+        Integer editDist = read.getIntegerAttribute("NM");
+        if (editDist != null) {
+            statsCollector.incEditDistance(editDist);
+        }
+
+        return alignmentLength;
+    }
+
     /**
      * This method computes read to reference alignment vector along with collecting read's stats
      * @param read The record being analyzed
@@ -314,7 +437,7 @@ public class ProcessBunchOfReadsTask implements Callable<ProcessBunchOfReadsTask
 		for( int pos = 0; pos < extendedCigarVector.length; ++pos){
             char cigarChar = extendedCigarVector[pos];
 			// M
-			if(cigarChar == CIGAR_M || cigarChar == CIGAR_EQ){
+			if(cigarChar == CIGAR_M || cigarChar == CIGAR_EQ || cigarChar == CIGAR_X){
 				// get base
                 byte base = readBases[readPos];
                 statsCollector.collectBase(readPos, base, false);
@@ -352,11 +475,7 @@ public class ProcessBunchOfReadsTask implements Callable<ProcessBunchOfReadsTask
 			else if(cigarChar =='H'){
                 statsCollector.incClippingContent(readPos);
             }
-			// P
-			else if(cigarChar == 'P'){
-				alignmentVector[alignmentPos] = '-';
-				alignmentPos++;
-			}
+			// P is padding, it consumes neither the read nor the reference
 		}
 
         if (readIsClipped) {
@@ -417,7 +536,7 @@ public class ProcessBunchOfReadsTask implements Callable<ProcessBunchOfReadsTask
 
 		for(char cigarChar : extendedCigarVector){
 			// M
-			if(cigarChar == CIGAR_M || cigarChar == CIGAR_EQ){
+			if(cigarChar == CIGAR_M || cigarChar == CIGAR_EQ || cigarChar == CIGAR_X){
 				// get base
 				byte base = readBases[readPos];
                 readPos++;
@@ -447,16 +566,121 @@ public class ProcessBunchOfReadsTask implements Callable<ProcessBunchOfReadsTask
 			else if(cigarChar =='H'){
 
             }
-			// P
-			else if(cigarChar == 'P'){
-				alignmentVector[alignmentPos] = '-';
-				alignmentPos++;
-			}
+			// P is padding, it consumes neither the read nor the reference
 		}
 
 		return alignmentVector;
 	}
 
+    private boolean processRead(BamGenomeWindow window, SAMRecord read, char[] alignment,
+                                long readStart, long readEnd, int mappingQuality) {
+        if (alignment != null) {
+            return processReadAlignment(window, alignment, readStart, readEnd, mappingQuality);
+        } else {
+            return processReadCigar(window, read, readStart, readEnd, mappingQuality);
+        }
+    }
+
+    private SingleReadData getPositionData(BamGenomeWindow window, long relative, SingleReadData readData) {
+        if (analyzeRegions) {
+            boolean insideOfRegion = window.getSelectedRegions().get((int)relative);
+            if (insideOfRegion) {
+                if (computeOutsideStats) {
+                    return getWindowData(window.getStart(), analysisResults);
+                }
+            } else {
+                if (computeOutsideStats) {
+                    return getWindowData(window.getStart(), outOfRegionsResults);
+                } else {
+                    return null;
+                }
+            }
+        }
+        return readData;
+    }
+
+    private static void acumAlignedBase(SingleReadData readData, long relative, char nucleotide,
+                                        int mappingQuality) {
+        // aligned bases
+        readData.numberOfMappedBases++;
+
+        if (nucleotide != '-' && nucleotide != 'N') {
+            // base stats and mapping quality
+            readData.acumBase(relative, nucleotide, mappingQuality);
+        } else if (nucleotide == 'N') {
+            readData.numberOfNs++;
+        }
+    }
+
+    private boolean processReadCigar(BamGenomeWindow window, SAMRecord read, long readStart, long readEnd,
+                                     int mappingQuality) {
+
+        long windowSize = window.getWindowSize();
+        long windowStart = window.getStart();
+        long windowEnd = windowStart + windowSize;
+
+        SingleReadData readData = getWindowData(windowStart, analysisResults);
+
+        if(readEnd < readStart){
+            ctx.incNumberOfReasWithStartGreatThenEnd();
+        }
+
+        boolean outOfBounds = readEnd > window.getEnd();
+
+        byte[] readBases = read.getReadBases();
+        int readPos = 0;
+        long refPos = readStart;
+
+        for (CigarElement element : read.getCigar().getCigarElements()) {
+            if (refPos >= windowEnd) {
+                break;
+            }
+
+            CigarOperator op = element.getOperator();
+            int length = element.getLength();
+
+            if (op.consumesReferenceBases()) {
+                // part of the element inside of the window
+                int first = refPos < windowStart ? (int) Math.min(length, windowStart - refPos) : 0;
+                int last = (int) Math.min(length, windowEnd - refPos);
+                int relativeOffset = (int) (refPos - windowStart);
+
+                if (!analyzeRegions && (op == CigarOperator.D || op == CigarOperator.N)) {
+                    int count = last - first;
+                    readData.numberOfMappedBases += count;
+                    if (op == CigarOperator.N) {
+                        readData.numberOfNs += count;
+                    }
+                } else {
+                    for (int k = first; k < last; ++k) {
+                        int relative = relativeOffset + k;
+                        SingleReadData positionData = getPositionData(window, relative, readData);
+                        if (positionData == null) {
+                            continue;
+                        }
+                        char nucleotide;
+                        if (op == CigarOperator.D) {
+                            nucleotide = '-';
+                        } else if (op == CigarOperator.N) {
+                            nucleotide = 'N';
+                        } else {
+                            nucleotide = (char) readBases[readPos + k];
+                        }
+                        acumAlignedBase(positionData, relative, nucleotide, mappingQuality);
+                    }
+                }
+
+                refPos += length;
+            }
+
+            if (op.consumesReadBases()) {
+                readPos += length;
+            }
+        }
+
+        return outOfBounds;
+    }
+
     private boolean processReadAlignment(BamGenomeWindow window, char[] alignment, long readStart, long readEnd,
                                          int mappingQuality) {
 
@@ -492,36 +716,12 @@ public class ProcessBunchOfReadsTask implements Callable<ProcessBunchOfReadsTask
                 break;
             } else {
 
-                if (analyzeRegions) {
-                    boolean insideOfRegion = window.getSelectedRegions().get((int)relative);
-                    if (insideOfRegion) {
-                        if (computeOutsideStats) {
-                            readData =getWindowData(windowStart, analysisResults);
-                            //statsCollector = insideCollector;
-                        }
-                    } else {
-                        if (computeOutsideStats) {
-                            readData = getWindowData(windowStart, outOfRegionsResults);
-                            //statsCollector = outsideCollector;
-                        } else {
-                            continue;
-                        }
-                    }
+                SingleReadData positionData = getPositionData(window, relative, readData);
+                if (positionData == null) {
+                    continue;
                 }
 
-                char nucleotide = alignment[pos];
-
-                // aligned bases
-                readData.numberOfMappedBases++;
-
-                if (nucleotide != '-' && nucleotide != 'N') {
-                    // mapping quality
-                    readData.acumMappingQuality(relative, mappingQuality);
-                    // base stats
-                    readData.acumBase(relative, nucleotide);
-                } else if (nucleotide == 'N') {
-                    readData.numberOfNs++;
-                }
+                acumAlignedBase(positionData, relative, alignment[pos], mappingQuality);
 
             }
 
@@ -533,30 +733,25 @@ public class ProcessBunchOfReadsTask implements Callable<ProcessBunchOfReadsTask
         return outOfBounds;
     }
 
-    private void propagateRead(char[] alignment,long readStart, long readEnd,
+    /**
+     * Adds the rest of the read to the next windows. The bases overhanging the end of a contig are
+     * counted in the first windows of the next contig, when the contigs are analyzed in parallel
+     * they are handed to the analysis of the next contig.
+     */
+    private void propagateRead(SAMRecord read, char[] alignment,long readStart, long readEnd,
                                int mappingQuality ){
         // init covering stat
-        BamStats bamStats = ctx.getBamStats();
-		int index = bamStats.getNumberOfProcessedWindows()+1;
+		int index = currentWindowIndex + 1;
 
 		BamGenomeWindow adjacentWindow;
 		boolean outOfBounds = true;
-		while(outOfBounds && index < bamStats.getNumberOfWindows()){
+		while(outOfBounds && index < ctx.getBamStats().getNumberOfWindows()){
 
 			// next currentWindow
-			long ws = bamStats.getWindowStart(index);
-
-		    synchronized (lock) {
-                ConcurrentMap<Long,BamGenomeWindow> openWindows = ctx.getOpenWindows();
-                adjacentWindow = ctx.getOpenWindow(ws, bamStats, openWindows);
-                if (computeOutsideStats) {
-                    Map<Long,BamGenomeWindow> openOutsideWindows = ctx.getOpenOutsideWindows();
-                    ctx.getOpenWindow(ws, ctx.getOutsideBamStats(), openOutsideWindows);
-                }
-            }
+            adjacentWindow = ctx.getOpenWindow(index);
 
             // acum read
-            outOfBounds = processReadAlignment(adjacentWindow, alignment, readStart, readEnd,
+            outOfBounds = processRead(adjacentWindow, read, alignment, readStart, readEnd,
                     mappingQuality);
 
 			index++;
@@ -20,7 +20,7 @@
  */
 package org.bioinfo.ngs.qc.qualimap.process;
 
-import java.util.ArrayList;
+import org.bioinfo.ngs.qc.qualimap.beans.BamStats;
 
 /**
  * Created by kokonech
@@ -48,7 +48,9 @@ public class ReadStatsCollector {
     int[] readsTContent;
     int[] readsNContent;
     int[] readsClippingContent;
-    ArrayList<Float> readsGcContent;
+    // GC content of the sampled read stretches, binned as in BamStats
+    int[] readsGcHistogram;
+    int numGcSamples;
     int[] homopolymerIndels;
 
     int numClippedReads;
@@ -88,16 +90,20 @@ public class ReadStatsCollector {
         return readsNContent;
     }
 
-    public ArrayList<Float> getReadsGcContent() {
-        return readsGcContent;
+    public int[] getReadsGcHistogram() {
+        return readsGcHistogram;
+    }
+
+    public int getNumGcSamples() {
+        return numGcSamples;
     }
 
     public int[] getReadsClippingInfo() {
         return readsClippingContent;
     }
 
-    ReadStatsCollector(int homopolymerSize) {
-        readsGcContent = new ArrayList<Float>();
+    public ReadStatsCollector(int homopolymerSize) {
+        readsGcHistogram = new int[BamStats.NUM_BINS + 1];
         readsAContent = new int[INITIAL_SIZE];
         readsCContent = new int[INITIAL_SIZE];
         readsGContent = new int[INITIAL_SIZE];
@@ -108,10 +114,14 @@ public class ReadStatsCollector {
         minHomopolymerSize = homopolymerSize;
     }
 
-    void saveGC() {
+    /**
+     * Saves the GC content of the bases collected since the last sample
+     */
+    public void saveGC() {
         if (numGC != 0) {
             float gcContent = (float)numGC / (float)numBases;
-            readsGcContent.add(gcContent);
+            readsGcHistogram[ (int) (gcContent * BamStats.NUM_BINS) ]++;
+            numGcSamples++;
         }
 
         numBases = 0;
@@ -291,6 +301,45 @@ public class ReadStatsCollector {
         editDistance += dist;
     }
 
+    /**
+     * Add the statistics of another collector to this one.
+     * All values are sums over the reads, so the result is exact for any disjoint subsets of reads
+     * and does not depend on the order of merging. Collectors must be merged between reads, since the per read
+     * counters are not merged, and the GC content of both collectors must be saved (see {@link #saveGC()}).
+     * @param other collector of a different subset of reads
+     */
+    public void merge(ReadStatsCollector other) {
+        readsAContent = mergeContent(readsAContent, other.readsAContent);
+        readsCContent = mergeContent(readsCContent, other.readsCContent);
+        readsGContent = mergeContent(readsGContent, other.readsGContent);
+        readsTContent = mergeContent(readsTContent, other.readsTContent);
+        readsNContent = mergeContent(readsNContent, other.readsNContent);
+        readsClippingContent = mergeContent(readsClippingContent, other.readsClippingContent);
+        for (int i = 0; i < readsGcHistogram.length; ++i) {
+            readsGcHistogram[i] += other.readsGcHistogram[i];
+        }
+        numGcSamples += other.numGcSamples;
+        for (int i = 0; i < homopolymerIndels.length; ++i) {
+            homopolymerIndels[i] += other.homopolymerIndels[i];
+        }
+
+        numClippedReads += other.numClippedReads;
+        numReadsWithInsertion += other.numReadsWithInsertion;
+        numReadsWithDeletion += other.numReadsWithDeletion;
+        numInsertions += other.numInsertions;
+        numDeletions += other.numDeletions;
+        numMismatches += other.numMismatches;
+        editDistance += other.editDistance;
+    }
+
+    private static int[] mergeContent(int[] content, int[] otherContent) {
+        int[] result = ensureArraySize(content, otherContent.length - 1);
+        for (int i = 0; i < otherContent.length; ++i) {
+            result[i] += otherContent[i];
+        }
+        return result;
+    }
+
     public int getEditDistance() {
         return editDistance;
     }
@@ -0,0 +1,174 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.process;
+
+import net.sf.samtools.*;
+import org.bioinfo.ngs.qc.qualimap.common.ReadValidationMode;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Checks the alignment records before they are analyzed.
+ *
+ * The full mode runs the SAM validation of picard on every record. The lightweight mode
+ * only checks what the statistics rely on: the record is placed on a known reference,
+ * its CIGAR matches the length of the sequence and the alignment starts inside the reference.
+ * The sampled mode runs the full validation on one of every N records and the lightweight
+ * checks on the rest.
+ */
+public class ReadValidator implements Serializable {
+
+    private static final long serialVersionUID = 4646198079690063340L;
+
+    public static final int DEFAULT_SAMPLING_RATE = 100;
+
+    private ReadValidationMode mode;
+    private int samplingRate;
+
+    private long numRecords;
+    private long numFullChecks, numFullChecksFailed;
+    private long numLightweightChecks, numLightweightChecksFailed;
+
+    public ReadValidator(ReadValidationMode mode, int samplingRate) {
+        if (samplingRate < 1) {
+            throw new IllegalArgumentException("Sampling rate must be positive");
+        }
+        this.mode = mode;
+        this.samplingRate = samplingRate;
+    }
+
+    public ReadValidationMode getMode() {
+        return mode;
+    }
+
+    public int getSamplingRate() {
+        return samplingRate;
+    }
+
+    public long getNumFullChecks() {
+        return numFullChecks;
+    }
+
+    public long getNumFullChecksFailed() {
+        return numFullChecksFailed;
+    }
+
+    public long getNumLightweightChecks() {
+        return numLightweightChecks;
+    }
+
+    public long getNumLightweightChecksFailed() {
+        return numLightweightChecksFailed;
+    }
+
+    public boolean isValid(SAMRecord read) {
+        boolean fullCheck = mode == ReadValidationMode.FULL ||
+                (mode == ReadValidationMode.SAMPLED && numRecords % samplingRate == 0);
+        numRecords++;
+
+        if (fullCheck) {
+            numFullChecks++;
+            boolean valid = passesFullValidation(read);
+            if (!valid) {
+                numFullChecksFailed++;
+            }
+            return valid;
+        } else {
+            numLightweightChecks++;
+            boolean valid = passesLightweightValidation(read);
+            if (!valid) {
+                numLightweightChecksFailed++;
+            }
+            return valid;
+        }
+    }
+
+    static boolean passesFullValidation(SAMRecord read) {
+        List<SAMValidationError> valErrorList = read.isValid();
+        if (valErrorList == null) {
+            return true;
+        }
+        // read groups are not used by the analysis
+        return valErrorList.size() == 1 &&
+                valErrorList.get(0).getType() == SAMValidationError.Type.READ_GROUP_NOT_FOUND;
+    }
+
+    static boolean passesLightweightValidation(SAMRecord read) {
+        if (read.getReadUnmappedFlag()) {
+            return true;
+        }
+
+        Integer referenceIndex = read.getReferenceIndex();
+        if (referenceIndex == null || referenceIndex < 0 || read.getAlignmentStart() < 1) {
+            return false;
+        }
+
+        Cigar cigar = read.getCigar();
+        if (cigar.isEmpty()) {
+            return false;
+        }
+        int readLength = read.getReadLength();
+        if (readLength > 0) {
+            if (cigar.getReadLength() != readLength) {
+                return false;
+            }
+            int qualityLength = read.getBaseQualities().length;
+            if (qualityLength > 0 && qualityLength != readLength) {
+                return false;
+            }
+        }
+
+        SAMFileHeader header = read.getHeader();
+        if (header != null) {
+            SAMSequenceRecord sequence = header.getSequence(referenceIndex);
+            // same bound as in the full validation, alignments may overhang the end
+            if (sequence == null || read.getAlignmentStart() > sequence.getSequenceLength()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public void merge(ReadValidator other) {
+        numRecords += other.numRecords;
+        numFullChecks += other.numFullChecks;
+        numFullChecksFailed += other.numFullChecksFailed;
+        numLightweightChecks += other.numLightweightChecks;
+        numLightweightChecksFailed += other.numLightweightChecksFailed;
+    }
+
+    public String report() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("Read validation mode: ").append(mode);
+        if (mode == ReadValidationMode.SAMPLED) {
+            buf.append(" (full validation of 1 in ").append(samplingRate).append(" records)");
+        }
+        buf.append("\n");
+        buf.append("Full validations: ").append(numFullChecks)
+                .append(", failed: ").append(numFullChecksFailed).append("\n");
+        buf.append("Lightweight validations: ").append(numLightweightChecks)
+                .append(", failed: ").append(numLightweightChecksFailed).append("\n");
+        return buf.toString();
+    }
+
+}
@@ -0,0 +1,138 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.test;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import org.bioinfo.ngs.qc.qualimap.beans.BamStats;
+import org.bioinfo.ngs.qc.qualimap.beans.XYVector;
+import org.bioinfo.ngs.qc.qualimap.process.BamStatsAnalysis;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.bioinfo.ngs.qc.qualimap.test.AnalysisTestUtils.*;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that walking the CIGAR gives the same results as the per-read alignment vectors
+ */
+public class AlignmentVectorsTest {
+
+    // the checked-in BAM files have only plain matches, so the reads with these CIGARs are generated
+    static final String[] CIGARS = {"60M", "10S50M", "5H40M15S", "20M3I37M", "25M4D35M", "30M300N30M",
+            "15M2I1P3I40M", "10=1X49=", "3S10M2D5M1I20M10N21M", "2H20M1D1D20M1I1I16M2H"};
+
+    @Test
+    public void testWholeReads() throws Exception {
+        checkEquivalence(false);
+    }
+
+    @Test
+    public void testRegions() throws Exception {
+        checkEquivalence(true);
+    }
+
+    void checkEquivalence(boolean analyzeRegions) throws Exception {
+        SAMFileHeader header = createHeader(new String[] {"chr1", "chr2"}, new int[] {4000, 2500});
+
+        Random random = new Random(7);
+        List<SAMRecord> reads = new ArrayList<SAMRecord>();
+        for (int n = 0; n < 1500; ++n) {
+            int contig = random.nextInt(2);
+            int start = 1 + random.nextInt(header.getSequence(contig).getSequenceLength() - 400);
+            SAMRecord read = createRead(header, "r" + n, contig, start, CIGARS[n % CIGARS.length],
+                    random.nextInt(60), n);
+            read.setAttribute("NM", random.nextInt(4));
+            reads.add(read);
+        }
+
+        File dir = createTempDir();
+        try {
+            File bamFile = new File(dir, "cigars.bam");
+            writeBam(bamFile, header, reads);
+            File regionsFile = null;
+            if (analyzeRegions) {
+                regionsFile = new File(dir, "regions.bed");
+                PrintWriter regions = new PrintWriter(regionsFile);
+                regions.println("chr1\t100\t900\tr1\t0\t+");
+                regions.println("chr1\t2000\t2100\tr2\t0\t+");
+                regions.println("chr2\t500\t2000\tr3\t0\t+");
+                regions.close();
+            }
+
+            BamStatsAnalysis cigarWalk = analyze(bamFile, regionsFile, false);
+            BamStatsAnalysis alignmentVectors = analyze(bamFile, regionsFile, true);
+
+            assertEquals(1500, cigarWalk.getBamStats().getNumberOfReads());
+            assertEquals(getProperties(alignmentVectors, false), getProperties(cigarWalk, false));
+            assertEqualStats(alignmentVectors.getBamStats(), cigarWalk.getBamStats());
+            if (analyzeRegions) {
+                assertEquals(getProperties(alignmentVectors, true), getProperties(cigarWalk, true));
+                assertEqualStats(alignmentVectors.getOutsideBamStats(), cigarWalk.getOutsideBamStats());
+            }
+        } finally {
+            deleteDir(dir);
+        }
+    }
+
+    static BamStatsAnalysis analyze(File bamFile, File regionsFile, boolean useAlignmentVectors) throws Exception {
+        BamStatsAnalysis bamQc = new BamStatsAnalysis(bamFile.getPath());
+        if (regionsFile != null) {
+            bamQc.setSelectedRegions(regionsFile.getPath());
+            bamQc.setComputeOutsideStats(true);
+        }
+        bamQc.setNumberOfWindows(50);
+        bamQc.setNumberOfThreads(2);
+        bamQc.setNumberOfReadsInBunch(20);
+        bamQc.setUseAlignmentVectors(useAlignmentVectors);
+        bamQc.run();
+        return bamQc;
+    }
+
+    static void assertEqualStats(BamStats expected, BamStats actual) {
+        assertEquals(expected.getNumberOfMappedBases(), actual.getNumberOfMappedBases());
+        assertEquals(Arrays.toString(expected.getCoverageAcrossReference()),
+                Arrays.toString(actual.getCoverageAcrossReference()));
+        assertEquals(Arrays.toString(expected.getMappingQualityAcrossReference()),
+                Arrays.toString(actual.getMappingQualityAcrossReference()));
+        assertEqualVectors(expected.getReadsAsHistogram(), actual.getReadsAsHistogram());
+        assertEqualVectors(expected.getReadsCsHistogram(), actual.getReadsCsHistogram());
+        assertEqualVectors(expected.getReadsGsHistogram(), actual.getReadsGsHistogram());
+        assertEqualVectors(expected.getReadsTsHistogram(), actual.getReadsTsHistogram());
+        assertEqualVectors(expected.getReadsClippingProfileHistogram(), actual.getReadsClippingProfileHistogram());
+        assertEqualVectors(expected.getGcContentHistogram(), actual.getGcContentHistogram());
+        assertEquals(expected.getNumClippedReads(), actual.getNumClippedReads());
+        assertEquals(expected.getNumIndels(), actual.getNumIndels());
+        assertEquals(expected.getHomopolymerIndelFraction(), actual.getHomopolymerIndelFraction(), 0);
+    }
+
+    static void assertEqualVectors(XYVector expected, XYVector actual) {
+        assertEquals(Arrays.toString(expected.getXVector()), Arrays.toString(actual.getXVector()));
+        assertEquals(Arrays.toString(expected.getYVector()), Arrays.toString(actual.getYVector()));
+    }
+
+}
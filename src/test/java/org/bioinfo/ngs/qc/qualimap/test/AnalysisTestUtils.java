@@ -0,0 +1,141 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.test;
+
+import net.sf.samtools.*;
+import org.bioinfo.ngs.qc.qualimap.beans.BamQCRegionReporter;
+import org.bioinfo.ngs.qc.qualimap.process.BamStatsAnalysis;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Helpers for the tests comparing the results of whole BAM QC analyses. The tests use the checked-in
+ * BAM files, the reads are generated only for the cases missing in them.
+ */
+public class AnalysisTestUtils {
+
+    /**
+     * @return properties of the report, the same as checked by BamQCTest
+     */
+    static Properties getProperties(BamStatsAnalysis bamQc, boolean outside) {
+        BamQCRegionReporter reporter = new BamQCRegionReporter(outside, !outside);
+        reporter.loadReportData(outside ? bamQc.getOutsideBamStats() : bamQc.getBamStats());
+        return reporter.generateBamQcProperties();
+    }
+
+    static SAMFileHeader createHeader(String[] contigNames, int[] contigLengths) {
+        SAMFileHeader header = new SAMFileHeader();
+        for (int i = 0; i < contigNames.length; ++i) {
+            header.addSequence(new SAMSequenceRecord(contigNames[i], contigLengths[i]));
+        }
+        header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        return header;
+    }
+
+    /**
+     * Creates a mapped single end read with random bases
+     */
+    static SAMRecord createRead(SAMFileHeader header, String name, int referenceIndex, int start,
+                                String cigar, int mappingQuality, int seed) {
+        SAMRecord read = new SAMRecord(header);
+        read.setReadName(name);
+        read.setReferenceIndex(referenceIndex);
+        read.setAlignmentStart(start);
+        read.setCigarString(cigar);
+        read.setMappingQuality(mappingQuality);
+
+        int readLength = read.getCigar().getReadLength();
+        byte[] bases = new byte[readLength];
+        byte[] qualities = new byte[readLength];
+        for (int i = 0; i < readLength; ++i) {
+            bases[i] = (byte) "ACGT".charAt((seed * 31 + i * 7 + i / 3) % 4);
+            qualities[i] = (byte) (20 + (seed + i) % 20);
+        }
+        read.setReadBases(bases);
+        read.setBaseQualities(qualities);
+        return read;
+    }
+
+    /**
+     * Writes the reads sorted by coordinate and creates the BAM index
+     */
+    static void writeBam(File bamFile, SAMFileHeader header, List<SAMRecord> reads) {
+        SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, false, bamFile);
+        for (SAMRecord read : reads) {
+            writer.addAlignment(read);
+        }
+        writer.close();
+    }
+
+    static File createTempDir() throws IOException {
+        File dir = File.createTempFile("qualimap", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        return dir;
+    }
+
+    static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteDir(f);
+            }
+        }
+        dir.delete();
+    }
+
+    static void copyFile(File source, File target) throws IOException {
+        InputStream in = new FileInputStream(source);
+        try {
+            OutputStream out = new FileOutputStream(target);
+            try {
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    out.write(buf, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ( (line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+}
@@ -0,0 +1,165 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.test;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import org.bioinfo.ngs.qc.qualimap.common.BamIndexStats;
+import org.bioinfo.ngs.qc.qualimap.process.BamIndexSummary;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bioinfo.ngs.qc.qualimap.test.AnalysisTestUtils.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the summary of a BAM file computed from its index
+ */
+public class BamIndexSummaryTest {
+
+    String pathToBamFile;
+
+    public BamIndexSummaryTest() {
+        Environment testEnv = new Environment();
+        pathToBamFile = testEnv.processAttrValue("$COMMON_DATA_DIR/gambusino_reads.sorted.bam");
+    }
+
+    @Test
+    public void testSummary() throws Exception {
+        BamIndexSummary summary = new BamIndexSummary(pathToBamFile);
+        summary.setNumberOfWindows(10);
+        summary.run();
+
+        // chr1 has 150 bp and 57 reads, chr2 has 100 bp and 68 reads, all reads are 20M
+        BamIndexStats indexStats = summary.getIndexStats();
+        assertEquals(57, indexStats.getNumberOfAlignedRecords(0));
+        assertEquals(68, indexStats.getNumberOfAlignedRecords(1));
+        assertEquals(0, indexStats.getNumberOfUnalignedRecords(0));
+        assertEquals(0, indexStats.getNumberOfUnalignedRecords(1));
+        assertEquals(0, indexStats.getNumberOfNoCoordinateRecords());
+
+        assertEquals(20.0, summary.getMeanAlignmentLength(), 1e-9);
+        assertEquals(57 * 20 / 150.0, summary.getContigCoverage(0), 1e-9);
+        assertEquals(68 * 20 / 100.0, summary.getContigCoverage(1), 1e-9);
+        assertEquals(125 * 20 / 250.0, summary.getMeanCoverage(), 1e-9);
+
+        // each contig fits into one linear bin, its coverage is spread uniformly over its windows
+        List<Long> windowStarts = summary.getWindowStarts();
+        double[] coverage = summary.getCoverageAcrossReference();
+        assertEquals(10, windowStarts.size());
+        assertEquals(10, coverage.length);
+        for (int i = 0; i < coverage.length; ++i) {
+            assertEquals(i < 6 ? 1 + i * 25 : 151 + (i - 6) * 25, windowStarts.get(i).longValue());
+            assertEquals(summary.getContigCoverage(i < 6 ? 0 : 1), coverage[i], 1e-9);
+        }
+
+        File outDir = createTempDir();
+        try {
+            summary.writeReport(outDir.getPath());
+            List<String> report = readLines(new File(outDir, BamIndexSummary.REPORT_FILE_NAME));
+            assertTrue(report.contains("     number of records = 125"));
+            assertTrue(report.contains("     number of mapped records = 125"));
+            assertTrue(report.contains("     number of unmapped records = 0"));
+            assertTrue(report.contains("     mean alignment length (estimated) = 20 bp"));
+            assertEquals(getContigLine(report, "chr1"), "\tchr1\t150\t57\t0");
+            assertEquals(getContigLine(report, "chr2"), "\tchr2\t100\t68\t0");
+        } finally {
+            deleteDir(outDir);
+        }
+    }
+
+    /**
+     * The checked-in BAM files have no unmapped reads, so they are generated
+     */
+    @Test
+    public void testUnmappedReads() throws Exception {
+        SAMFileHeader header = createHeader(new String[] {"chr1", "chr2"}, new int[] {1000, 500});
+        List<SAMRecord> reads = new ArrayList<SAMRecord>();
+        for (int i = 0; i < 30; ++i) {
+            reads.add(createRead(header, "r1_" + i, 0, 1 + i * 30, "40M", 30, i));
+        }
+        for (int i = 0; i < 10; ++i) {
+            reads.add(createRead(header, "r2_" + i, 1, 1 + i * 40, "40M", 30, i));
+        }
+        // unmapped reads placed at chr1, e.g. next to their mapped mates
+        for (int i = 0; i < 3; ++i) {
+            SAMRecord read = createRead(header, "u1_" + i, 0, 100 + i * 100, "40M", 0, i);
+            read.setReadUnmappedFlag(true);
+            reads.add(read);
+        }
+        // unmapped reads without a position
+        for (int i = 0; i < 2; ++i) {
+            SAMRecord read = createRead(header, "u_" + i, 0, 1, "40M", 0, i);
+            read.setReadUnmappedFlag(true);
+            read.setReferenceIndex(SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX);
+            read.setAlignmentStart(SAMRecord.NO_ALIGNMENT_START);
+            read.setCigarString(SAMRecord.NO_ALIGNMENT_CIGAR);
+            reads.add(read);
+        }
+
+        File outDir = createTempDir();
+        try {
+            File bamFile = new File(outDir, "unmapped.bam");
+            writeBam(bamFile, header, reads);
+
+            BamIndexSummary summary = new BamIndexSummary(bamFile.getPath());
+            summary.run();
+
+            BamIndexStats indexStats = summary.getIndexStats();
+            assertEquals(30, indexStats.getNumberOfAlignedRecords(0));
+            assertEquals(10, indexStats.getNumberOfAlignedRecords(1));
+            assertEquals(3, indexStats.getNumberOfUnalignedRecords(0));
+            assertEquals(0, indexStats.getNumberOfUnalignedRecords(1));
+            assertEquals(2, indexStats.getNumberOfNoCoordinateRecords());
+            assertEquals(40, indexStats.getNumberOfMappedRecords());
+            assertEquals(5, indexStats.getNumberOfUnmappedRecords());
+            assertEquals(40.0, summary.getMeanAlignmentLength(), 1e-9);
+
+            summary.writeReport(outDir.getPath());
+            List<String> report = readLines(new File(outDir, BamIndexSummary.REPORT_FILE_NAME));
+            assertTrue(report.contains("     number of records = 45"));
+            assertTrue(report.contains("     number of unmapped records = 5"));
+            assertTrue(report.contains("     number of unmapped records without position = 2"));
+            assertEquals(getContigLine(report, "chr1"), "\tchr1\t1000\t30\t3");
+            assertEquals(getContigLine(report, "chr2"), "\tchr2\t500\t10\t0");
+        } finally {
+            deleteDir(outDir);
+        }
+    }
+
+    /**
+     * @return name, length, mapped and unmapped reads of the contig in the report
+     */
+    static String getContigLine(List<String> report, String contigName) {
+        int section = report.indexOf(">>>>>>> Reads per contig");
+        for (String line : report.subList(section, report.size())) {
+            if (line.startsWith("\t" + contigName + "\t")) {
+                return line.substring(0, line.lastIndexOf('\t'));
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,150 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.test;
+
+import org.bioinfo.ngs.qc.qualimap.common.CoverageWriter;
+import org.bioinfo.ngs.qc.qualimap.common.LoggerThread;
+import org.bioinfo.ngs.qc.qualimap.process.BamStatsAnalysis;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+import static org.bioinfo.ngs.qc.qualimap.test.AnalysisTestUtils.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that an analysis continued from a checkpoint gives the same results as an uninterrupted one
+ */
+public class CheckpointTest {
+
+    String pathToBamFile;
+
+    public CheckpointTest() {
+        Environment testEnv = new Environment();
+        pathToBamFile = testEnv.processAttrValue("$COMMON_DATA_DIR/gambusino_reads.sorted.bam");
+    }
+
+    /**
+     * Copies the checkpoint when half of the windows are processed. The analysis continues
+     * after that, so the reports contain data written after the copied checkpoint,
+     * as if the analysis was killed later.
+     */
+    static class CheckpointCopier extends LoggerThread {
+        File checkpointFile, copy;
+
+        CheckpointCopier(File checkpointFile, File copy) {
+            this.checkpointFile = checkpointFile;
+            this.copy = copy;
+        }
+
+        @Override
+        public void logLine(String msg) {
+        }
+
+        @Override
+        public void updateProgress(int progress) {
+            if (progress >= 50 && !copy.exists() && checkpointFile.exists()) {
+                try {
+                    copyFile(checkpointFile, copy);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testResumeSequentialDecoding() throws Exception {
+        checkResume(0);
+    }
+
+    @Test
+    public void testResumeParallelDecoding() throws Exception {
+        checkResume(2);
+    }
+
+    void checkResume(int numDecodingThreads) throws Exception {
+        File workDir = createTempDir();
+        try {
+            File regionsFile = new File(workDir, "regions.bed");
+            PrintWriter regions = new PrintWriter(regionsFile);
+            regions.println("chr1\t20\t90\tr1\t0\t+");
+            regions.println("chr2\t10\t60\tr2\t0\t+");
+            regions.close();
+
+            File expectedDir = new File(workDir, "expected");
+            File resumedDir = new File(workDir, "resumed");
+            File checkpointFile = new File(workDir, "analysis.ckp");
+            File checkpointCopy = new File(workDir, "copy.ckp");
+
+            BamStatsAnalysis expected = createAnalysis(expectedDir, regionsFile, numDecodingThreads);
+            expected.run();
+
+            BamStatsAnalysis interrupted = createAnalysis(resumedDir, regionsFile, numDecodingThreads);
+            interrupted.setCheckpointFile(checkpointFile.getPath(), 0);
+            interrupted.setLoggerThread(new CheckpointCopier(checkpointFile, checkpointCopy));
+            interrupted.run();
+            assertFalse(checkpointFile.exists());
+            assertTrue(checkpointCopy.exists());
+
+            BamStatsAnalysis resumed = createAnalysis(resumedDir, regionsFile, numDecodingThreads);
+            resumed.setCheckpointFile(checkpointCopy.getPath(), 0);
+            resumed.setResumeFromCheckpoint(true);
+            resumed.run();
+            assertFalse(checkpointCopy.exists());
+
+            assertEquals(getProperties(expected, false), getProperties(resumed, false));
+            assertEquals(getProperties(expected, true), getProperties(resumed, true));
+
+            String[] reports = expectedDir.list();
+            Arrays.sort(reports);
+            assertEquals(Arrays.asList("coverage.txt", "outside_coverage.txt", "outside_window.txt"),
+                    Arrays.asList(reports));
+            for (String report : reports) {
+                assertEquals(report, readLines(new File(expectedDir, report)),
+                        readLines(new File(resumedDir, report)));
+            }
+        } finally {
+            deleteDir(workDir);
+        }
+    }
+
+    BamStatsAnalysis createAnalysis(File outDir, File regionsFile, int numDecodingThreads) {
+        outDir.mkdirs();
+        BamStatsAnalysis bamQc = new BamStatsAnalysis(pathToBamFile);
+        bamQc.setSelectedRegions(regionsFile.getPath());
+        bamQc.setComputeOutsideStats(true);
+        bamQc.setNumberOfWindows(20);
+        bamQc.setNumberOfThreads(2);
+        bamQc.setNumberOfReadsInBunch(8);
+        bamQc.setNumberOfDecodingThreads(numDecodingThreads);
+        bamQc.setPathToCoverageReport(new File(outDir, "coverage.txt").getPath());
+        bamQc.setCoverageReportFormat(CoverageWriter.Format.BEDGRAPH);
+        bamQc.activeReporting(outDir.getPath());
+        return bamQc;
+    }
+
+}
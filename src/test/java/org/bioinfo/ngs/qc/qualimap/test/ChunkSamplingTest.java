@@ -0,0 +1,175 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.test;
+
+import net.sf.samtools.SAMRecord;
+import org.bioinfo.ngs.qc.qualimap.beans.GenomeLocator;
+import org.bioinfo.ngs.qc.qualimap.common.ChunkSampling;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the chunk sample of the approximate BAM QC and its estimates
+ */
+public class ChunkSamplingTest {
+
+    static GenomeLocator createLocator() {
+        GenomeLocator locator = new GenomeLocator();
+        locator.addContig("chr1", 1000);
+        locator.addContig("chr2", 550);
+        return locator;
+    }
+
+    static SAMRecord createRead(int flags) {
+        SAMRecord read = new SAMRecord(null);
+        read.setFlags(flags);
+        return read;
+    }
+
+    static List<Long> windowStarts(long... starts) {
+        List<Long> res = new ArrayList<Long>();
+        for (long s : starts) {
+            res.add(s);
+        }
+        return res;
+    }
+
+    @Test
+    public void testSampling() {
+        GenomeLocator locator = createLocator();
+        List<Long> windows = windowStarts(1, 501, 1001, 1301);
+
+        // complete sample, the chunks do not cross windows and contigs
+        ChunkSampling all = new ChunkSampling(locator, windows, 1.0, 200, 1);
+        assertEquals(3 + 3 + 2 + 2, all.getNumberOfChunks());
+        assertEquals(1550, all.getSampledSize());
+        assertEquals(401, all.getChunkStart(2));
+        assertEquals(500, all.getChunkEnd(2));
+        assertEquals(1000, all.getChunkEnd(5));
+        assertEquals(1001, all.getChunkStart(6));
+
+        ChunkSampling sample = new ChunkSampling(locator, windows, 0.3, 100, 7);
+        assertTrue(sample.getNumberOfChunks() > 0);
+        long size = 0;
+        for (int i = 0; i < sample.getNumberOfChunks(); ++i) {
+            assertTrue(sample.getChunkStart(i) <= sample.getChunkEnd(i));
+            if (i > 0) {
+                assertTrue(sample.getChunkEnd(i - 1) < sample.getChunkStart(i));
+            }
+            size += sample.getChunkEnd(i) - sample.getChunkStart(i) + 1;
+        }
+        assertEquals(size, sample.getSampledSize());
+    }
+
+    @Test
+    public void testEstimates() {
+        GenomeLocator locator = createLocator();
+        ChunkSampling all = new ChunkSampling(locator, windowStarts(1, 1001), 1.0, 500, 1);
+        assertEquals(4, all.getNumberOfChunks());
+
+        int[] coverage = new int[1000];
+        for (int i = 0; i < coverage.length; ++i) {
+            coverage[i] = i < 500 ? 2 : 4;
+        }
+        all.addCoverage(1, coverage);
+        all.addCoverage(1001, new int[550]);
+
+        // coordinate sorted reads: two single starts and a position with three reads
+        ChunkSampling.ReadCounter counter = all.createReadCounter();
+        counter.addMappedRead(10, createRead(0));
+        counter.addReadStart(10);
+        counter.addInsertSize(10, 100);
+        counter.addReadStart(20);
+        counter.addInsertSize(20, 300);
+        for (int i = 0; i < 3; ++i) {
+            counter.addReadStart(600);
+            counter.addInsertSize(600, 0);
+        }
+        counter.addMappedRead(1100, createRead(0));
+        counter.finish();
+
+        // the whole reference is sampled, so the intervals are exact
+        ChunkSampling.Estimate meanCoverage = all.estimateMeanCoverage();
+        assertEquals(3000.0 / 1550, meanCoverage.getValue(), 1e-9);
+        assertEquals(meanCoverage.getValue(), meanCoverage.getLower(), 1e-9);
+        assertEquals(meanCoverage.getValue(), meanCoverage.getUpper(), 1e-9);
+        assertEquals(100.0 / 3, all.estimateDuplicationRate().getValue(), 1e-9);
+        assertEquals(200.0, all.estimateMeanInsertSize().getValue(), 1e-9);
+        assertEquals(Math.sqrt(20000.0), all.estimateStdInsertSize().getValue(), 1e-9);
+        assertEquals(2.0, all.estimateNumberOfMappedReads().getValue(), 1e-9);
+    }
+
+    @Test
+    public void testReadsOutsideOfChunks() {
+        GenomeLocator locator = new GenomeLocator();
+        locator.addContig("chr1", 1000);
+        ChunkSampling sample = new ChunkSampling(locator, windowStarts(1, 501), 0.5, 100, 3);
+
+        ChunkSampling.ReadCounter counter = sample.createReadCounter();
+        int numInside = 0;
+        for (long pos = 1; pos <= 1000; pos += 10) {
+            counter.addMappedRead(pos, createRead(0));
+            if (sample.findChunk(pos) < sample.getNumberOfChunks() &&
+                    sample.getChunkStart(sample.findChunk(pos)) <= pos) {
+                ++numInside;
+            }
+        }
+        counter.finish();
+
+        // the reads starting between the chunks are not counted
+        ChunkSampling.Estimate numReads = sample.estimateNumberOfMappedReads();
+        assertEquals(numInside * 1000.0 / sample.getSampledSize(), numReads.getValue(), 1e-9);
+        assertTrue(numReads.getLower() <= numReads.getValue() && numReads.getValue() <= numReads.getUpper());
+
+        assertNull(sample.estimateMeanInsertSize());
+    }
+
+    @Test
+    public void testReadCounters() {
+        GenomeLocator locator = new GenomeLocator();
+        locator.addContig("chr1", 1000);
+        ChunkSampling sample = new ChunkSampling(locator, windowStarts(1, 501), 0.5, 100, 3);
+        long start = sample.getChunkStart(0);
+
+        // paired first of pair, paired second of pair with unmapped mate, single end and supplementary
+        ChunkSampling.ReadCounter counter = sample.createReadCounter();
+        counter.addMappedRead(start, createRead(0x1 | 0x40));
+        counter.addMappedRead(start, createRead(0x1 | 0x8 | 0x80));
+        counter.addMappedRead(start + 1, createRead(0));
+        counter.addMappedRead(start + 1, createRead(0x800));
+        counter.finish();
+
+        // the counts of the sample are scaled to the whole reference
+        double scale = 1000.0 / sample.getSampledSize();
+        assertEquals(3 * scale, sample.estimateNumberOfReads(ChunkSampling.MAPPED_READS).getValue(), 1e-9);
+        assertEquals(Math.round(2 * scale), sample.scaleNumberOfReads(ChunkSampling.PAIRED_READS));
+        assertEquals(Math.round(scale), sample.scaleNumberOfReads(ChunkSampling.MAPPED_FIRST_OF_PAIR));
+        assertEquals(Math.round(scale), sample.scaleNumberOfReads(ChunkSampling.MAPPED_SECOND_OF_PAIR));
+        assertEquals(Math.round(scale), sample.scaleNumberOfReads(ChunkSampling.SINGLETONS));
+        assertEquals(Math.round(scale), sample.scaleNumberOfReads(ChunkSampling.SUPPLEMENTARY_ALIGNMENTS));
+    }
+}
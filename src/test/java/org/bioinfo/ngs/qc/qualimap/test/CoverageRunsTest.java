@@ -0,0 +1,186 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.test;
+
+import org.bioinfo.ngs.qc.qualimap.beans.BamDetailedGenomeWindow;
+import org.bioinfo.ngs.qc.qualimap.beans.SingleReadData;
+import org.bioinfo.ngs.qc.qualimap.common.CoverageWriter;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that coverage collected as runs is correctly merged into the window
+ */
+public class CoverageRunsTest {
+
+    @Test
+    public void testRunsAreMerged() {
+        SingleReadData readData = new SingleReadData(1);
+
+        for (int i = 2; i < 6; ++i) {
+            readData.acumBase(i, 'A', 30);
+        }
+        readData.acumBase(6, 'C', 20);
+        readData.acumBase(8, 'G', 20);
+
+        assertEquals(3, readData.getNumberOfCoverageRuns());
+        assertEquals(2, readData.getCoverageRunStart(0));
+        assertEquals(4, readData.getCoverageRunLength(0));
+        assertEquals(20, readData.getCoverageRunMappingQuality(1));
+        assertEquals(8, readData.getCoverageRunStart(2));
+    }
+
+    @Test
+    public void testWindowCoverage() throws CloneNotSupportedException {
+        BamDetailedGenomeWindow window = new BamDetailedGenomeWindow("w", 1, 10, null);
+
+        SingleReadData first = new SingleReadData(1);
+        for (int i = 0; i < 5; ++i) {
+            first.acumBase(i, 'A', 10);
+        }
+        SingleReadData second = new SingleReadData(1);
+        for (int i = 3; i < 10; ++i) {
+            second.acumBase(i, 'T', 30);
+        }
+
+        window.addReadAlignmentData(first);
+        window.addReadAlignmentData(second);
+        window.computeDescriptors();
+
+        int[] expectedCoverage = {1, 1, 1, 2, 2, 1, 1, 1, 1, 1};
+        long[] expectedQuality = {10, 10, 10, 20, 20, 30, 30, 30, 30, 30};
+
+        assertArrayEquals(expectedCoverage, window.getCoverageAcrossReference());
+        assertArrayEquals(expectedQuality, window.getMappingQualityAcrossReference());
+        assertEquals(12, window.getSumCoverage());
+    }
+
+    @Test
+    public void testBedGraphReport() throws IOException {
+        File reportFile = File.createTempFile("coverage", ".bedgraph");
+        File appendedFile = File.createTempFile("coverage", ".bedgraph");
+        try {
+            CoverageWriter appended = new CoverageWriter(appendedFile.getPath(),
+                    CoverageWriter.Format.BEDGRAPH, true);
+            appended.write("chr3", 1, new int[] {4, 4});
+            appended.close();
+
+            CoverageWriter writer = new CoverageWriter(reportFile.getPath(), CoverageWriter.Format.BEDGRAPH, true);
+            writer.write("chr1", 1, new int[] {0, 0, 3, 3, 5});
+            // the run continues in the next window
+            writer.write("chr1", 6, new int[] {5, 5, 0, 1});
+            writer.write("chr2", 1, new int[] {1, 1});
+            writer.appendAndDelete(appendedFile);
+            writer.close();
+            writer.close();
+
+            List<String> expected = Arrays.asList(
+                    "#chr\tstart\tend\tcoverage",
+                    "chr1\t2\t4\t3",
+                    "chr1\t4\t7\t5",
+                    "chr1\t8\t9\t1",
+                    "chr2\t0\t2\t1",
+                    "chr3\t0\t2\t4");
+            assertEquals(expected, readLines(reportFile));
+            assertEquals(false, appendedFile.exists());
+        } finally {
+            reportFile.delete();
+            appendedFile.delete();
+        }
+    }
+
+    @Test
+    public void testBedGraphReportIsResumed() throws IOException {
+        File reportFile = File.createTempFile("coverage", ".bedgraph");
+        try {
+            CoverageWriter writer = new CoverageWriter(reportFile.getPath(), CoverageWriter.Format.BEDGRAPH, true);
+            writer.write("chr1", 1, new int[] {0, 0, 3, 3, 5});
+            CoverageWriter.Position position = writer.sync();
+            // written after the position, it is discarded when the report is resumed
+            writer.write("chr1", 6, new int[] {7, 7, 7, 7});
+            writer.close();
+
+            writer = new CoverageWriter(reportFile.getPath(), CoverageWriter.Format.BEDGRAPH, true, position);
+            // the open run continues in the next window
+            writer.write("chr1", 6, new int[] {5, 5, 0, 1});
+            writer.close();
+
+            List<String> expected = Arrays.asList(
+                    "#chr\tstart\tend\tcoverage",
+                    "chr1\t2\t4\t3",
+                    "chr1\t4\t7\t5",
+                    "chr1\t8\t9\t1");
+            assertEquals(expected, readLines(reportFile));
+        } finally {
+            reportFile.delete();
+        }
+    }
+
+    @Test
+    public void testQueuedBasesExceedLimit() throws IOException {
+        File reportFile = File.createTempFile("coverage", ".txt");
+        try {
+            // more bases than the queue holds, the writer must block and continue
+            int windowSize = 1 << 20;
+            int numWindows = 40;
+            CoverageWriter writer = new CoverageWriter(reportFile.getPath(), CoverageWriter.Format.PER_BASE, true);
+            for (int i = 0; i < numWindows; ++i) {
+                int[] coverage = new int[windowSize];
+                coverage[i] = i + 1;
+                writer.write("chr1", (long) i * windowSize + 1, coverage);
+            }
+            writer.close();
+
+            List<String> lines = readLines(reportFile);
+            assertEquals(numWindows + 1, lines.size());
+            for (int i = 0; i < numWindows; ++i) {
+                assertEquals("chr1\t" + ((long) i * windowSize + i + 1) + "\t" + (i + 1), lines.get(i + 1));
+            }
+        } finally {
+            reportFile.delete();
+        }
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ( (line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+}
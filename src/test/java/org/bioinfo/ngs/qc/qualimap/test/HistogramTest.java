@@ -21,8 +21,12 @@
 package org.bioinfo.ngs.qc.qualimap.test;
 
 import org.bioinfo.ngs.qc.qualimap.beans.GenericHistogram;
+import org.bioinfo.ngs.qc.qualimap.common.PrimitiveHistogram;
 import org.junit.Test;
 
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -56,4 +60,29 @@ public class HistogramTest {
  }
 
 
+ @Test
+ public void testPrimitiveHistogram() {
+
+     PrimitiveHistogram h1 = new PrimitiveHistogram();
+     PrimitiveHistogram h2 = new PrimitiveHistogram();
+     HashMap<Long,Long> expected = new HashMap<Long, Long>();
+
+     long[] values = {0, 5, 5, 300, 4000, PrimitiveHistogram.DENSE_LIMIT - 1, PrimitiveHistogram.DENSE_LIMIT,
+             PrimitiveHistogram.DENSE_LIMIT, 1000000, 1000000};
+     for (int i = 0; i < values.length; ++i) {
+         (i % 2 == 0 ? h1 : h2).increment(values[i]);
+         Long count = expected.get(values[i]);
+         expected.put(values[i], count == null ? 1 : count + 1);
+     }
+     // enough large values to resize the sparse part
+     for (long v = 2000000; v < 2000200; ++v) {
+         h2.increment(v);
+         expected.put(v, 1L);
+     }
+
+     h1.merge(h2);
+     assertEquals(expected, h1.toMap());
+
+ }
+
 }
\ No newline at end of file
@@ -0,0 +1,164 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.test;
+
+import org.bioinfo.ngs.qc.qualimap.beans.GenomeLocator;
+import org.bioinfo.ngs.qc.qualimap.common.IndexedFastaReference;
+import org.bioinfo.ngs.qc.qualimap.common.ReferenceCompositionCache;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that reference slices served through the FASTA index match the sequence,
+ * and that the cached reference composition of windows is the same as computed one
+ */
+public class IndexedFastaReferenceTest {
+
+    static final String CHR1 = "ACGTNacgtnAACCGGTTAC";
+    static final String CHR2 = "GGGGccccTTTTaaaaNNNNACG";
+
+    static File writeFile(File file, String content) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        writer.write(content);
+        writer.close();
+        file.deleteOnExit();
+        return file;
+    }
+
+    static String sliceToString(IndexedFastaReference.Slice slice) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < slice.length(); ++i) {
+            builder.append((char) slice.get(i));
+        }
+        return builder.toString();
+    }
+
+    static void checkReference(String fastaPath) throws IOException {
+        // the order of the contigs in the locator differs from the FASTA file
+        GenomeLocator locator = new GenomeLocator();
+        locator.addContig("chr2", CHR2.length());
+        locator.addContig("chr1", CHR1.length());
+
+        IndexedFastaReference reference = new IndexedFastaReference(fastaPath, locator);
+        assertEquals(2, reference.getNumberOfSequences());
+
+        String genome = (CHR2 + CHR1).toUpperCase();
+        assertEquals(genome.substring(0, CHR2.length()), sliceToString(reference.getSlice(1, CHR2.length())));
+        assertEquals(genome.substring(5, 17), sliceToString(reference.getSlice(6, 17)));
+        assertEquals(genome.substring(CHR2.length(), genome.length()),
+                sliceToString(reference.getSlice(CHR2.length() + 1, genome.length())));
+        assertEquals(genome.substring(30, 39), sliceToString(reference.getSlice(31, 39)));
+    }
+
+    @Test
+    public void testComputedIndex() throws IOException {
+        File fasta = File.createTempFile("reference", ".fa");
+        writeFile(fasta, ">chr1 first\n" + CHR1.substring(0, 8) + "\n" + CHR1.substring(8, 16) + "\n" +
+                CHR1.substring(16) + "\n>chr2\r\n" + CHR2.substring(0, 10) + "\r\n" + CHR2.substring(10, 20) +
+                "\r\n" + CHR2.substring(20));
+
+        checkReference(fasta.getPath());
+    }
+
+    @Test
+    public void testExistingIndex() throws IOException {
+        File fasta = File.createTempFile("reference", ".fa");
+        writeFile(fasta, ">chr1\n" + CHR1.substring(0, 10) + "\n" + CHR1.substring(10) + "\n>chr2\n" +
+                CHR2.substring(0, 10) + "\n" + CHR2.substring(10, 20) + "\n" + CHR2.substring(20) + "\n");
+        writeFile(new File(fasta.getPath() + ".fai"), "chr1\t20\t6\t10\t11\n" + "chr2\t23\t34\t10\t11\n");
+
+        checkReference(fasta.getPath());
+    }
+
+    @Test(expected = IOException.class)
+    public void testDifferentLength() throws IOException {
+        File fasta = File.createTempFile("reference", ".fa");
+        writeFile(fasta, ">chr1\n" + CHR1 + "\n>chr2\n" + CHR2 + "\n");
+
+        GenomeLocator locator = new GenomeLocator();
+        locator.addContig("chr1", CHR1.length() + 1);
+        locator.addContig("chr2", CHR2.length());
+        new IndexedFastaReference(fasta.getPath(), locator);
+    }
+
+    @Test
+    public void testCompositionCache() throws IOException {
+        File fasta = File.createTempFile("reference", ".fa");
+        writeFile(fasta, ">chr1\n" + CHR1 + "\n>chr2\n" + CHR2 + "\n");
+
+        GenomeLocator locator = new GenomeLocator();
+        locator.addContig("chr1", CHR1.length());
+        locator.addContig("chr2", CHR2.length());
+        long referenceSize = locator.getTotalSize();
+        IndexedFastaReference reference = new IndexedFastaReference(fasta.getPath(), locator);
+
+        List<Long> windowPositions = Arrays.asList(1L, 11L, 21L, 31L);
+        ReferenceCompositionCache cache = new ReferenceCompositionCache(fasta.getPath(),
+                reference.getChecksum(), windowPositions, referenceSize);
+        cache.getCacheFile().deleteOnExit();
+        assertFalse(cache.load());
+        cache.compute(reference);
+        cache.save();
+
+        ReferenceCompositionCache loaded = new ReferenceCompositionCache(fasta.getPath(),
+                reference.getChecksum(), windowPositions, referenceSize);
+        assertTrue(loaded.load());
+        // ACGTNacgtn
+        assertArrayEquals(new long[] {2, 2, 2, 2, 2}, loaded.getNucleotideCounts(0));
+        // GGGGccccTT
+        assertArrayEquals(new long[] {0, 4, 4, 2, 0}, loaded.getNucleotideCounts(2));
+        // TTaaaaNNNNACG
+        assertArrayEquals(new long[] {5, 1, 1, 2, 4}, loaded.getNucleotideCounts(3));
+
+        // another layout of the windows is cached in its own file and does not replace the first one
+        List<Long> otherPositions = Arrays.asList(1L, 21L);
+        ReferenceCompositionCache other = new ReferenceCompositionCache(fasta.getPath(),
+                reference.getChecksum(), otherPositions, referenceSize);
+        other.getCacheFile().deleteOnExit();
+        assertFalse(cache.getCacheFile().equals(other.getCacheFile()));
+        assertFalse(other.load());
+        other.compute(reference);
+        other.save();
+
+        assertTrue(loaded.load());
+        assertArrayEquals(new long[] {5, 1, 1, 2, 4}, loaded.getNucleotideCounts(3));
+        ReferenceCompositionCache otherLoaded = new ReferenceCompositionCache(fasta.getPath(),
+                reference.getChecksum(), otherPositions, referenceSize);
+        assertTrue(otherLoaded.load());
+        assertArrayEquals(new long[] {5, 5, 4, 4, 2}, otherLoaded.getNucleotideCounts(0));
+
+        // a changed reference is not loaded from the cache
+        ReferenceCompositionCache changed = new ReferenceCompositionCache(fasta.getPath(),
+                reference.getChecksum() + 1, windowPositions, referenceSize);
+        assertFalse(changed.load());
+    }
+
+}
@@ -0,0 +1,358 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.test;
+
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import org.bioinfo.ngs.qc.qualimap.beans.BamDetailedGenomeWindow;
+import org.bioinfo.ngs.qc.qualimap.beans.BamStats;
+import org.bioinfo.ngs.qc.qualimap.beans.GenomeLocator;
+import org.bioinfo.ngs.qc.qualimap.beans.SingleReadData;
+import org.bioinfo.ngs.qc.qualimap.common.InsertSizeHistogram;
+import org.bioinfo.ngs.qc.qualimap.common.ReadStartsHistogram;
+import org.bioinfo.ngs.qc.qualimap.process.ProcessBunchOfReadsTask;
+import org.bioinfo.ngs.qc.qualimap.process.ReadStatsCollector;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that statistics merged from consecutive parts of the genome or from subsets of reads
+ * are the same as statistics collected sequentially
+ */
+public class MergeStatsTest {
+
+    static final long[] READ_STARTS = {1, 1, 2, 5, 5, 5, 7, 9, 9, 12, 15, 15, 15, 15, 18};
+
+    static ReadStartsHistogram collectReadStarts(int from, int to) {
+        ReadStartsHistogram hist = new ReadStartsHistogram();
+        for (int i = from; i < to; ++i) {
+            hist.update(READ_STARTS[i]);
+        }
+        return hist;
+    }
+
+    @Test
+    public void testReadStartsHistogram() {
+        ReadStartsHistogram expected = collectReadStarts(0, READ_STARTS.length);
+
+        ReadStartsHistogram left = collectReadStarts(0, 3);
+        ReadStartsHistogram middle = collectReadStarts(3, 9);
+        left.merge(middle);
+        left.merge(collectReadStarts(9, READ_STARTS.length));
+
+        ReadStartsHistogram right = collectReadStarts(3, 9);
+        right.merge(collectReadStarts(9, READ_STARTS.length));
+        ReadStartsHistogram first = collectReadStarts(0, 3);
+        first.merge(right);
+
+        ReadStartsHistogram withEmpty = new ReadStartsHistogram();
+        withEmpty.merge(collectReadStarts(0, 9));
+        withEmpty.merge(new ReadStartsHistogram());
+        withEmpty.merge(collectReadStarts(9, READ_STARTS.length));
+
+        // close the last position
+        expected.update(100);
+        left.update(100);
+        first.update(100);
+        withEmpty.update(100);
+
+        assertArrayEquals(expected.getHistorgram(), left.getHistorgram());
+        assertArrayEquals(expected.getHistorgram(), first.getHistorgram());
+        assertArrayEquals(expected.getHistorgram(), withEmpty.getHistorgram());
+    }
+
+    static List<Long> getWindowPositions() {
+        List<Long> positions = new ArrayList<Long>();
+        for (long pos = 1; pos <= 40; pos += 10) {
+            positions.add(pos);
+        }
+        return positions;
+    }
+
+    static BamStats createStats(GenomeLocator locator, int firstWindowIndex) {
+        BamStats stats = new BamStats("genome", locator, 40, 4);
+        stats.setWindowReferences("w", getWindowPositions());
+        stats.startFromWindow(firstWindowIndex);
+        return stats;
+    }
+
+    static BamDetailedGenomeWindow createWindow(int index) throws CloneNotSupportedException {
+        long start = index * 10 + 1;
+        BamDetailedGenomeWindow window = new BamDetailedGenomeWindow("w_" + (index + 1), start, start + 9, null);
+        SingleReadData readData = new SingleReadData(start);
+        for (int i = 0; i <= index * 2; ++i) {
+            readData.acumBase(i, 'A', 10 * index);
+        }
+        window.addReadAlignmentData(readData);
+        window.computeDescriptors();
+        return window;
+    }
+
+    static void addWindow(BamStats stats, int index) throws CloneNotSupportedException {
+        long start = index * 10 + 1;
+        BamDetailedGenomeWindow window = createWindow(index);
+
+        stats.updateReadStartsHistogram(start);
+        stats.updateInsertSizeHistogram(100 + index);
+        stats.incInitializedWindows();
+        stats.incProcessedWindows();
+        stats.addWindowInformation(window);
+    }
+
+    @Test
+    public void testBamStats() throws Exception {
+        GenomeLocator locator = new GenomeLocator();
+        locator.addContig("chr1", 20);
+        locator.addContig("chr2", 20);
+
+        BamStats expected = createStats(locator, 0);
+        for (int i = 0; i < 4; ++i) {
+            addWindow(expected, i);
+        }
+
+        BamStats merged = createStats(locator, 0);
+        addWindow(merged, 0);
+        BamStats second = createStats(locator, 1);
+        addWindow(second, 1);
+        addWindow(second, 2);
+        BamStats third = createStats(locator, 3);
+        addWindow(third, 3);
+        second.merge(third);
+        merged.merge(second);
+
+        assertEquals(4, merged.getNumberOfProcessedWindows());
+        assertEquals(expected.getNumberOfMappedBases(), merged.getNumberOfMappedBases());
+        assertEquals(Arrays.toString(expected.getCoverageAcrossReference()),
+                Arrays.toString(merged.getCoverageAcrossReference()));
+        assertEquals(Arrays.toString(expected.getMappingQualityAcrossReference()),
+                Arrays.toString(merged.getMappingQualityAcrossReference()));
+
+        expected.computeDescriptors();
+        expected.computeHistograms();
+        merged.computeDescriptors();
+        merged.computeHistograms();
+
+        assertEquals(expected.getMeanCoverage(), merged.getMeanCoverage(), 0);
+        assertEquals(expected.getStdCoverage(), merged.getStdCoverage(), 0);
+        assertEquals(expected.getMeanInsertSize(), merged.getMeanInsertSize(), 0);
+        assertEquals(expected.getDuplicationRate(), merged.getDuplicationRate(), 0);
+    }
+
+    @Test
+    public void testWindowsAddedOutOfOrder() throws Exception {
+        GenomeLocator locator = new GenomeLocator();
+        locator.addContig("chr1", 40);
+
+        BamStats expected = createStats(locator, 0);
+        BamStats stats = createStats(locator, 0);
+        for (int i = 0; i < 4; ++i) {
+            expected.addWindowInformation(createWindow(i));
+        }
+
+        int[] order = {2, 0, 3, 1};
+        for (int index : order) {
+            stats.addWindowInformation(index, createWindow(index));
+        }
+
+        assertEquals(Arrays.toString(expected.getCoverageAcrossReference()),
+                Arrays.toString(stats.getCoverageAcrossReference()));
+        assertEquals(Arrays.toString(expected.getMappingQualityAcrossReference()),
+                Arrays.toString(stats.getMappingQualityAcrossReference()));
+
+        expected.computeDescriptors();
+        expected.computeHistograms();
+        stats.computeDescriptors();
+        stats.computeHistograms();
+
+        assertEquals(expected.getMeanCoverage(), stats.getMeanCoverage(), 0);
+        assertEquals(expected.getCoverageHistogram().getSize(), stats.getCoverageHistogram().getSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotConsecutiveWindows() throws Exception {
+        GenomeLocator locator = new GenomeLocator();
+        locator.addContig("chr1", 40);
+
+        BamStats stats = createStats(locator, 0);
+        addWindow(stats, 0);
+        BamStats other = createStats(locator, 2);
+        addWindow(other, 2);
+        stats.merge(other);
+    }
+
+    @Test
+    public void testInsertSizeHistogram() {
+        Random random = new Random(5);
+        List<Integer> insertSizes = new ArrayList<Integer>();
+        InsertSizeHistogram first = new InsertSizeHistogram();
+        InsertSizeHistogram second = new InsertSizeHistogram();
+        for (int i = 0; i < 10000; ++i) {
+            int insertSize = 150 + random.nextInt(300);
+            insertSizes.add(insertSize);
+            (i % 3 == 0 ? first : second).add(insertSize);
+        }
+        // a few chimeric pairs, which are counted approximately
+        first.add(5000000);
+        second.add(70000);
+        insertSizes.add(5000000);
+        insertSizes.add(70000);
+
+        first.merge(second);
+        Collections.sort(insertSizes);
+        int size = insertSizes.size();
+        assertEquals(size, first.getNumberOfValues());
+        assertEquals((long) insertSizes.get(size / 4), first.getValueAt(size / 4));
+        assertEquals((long) insertSizes.get(size / 2), first.getValueAt(size / 2));
+        assertEquals(70000, first.getValueAt(size - 2), 70000 / 1000);
+        assertEquals(5000000, first.getValueAt(size - 1), 5000000 / 1000);
+
+        double sum = 0;
+        for (int insertSize : insertSizes) {
+            sum += insertSize;
+        }
+        double mean = sum / size;
+        double sumOfSquaredDiffs = 0;
+        for (int insertSize : insertSizes) {
+            sumOfSquaredDiffs += (insertSize - mean) * (insertSize - mean);
+        }
+        assertEquals(mean, first.getMean(), 1e-9);
+        assertEquals(Math.sqrt(sumOfSquaredDiffs / (size - 1)), first.getStd(), 1e-6);
+    }
+
+    static ReadStatsCollector collectReadStats(List<SAMRecord> reads, int from, int step) {
+        ReadStatsCollector collector = new ReadStatsCollector(3);
+        for (int i = from; i < reads.size(); i += step) {
+            ProcessBunchOfReadsTask.collectReadStats(reads.get(i), collector);
+        }
+        collector.saveGC();
+        return collector;
+    }
+
+    static void assertEqualReadStats(ReadStatsCollector expected, ReadStatsCollector actual) {
+        assertArrayEquals(expected.getReadsAContent(), actual.getReadsAContent());
+        assertArrayEquals(expected.getReadsCContent(), actual.getReadsCContent());
+        assertArrayEquals(expected.getReadsGContent(), actual.getReadsGContent());
+        assertArrayEquals(expected.getReadsTContent(), actual.getReadsTContent());
+        assertArrayEquals(expected.getReadsNContent(), actual.getReadsNContent());
+        assertArrayEquals(expected.getReadsClippingInfo(), actual.getReadsClippingInfo());
+        assertArrayEquals(expected.getReadsGcHistogram(), actual.getReadsGcHistogram());
+        assertArrayEquals(expected.getHomopolymerIndels(), actual.getHomopolymerIndels());
+        assertEquals(expected.getNumGcSamples(), actual.getNumGcSamples());
+        assertEquals(expected.getNumClippedReads(), actual.getNumClippedReads());
+        assertEquals(expected.getNumReadsWithInsertion(), actual.getNumReadsWithInsertion());
+        assertEquals(expected.getNumReadsWithDeletion(), actual.getNumReadsWithDeletion());
+        assertEquals(expected.getNumIndels(), actual.getNumIndels());
+        assertEquals(expected.getNumMismatches(), actual.getNumMismatches());
+        assertEquals(expected.getEditDistance(), actual.getEditDistance());
+    }
+
+    @Test
+    public void testReadStatsOfReadSubsets() {
+        Environment testEnv = new Environment();
+        SAMFileReader reader = new SAMFileReader(
+                new File(testEnv.processAttrValue("$COMMON_DATA_DIR/gambusino_reads.sorted.bam")));
+        List<SAMRecord> reads = new ArrayList<SAMRecord>();
+        for (SAMRecord read : reader) {
+            reads.add(read);
+        }
+        reader.close();
+
+        // every subset is sampled for the GC content on its own, as a bunch of reads is
+        ReadStatsCollector expected = new ReadStatsCollector(3);
+        for (int from = 0; from < 3; ++from) {
+            for (int i = from; i < reads.size(); i += 3) {
+                ProcessBunchOfReadsTask.collectReadStats(reads.get(i), expected);
+            }
+            expected.saveGC();
+        }
+        assertTrue(expected.getNumGcSamples() > 0);
+
+        ReadStatsCollector merged = collectReadStats(reads, 0, 3);
+        merged.merge(collectReadStats(reads, 1, 3));
+        merged.merge(collectReadStats(reads, 2, 3));
+        assertEqualReadStats(expected, merged);
+
+        ReadStatsCollector reversed = collectReadStats(reads, 2, 3);
+        ReadStatsCollector middle = collectReadStats(reads, 1, 3);
+        middle.merge(collectReadStats(reads, 0, 3));
+        reversed.merge(middle);
+        assertEqualReadStats(expected, reversed);
+    }
+
+    static void addReads(BamDetailedGenomeWindow window, int from, int step) {
+        // overlapping reads of different length and mapping quality
+        for (int i = from; i < 12; i += step) {
+            SingleReadData readData = new SingleReadData(window.getStart());
+            int readStart = i * 3 % 25;
+            int readEnd = Math.min(readStart + 4 + i % 5, 29);
+            readData.numberOfMappedBases = readEnd - readStart + 1;
+            for (int pos = readStart; pos <= readEnd; ++pos) {
+                readData.acumBase(pos, "ACGTN".charAt((i + pos) % 5), 10 + i);
+            }
+            window.acumInsertSize(100 + i);
+            window.addReadAlignmentData(readData);
+        }
+    }
+
+    @Test
+    public void testWindowsOfReadSubsets() throws Exception {
+        BamDetailedGenomeWindow expected = new BamDetailedGenomeWindow("w_1", 11, 40, null);
+        addReads(expected, 0, 1);
+
+        BamDetailedGenomeWindow merged = new BamDetailedGenomeWindow("w_1", 11, 40, null);
+        addReads(merged, 0, 2);
+        BamDetailedGenomeWindow other = new BamDetailedGenomeWindow("w_1", 11, 40, null);
+        addReads(other, 1, 2);
+        merged.merge(other);
+
+        expected.computeDescriptors();
+        merged.computeDescriptors();
+
+        assertArrayEquals(expected.getCoverageAcrossReference(), merged.getCoverageAcrossReference());
+        assertArrayEquals(expected.getMappingQualityAcrossReference(), merged.getMappingQualityAcrossReference());
+        assertEquals(expected.getNumberOfMappedBases(), merged.getNumberOfMappedBases());
+        assertEquals(expected.getNumberOfSequencedBases(), merged.getNumberOfSequencedBases());
+        assertEquals(expected.getNumberOfCs(), merged.getNumberOfCs());
+        assertEquals(expected.getNumberOfNs(), merged.getNumberOfNs());
+        assertEquals(expected.getMeanCoverage(), merged.getMeanCoverage(), 0);
+        assertEquals(expected.getStdCoverage(), merged.getStdCoverage(), 0);
+        assertEquals(expected.getMeanMappingQuality(), merged.getMeanMappingQuality(), 0);
+        assertEquals(expected.getMeanGcRelativeContent(), merged.getMeanGcRelativeContent(), 0);
+        assertEquals(expected.getMeanInsertSize(), merged.getMeanInsertSize(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWindowsWithDifferentCoordinates() {
+        BamDetailedGenomeWindow window = new BamDetailedGenomeWindow("w_1", 1, 10, null);
+        window.merge(new BamDetailedGenomeWindow("w_2", 11, 20, null));
+    }
+
+}
@@ -0,0 +1,157 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.test;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import org.bioinfo.ngs.qc.qualimap.process.BamStatsAnalysis;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.bioinfo.ngs.qc.qualimap.test.AnalysisTestUtils.*;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the analysis gives the same results when it is done in parallel
+ */
+public class ParallelAnalysisTest {
+
+    static BamStatsAnalysis analyze(File bamFile, boolean analyzeContigsInParallel) throws Exception {
+        return analyze(bamFile, analyzeContigsInParallel, 16, 2, 10);
+    }
+
+    static BamStatsAnalysis analyze(File bamFile, boolean analyzeContigsInParallel, int numWindows,
+                                    int numThreads, int numReadsInBunch) throws Exception {
+        BamStatsAnalysis bamQc = new BamStatsAnalysis(bamFile.getPath());
+        bamQc.setNumberOfWindows(numWindows);
+        bamQc.setNumberOfThreads(numThreads);
+        bamQc.setNumberOfReadsInBunch(numReadsInBunch);
+        bamQc.setAnalyzeContigsInParallel(analyzeContigsInParallel);
+        bamQc.run();
+        return bamQc;
+    }
+
+    /**
+     * The bases overhanging the end of a chromosome are counted in the next chromosomes, the reads
+     * near the end of chr1 reach over the short chr2 and some spliced ones over several windows of chr3.
+     * The checked-in BAM files have no such reads, so they are generated.
+     */
+    @Test
+    public void testReadsOverhangingContigEnd() throws Exception {
+        SAMFileHeader header = createHeader(new String[] {"chr1", "chr2", "chr3", "chr4"},
+                new int[] {1000, 30, 600, 400});
+        int[] steps = {7, 3, 11, 13};
+        long referenceSize = 2030;
+
+        List<SAMRecord> reads = new ArrayList<SAMRecord>();
+        long expectedMappedBases = 0;
+        int n = 0;
+        long contigStart = 0;
+        for (int contig = 0; contig < 4; ++contig) {
+            int contigLength = header.getSequence(contig).getSequenceLength();
+            for (int pos = 1; pos <= contigLength - 10; pos += steps[contig]) {
+                String cigar = n % 5 == 0 ? "20M300N30M" : "50M";
+                SAMRecord read = createRead(header, "r" + n, contig, pos, cigar, 20 + n % 40, n);
+                reads.add(read);
+                // only the bases after the end of the reference are not counted
+                long start = contigStart + pos;
+                long end = start + read.getAlignmentEnd() - read.getAlignmentStart();
+                expectedMappedBases += Math.min(end, referenceSize) - start + 1;
+                ++n;
+            }
+            contigStart += contigLength;
+        }
+
+        File dir = createTempDir();
+        try {
+            File bamFile = new File(dir, "overhang.bam");
+            writeBam(bamFile, header, reads);
+
+            BamStatsAnalysis sequential = analyze(bamFile, false);
+            BamStatsAnalysis parallel = analyze(bamFile, true);
+
+            assertEquals(expectedMappedBases, sequential.getBamStats().getNumberOfMappedBases());
+            assertEquals(getProperties(sequential, false), getProperties(parallel, false));
+            assertEquals(Arrays.toString(sequential.getBamStats().getCoverageAcrossReference()),
+                    Arrays.toString(parallel.getBamStats().getCoverageAcrossReference()));
+            assertEquals(Arrays.toString(sequential.getBamStats().getMappingQualityAcrossReference()),
+                    Arrays.toString(parallel.getBamStats().getMappingQualityAcrossReference()));
+
+            // the overhanging bases are split between the regions and the outside of them
+            File regionsFile = new File(dir, "regions.bed");
+            PrintWriter regions = new PrintWriter(regionsFile);
+            regions.println("chr1\t900\t1000\tr1\t0\t+");
+            regions.println("chr2\t10\t20\tr2\t0\t+");
+            regions.println("chr3\t0\t40\tr3\t0\t+");
+            regions.println("chr3\t250\t320\tr4\t0\t+");
+            regions.close();
+
+            sequential = analyzeRegions(bamFile, regionsFile, false);
+            parallel = analyzeRegions(bamFile, regionsFile, true);
+
+            assertEquals(getProperties(sequential, false), getProperties(parallel, false));
+            assertEquals(getProperties(sequential, true), getProperties(parallel, true));
+            assertEquals(Arrays.toString(sequential.getOutsideBamStats().getCoverageAcrossReference()),
+                    Arrays.toString(parallel.getOutsideBamStats().getCoverageAcrossReference()));
+        } finally {
+            deleteDir(dir);
+        }
+    }
+
+    static BamStatsAnalysis analyzeRegions(File bamFile, File regionsFile, boolean analyzeContigsInParallel)
+            throws Exception {
+        BamStatsAnalysis bamQc = new BamStatsAnalysis(bamFile.getPath());
+        bamQc.setSelectedRegions(regionsFile.getPath());
+        bamQc.setComputeOutsideStats(true);
+        bamQc.setNumberOfWindows(16);
+        bamQc.setNumberOfThreads(2);
+        bamQc.setNumberOfReadsInBunch(10);
+        bamQc.setAnalyzeContigsInParallel(analyzeContigsInParallel);
+        bamQc.run();
+        return bamQc;
+    }
+
+    /**
+     * Small bunches processed by several threads finish out of order, and the windows are finalized
+     * while the later bunches are still analyzed. The results must not depend on it.
+     */
+    @Test
+    public void testSmallBunchesInSeveralThreads() throws Exception {
+        Environment testEnv = new Environment();
+        File bamFile = new File(testEnv.processAttrValue("$COMMON_DATA_DIR/gambusino_reads.sorted.bam"));
+
+        BamStatsAnalysis singleThread = analyze(bamFile, false, 64, 1, 1000);
+        BamStatsAnalysis severalThreads = analyze(bamFile, false, 64, 4, 3);
+
+        assertEquals(125, severalThreads.getBamStats().getNumberOfReads());
+        assertEquals(getProperties(singleThread, false), getProperties(severalThreads, false));
+        assertEquals(Arrays.toString(singleThread.getBamStats().getCoverageAcrossReference()),
+                Arrays.toString(severalThreads.getBamStats().getCoverageAcrossReference()));
+        assertEquals(Arrays.toString(singleThread.getBamStats().getMappingQualityAcrossReference()),
+                Arrays.toString(severalThreads.getBamStats().getMappingQualityAcrossReference()));
+    }
+
+}
@@ -0,0 +1,131 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.test;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import org.bioinfo.ngs.qc.qualimap.common.ParallelBamRecordIterator;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bioinfo.ngs.qc.qualimap.test.AnalysisTestUtils.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the records decoded in a separate thread and the decoding errors reach the consumer
+ */
+public class ParallelBamRecordIteratorTest {
+
+    static final int NUM_READS = 20000;
+
+    static class StreamError extends Error {
+    }
+
+    // fails with an error after the given number of bytes
+    static class FailingInputStream extends FilterInputStream {
+        long bytesLeft;
+
+        FailingInputStream(InputStream in, long numBytes) {
+            super(in);
+            bytesLeft = numBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (bytesLeft <= 0) {
+                throw new StreamError();
+            }
+            int n = super.read(b, off, (int) Math.min(len, bytesLeft));
+            if (n > 0) {
+                bytesLeft -= n;
+            }
+            return n;
+        }
+    }
+
+    // the reads take many BGZF blocks, unlike the checked-in BAM files
+    static File writeTestBam(File dir) {
+        SAMFileHeader header = createHeader(new String[] {"chr1"}, new int[] {1000000});
+        List<SAMRecord> reads = new ArrayList<SAMRecord>();
+        for (int i = 0; i < NUM_READS; ++i) {
+            reads.add(createRead(header, "r" + i, 0, 1 + i * 40, "50M", 60, i));
+        }
+        File bamFile = new File(dir, "reads.bam");
+        writeBam(bamFile, header, reads);
+        return bamFile;
+    }
+
+    @Test
+    public void testAllRecordsAreReturned() throws Exception {
+        File dir = createTempDir();
+        try {
+            File bamFile = writeTestBam(dir);
+            ParallelBamRecordIterator iter = new ParallelBamRecordIterator(new FileInputStream(bamFile), 2, 100);
+            int numRecords = 0;
+            while (iter.hasNext()) {
+                SAMRecord read = iter.next();
+                assertEquals("r" + numRecords, read.getReadName());
+                ++numRecords;
+            }
+            iter.close();
+            assertEquals(NUM_READS, numRecords);
+        } finally {
+            deleteDir(dir);
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testErrorIsPassedToConsumer() throws Exception {
+        File dir = createTempDir();
+        try {
+            File bamFile = writeTestBam(dir);
+            InputStream in = new FailingInputStream(new FileInputStream(bamFile), bamFile.length() / 2);
+            ParallelBamRecordIterator iter = new ParallelBamRecordIterator(in, 1, 100);
+            int numRecords = 0;
+            boolean failed = false;
+            try {
+                while (iter.hasNext()) {
+                    iter.next();
+                    ++numRecords;
+                }
+            } catch (StreamError e) {
+                failed = true;
+            } finally {
+                iter.close();
+            }
+            assertTrue(failed);
+            assertTrue(numRecords > 0 && numRecords < NUM_READS);
+        } finally {
+            deleteDir(dir);
+        }
+    }
+
+}
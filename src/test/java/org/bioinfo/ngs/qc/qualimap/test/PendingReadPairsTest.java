@@ -0,0 +1,220 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.test;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
+import org.bioinfo.ngs.qc.qualimap.common.BamStatsCollector;
+import org.bioinfo.ngs.qc.qualimap.common.PendingReadPairs;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the reads waiting for their mates during the detection of the overlapping read pairs.
+ */
+public class PendingReadPairsTest {
+
+    static SAMRecord createMate(SAMFileHeader header, String name, String chr, int start,
+                                String mateChr, int mateStart) {
+        SAMRecord read = new SAMRecord(header);
+        read.setReadName(name);
+        read.setReferenceName(chr);
+        read.setAlignmentStart(start);
+        read.setCigarString("50M");
+        read.setReadPairedFlag(true);
+        read.setMateReferenceName(mateChr);
+        read.setMateAlignmentStart(mateStart);
+        return read;
+    }
+
+    @Test
+    public void testOverlappingReadPairs() {
+        SAMSequenceDictionary dictionary = new SAMSequenceDictionary();
+        dictionary.addSequence(new SAMSequenceRecord("chr1", 10000000));
+        dictionary.addSequence(new SAMSequenceRecord("chr2", 10000000));
+        SAMFileHeader header = new SAMFileHeader();
+        header.setSequenceDictionary(dictionary);
+
+        Random random = new Random(11);
+        List<SAMRecord> reads = new ArrayList<SAMRecord>();
+        long expectedPairs = 0, expectedBases = 0;
+        for (int i = 0; i < 20000; ++i) {
+            String chr = i < 15000 ? "chr1" : "chr2";
+            int start = 1 + random.nextInt(1000000);
+            String name = "read" + i;
+            if (i % 50 == 0) {
+                // mate on the other chromosome is never paired
+                String mateChr = chr.equals("chr1") ? "chr2" : "chr1";
+                reads.add(createMate(header, name, chr, start, mateChr, start));
+                reads.add(createMate(header, name, mateChr, start, chr, start));
+                continue;
+            }
+            int mateStart = start + random.nextInt(250);
+            reads.add(createMate(header, name, chr, start, chr, mateStart));
+            reads.add(createMate(header, name, chr, mateStart, chr, start));
+            if (mateStart - start < 50) {
+                expectedPairs++;
+                expectedBases += 50 - (mateStart - start);
+            }
+        }
+        Collections.sort(reads, new Comparator<SAMRecord>() {
+            public int compare(SAMRecord r1, SAMRecord r2) {
+                int res = r1.getReferenceIndex().compareTo(r2.getReferenceIndex());
+                return res != 0 ? res : r1.getAlignmentStart() - r2.getAlignmentStart();
+            }
+        });
+
+        BamStatsCollector collector = new BamStatsCollector();
+        collector.enableIntersectingReadsCollection();
+        for (SAMRecord read : reads) {
+            collector.collectPairedReadInfo(read);
+        }
+        collector.finalizeAlignmentInfo();
+
+        assertEquals(expectedPairs, collector.getNumOverlappingReadPairs());
+        assertEquals(expectedBases, collector.getNumOverlappingBases());
+    }
+
+    @Test
+    public void testEviction() {
+        PendingReadPairs pendingPairs = new PendingReadPairs();
+        // added in a different order than the mate starts
+        int[] mateStarts = {70, 10, 50, 30, 100, 20, 60, 90, 40, 80};
+        for (int i = 0; i < mateStarts.length; ++i) {
+            pendingPairs.add(i + 1, mateStarts[i] - 5, mateStarts[i]);
+        }
+
+        pendingPairs.evictBefore(50);
+        assertEquals(6, pendingPairs.size());
+        // the read whose mate starts at the position is kept
+        pendingPairs.evictBefore(50);
+        assertEquals(6, pendingPairs.size());
+
+        for (int i = 0; i < mateStarts.length; ++i) {
+            int expected = mateStarts[i] < 50 ? -1 : mateStarts[i] - 5;
+            assertEquals(expected, pendingPairs.remove(i + 1));
+        }
+        assertEquals(0, pendingPairs.size());
+        pendingPairs.evictBefore(1000);
+        assertEquals(0, pendingPairs.size());
+    }
+
+    @Test
+    public void testStaleHeapEntries() {
+        PendingReadPairs pendingPairs = new PendingReadPairs();
+
+        // the read is paired and seen again with a later mate, the old mate start must not evict it
+        pendingPairs.add(1, 100, 50);
+        assertEquals(100, pendingPairs.remove(1));
+        pendingPairs.add(1, 200, 500);
+
+        // the released slot is reused by another read
+        pendingPairs.add(2, 110, 60);
+        assertEquals(110, pendingPairs.remove(2));
+        pendingPairs.add(3, 300, 400);
+
+        pendingPairs.evictBefore(100);
+        assertEquals(2, pendingPairs.size());
+        assertEquals(300, pendingPairs.remove(3));
+
+        pendingPairs.evictBefore(501);
+        assertEquals(0, pendingPairs.size());
+        assertEquals(-1, pendingPairs.remove(1));
+    }
+
+    @Test
+    public void testSameNameHash() {
+        PendingReadPairs pendingPairs = new PendingReadPairs();
+        long key = PendingReadPairs.hashName("read1");
+        assertEquals(key, PendingReadPairs.hashName("read1"));
+        assertTrue(key != PendingReadPairs.hashName("read2"));
+
+        // a second read with the same name hash does not replace the first one
+        pendingPairs.add(key, 100, 200);
+        pendingPairs.add(key, 150, 120);
+        assertEquals(1, pendingPairs.size());
+        pendingPairs.evictBefore(150);
+        assertEquals(1, pendingPairs.size());
+        assertEquals(100, pendingPairs.remove(key));
+        assertEquals(-1, pendingPairs.remove(key));
+    }
+
+    @Test
+    public void testTableCollisions() {
+        // many reads waiting at once fill the table, so most of them share probe sequences,
+        // removing reads in the middle of the sequences must keep the others reachable
+        Random random = new Random(7);
+        PendingReadPairs pendingPairs = new PendingReadPairs();
+        Map<Long,int[]> expected = new HashMap<Long,int[]>();
+        List<Long> keys = new ArrayList<Long>();
+
+        int position = 1;
+        for (int step = 0; step < 200000; ++step) {
+            // the second half keeps the reads longer, so the table grows
+            int maxDistance = step < 100000 ? 2000 : 20000;
+            position += random.nextInt(3);
+            pendingPairs.evictBefore(position);
+            Iterator<int[]> it = expected.values().iterator();
+            while (it.hasNext()) {
+                if (it.next()[1] < position) {
+                    it.remove();
+                }
+            }
+            assertEquals(expected.size(), pendingPairs.size());
+
+            if (random.nextInt(10) < 6) {
+                long key = random.nextLong();
+                if (key == 0) {
+                    continue;
+                }
+                int mateStart = position + random.nextInt(maxDistance);
+                pendingPairs.add(key, position + 49, mateStart);
+                expected.put(key, new int[] {position + 49, mateStart});
+                keys.add(key);
+            } else if (!keys.isEmpty()) {
+                long key = keys.get(random.nextInt(keys.size()));
+                int[] entry = expected.remove(key);
+                assertEquals(entry == null ? -1 : entry[0], pendingPairs.remove(key));
+            }
+        }
+        assertTrue(expected.size() > 2048);
+
+        for (long key : keys) {
+            int[] entry = expected.remove(key);
+            assertEquals(entry == null ? -1 : entry[0], pendingPairs.remove(key));
+        }
+        assertEquals(0, pendingPairs.size());
+    }
+
+}
@@ -0,0 +1,84 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.test;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
+import org.bioinfo.ngs.qc.qualimap.common.ReadValidationMode;
+import org.bioinfo.ngs.qc.qualimap.process.ReadValidator;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the lightweight and sampled validation of alignment records
+ */
+public class ReadValidatorTest {
+
+    static SAMRecord createRead(SAMFileHeader header, int start, String cigar, String bases) {
+        SAMRecord read = new SAMRecord(header);
+        read.setReadName("r" + start);
+        read.setReferenceName("chr1");
+        read.setAlignmentStart(start);
+        read.setCigarString(cigar);
+        read.setReadString(bases);
+        read.setBaseQualityString(bases.replaceAll(".", "I"));
+        return read;
+    }
+
+    @Test
+    public void testValidationModes() {
+        SAMSequenceDictionary dictionary = new SAMSequenceDictionary();
+        dictionary.addSequence(new SAMSequenceRecord("chr1", 100));
+        SAMFileHeader header = new SAMFileHeader();
+        header.setSequenceDictionary(dictionary);
+
+        SAMRecord goodRead = createRead(header, 10, "4M", "ACGT");
+        SAMRecord cigarMismatch = createRead(header, 10, "5M", "ACGT");
+        SAMRecord outOfBounds = createRead(header, 101, "4M", "ACGT");
+        SAMRecord overhang = createRead(header, 98, "2M1D2M", "ACGT");
+
+        ReadValidator light = new ReadValidator(ReadValidationMode.LIGHTWEIGHT, 1);
+        assertEquals(true, light.isValid(goodRead));
+        assertEquals(false, light.isValid(cigarMismatch));
+        assertEquals(false, light.isValid(outOfBounds));
+        assertEquals(true, light.isValid(overhang));
+        assertEquals(4, light.getNumLightweightChecks());
+        assertEquals(2, light.getNumLightweightChecksFailed());
+        assertEquals(0, light.getNumFullChecks());
+
+        ReadValidator full = new ReadValidator(ReadValidationMode.FULL, 1);
+        assertEquals(true, full.isValid(goodRead));
+        assertEquals(false, full.isValid(outOfBounds));
+        assertEquals(true, full.isValid(overhang));
+
+        ReadValidator sampled = new ReadValidator(ReadValidationMode.SAMPLED, 4);
+        for (int i = 0; i < 10; ++i) {
+            sampled.isValid(goodRead);
+        }
+        assertEquals(3, sampled.getNumFullChecks());
+        assertEquals(7, sampled.getNumLightweightChecks());
+        assertEquals(0, sampled.getNumFullChecksFailed() + sampled.getNumLightweightChecksFailed());
+    }
+
+}
@@ -0,0 +1,89 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.test;
+
+import org.bioinfo.ngs.qc.qualimap.common.RegionOverlapLookupTable;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the region overlaps found by the lookup table with the ones found by checking all regions
+ */
+public class RegionOverlapLookupTableTest {
+
+    static final String[] SEQ_NAMES = {"chr1", "chr2"};
+
+    @Test
+    public void testOverlaps() {
+        Random random = new Random(17);
+        int numRegions = 300;
+        int[] starts = new int[numRegions];
+        int[] ends = new int[numRegions];
+        boolean[] strands = new boolean[numRegions];
+        String[] seqNames = new String[numRegions];
+
+        RegionOverlapLookupTable table = new RegionOverlapLookupTable();
+        for (int i = 0; i < numRegions; ++i) {
+            seqNames[i] = SEQ_NAMES[random.nextInt(SEQ_NAMES.length)];
+            starts[i] = 1 + random.nextInt(10000);
+            // a few long regions cover many short ones
+            ends[i] = starts[i] + (random.nextInt(20) == 0 ? random.nextInt(3000) : random.nextInt(100));
+            strands[i] = random.nextBoolean();
+            table.putRegion(starts[i], ends[i], seqNames[i], strands[i]);
+        }
+
+        RegionOverlapLookupTable.Cursor cursor = table.createCursor();
+        for (String seqName : SEQ_NAMES) {
+            int readStart = 1;
+            for (int k = 0; k < 2000; ++k) {
+                // sorted reads with occasional jumps back
+                readStart = random.nextInt(50) == 0 ? 1 + random.nextInt(10000) : readStart + random.nextInt(10);
+                int readEnd = readStart + random.nextInt(150);
+                boolean forward = random.nextBoolean();
+
+                int numMatches = 0, numStrandMatches = 0;
+                for (int i = 0; i < numRegions; ++i) {
+                    if (seqNames[i].equals(seqName) && starts[i] <= readEnd && ends[i] >= readStart) {
+                        numMatches++;
+                        if (strands[i] == forward) {
+                            numStrandMatches++;
+                        }
+                    }
+                }
+                boolean overlaps = numMatches > 0;
+                boolean strandMatches = numMatches > 0 && numStrandMatches == numMatches;
+
+                assertEquals(overlaps, table.overlaps(readStart, readEnd, seqName));
+                assertEquals(overlaps, cursor.overlaps(readStart, readEnd, seqName));
+                RegionOverlapLookupTable.OverlapResult r = cursor.overlaps(readStart, readEnd, seqName, forward);
+                assertEquals(overlaps, r.intervalOverlaps());
+                assertEquals(strandMatches, r.strandMatches());
+                assertEquals(strandMatches, table.overlaps(readStart, readEnd, seqName, forward).strandMatches());
+            }
+        }
+
+        assertEquals(false, cursor.overlaps(1, 100, "chrX"));
+    }
+
+}
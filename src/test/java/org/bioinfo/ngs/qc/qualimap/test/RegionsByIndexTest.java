@@ -0,0 +1,206 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.test;
+
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+import net.sf.samtools.SAMSequenceRecord;
+import org.bioinfo.ngs.qc.qualimap.beans.BamStats;
+import org.bioinfo.ngs.qc.qualimap.beans.GenomeLocator;
+import org.bioinfo.ngs.qc.qualimap.common.BamIndexStats;
+import org.bioinfo.ngs.qc.qualimap.common.IndexedRegionsIterator;
+import org.bioinfo.ngs.qc.qualimap.process.BamStatsAnalysis;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.bioinfo.ngs.qc.qualimap.test.AnalysisTestUtils.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the analysis of the regions reading only the reads overlapping them using the BAM index
+ */
+public class RegionsByIndexTest {
+
+    String pathToBamFile;
+
+    // regions as contig, start and end, some of them overlap or are adjacent,
+    // some are closer than the length of the reads
+    static final String[] REGION_CONTIGS = {"chr1", "chr1", "chr1", "chr1", "chr1", "chr2", "chr2"};
+    static final int[] REGION_STARTS = {20, 35, 51, 100, 120, 10, 90};
+    static final int[] REGION_ENDS = {40, 50, 60, 110, 130, 20, 100};
+
+    static final String WARNING_KEY = "WARNINGS_Reads_outside_of_regions_are_not_analyzed";
+    static final String RECORDS_IN_INDEX_KEY = "GLOBALS_Number_of_records_(from_BAM_index)";
+
+    public RegionsByIndexTest() {
+        Environment testEnv = new Environment();
+        pathToBamFile = testEnv.processAttrValue("$COMMON_DATA_DIR/gambusino_reads.sorted.bam");
+    }
+
+    @Test
+    public void testIndexStats() {
+        SAMFileReader reader = new SAMFileReader(new File(pathToBamFile));
+        try {
+            BamIndexStats indexStats = new BamIndexStats(reader);
+
+            assertEquals(2, indexStats.getNumberOfReferences());
+            assertEquals(57, indexStats.getNumberOfAlignedRecords(0));
+            assertEquals(68, indexStats.getNumberOfAlignedRecords(1));
+            assertEquals(0, indexStats.getNumberOfUnalignedRecords(0));
+            assertEquals(0, indexStats.getNumberOfUnalignedRecords(1));
+            assertEquals(0, indexStats.getNumberOfNoCoordinateRecords());
+            assertEquals(125, indexStats.getNumberOfMappedRecords());
+            assertEquals(0, indexStats.getNumberOfUnmappedRecords());
+            assertEquals(125, indexStats.getNumberOfRecords());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testIndexedRegionsIterator() {
+        SAMFileReader reader = new SAMFileReader(new File(pathToBamFile));
+        try {
+            GenomeLocator locator = new GenomeLocator();
+            for (SAMSequenceRecord sequence : reader.getFileHeader().getSequenceDictionary().getSequences()) {
+                locator.addContig(sequence.getSequenceName(), sequence.getSequenceLength());
+            }
+            long[] regionStarts = new long[REGION_STARTS.length];
+            long[] regionEnds = new long[REGION_ENDS.length];
+            for (int i = 0; i < regionStarts.length; ++i) {
+                regionStarts[i] = locator.getAbsoluteCoordinates(REGION_CONTIGS[i], REGION_STARTS[i]);
+                regionEnds[i] = locator.getAbsoluteCoordinates(REGION_CONTIGS[i], REGION_ENDS[i]);
+            }
+
+            List<String> expected = getReadsOverlappingRegions(reader);
+
+            IndexedRegionsIterator iter = new IndexedRegionsIterator(reader, locator, regionStarts, regionEnds,
+                    1, locator.getTotalSize());
+            // the overlapping and adjacent regions of chr1 are queried together
+            assertEquals(5, iter.getNumberOfIntervals());
+            List<String> actual = new ArrayList<String>();
+            while (iter.hasNext()) {
+                actual.add(iter.next().getReadName());
+            }
+            iter.close();
+
+            assertTrue(expected.size() > 0);
+            assertEquals(expected, actual);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testRegionsByIndexMatchFullScan() throws Exception {
+        File workDir = createTempDir();
+        try {
+            File regionsFile = new File(workDir, "regions.bed");
+            PrintWriter regions = new PrintWriter(regionsFile);
+            for (int i = 0; i < REGION_STARTS.length; ++i) {
+                // BED starts are 0-based
+                regions.println(REGION_CONTIGS[i] + "\t" + (REGION_STARTS[i] - 1) + "\t" + REGION_ENDS[i] +
+                        "\tr" + i + "\t0\t+");
+            }
+            regions.close();
+
+            BamStatsAnalysis fullScan = createAnalysis(regionsFile, false);
+            fullScan.run();
+            BamStatsAnalysis byIndex = createAnalysis(regionsFile, true);
+            byIndex.run();
+
+            SAMFileReader reader = new SAMFileReader(new File(pathToBamFile));
+            int numReadsInRegions = getReadsOverlappingRegions(reader).size();
+            reader.close();
+
+            // the globals refer to the analyzed reads, the index counts are kept apart
+            BamStats stats = byIndex.getBamStats();
+            assertEquals(numReadsInRegions, stats.getNumberOfReads());
+            assertEquals(numReadsInRegions, stats.getNumberOfMappedReads());
+            assertEquals(numReadsInRegions, stats.getNumberOfMappedReadsInRegions());
+            assertEquals(100.0, stats.getPercentageOfMappedReads(), 0.0);
+            assertEquals(125, stats.getNumberOfRecordsInIndex());
+            assertEquals(125, stats.getNumberOfMappedRecordsInIndex());
+            assertEquals(fullScan.getBamStats().getNumberOfMappedReadsInRegions(),
+                    stats.getNumberOfMappedReadsInRegions());
+            assertEquals(0, fullScan.getBamStats().getNumberOfRecordsInIndex());
+
+            Properties byIndexProperties = getProperties(byIndex, false);
+            assertTrue(byIndexProperties.containsKey(WARNING_KEY));
+            assertEquals("125", byIndexProperties.getProperty(RECORDS_IN_INDEX_KEY));
+
+            // apart from the globals and the warning, the results of the regions are the same
+            Properties fullScanProperties = getProperties(fullScan, false);
+            removeGlobals(fullScanProperties);
+            removeGlobals(byIndexProperties);
+            byIndexProperties.remove(WARNING_KEY);
+            assertEquals(fullScanProperties, byIndexProperties);
+        } finally {
+            deleteDir(workDir);
+        }
+    }
+
+    /**
+     * @return names of the reads overlapping any region, in the order of the file
+     */
+    List<String> getReadsOverlappingRegions(SAMFileReader reader) {
+        List<String> readNames = new ArrayList<String>();
+        SAMRecordIterator readIter = reader.iterator();
+        while (readIter.hasNext()) {
+            SAMRecord read = readIter.next();
+            for (int i = 0; i < REGION_STARTS.length; ++i) {
+                if (read.getReferenceName().equals(REGION_CONTIGS[i]) &&
+                        read.getAlignmentStart() <= REGION_ENDS[i] && read.getAlignmentEnd() >= REGION_STARTS[i]) {
+                    readNames.add(read.getReadName());
+                    break;
+                }
+            }
+        }
+        readIter.close();
+        return readNames;
+    }
+
+    static void removeGlobals(Properties properties) {
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith("GLOBALS")) {
+                properties.remove(key);
+            }
+        }
+    }
+
+    BamStatsAnalysis createAnalysis(File regionsFile, boolean queryRegionsByIndex) {
+        BamStatsAnalysis bamQc = new BamStatsAnalysis(pathToBamFile);
+        bamQc.setSelectedRegions(regionsFile.getPath());
+        bamQc.setQueryRegionsByIndex(queryRegionsByIndex);
+        bamQc.setNumberOfWindows(20);
+        bamQc.setNumberOfThreads(2);
+        bamQc.setNumberOfReadsInBunch(8);
+        return bamQc;
+    }
+
+}
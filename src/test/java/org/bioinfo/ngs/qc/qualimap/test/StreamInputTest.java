@@ -0,0 +1,103 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.test;
+
+import org.bioinfo.ngs.qc.qualimap.common.Constants;
+import org.bioinfo.ngs.qc.qualimap.process.BamStatsAnalysis;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+
+import static org.bioinfo.ngs.qc.qualimap.test.AnalysisTestUtils.getProperties;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the analysis of the alignments read from the standard input
+ */
+public class StreamInputTest {
+
+    String pathToBamFile;
+
+    public StreamInputTest() {
+        Environment testEnv = new Environment();
+        pathToBamFile = testEnv.processAttrValue("$COMMON_DATA_DIR/gambusino_reads.sorted.bam");
+    }
+
+    @Test
+    public void testSequentialDecoding() throws Exception {
+        checkStreamInput(0);
+    }
+
+    @Test
+    public void testParallelDecoding() throws Exception {
+        checkStreamInput(2);
+    }
+
+    void checkStreamInput(int numDecodingThreads) throws Exception {
+        BamStatsAnalysis fromFile = createAnalysis(pathToBamFile, numDecodingThreads);
+        assertFalse(fromFile.isStreamInput());
+        fromFile.run();
+
+        BamStatsAnalysis fromStream = createAnalysis(Constants.STANDARD_INPUT_FILE_NAME, numDecodingThreads);
+        assertTrue(fromStream.isStreamInput());
+        InputStream systemIn = System.in;
+        InputStream in = new BufferedInputStream(new FileInputStream(pathToBamFile));
+        try {
+            System.setIn(in);
+            fromStream.run();
+        } finally {
+            System.setIn(systemIn);
+            in.close();
+        }
+
+        assertEquals(125, fromStream.getBamStats().getNumberOfReads());
+        assertEquals(getProperties(fromFile, false), getProperties(fromStream, false));
+    }
+
+    @Test
+    public void testMissingFile() throws Exception {
+        String missingFile = pathToBamFile + ".missing";
+        BamStatsAnalysis bamQc = createAnalysis(missingFile, 0);
+        assertFalse(bamQc.isStreamInput());
+        try {
+            bamQc.run();
+            fail("The missing file is not reported");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof FileNotFoundException);
+        }
+    }
+
+    BamStatsAnalysis createAnalysis(String bamFile, int numDecodingThreads) {
+        BamStatsAnalysis bamQc = new BamStatsAnalysis(bamFile);
+        bamQc.setNumberOfWindows(20);
+        bamQc.setNumberOfThreads(2);
+        bamQc.setNumberOfReadsInBunch(8);
+        bamQc.setNumberOfDecodingThreads(numDecodingThreads);
+        return bamQc;
+    }
+
+}
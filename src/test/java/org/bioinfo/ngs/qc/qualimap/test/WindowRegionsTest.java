@@ -0,0 +1,121 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.test;
+
+import org.bioinfo.ngs.qc.qualimap.beans.BamGenomeWindow;
+import org.bioinfo.ngs.qc.qualimap.beans.GenomeLocator;
+import org.bioinfo.ngs.qc.qualimap.process.BamStatsAnalysis;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.BitSet;
+
+import static org.bioinfo.ngs.qc.qualimap.test.AnalysisTestUtils.*;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the selected regions marked in the genome windows against a scan of all regions
+ */
+public class WindowRegionsTest {
+
+    String pathToBamFile;
+
+    // unsorted regions, some are nested or overlap, one covers the whole chr1 and one is empty
+    static final String[] REGION_CONTIGS = {"chr2", "chr1", "chr1", "chr1", "chr2", "chr1", "chr1", "chr2", "chr2"};
+    static final int[] REGION_STARTS = {60, 100, 1, 30, 10, 35, 105, 15, 80};
+    static final int[] REGION_ENDS = {70, 120, 150, 50, 40, 40, 130, 25, 79};
+
+    public WindowRegionsTest() {
+        Environment testEnv = new Environment();
+        pathToBamFile = testEnv.processAttrValue("$COMMON_DATA_DIR/gambusino_reads.sorted.bam");
+    }
+
+    @Test
+    public void testWindowRegions() throws Exception {
+        checkWindowRegions(REGION_CONTIGS, REGION_STARTS, REGION_ENDS);
+    }
+
+    @Test
+    public void testWindowRegionsWithoutLongRegion() throws Exception {
+        // the same regions without the whole chr1, so the windows of chr1 have gaps
+        String[] contigs = new String[REGION_CONTIGS.length - 1];
+        int[] starts = new int[contigs.length];
+        int[] ends = new int[contigs.length];
+        for (int i = 0, j = 0; i < REGION_CONTIGS.length; ++i) {
+            if (REGION_ENDS[i] - REGION_STARTS[i] + 1 == 150) {
+                continue;
+            }
+            contigs[j] = REGION_CONTIGS[i];
+            starts[j] = REGION_STARTS[i];
+            ends[j] = REGION_ENDS[i];
+            ++j;
+        }
+        checkWindowRegions(contigs, starts, ends);
+    }
+
+    void checkWindowRegions(String[] contigs, int[] starts, int[] ends) throws Exception {
+        File workDir = createTempDir();
+        try {
+            File regionsFile = new File(workDir, "regions.bed");
+            PrintWriter regions = new PrintWriter(regionsFile);
+            for (int i = 0; i < contigs.length; ++i) {
+                // BED starts are 0-based
+                regions.println(contigs[i] + "\t" + (starts[i] - 1) + "\t" + ends[i] + "\tr" + i + "\t0\t+");
+            }
+            regions.close();
+
+            BamStatsAnalysis bamQc = new BamStatsAnalysis(pathToBamFile);
+            bamQc.setSelectedRegions(regionsFile.getPath());
+            bamQc.setNumberOfWindows(10);
+            bamQc.run();
+
+            GenomeLocator locator = bamQc.getLocator();
+            long[] regionStarts = new long[contigs.length];
+            long[] regionEnds = new long[contigs.length];
+            for (int i = 0; i < contigs.length; ++i) {
+                regionStarts[i] = locator.getAbsoluteCoordinates(contigs[i], starts[i]);
+                regionEnds[i] = locator.getAbsoluteCoordinates(contigs[i], ends[i]);
+            }
+
+            // every window of the genome, also the windows spanning both contigs
+            long genomeSize = locator.getTotalSize();
+            for (long windowStart = 1; windowStart <= genomeSize; ++windowStart) {
+                for (long windowEnd = windowStart; windowEnd <= genomeSize; ++windowEnd) {
+                    BitSet expected = new BitSet();
+                    for (long pos = windowStart; pos <= windowEnd; ++pos) {
+                        for (int i = 0; i < regionStarts.length; ++i) {
+                            if (regionStarts[i] <= pos && pos <= regionEnds[i]) {
+                                expected.set((int) (pos - windowStart));
+                                break;
+                            }
+                        }
+                    }
+                    BamGenomeWindow window = bamQc.initWindow("w", windowStart, windowEnd, null, false);
+                    assertEquals(windowStart + "-" + windowEnd, expected, window.getSelectedRegions());
+                }
+            }
+        } finally {
+            deleteDir(workDir);
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+/**
+ * QualiMap: evaluation of next generation sequencing alignment data
+ * Copyright (C) 2016 Garcia-Alcalde et al.
+ * http://qualimap.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301, USA.
+ */
+package org.bioinfo.ngs.qc.qualimap.test;
+
+import org.bioinfo.ngs.qc.qualimap.beans.WindowStatsStore;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the column store of the per window statistics
+ */
+public class WindowStatsStoreTest {
+
+    static WindowStatsStore createStore(int numRows, int first) {
+        // the initial capacity is exceeded, so the columns grow
+        WindowStatsStore store = new WindowStatsStore(2);
+        for (int i = 0; i < numRows; ++i) {
+            int row = store.addRow();
+            assertEquals(i, row);
+            store.set(WindowStatsStore.COVERAGE, row, first + i);
+            store.set(WindowStatsStore.INSERT_SIZE, row, (first + i) * 0.5);
+            store.setLong(WindowStatsStore.MAPPED_BASES, row, 1000L * (first + i));
+        }
+        return store;
+    }
+
+    @Test
+    public void testRows() {
+        WindowStatsStore store = createStore(5, 1);
+
+        assertEquals(5, store.size());
+        assertEquals(3.0, store.get(WindowStatsStore.COVERAGE, 2), 0);
+        assertEquals(1.5, store.get(WindowStatsStore.INSERT_SIZE, 2), 0);
+        assertEquals(3000L, store.getLong(WindowStatsStore.MAPPED_BASES, 2));
+        // the columns which were not set are zero
+        assertEquals(0.0, store.get(WindowStatsStore.GC_CONTENT, 4), 0);
+        assertEquals(0L, store.getLong(WindowStatsStore.SUM_COVERAGE, 4));
+
+        store.set(WindowStatsStore.COVERAGE, 2, 10);
+        assertEquals(10.0, store.get(WindowStatsStore.COVERAGE, 2), 0);
+        assertEquals((1 + 2 + 10 + 4 + 5) / 5.0, store.mean(WindowStatsStore.COVERAGE), 1e-12);
+    }
+
+    @Test
+    public void testAppend() {
+        WindowStatsStore store = createStore(3, 1);
+        store.append(createStore(4, 4));
+        store.append(new WindowStatsStore());
+
+        assertEquals(7, store.size());
+        assertEquals(Arrays.toString(new double[] {1, 2, 3, 4, 5, 6, 7}),
+                Arrays.toString(store.toArray(WindowStatsStore.COVERAGE)));
+        for (int i = 0; i < 7; ++i) {
+            assertEquals(1000L * (i + 1), store.getLong(WindowStatsStore.MAPPED_BASES, i));
+        }
+        assertEquals(4.0, store.mean(WindowStatsStore.COVERAGE), 1e-12);
+    }
+
+    @Test
+    public void testToArray() {
+        WindowStatsStore store = createStore(3, 1);
+        double[] values = store.toArray(WindowStatsStore.COVERAGE);
+        // only the rows are copied, the capacity of the store is larger
+        assertEquals(Arrays.toString(new double[] {1, 2, 3}), Arrays.toString(values));
+
+        // the array is a copy
+        store.set(WindowStatsStore.COVERAGE, 0, 7);
+        store.addRow();
+        assertEquals(Arrays.toString(new double[] {1, 2, 3}), Arrays.toString(values));
+        assertEquals(Arrays.toString(new double[] {7, 2, 3, 0}),
+                Arrays.toString(store.toArray(WindowStatsStore.COVERAGE)));
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        WindowStatsStore store = createStore(20, 3);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(store);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        WindowStatsStore copy = (WindowStatsStore) in.readObject();
+        in.close();
+
+        assertEquals(store.size(), copy.size());
+        assertEquals(Arrays.toString(store.toArray(WindowStatsStore.COVERAGE)),
+                Arrays.toString(copy.toArray(WindowStatsStore.COVERAGE)));
+        assertEquals(Arrays.toString(store.toArray(WindowStatsStore.INSERT_SIZE)),
+                Arrays.toString(copy.toArray(WindowStatsStore.INSERT_SIZE)));
+        for (int i = 0; i < store.size(); ++i) {
+            assertEquals(store.getLong(WindowStatsStore.MAPPED_BASES, i), copy.getLong(WindowStatsStore.MAPPED_BASES, i));
+        }
+
+        // the restored store keeps growing
+        int row = copy.addRow();
+        copy.set(WindowStatsStore.COVERAGE, row, 1);
+        assertEquals(21, copy.size());
+    }
+
+}